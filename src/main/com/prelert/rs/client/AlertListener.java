@@ -0,0 +1,47 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import com.prelert.job.alert.Alert;
+import com.prelert.rs.data.ApiError;
+
+/**
+ * Receives the alerts of a job subscribed to with an
+ * {@link AlertSubscriptionManager}. Methods are called on the
+ * manager's listener executor, never on the I/O threads.
+ */
+public interface AlertListener
+{
+    /**
+     * An alert that met the subscription's thresholds
+     * @param alert
+     */
+    void alert(Alert alert);
+
+    /**
+     * A poll failed. The subscription polls again after a delay
+     * unless the job does not exist, when it is cancelled.
+     *
+     * @param jobId The job of the subscription
+     * @param error The error returned by the API or <code>null</code>
+     * @param exception The exception if the request failed without a
+     * response or <code>null</code>
+     */
+    void failed(String jobId, ApiError error, Exception exception);
+}
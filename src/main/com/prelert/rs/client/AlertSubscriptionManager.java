@@ -0,0 +1,416 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.log4j.Logger;
+
+import com.prelert.job.alert.Alert;
+import com.prelert.rs.data.ApiError;
+import com.prelert.rs.data.ErrorCode;
+
+/**
+ * Watches many jobs for alerts using the non-blocking client so
+ * thousands of long polls are carried by a few I/O threads instead of
+ * a thread each. Each subscription keeps one
+ * {@linkplain EngineApiAsyncClient#pollJobAlert(String, String, Integer, Double, Double, FutureCallback)}
+ * outstanding with its own thresholds; when a poll times out
+ * ({@linkplain Alert#isTimeout()}) or returns an alert the next poll is
+ * started straight away from the completion callback.
+ * <br/>
+ * Listeners are called on a separate executor so a slow listener never
+ * holds up the I/O threads. With the default single thread executor
+ * a listener sees the alerts of a job in order.
+ * <br/>
+ * Every subscription holds a connection, so the async client's
+ * connection limits must allow as many connections to the Engine
+ * host as there are subscriptions.
+ */
+public class AlertSubscriptionManager implements Closeable
+{
+    private static final Logger LOGGER = Logger.getLogger(AlertSubscriptionManager.class);
+
+    /**
+     * The first delay before polling again after a failure,
+     * doubled for each consecutive failure
+     */
+    public static final long RETRY_DELAY_MS = 1000;
+
+    /**
+     * The longest delay before polling again after a failure
+     */
+    public static final long MAX_RETRY_DELAY_MS = 60000;
+
+    private final EngineApiAsyncClient m_Client;
+    private final String m_BaseUrl;
+    private final Integer m_PollTimeout;
+    private final ExecutorService m_ListenerExecutor;
+    private final boolean m_OwnsListenerExecutor;
+    private final ScheduledExecutorService m_RetryScheduler;
+    private final ConcurrentHashMap<Subscription, Boolean> m_Subscriptions =
+            new ConcurrentHashMap<>();
+    private volatile boolean m_Closed;
+
+    /**
+     * Listeners are called on a single thread and polls use the
+     * API's default timeout
+     *
+     * @param client Makes the polls
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     */
+    public AlertSubscriptionManager(EngineApiAsyncClient client, String baseUrl)
+    {
+        this(client, baseUrl, null, Executors.newSingleThreadExecutor(
+                daemonThreads("alert-listener")), true);
+    }
+
+    /**
+     * @param client Makes the polls
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param pollTimeout The long poll timeout in seconds.
+     * If <code>null</code> then use the default
+     * @param listenerExecutor Calls the listeners, it is not shut
+     * down by {@linkplain #close()}
+     */
+    public AlertSubscriptionManager(EngineApiAsyncClient client, String baseUrl,
+            Integer pollTimeout, ExecutorService listenerExecutor)
+    {
+        this(client, baseUrl, pollTimeout, listenerExecutor, false);
+    }
+
+    private AlertSubscriptionManager(EngineApiAsyncClient client, String baseUrl,
+            Integer pollTimeout, ExecutorService listenerExecutor, boolean ownsExecutor)
+    {
+        m_Client = client;
+        m_BaseUrl = baseUrl;
+        m_PollTimeout = pollTimeout;
+        m_ListenerExecutor = listenerExecutor;
+        m_OwnsListenerExecutor = ownsExecutor;
+        m_RetryScheduler = Executors.newSingleThreadScheduledExecutor(
+                daemonThreads("alert-retry"));
+    }
+
+    private static ThreadFactory daemonThreads(final String name)
+    {
+        return new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Start watching a job for alerts
+     *
+     * @param jobId The job id
+     * @param anomalyScoreThreshold Alert if a record has an anomalyScore
+     * &gt;= this value, ignored if <code>null</code>
+     * @param maxNormalizedProbability Alert if a bucket's
+     * maxNormalizedProbability is &gt;= this value, ignored if <code>null</code>
+     * @param listener Receives the alerts
+     * @return The subscription, cancel it to stop watching
+     */
+    public Subscription subscribe(String jobId, Double anomalyScoreThreshold,
+            Double maxNormalizedProbability, AlertListener listener)
+    {
+        if (m_Closed)
+        {
+            throw new IllegalStateException("The alert subscription manager is closed");
+        }
+
+        Subscription subscription = new Subscription(jobId, anomalyScoreThreshold,
+                maxNormalizedProbability, listener);
+        m_Subscriptions.put(subscription, Boolean.TRUE);
+        subscription.poll();
+        return subscription;
+    }
+
+    /**
+     * The active subscriptions
+     * @return A snapshot of the subscriptions
+     */
+    public List<Subscription> getSubscriptions()
+    {
+        return new ArrayList<>(m_Subscriptions.keySet());
+    }
+
+    /**
+     * Cancel all the subscriptions. The async client is not closed.
+     */
+    @Override
+    public void close()
+    {
+        m_Closed = true;
+        for (Subscription subscription : m_Subscriptions.keySet())
+        {
+            subscription.cancel();
+        }
+        m_RetryScheduler.shutdownNow();
+        if (m_OwnsListenerExecutor)
+        {
+            m_ListenerExecutor.shutdown();
+        }
+    }
+
+
+    /**
+     * One job's alert poll and its listener
+     */
+    public class Subscription
+    {
+        private final String m_JobId;
+        private final Double m_AnomalyScoreThreshold;
+        private final Double m_MaxNormalizedProbability;
+        private final AlertListener m_Listener;
+
+        private volatile boolean m_Cancelled;
+        private volatile Future<ApiResult<Alert>> m_Poll;
+        private volatile long m_AlertCount;
+        private volatile long m_PollCount;
+        private int m_ConsecutiveFailures;
+
+        private final FutureCallback<ApiResult<Alert>> m_Callback =
+                new FutureCallback<ApiResult<Alert>>()
+        {
+            @Override
+            public void completed(ApiResult<Alert> result)
+            {
+                pollCompleted(result);
+            }
+
+            @Override
+            public void failed(Exception ex)
+            {
+                pollFailed(ex);
+            }
+
+            @Override
+            public void cancelled()
+            {
+                // cancelled by cancel() or close()
+            }
+        };
+
+        private Subscription(String jobId, Double anomalyScoreThreshold,
+                Double maxNormalizedProbability, AlertListener listener)
+        {
+            m_JobId = jobId;
+            m_AnomalyScoreThreshold = anomalyScoreThreshold;
+            m_MaxNormalizedProbability = maxNormalizedProbability;
+            m_Listener = listener;
+        }
+
+        public String getJobId()
+        {
+            return m_JobId;
+        }
+
+        /**
+         * The number of alerts received
+         * @return The alert count
+         */
+        public long getAlertCount()
+        {
+            return m_AlertCount;
+        }
+
+        /**
+         * The number of polls made including those that timed out
+         * @return The poll count
+         */
+        public long getPollCount()
+        {
+            return m_PollCount;
+        }
+
+        public boolean isCancelled()
+        {
+            return m_Cancelled;
+        }
+
+        /**
+         * Stop watching the job, the outstanding poll is aborted
+         */
+        public void cancel()
+        {
+            m_Cancelled = true;
+            m_Subscriptions.remove(this);
+
+            Future<ApiResult<Alert>> poll = m_Poll;
+            if (poll != null)
+            {
+                poll.cancel(true);
+            }
+        }
+
+        private void poll()
+        {
+            if (m_Cancelled || m_Closed)
+            {
+                return;
+            }
+
+            m_PollCount++;
+            m_Poll = m_Client.pollJobAlert(m_BaseUrl, m_JobId, m_PollTimeout,
+                    m_AnomalyScoreThreshold, m_MaxNormalizedProbability, m_Callback);
+        }
+
+        /**
+         * Called on an I/O thread when the poll returns
+         */
+        private void pollCompleted(ApiResult<Alert> result)
+        {
+            if (result.isSuccess())
+            {
+                m_ConsecutiveFailures = 0;
+
+                final Alert alert = result.getResult();
+                if (alert != null && alert.isTimeout() == false)
+                {
+                    m_AlertCount++;
+                    dispatch(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            m_Listener.alert(alert);
+                        }
+                    });
+                }
+                poll();
+                return;
+            }
+
+            final ApiError error = result.getError();
+            if (error != null && error.getErrorCode() == ErrorCode.UNKNOWN_JOB_REFERENCE)
+            {
+                LOGGER.error("Cancelling the alert subscription to unknown job " + m_JobId);
+                cancel();
+            }
+            else
+            {
+                retryLater();
+            }
+
+            dispatch(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    m_Listener.failed(m_JobId, error, null);
+                }
+            });
+        }
+
+        /**
+         * Called on an I/O thread if the poll fails without a response
+         */
+        private void pollFailed(final Exception ex)
+        {
+            if (m_Cancelled || m_Closed)
+            {
+                return;
+            }
+
+            retryLater();
+            dispatch(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    m_Listener.failed(m_JobId, null, ex);
+                }
+            });
+        }
+
+        private void retryLater()
+        {
+            if (m_Cancelled || m_Closed)
+            {
+                return;
+            }
+
+            long delay = Math.min(MAX_RETRY_DELAY_MS,
+                    RETRY_DELAY_MS << Math.min(m_ConsecutiveFailures, 16));
+            m_ConsecutiveFailures++;
+
+            try
+            {
+                m_RetryScheduler.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        poll();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // the manager was closed
+            }
+        }
+
+        private void dispatch(final Runnable call)
+        {
+            try
+            {
+                m_ListenerExecutor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            call.run();
+                        }
+                        catch (RuntimeException e)
+                        {
+                            LOGGER.error("Alert listener for job " + m_JobId + " failed", e);
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                LOGGER.warn("Alert for job " + m_JobId + " not delivered, " +
+                        "the listener executor has shut down");
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+
+import com.prelert.rs.data.ApiError;
+
+/**
+ * The outcome of a single request to the Engine API.
+ * Either the request succeeded and {@linkplain #getResult()} holds
+ * the parsed response or it failed and {@linkplain #getError()}
+ * describes why. Unlike {@link EngineApiClient#getLastError()}
+ * the outcome belongs to the request and not to the client so
+ * it can be handed between threads.
+ *
+ * @param <T> The type of the successful response
+ */
+public class ApiResult<T>
+{
+    private int m_StatusCode;
+    private T m_Result;
+    private ApiError m_Error;
+
+    /**
+     * A successful result
+     *
+     * @param statusCode The HTTP status code of the response
+     * @param result The parsed response
+     */
+    public ApiResult(int statusCode, T result)
+    {
+        m_StatusCode = statusCode;
+        m_Result = result;
+    }
+
+    /**
+     * A failed result
+     *
+     * @param statusCode The HTTP status code of the response
+     * @param error The error returned by the API, must not be <code>null</code>
+     */
+    public ApiResult(int statusCode, ApiError error)
+    {
+        m_StatusCode = statusCode;
+        m_Error = error;
+    }
+
+    /**
+     * The HTTP status code returned by the API
+     * @return The status code
+     */
+    public int getStatusCode()
+    {
+        return m_StatusCode;
+    }
+
+    /**
+     * The parsed response
+     * @return The result or <code>null</code> if the request failed
+     */
+    public T getResult()
+    {
+        return m_Result;
+    }
+
+    /**
+     * The error returned by the API
+     * @return The error or <code>null</code> if the request succeeded
+     */
+    public ApiError getError()
+    {
+        return m_Error;
+    }
+
+    /**
+     * True if the request succeeded
+     * @return True if there is no error
+     */
+    public boolean isSuccess()
+    {
+        return m_Error == null;
+    }
+
+    /**
+     * The parsed response of a successful request
+     *
+     * @param description Describes the request for the exception message
+     * @return The result
+     * @throws IOException If the request failed, the message holds
+     * the status code and the error's message
+     */
+    T getResultOrThrow(String description)
+    throws IOException
+    {
+        if (m_Error != null)
+        {
+            throw new IOException(description + " failed with status code " +
+                    m_StatusCode + ": " + m_Error.getMessage(), m_Error.getCause());
+        }
+        return m_Result;
+    }
+}
@@ -0,0 +1,484 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+
+import com.prelert.rs.data.Bucket;
+import com.prelert.rs.data.Pagination;
+
+/**
+ * The bucket results of a job held column by column in primitive
+ * arrays rather than as a list of {@link Bucket} objects. A series
+ * of a year of 5 minute buckets is a handful of arrays of 100,000
+ * elements instead of 100,000 buckets each with its own
+ * <code>Date</code>, detector and record lists.
+ * <br/>
+ * The series is a {@link DocumentConsumer} so it can be filled
+ * straight from {@linkplain EngineApiClient#streamBuckets(String, String,
+ * boolean, boolean, Long, Long, Object, Object, Double, Double, DocumentConsumer)}
+ * without the buckets being expanded. The anomaly records are not held.
+ * Buckets must be added in time order.
+ * <br/>
+ * The operations are simple loops over the columns. Individual
+ * buckets are created on demand by {@linkplain #getBucket(int)}
+ * or the {@linkplain #asBuckets()} view.
+ * <br/>
+ * Not thread safe while being filled.
+ */
+public class BucketSeries implements DocumentConsumer<Bucket>
+{
+    /**
+     * The score columns
+     */
+    public enum Column
+    {
+        ANOMALY_SCORE, MAX_NORMALIZED_PROBABILITY, RAW_ANOMALY_SCORE
+    }
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private long[] m_Epochs;
+    private double[] m_AnomalyScores;
+    private double[] m_MaxNormalizedProbabilities;
+    private double[] m_RawAnomalyScores;
+    private int[] m_RecordCounts;
+    private long[] m_EventCounts;
+    private BitSet m_Interim;
+    private int m_Size;
+
+    public BucketSeries()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The initial number of buckets the series can
+     * hold without growing
+     */
+    public BucketSeries(int capacity)
+    {
+        m_Epochs = new long[capacity];
+        m_AnomalyScores = new double[capacity];
+        m_MaxNormalizedProbabilities = new double[capacity];
+        m_RawAnomalyScores = new double[capacity];
+        m_RecordCounts = new int[capacity];
+        m_EventCounts = new long[capacity];
+        m_Interim = new BitSet(capacity);
+    }
+
+    /**
+     * Fetch the job's buckets in the range into a new series
+     *
+     * @param client Fetches the results
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The job Id
+     * @param includeInterim Include interim results
+     * @param start The start of the range in seconds since the epoch or
+     * <code>null</code> for the first bucket
+     * @param end The end of the range in seconds since the epoch or
+     * <code>null</code> for the last bucket
+     * @param pageSize The number of buckets per request
+     * @return The series
+     * @throws IOException
+     */
+    public static BucketSeries fetch(EngineApiClient client, String baseUrl, String jobId,
+            boolean includeInterim, Long start, Long end, long pageSize)
+    throws IOException
+    {
+        BucketSeries series = new BucketSeries();
+
+        String description = "Fetching the buckets of job " + jobId;
+        Pagination<Bucket> page = client.streamBucketsResult(baseUrl, jobId, false,
+                includeInterim, null, pageSize, start, end, null, null, series)
+                .getResultOrThrow(description);
+        while (page.getNextPage() != null)
+        {
+            page = client.streamResult(page.getNextPage().toString(), Bucket.class, series)
+                    .getResultOrThrow(description);
+        }
+
+        series.trimToSize();
+        return series;
+    }
+
+    @Override
+    public void consume(Bucket bucket)
+    {
+        add(bucket);
+    }
+
+    /**
+     * Append the bucket's values
+     *
+     * @param bucket
+     * @throws IllegalArgumentException If the bucket is earlier than
+     * the last bucket added
+     */
+    public void add(Bucket bucket)
+    {
+        add(bucket.getEpoch(), bucket.getAnomalyScore(), bucket.getMaxNormalizedProbability(),
+                bucket.getRawAnomalyScore(), bucket.getRecordCount(), bucket.getEventCount(),
+                Boolean.TRUE.equals(bucket.isInterim()));
+    }
+
+    /**
+     * Append a bucket's values
+     *
+     * @param epoch The bucket time in seconds since the epoch
+     * @param anomalyScore
+     * @param maxNormalizedProbability
+     * @param rawAnomalyScore
+     * @param recordCount
+     * @param eventCount
+     * @param interim
+     * @throws IllegalArgumentException If the bucket is earlier than
+     * the last bucket added
+     */
+    public void add(long epoch, double anomalyScore, double maxNormalizedProbability,
+            double rawAnomalyScore, int recordCount, long eventCount, boolean interim)
+    {
+        if (m_Size > 0 && epoch < m_Epochs[m_Size - 1])
+        {
+            throw new IllegalArgumentException("Bucket " + epoch +
+                    " is earlier than the last bucket " + m_Epochs[m_Size - 1]);
+        }
+
+        if (m_Size == m_Epochs.length)
+        {
+            resize(Math.max(DEFAULT_CAPACITY, m_Size + (m_Size >> 1)));
+        }
+
+        m_Epochs[m_Size] = epoch;
+        m_AnomalyScores[m_Size] = anomalyScore;
+        m_MaxNormalizedProbabilities[m_Size] = maxNormalizedProbability;
+        m_RawAnomalyScores[m_Size] = rawAnomalyScore;
+        m_RecordCounts[m_Size] = recordCount;
+        m_EventCounts[m_Size] = eventCount;
+        m_Interim.set(m_Size, interim);
+        m_Size++;
+    }
+
+    /**
+     * Release the unused capacity
+     */
+    public void trimToSize()
+    {
+        if (m_Size < m_Epochs.length)
+        {
+            resize(m_Size);
+        }
+    }
+
+    private void resize(int capacity)
+    {
+        m_Epochs = Arrays.copyOf(m_Epochs, capacity);
+        m_AnomalyScores = Arrays.copyOf(m_AnomalyScores, capacity);
+        m_MaxNormalizedProbabilities = Arrays.copyOf(m_MaxNormalizedProbabilities, capacity);
+        m_RawAnomalyScores = Arrays.copyOf(m_RawAnomalyScores, capacity);
+        m_RecordCounts = Arrays.copyOf(m_RecordCounts, capacity);
+        m_EventCounts = Arrays.copyOf(m_EventCounts, capacity);
+    }
+
+    public int size()
+    {
+        return m_Size;
+    }
+
+    public long getEpoch(int index)
+    {
+        checkIndex(index);
+        return m_Epochs[index];
+    }
+
+    public double getAnomalyScore(int index)
+    {
+        checkIndex(index);
+        return m_AnomalyScores[index];
+    }
+
+    public double getMaxNormalizedProbability(int index)
+    {
+        checkIndex(index);
+        return m_MaxNormalizedProbabilities[index];
+    }
+
+    public double getRawAnomalyScore(int index)
+    {
+        checkIndex(index);
+        return m_RawAnomalyScores[index];
+    }
+
+    public int getRecordCount(int index)
+    {
+        checkIndex(index);
+        return m_RecordCounts[index];
+    }
+
+    public long getEventCount(int index)
+    {
+        checkIndex(index);
+        return m_EventCounts[index];
+    }
+
+    public boolean isInterim(int index)
+    {
+        checkIndex(index);
+        return m_Interim.get(index);
+    }
+
+    /**
+     * The value of a score column
+     *
+     * @param column
+     * @param index
+     * @return The value
+     */
+    public double get(Column column, int index)
+    {
+        checkIndex(index);
+        return column(column)[index];
+    }
+
+    /**
+     * The index of the first bucket at or after <code>epoch</code>
+     *
+     * @param epoch Seconds since the epoch
+     * @return The index, equal to {@linkplain #size()} if every
+     * bucket is earlier
+     */
+    public int indexOf(long epoch)
+    {
+        // equal epochs are possible so find the first of them
+        int low = 0;
+        int high = m_Size;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (m_Epochs[mid] < epoch)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * A copy of the buckets in the time range
+     *
+     * @param start Seconds since the epoch, inclusive
+     * @param end Seconds since the epoch, exclusive
+     * @return A new series
+     */
+    public BucketSeries slice(long start, long end)
+    {
+        int from = indexOf(start);
+        int to = Math.max(from, indexOf(end));
+
+        BucketSeries slice = new BucketSeries(0);
+        slice.m_Epochs = Arrays.copyOfRange(m_Epochs, from, to);
+        slice.m_AnomalyScores = Arrays.copyOfRange(m_AnomalyScores, from, to);
+        slice.m_MaxNormalizedProbabilities = Arrays.copyOfRange(m_MaxNormalizedProbabilities,
+                from, to);
+        slice.m_RawAnomalyScores = Arrays.copyOfRange(m_RawAnomalyScores, from, to);
+        slice.m_RecordCounts = Arrays.copyOfRange(m_RecordCounts, from, to);
+        slice.m_EventCounts = Arrays.copyOfRange(m_EventCounts, from, to);
+        slice.m_Interim = m_Interim.get(from, to);
+        slice.m_Size = to - from;
+        return slice;
+    }
+
+    /**
+     * The indexes of the buckets whose value is at least the threshold
+     *
+     * @param column
+     * @param threshold
+     * @return The indexes in time order
+     */
+    public int[] filter(Column column, double threshold)
+    {
+        double[] values = column(column);
+
+        int count = 0;
+        for (int i = 0; i < m_Size; i++)
+        {
+            if (values[i] >= threshold)
+            {
+                count++;
+            }
+        }
+
+        int[] indexes = new int[count];
+        int j = 0;
+        for (int i = 0; i < m_Size && j < count; i++)
+        {
+            if (values[i] >= threshold)
+            {
+                indexes[j++] = i;
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * The index of the bucket with the highest value, the earliest
+     * if there are several
+     *
+     * @param column
+     * @return The index or -1 if the series is empty
+     */
+    public int argmax(Column column)
+    {
+        double[] values = column(column);
+
+        int best = -1;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < m_Size; i++)
+        {
+            if (values[i] > max || best < 0)
+            {
+                max = values[i];
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The maximum value of the <code>window</code> buckets ending
+     * at each bucket. The first <code>window - 1</code> values are
+     * over the buckets so far.
+     *
+     * @param column
+     * @param window The number of buckets in the window, must be &gt;= 1
+     * @return An array of {@linkplain #size()} values
+     */
+    public double[] rollingMax(Column column, int window)
+    {
+        if (window < 1)
+        {
+            throw new IllegalArgumentException("window must be >= 1");
+        }
+
+        double[] values = column(column);
+        double[] result = new double[m_Size];
+
+        // the indexes of decreasing values, the head is the window's max
+        ArrayDeque<Integer> candidates = new ArrayDeque<>();
+        for (int i = 0; i < m_Size; i++)
+        {
+            while (candidates.isEmpty() == false && values[candidates.peekLast()] <= values[i])
+            {
+                candidates.pollLast();
+            }
+            candidates.addLast(i);
+
+            if (candidates.peekFirst() <= i - window)
+            {
+                candidates.pollFirst();
+            }
+            result[i] = values[candidates.peekFirst()];
+        }
+        return result;
+    }
+
+    /**
+     * Create the bucket at <code>index</code>. The bucket has
+     * no detectors or records.
+     *
+     * @param index
+     * @return A new bucket
+     */
+    public Bucket getBucket(int index)
+    {
+        checkIndex(index);
+
+        Bucket bucket = new Bucket();
+        bucket.setTimestamp(new Date(m_Epochs[index] * 1000));
+        bucket.setAnomalyScore(m_AnomalyScores[index]);
+        bucket.setMaxNormalizedProbability(m_MaxNormalizedProbabilities[index]);
+        bucket.setRawAnomalyScore(m_RawAnomalyScores[index]);
+        bucket.setRecordCount(m_RecordCounts[index]);
+        bucket.setEventCount(m_EventCounts[index]);
+        if (m_Interim.get(index))
+        {
+            bucket.setInterim(Boolean.TRUE);
+        }
+        bucket.resetBigNormalisedUpdateFlag();
+        return bucket;
+    }
+
+    /**
+     * A read only view of the series as buckets, each created
+     * when it is read
+     *
+     * @return The list view
+     */
+    public List<Bucket> asBuckets()
+    {
+        return new AbstractList<Bucket>()
+        {
+            @Override
+            public Bucket get(int index)
+            {
+                return getBucket(index);
+            }
+
+            @Override
+            public int size()
+            {
+                return m_Size;
+            }
+        };
+    }
+
+    private double[] column(Column column)
+    {
+        switch (column)
+        {
+            case ANOMALY_SCORE:
+                return m_AnomalyScores;
+            case MAX_NORMALIZED_PROBABILITY:
+                return m_MaxNormalizedProbabilities;
+            case RAW_ANOMALY_SCORE:
+                return m_RawAnomalyScores;
+            default:
+                throw new IllegalArgumentException("Unknown column " + column);
+        }
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= m_Size)
+        {
+            throw new IndexOutOfBoundsException("Index " + index + " size " + m_Size);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of equally sized byte arrays so large upload
+ * buffers are reused between uploads rather than reallocated.
+ * Requests for a different size are allocated and never pooled.
+ * Thread safe.
+ */
+class BufferPool
+{
+    private final int m_BufferSize;
+    private final BlockingQueue<byte[]> m_Free;
+
+    /**
+     * @param bufferSize The size of the pooled buffers
+     * @param maxPooled The maximum number of idle buffers retained
+     */
+    BufferPool(int bufferSize, int maxPooled)
+    {
+        m_BufferSize = bufferSize;
+        m_Free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * Get a buffer of at least <code>size</code> bytes
+     */
+    byte [] acquire(int size)
+    {
+        if (size == m_BufferSize)
+        {
+            byte [] buffer = m_Free.poll();
+            if (buffer != null)
+            {
+                return buffer;
+            }
+        }
+
+        return new byte[size];
+    }
+
+    /**
+     * Return a buffer to the pool. The caller must not use it again.
+     */
+    void release(byte [] buffer)
+    {
+        if (buffer.length == m_BufferSize)
+        {
+            // if the pool is full the buffer is left for the GC
+            m_Free.offer(buffer);
+        }
+    }
+}
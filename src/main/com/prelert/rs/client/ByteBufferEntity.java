@@ -0,0 +1,251 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * A repeatable request entity whose content is a sequence of
+ * <code>ByteBuffer</code>s or the regions of a memory mapped file.
+ * The buffers are written in order without being concatenated.
+ * Buffers with a backing array are written straight from the array,
+ * direct and mapped buffers are copied through a single small
+ * transfer buffer so the upload allocates no more heap as it
+ * progresses.
+ * <br/>
+ * The positions and limits of the caller's buffers are not changed.
+ */
+class ByteBufferEntity extends AbstractHttpEntity
+{
+    /**
+     * Files are mapped one region of this size at a time
+     */
+    static final long MAPPED_REGION_SIZE = 64L * 1024 * 1024;
+
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private final List<ByteBuffer> m_Buffers;
+    private final File m_File;
+    private final long m_ContentLength;
+    private final UploadProgressListener m_Listener;
+
+    /**
+     * Content is the remaining bytes of each buffer in order
+     *
+     * @param buffers
+     * @param listener May be <code>null</code>
+     */
+    ByteBufferEntity(List<ByteBuffer> buffers, UploadProgressListener listener)
+    {
+        List<ByteBuffer> copies = new ArrayList<>(buffers.size());
+        long length = 0;
+        for (ByteBuffer buffer : buffers)
+        {
+            copies.add(buffer.duplicate());
+            length += buffer.remaining();
+        }
+
+        m_Buffers = Collections.unmodifiableList(copies);
+        m_File = null;
+        m_ContentLength = length;
+        m_Listener = listener;
+    }
+
+    /**
+     * Content is the whole file
+     *
+     * @param file
+     * @param listener May be <code>null</code>
+     */
+    ByteBufferEntity(File file, UploadProgressListener listener)
+    {
+        m_Buffers = null;
+        m_File = file;
+        m_ContentLength = file.length();
+        m_Listener = listener;
+    }
+
+    @Override
+    public boolean isRepeatable()
+    {
+        return true;
+    }
+
+    @Override
+    public long getContentLength()
+    {
+        return m_ContentLength;
+    }
+
+    @Override
+    public boolean isStreaming()
+    {
+        return false;
+    }
+
+    @Override
+    public InputStream getContent()
+    throws IOException
+    {
+        if (m_File != null)
+        {
+            return new FileInputStream(m_File);
+        }
+
+        return new BufferListInputStream(m_Buffers);
+    }
+
+    @Override
+    public void writeTo(OutputStream out)
+    throws IOException
+    {
+        byte [] transfer = new byte[TRANSFER_BUFFER_SIZE];
+        long sent = 0;
+
+        if (m_File == null)
+        {
+            for (ByteBuffer buffer : m_Buffers)
+            {
+                sent = write(buffer.duplicate(), out, transfer, sent);
+            }
+        }
+        else
+        {
+            try (FileInputStream stream = new FileInputStream(m_File);
+                 FileChannel channel = stream.getChannel())
+            {
+                // the content length was fixed when the entity was created
+                long position = 0;
+                while (position < m_ContentLength)
+                {
+                    long regionSize = Math.min(MAPPED_REGION_SIZE, m_ContentLength - position);
+                    ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY,
+                                                    position, regionSize);
+                    sent = write(region, out, transfer, sent);
+                    position += regionSize;
+                }
+            }
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Write the remaining bytes of <code>buffer</code> in blocks
+     * reporting progress after each block.
+     *
+     * @return The updated count of bytes sent
+     */
+    private long write(ByteBuffer buffer, OutputStream out, byte [] transfer, long sent)
+    throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int length = Math.min(transfer.length, buffer.remaining());
+            if (buffer.hasArray())
+            {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                buffer.position(buffer.position() + length);
+            }
+            else
+            {
+                buffer.get(transfer, 0, length);
+                out.write(transfer, 0, length);
+            }
+
+            sent += length;
+            if (m_Listener != null)
+            {
+                m_Listener.progress(sent, m_ContentLength);
+            }
+        }
+
+        return sent;
+    }
+
+
+    /**
+     * Reads the remaining bytes of each buffer in turn
+     */
+    private static class BufferListInputStream extends InputStream
+    {
+        private final List<ByteBuffer> m_Buffers;
+        private int m_Index;
+
+        BufferListInputStream(List<ByteBuffer> buffers)
+        {
+            m_Buffers = new ArrayList<>(buffers.size());
+            for (ByteBuffer buffer : buffers)
+            {
+                m_Buffers.add(buffer.duplicate());
+            }
+        }
+
+        @Override
+        public int read()
+        {
+            ByteBuffer buffer = current();
+            return (buffer == null) ? -1 : (buffer.get() & 0xff);
+        }
+
+        @Override
+        public int read(byte [] b, int off, int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+
+            ByteBuffer buffer = current();
+            if (buffer == null)
+            {
+                return -1;
+            }
+
+            int length = Math.min(len, buffer.remaining());
+            buffer.get(b, off, length);
+            return length;
+        }
+
+        private ByteBuffer current()
+        {
+            while (m_Index < m_Buffers.size())
+            {
+                ByteBuffer buffer = m_Buffers.get(m_Index);
+                if (buffer.hasRemaining())
+                {
+                    return buffer;
+                }
+                m_Index++;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,422 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.prelert.rs.data.ApiError;
+import com.prelert.rs.data.ErrorCode;
+
+/**
+ * Limits the number of requests in flight to one Engine node and
+ * adapts the limit to what the node can sustain. Share one limiter
+ * between all the threads sending work to the same node; uploads and
+ * queries have very different response times so use a limiter for each.
+ * <br/>
+ * The limit is adjusted using additive increase, multiplicative
+ * decrease:
+ * <ul>
+ * <li>When the node rejects work because it is overloaded
+ * ({@linkplain ErrorCode#TOO_MANY_JOBS_RUNNING_CONCURRENTLY} or
+ * {@linkplain ErrorCode#NATIVE_PROCESS_CONCURRENT_USE_ERROR}) the limit
+ * is halved, at most once per smoothed response time so a burst of
+ * rejections from the same round counts once.</li>
+ * <li>When the smoothed response time rises above
+ * <code>latencyTolerance</code> times the lowest recent response time
+ * the limit is cut in proportion to the ratio, the latency gradient.</li>
+ * <li>Otherwise each success while the limit is in use adds
+ * <code>1 / limit</code> so the limit grows by about one per round.</li>
+ * </ul>
+ * Rejected work is retried by {@linkplain #execute(Callable, int)}
+ * after a backoff chosen at random up to an exponentially growing cap,
+ * which spreads the retries of many callers out.
+ */
+public class ConcurrencyLimiter
+{
+    private static final Logger LOGGER = Logger.getLogger(ConcurrencyLimiter.class);
+
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 64;
+    public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+    public static final long DEFAULT_BASE_BACKOFF_MS = 100;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 30000;
+
+    private static final double BACKOFF_RATIO = 0.5;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final double RTT_SMOOTHING = 0.2;
+
+    /**
+     * The lowest response time is re-measured over this many
+     * samples so the baseline can rise if the node gets slower
+     */
+    private static final int MIN_RTT_WINDOW = 200;
+
+    private final int m_MinLimit;
+    private final int m_MaxLimit;
+    private final double m_LatencyTolerance;
+    private final long m_BaseBackoffMs;
+    private final long m_MaxBackoffMs;
+
+    private double m_Limit;
+    private int m_InFlight;
+    private long m_MinRttNanos = Long.MAX_VALUE;
+    private long m_WindowMinRttNanos = Long.MAX_VALUE;
+    private int m_WindowSamples;
+    private double m_SmoothedRttNanos;
+    private long m_LastDecreaseNanos;
+
+    private long m_SuccessCount;
+    private long m_OverloadCount;
+    private long m_RetryCount;
+
+    public ConcurrencyLimiter()
+    {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT,
+                DEFAULT_LATENCY_TOLERANCE, DEFAULT_BASE_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    /**
+     * @param initialLimit The starting limit
+     * @param minLimit The limit is never lower than this, must be &gt;= 1
+     * @param maxLimit The limit is never higher than this
+     * @param latencyTolerance How many times the lowest response time
+     * is tolerated before the limit is reduced. If &lt;= 0 response
+     * times are not used and only rejections reduce the limit
+     * @param baseBackoffMs The backoff cap for the first retry
+     * @param maxBackoffMs The largest backoff cap
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit,
+            double latencyTolerance, long baseBackoffMs, long maxBackoffMs)
+    {
+        if (minLimit < 1 || maxLimit < minLimit)
+        {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= minLimit <= maxLimit");
+        }
+
+        m_MinLimit = minLimit;
+        m_MaxLimit = maxLimit;
+        m_Limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        m_LatencyTolerance = latencyTolerance;
+        m_BaseBackoffMs = baseBackoffMs;
+        m_MaxBackoffMs = maxBackoffMs;
+    }
+
+    /**
+     * True if <code>error</code> means the node is overloaded and the
+     * work should be retried later
+     *
+     * @param error May be <code>null</code>
+     * @return True for the concurrency error codes
+     */
+    public static boolean isOverloaded(ApiError error)
+    {
+        if (error == null)
+        {
+            return false;
+        }
+
+        ErrorCode code = error.getErrorCode();
+        return code == ErrorCode.TOO_MANY_JOBS_RUNNING_CONCURRENTLY ||
+                code == ErrorCode.NATIVE_PROCESS_CONCURRENT_USE_ERROR;
+    }
+
+    /**
+     * Wait until fewer than the limit requests are in flight
+     *
+     * @return The permit to release when the request completes
+     * @throws InterruptedException
+     */
+    public synchronized Permit acquire()
+    throws InterruptedException
+    {
+        while (m_InFlight >= (int)m_Limit)
+        {
+            wait();
+        }
+        m_InFlight++;
+        return new Permit();
+    }
+
+    /**
+     * Take a permit only if one is free, for callers that must not block
+     *
+     * @return The permit or <code>null</code> if at the limit
+     */
+    public synchronized Permit tryAcquire()
+    {
+        if (m_InFlight >= (int)m_Limit)
+        {
+            return null;
+        }
+        m_InFlight++;
+        return new Permit();
+    }
+
+    /**
+     * Run <code>call</code> under a permit retrying with a jittered
+     * backoff while the node reports it is overloaded. The response
+     * time of successful calls feeds the limit. Other errors are
+     * returned without retrying.
+     *
+     * @param call Makes the request, for example by waiting on one of
+     * the {@link EngineApiAsyncClient} futures
+     * @param maxAttempts The most times to make the request
+     * @return The result of the last attempt
+     * @throws Exception If the call throws
+     */
+    public <T> ApiResult<T> execute(Callable<ApiResult<T>> call, int maxAttempts)
+    throws Exception
+    {
+        ApiResult<T> result = null;
+        for (int attempt = 0; attempt < maxAttempts; attempt++)
+        {
+            if (attempt > 0)
+            {
+                synchronized (this)
+                {
+                    m_RetryCount++;
+                }
+                TimeUnit.MILLISECONDS.sleep(backoffMillis(attempt - 1));
+            }
+
+            Permit permit = acquire();
+            try
+            {
+                result = call.call();
+            }
+            catch (Exception e)
+            {
+                permit.ignore();
+                throw e;
+            }
+
+            if (result.isSuccess())
+            {
+                permit.success();
+                return result;
+            }
+            if (isOverloaded(result.getError()) == false)
+            {
+                permit.ignore();
+                return result;
+            }
+
+            permit.overloaded();
+        }
+        return result;
+    }
+
+    /**
+     * A random backoff between 0 and the cap for the retry, the cap
+     * doubles with each retry up to the maximum
+     *
+     * @param retry The number of retries before this one
+     * @return Milliseconds to wait
+     */
+    public long backoffMillis(int retry)
+    {
+        long cap = m_BaseBackoffMs << Math.min(retry, 30);
+        if (cap <= 0 || cap > m_MaxBackoffMs)
+        {
+            cap = m_MaxBackoffMs;
+        }
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * The current limit
+     * @return The number of requests allowed in flight
+     */
+    public synchronized int getLimit()
+    {
+        return (int)m_Limit;
+    }
+
+    /**
+     * The number of requests in flight now
+     * @return In flight count
+     */
+    public synchronized int getInFlight()
+    {
+        return m_InFlight;
+    }
+
+    public synchronized long getSuccessCount()
+    {
+        return m_SuccessCount;
+    }
+
+    public synchronized long getOverloadCount()
+    {
+        return m_OverloadCount;
+    }
+
+    public synchronized long getRetryCount()
+    {
+        return m_RetryCount;
+    }
+
+    private synchronized void onSuccess(long rttNanos, int inFlight)
+    {
+        m_SuccessCount++;
+
+        if (rttNanos < m_WindowMinRttNanos)
+        {
+            m_WindowMinRttNanos = rttNanos;
+        }
+        if (rttNanos < m_MinRttNanos)
+        {
+            m_MinRttNanos = rttNanos;
+        }
+        if (++m_WindowSamples >= MIN_RTT_WINDOW)
+        {
+            m_MinRttNanos = m_WindowMinRttNanos;
+            m_WindowMinRttNanos = Long.MAX_VALUE;
+            m_WindowSamples = 0;
+        }
+
+        m_SmoothedRttNanos = (m_SmoothedRttNanos == 0) ? rttNanos :
+                m_SmoothedRttNanos + RTT_SMOOTHING * (rttNanos - m_SmoothedRttNanos);
+
+        if (m_LatencyTolerance > 0)
+        {
+            double tolerated = m_MinRttNanos * m_LatencyTolerance;
+            if (m_SmoothedRttNanos > tolerated)
+            {
+                if (canDecrease())
+                {
+                    double gradient = Math.max(MIN_GRADIENT, tolerated / m_SmoothedRttNanos);
+                    setLimit(m_Limit * gradient, "response time " +
+                            (long)(m_SmoothedRttNanos / 1000000) + "ms");
+                }
+                return;
+            }
+        }
+
+        // only grow if the limit was being used
+        if (inFlight * 2 >= (int)m_Limit)
+        {
+            setLimit(m_Limit + 1.0 / m_Limit, null);
+        }
+    }
+
+    private synchronized void onOverloaded()
+    {
+        m_OverloadCount++;
+        if (canDecrease())
+        {
+            setLimit(m_Limit * BACKOFF_RATIO, "node overloaded");
+        }
+    }
+
+    /**
+     * Only decrease once per smoothed response time
+     */
+    private boolean canDecrease()
+    {
+        long now = System.nanoTime();
+        if (now - m_LastDecreaseNanos < (long)m_SmoothedRttNanos)
+        {
+            return false;
+        }
+        m_LastDecreaseNanos = now;
+        return true;
+    }
+
+    private void setLimit(double limit, String reason)
+    {
+        int before = (int)m_Limit;
+        m_Limit = Math.max(m_MinLimit, Math.min(m_MaxLimit, limit));
+
+        if (reason != null && (int)m_Limit != before)
+        {
+            LOGGER.info("Concurrency limit reduced from " + before + " to " +
+                    (int)m_Limit + ", " + reason);
+        }
+        notifyAll();
+    }
+
+    private synchronized void release()
+    {
+        m_InFlight--;
+        notifyAll();
+    }
+
+
+    /**
+     * Permission for one request. Release it exactly once with the
+     * outcome of the request.
+     */
+    public class Permit
+    {
+        private final long m_StartNanos = System.nanoTime();
+        private boolean m_Released;
+
+        /**
+         * The request succeeded, its response time feeds the limit
+         */
+        public void success()
+        {
+            if (markReleased())
+            {
+                int inFlight = getInFlight();
+                release();
+                onSuccess(System.nanoTime() - m_StartNanos, inFlight);
+            }
+        }
+
+        /**
+         * The node rejected the request as overloaded
+         */
+        public void overloaded()
+        {
+            if (markReleased())
+            {
+                release();
+                onOverloaded();
+            }
+        }
+
+        /**
+         * The request failed for another reason, the limit is unchanged
+         */
+        public void ignore()
+        {
+            if (markReleased())
+            {
+                release();
+            }
+        }
+
+        private synchronized boolean markReleased()
+        {
+            if (m_Released)
+            {
+                return false;
+            }
+            m_Released = true;
+            return true;
+        }
+    }
+}
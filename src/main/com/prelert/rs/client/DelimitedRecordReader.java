@@ -0,0 +1,245 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.prelert.job.DataDescription;
+
+/**
+ * Reads delineated data with a header row, for example csv or tsv.
+ * Fields may be quoted with the quote character, inside quotes a
+ * doubled quote character is a literal quote and delimiters and new
+ * lines are part of the value. Empty lines are skipped.
+ */
+class DelimitedRecordReader extends RecordReader
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int NO_PUSHBACK = -2;
+
+    private final Reader m_Reader;
+    private final char m_Delimiter;
+    private final char m_Quote;
+
+    private final char [] m_Buffer = new char[BUFFER_SIZE];
+    private int m_Position;
+    private int m_Limit;
+    private int m_Pushback = NO_PUSHBACK;
+
+    private final StringBuilder m_Field = new StringBuilder();
+    private final List<String> m_Row = new ArrayList<>();
+
+    private final List<String> m_Fields;
+    private final int [] m_ColumnIndexes;
+
+    /**
+     * Reads the header row
+     *
+     * @param input
+     * @param dataDescription
+     * @param fields If <code>null</code> read every column
+     * @throws IOException If one of the <code>fields</code> is not
+     * in the header
+     */
+    DelimitedRecordReader(InputStream input, DataDescription dataDescription,
+            List<String> fields)
+    throws IOException
+    {
+        m_Reader = new InputStreamReader(input, StandardCharsets.UTF_8);
+        m_Delimiter = dataDescription.getFieldDelimiter();
+        m_Quote = dataDescription.getQuoteCharacter();
+
+        List<String> header = Collections.emptyList();
+        if (readRow())
+        {
+            header = new ArrayList<>(m_Row);
+        }
+
+        if (fields == null)
+        {
+            fields = header;
+        }
+        else if (header.isEmpty() == false)
+        {
+            for (String field : fields)
+            {
+                if (header.contains(field) == false)
+                {
+                    throw new IOException("Field '" + field + "' is not in the header " + header);
+                }
+            }
+        }
+
+        m_Fields = Collections.unmodifiableList(new ArrayList<>(fields));
+        m_ColumnIndexes = new int[m_Fields.size()];
+        for (int i = 0; i < m_ColumnIndexes.length; i++)
+        {
+            m_ColumnIndexes[i] = header.indexOf(m_Fields.get(i));
+        }
+    }
+
+    @Override
+    List<String> fields()
+    {
+        return m_Fields;
+    }
+
+    @Override
+    boolean read(String [] record)
+    throws IOException
+    {
+        if (readRow() == false)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < m_ColumnIndexes.length; i++)
+        {
+            int column = m_ColumnIndexes[i];
+            record[i] = (column < m_Row.size()) ? m_Row.get(column) : null;
+        }
+        return true;
+    }
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        m_Reader.close();
+    }
+
+    /**
+     * Read the next non-empty row into <code>m_Row</code>
+     * @return False at the end of the input
+     */
+    private boolean readRow()
+    throws IOException
+    {
+        while (true)
+        {
+            m_Row.clear();
+            m_Field.setLength(0);
+
+            int c = nextChar();
+            if (c < 0)
+            {
+                return false;
+            }
+
+            boolean inQuotes = false;
+            boolean quoted = false;
+            while (true)
+            {
+                if (inQuotes)
+                {
+                    if (c < 0)
+                    {
+                        // unterminated quote, take what there is
+                        m_Row.add(m_Field.toString());
+                        break;
+                    }
+                    if (c == m_Quote)
+                    {
+                        int next = nextChar();
+                        if (next == m_Quote)
+                        {
+                            m_Field.append(m_Quote);
+                        }
+                        else
+                        {
+                            inQuotes = false;
+                            m_Pushback = next;
+                        }
+                    }
+                    else
+                    {
+                        m_Field.append((char)c);
+                    }
+                }
+                else if (c < 0 || c == DataDescription.LINE_ENDING)
+                {
+                    endField(quoted, true);
+                    break;
+                }
+                else if (c == m_Delimiter)
+                {
+                    endField(quoted, false);
+                    quoted = false;
+                }
+                else if (c == m_Quote && m_Field.length() == 0 && quoted == false)
+                {
+                    inQuotes = true;
+                    quoted = true;
+                }
+                else
+                {
+                    m_Field.append((char)c);
+                }
+
+                c = nextChar();
+            }
+
+            if (m_Row.size() > 1 || m_Row.get(0).isEmpty() == false)
+            {
+                return true;
+            }
+        }
+    }
+
+    private void endField(boolean quoted, boolean endOfLine)
+    {
+        int length = m_Field.length();
+        if (endOfLine && quoted == false && length > 0 && m_Field.charAt(length - 1) == '\r')
+        {
+            m_Field.setLength(length - 1);
+        }
+        m_Row.add(m_Field.toString());
+        m_Field.setLength(0);
+    }
+
+    private int nextChar()
+    throws IOException
+    {
+        if (m_Pushback != NO_PUSHBACK)
+        {
+            int c = m_Pushback;
+            m_Pushback = NO_PUSHBACK;
+            return c;
+        }
+
+        if (m_Position == m_Limit)
+        {
+            m_Limit = m_Reader.read(m_Buffer);
+            m_Position = 0;
+            if (m_Limit <= 0)
+            {
+                m_Limit = 0;
+                return -1;
+            }
+        }
+        return m_Buffer[m_Position++];
+    }
+}
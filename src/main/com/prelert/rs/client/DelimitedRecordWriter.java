@@ -0,0 +1,110 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.prelert.job.DataDescription;
+
+/**
+ * Writes delineated data with a header row. Values containing the
+ * delimiter, the quote character or a line break are quoted.
+ */
+class DelimitedRecordWriter extends RecordWriter
+{
+    private final Writer m_Writer;
+    private final char m_Delimiter;
+    private final char m_Quote;
+    private final List<String> m_Fields;
+
+    DelimitedRecordWriter(OutputStream output, DataDescription dataDescription,
+            List<String> fields)
+    {
+        m_Writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+        m_Delimiter = dataDescription.getFieldDelimiter();
+        m_Quote = dataDescription.getQuoteCharacter();
+        m_Fields = fields;
+    }
+
+    @Override
+    void start()
+    throws IOException
+    {
+        write(m_Fields.toArray(new String[m_Fields.size()]));
+    }
+
+    @Override
+    void write(String [] record)
+    throws IOException
+    {
+        for (int i = 0; i < m_Fields.size(); i++)
+        {
+            if (i > 0)
+            {
+                m_Writer.write(m_Delimiter);
+            }
+            if (record[i] != null)
+            {
+                writeValue(record[i]);
+            }
+        }
+        m_Writer.write(DataDescription.LINE_ENDING);
+    }
+
+    @Override
+    void flush()
+    throws IOException
+    {
+        m_Writer.flush();
+    }
+
+    private void writeValue(String value)
+    throws IOException
+    {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && quote == false; i++)
+        {
+            char c = value.charAt(i);
+            quote = c == m_Delimiter || c == m_Quote || c == '\n' || c == '\r';
+        }
+
+        if (quote == false)
+        {
+            m_Writer.write(value);
+            return;
+        }
+
+        m_Writer.write(m_Quote);
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == m_Quote)
+            {
+                m_Writer.write(m_Quote);
+            }
+            m_Writer.write(c);
+        }
+        m_Writer.write(m_Quote);
+    }
+}
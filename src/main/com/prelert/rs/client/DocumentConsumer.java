@@ -0,0 +1,40 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+
+/**
+ * Receives the documents of a result page one at a time as
+ * they are parsed from the response stream.
+ *
+ * @param <T> The document type e.g. {@link com.prelert.rs.data.Bucket}
+ * @see EngineApiClient#stream(String, Class, DocumentConsumer)
+ */
+public interface DocumentConsumer<T>
+{
+    /**
+     * Called once for each document in the order they appear in the page
+     *
+     * @param document The parsed document
+     * @throws IOException Stops the stream, the exception is
+     * propagated to the caller
+     */
+    void consume(T document) throws IOException;
+}
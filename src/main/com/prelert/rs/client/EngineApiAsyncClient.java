@@ -0,0 +1,636 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.prelert.job.JobConfiguration;
+import com.prelert.job.alert.Alert;
+import com.prelert.rs.data.AnomalyRecord;
+import com.prelert.rs.data.ApiError;
+import com.prelert.rs.data.Bucket;
+import com.prelert.rs.data.Pagination;
+
+/**
+ * A non-blocking Http Client for the Prelert Engine RESTful API.
+ *
+ * <br/>
+ * Requests are driven by a small number of I/O reactor threads rather
+ * than a thread per request so a single client can service thousands of
+ * in-flight jobs. Every method returns immediately with a {@link Future}
+ * of the request's {@link ApiResult} and optionally notifies a
+ * {@link FutureCallback} when the request completes.
+ * <br/>
+ * Callbacks are invoked on the I/O reactor threads and must not block,
+ * hand any long running work off to another thread.
+ * <br/>
+ * Implements closeable so it can be used in a try-with-resource statement
+ */
+public class EngineApiAsyncClient implements Closeable
+{
+    private static final Logger LOGGER = Logger.getLogger(EngineApiAsyncClient.class);
+
+    /**
+     * The default number of I/O reactor threads
+     */
+    public static final int DEFAULT_IO_THREAD_COUNT = 2;
+
+    private ObjectMapper m_JsonMapper;
+
+    private CloseableHttpAsyncClient m_HttpClient;
+
+    /**
+     * Creates and starts a new client with {@value #DEFAULT_IO_THREAD_COUNT}
+     * I/O threads and the default connection pool limits.
+     * Call {@linkplain #close()} once finished
+     *
+     * @throws IOReactorException If the I/O reactor cannot be created
+     */
+    public EngineApiAsyncClient()
+    throws IOReactorException
+    {
+        this(DEFAULT_IO_THREAD_COUNT, EngineApiClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+                EngineApiClient.DEFAULT_MAX_CONNECTIONS_TOTAL);
+    }
+
+    /**
+     * Creates and starts a new client.
+     * Call {@linkplain #close()} once finished
+     *
+     * @param ioThreadCount The number of I/O reactor threads
+     * @param maxConnectionsPerRoute The maximum number of concurrent
+     * connections to any one Engine API host
+     * @param maxConnectionsTotal The maximum number of concurrent
+     * connections across all hosts
+     * @throws IOReactorException If the I/O reactor cannot be created
+     */
+    public EngineApiAsyncClient(int ioThreadCount, int maxConnectionsPerRoute,
+            int maxConnectionsTotal)
+    throws IOReactorException
+    {
+        IOReactorConfig config = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreadCount)
+                .build();
+
+        PoolingNHttpClientConnectionManager connectionManager =
+                new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(config));
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setMaxTotal(maxConnectionsTotal);
+
+        m_HttpClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .build();
+        m_HttpClient.start();
+
+        m_JsonMapper = new ObjectMapper();
+        m_JsonMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    }
+
+    /**
+     * Shutdown the I/O reactor and close all connections.
+     * Requests still in flight are aborted.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        m_HttpClient.close();
+    }
+
+    /**
+     * Create a new Job from the <code>JobConfiguration</code> object.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobConfig
+     * @param callback Notified when the request completes, may be <code>null</code>
+     * @return The future result containing the new job's Id
+     * @throws JsonProcessingException If <code>jobConfig</code> cannot be serialised
+     */
+    public Future<ApiResult<String>> createJob(String baseUrl, JobConfiguration jobConfig,
+            FutureCallback<ApiResult<String>> callback)
+    throws JsonProcessingException
+    {
+        String payLoad = m_JsonMapper.writeValueAsString(jobConfig);
+        return createJob(baseUrl, payLoad, callback);
+    }
+
+    /**
+     * Create a new job with the configuration in <code>createJobPayload</code>
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param createJobPayload The Json configuration for the new job
+     * @param callback Notified when the request completes, may be <code>null</code>
+     * @return The future result containing the new job's Id
+     */
+    public Future<ApiResult<String>> createJob(String baseUrl, String createJobPayload,
+            FutureCallback<ApiResult<String>> callback)
+    {
+        String url = baseUrl + "/jobs";
+        LOGGER.debug("Create job: " + url);
+
+        HttpPost post = new HttpPost(url);
+        post.setEntity(new StringEntity(createJobPayload,
+                ContentType.create("application/json", "UTF-8")));
+
+        return execute(post, callback, new ResponseParser<String>()
+        {
+            @Override
+            public boolean isSuccess(int statusCode)
+            {
+                return statusCode == 201;
+            }
+
+            @Override
+            public String parse(String content) throws IOException
+            {
+                Map<String, String> msg = m_JsonMapper.readValue(content,
+                        new TypeReference<Map<String, String>>() {} );
+
+                if (msg.containsKey("id") == false)
+                {
+                    LOGGER.error("Job created but no 'id' field in returned content");
+                    LOGGER.error("Response Content = " + content);
+                    return "";
+                }
+                return msg.get("id");
+            }
+        });
+    }
+
+    /**
+     * Stream data from <code>inputStream</code> to the service in a
+     * single chunked request.
+     * <br/>
+     * The stream is read on an I/O reactor thread in small blocks as the
+     * connection becomes writable so it should be a stream that does not
+     * block for long periods e.g. a file or in memory buffer.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param inputStream The data to write to the web service
+     * @param compressed Is the data gzipped compressed?
+     * @param callback Notified when the request completes, may be <code>null</code>
+     * @return The future result, True if the upload was accepted
+     */
+    public Future<ApiResult<Boolean>> streamingUpload(String baseUrl, String jobId,
+            InputStream inputStream, boolean compressed,
+            FutureCallback<ApiResult<Boolean>> callback)
+    {
+        InputStreamEntity entity = new InputStreamEntity(inputStream);
+        entity.setContentType("application/octet-stream");
+        entity.setChunked(true);
+
+        return streamingUpload(baseUrl, jobId, entity, compressed, callback);
+    }
+
+    /**
+     * Upload <code>entity</code> to the service. If the entity is a
+     * {@link org.apache.http.nio.entity.HttpAsyncContentProducer} the
+     * I/O reactor has it produce the content directly, which lets the
+     * entity suspend output until it has data instead of blocking.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param entity The data to write to the web service
+     * @param compressed Is the data gzipped compressed?
+     * @param callback Notified when the request completes, may be <code>null</code>
+     * @return The future result, True if the upload was accepted
+     */
+    Future<ApiResult<Boolean>> streamingUpload(String baseUrl, String jobId,
+            HttpEntity entity, boolean compressed,
+            FutureCallback<ApiResult<Boolean>> callback)
+    {
+        String postUrl = baseUrl + "/data/" + jobId;
+        LOGGER.debug("Uploading data to " + postUrl);
+
+        HttpPost post = new HttpPost(postUrl);
+        if (compressed)
+        {
+            post.addHeader("Content-Encoding", "gzip");
+        }
+        post.setEntity(entity);
+
+        return execute(post, callback, new StatusCodeParser(202));
+    }
+
+    /**
+     * Flush the job, ensuring that no previously uploaded data is waiting in
+     * buffers.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param calcInterim Should interim results for the most recent bucket be
+     * calculated based on the partial data uploaded for it so far?
+     * @param callback Notified when the request completes, may be <code>null</code>
+     * @return The future result, True if the job was flushed
+     */
+    public Future<ApiResult<Boolean>> flushJob(String baseUrl, String jobId,
+            boolean calcInterim, FutureCallback<ApiResult<Boolean>> callback)
+    {
+        String flushUrl = EngineApiClient.flushUrl(baseUrl, jobId, calcInterim);
+        LOGGER.debug("Flushing job " + flushUrl);
+
+        return execute(new HttpPost(flushUrl), callback, new StatusCodeParser(200));
+    }
+
+    /**
+     * Finish the job after all the data has been uploaded
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param callback Notified when the request completes, may be <code>null</code>
+     * @return The future result, True if the job was closed
+     */
+    public Future<ApiResult<Boolean>> closeJob(String baseUrl, String jobId,
+            FutureCallback<ApiResult<Boolean>> callback)
+    {
+        String closeUrl = baseUrl + "/data/" + jobId + "/close";
+        LOGGER.debug("Closing job " + closeUrl);
+
+        return execute(new HttpPost(closeUrl), callback, new StatusCodeParser(202));
+    }
+
+    /**
+     * Get the bucket results filtered between the start and end dates.
+     * The arguments are optional if <code>null</code> they are ignored.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param expand If true include the anomaly records for the bucket
+     * @param includeInterim Include interim results
+     * @param skip The number of buckets to skip
+     * @param take The max number of buckets to request
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
+     * this value
+     * @param normalizedProbabilityThreshold Return only buckets with a
+     * maxNormalizedProbability >= this value
+     * @param callback Notified when the request completes, may be <code>null</code>
+     *
+     * @return The future result containing a {@link Pagination} object
+     * containing a list of {@link Bucket buckets}
+     * @throws IOException If the url cannot be encoded
+     */
+    public <T> Future<ApiResult<Pagination<Bucket>>> getBuckets(String baseUrl, String jobId,
+            boolean expand, boolean includeInterim,
+            Long skip, Long take, T start, T end,
+            Double anomalyScoreThreshold, Double normalizedProbabilityThreshold,
+            FutureCallback<ApiResult<Pagination<Bucket>>> callback)
+    throws IOException
+    {
+        String url = EngineApiClient.bucketsUrl(baseUrl, jobId, expand, includeInterim,
+                skip, take, start, end, anomalyScoreThreshold, normalizedProbabilityThreshold);
+
+        LOGGER.debug("GET buckets " + url);
+
+        return get(url, new TypeReference<Pagination<Bucket>>() {}, callback);
+    }
+
+    /**
+     * Get the anomaly records for the job between the start and
+     * end dates with skip and take parameters sorted by field
+     * and optionally filtered by score.
+     * The arguments are optional if <code>null</code> they are ignored.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param skip The number of records to skip
+     * @param take The max number of records to request.
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param includeInterim Include interim results
+     * @param sortField The field to sort the results by
+     * @param sortDescending If sort_field is not <code>null</code> then sort
+     * records in descending order if true else sort ascending
+     * @param anomalyScoreFilterValue Return only the records with an
+     * anomalyScore >= anomalyScoreFilterValue
+     * @param normalizedProbabilityFilterValue Return only the records with a
+     * normalizedProbability >= normalizedProbabilityFilterValue
+     * @param callback Notified when the request completes, may be <code>null</code>
+     *
+     * @return The future result containing a {@link Pagination} object
+     * containing a list of {@link AnomalyRecord anomaly records}
+     * @throws IOException If the url cannot be encoded
+     */
+    public <T> Future<ApiResult<Pagination<AnomalyRecord>>> getRecords(String baseUrl,
+            String jobId, Long skip, Long take, T start, T end, boolean includeInterim,
+            String sortField, Boolean sortDescending,
+            Double anomalyScoreFilterValue, Double normalizedProbabilityFilterValue,
+            FutureCallback<ApiResult<Pagination<AnomalyRecord>>> callback)
+    throws IOException
+    {
+        String url = EngineApiClient.recordsUrl(baseUrl, jobId, skip, take, start, end,
+                includeInterim, sortField, sortDescending,
+                anomalyScoreFilterValue, normalizedProbabilityFilterValue);
+
+        LOGGER.debug("GET records " + url);
+
+        return get(url, new TypeReference<Pagination<AnomalyRecord>>() {}, callback);
+    }
+
+    /**
+     * Long poll an alert from the job. The future completes when the
+     * alert occurs or the timeout period expires in which case the
+     * alert's {@linkplain Alert#isTimeout()} is true.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The job id
+     * @param timeout Timeout the request after this many seconds.
+     * If <code>null</code> then use the default.
+     * @param anomalyScoreThreshold Alert if a record has an anomalyScore threshold
+     * >= this value. This should be in the range 0-100, ignored if <code>null</code>.
+     * @param maxNormalizedProbability Alert if a bucket's maxNormalizedProbability
+     * is >= this value. This should be in the range 0-100, ignored if <code>null</code>.
+     * @param callback Notified when the request completes, may be <code>null</code>
+     *
+     * @return The future result containing the {@link Alert}
+     */
+    public Future<ApiResult<Alert>> pollJobAlert(String baseUrl, String jobId, Integer timeout,
+            Double anomalyScoreThreshold, Double maxNormalizedProbability,
+            FutureCallback<ApiResult<Alert>> callback)
+    {
+        String url = EngineApiClient.alertUrl(baseUrl, jobId, timeout, anomalyScoreThreshold,
+                maxNormalizedProbability);
+
+        LOGGER.debug("GET alert " + url);
+
+        return execute(new HttpGet(url), callback, new ResponseParser<Alert>()
+        {
+            @Override
+            public boolean isSuccess(int statusCode)
+            {
+                return statusCode == 200;
+            }
+
+            @Override
+            public Alert parse(String content) throws IOException
+            {
+                return m_JsonMapper.readValue(content, Alert.class);
+            }
+        });
+    }
+
+    /**
+     * A generic HTTP GET to any Url. The result is converted from Json to
+     * the type referenced in <code>typeRef</code>.
+     * <br/>
+     * As with {@link EngineApiClient#get(String, TypeReference)} the 404
+     * status code is not considered an error it simply means an
+     * empty document was returned by the API.
+     * <br/>
+     * This method is useful for paging through a set of results via the
+     * next or previous page links in a {@link Pagination} object.
+     *
+     * @param fullUrl
+     * @param typeRef
+     * @param callback Notified when the request completes, may be <code>null</code>
+     * @return The future result containing a new T
+     */
+    public <T> Future<ApiResult<T>> get(String fullUrl, final TypeReference<T> typeRef,
+            FutureCallback<ApiResult<T>> callback)
+    {
+        return execute(new HttpGet(fullUrl), callback, new ResponseParser<T>()
+        {
+            @Override
+            public boolean isSuccess(int statusCode)
+            {
+                // 404 errors return empty paging docs so still read them
+                return statusCode == 200 || statusCode == 404;
+            }
+
+            @Override
+            public T parse(String content) throws IOException
+            {
+                return m_JsonMapper.readValue(content, typeRef);
+            }
+        });
+    }
+
+
+    private <T> Future<ApiResult<T>> execute(HttpUriRequest request,
+            FutureCallback<ApiResult<T>> callback, ResponseParser<T> parser)
+    {
+        ResultFuture<T> result = new ResultFuture<>(callback);
+        result.setRequestFuture(m_HttpClient.execute(request,
+                new ResponseCallback<>(request, parser, result)));
+        return result;
+    }
+
+
+    /**
+     * Converts the response content of a particular request type
+     */
+    private interface ResponseParser<T>
+    {
+        /**
+         * @param statusCode
+         * @return True if the status code is the expected success code
+         */
+        boolean isSuccess(int statusCode);
+
+        /**
+         * Parse the content of a successful response
+         * @param content
+         * @return The parsed result
+         * @throws IOException
+         */
+        T parse(String content) throws IOException;
+    }
+
+    /**
+     * For requests where success is indicated only by the status code
+     */
+    private static class StatusCodeParser implements ResponseParser<Boolean>
+    {
+        private int m_SuccessCode;
+
+        StatusCodeParser(int successCode)
+        {
+            m_SuccessCode = successCode;
+        }
+
+        @Override
+        public boolean isSuccess(int statusCode)
+        {
+            return statusCode == m_SuccessCode;
+        }
+
+        @Override
+        public Boolean parse(String content)
+        {
+            return Boolean.TRUE;
+        }
+    }
+
+    /**
+     * Cancelling this future aborts the underlying request
+     */
+    private static class ResultFuture<T> extends BasicFuture<ApiResult<T>>
+    {
+        private volatile Future<HttpResponse> m_RequestFuture;
+
+        ResultFuture(FutureCallback<ApiResult<T>> callback)
+        {
+            super(callback);
+        }
+
+        void setRequestFuture(Future<HttpResponse> future)
+        {
+            m_RequestFuture = future;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            Future<HttpResponse> requestFuture = m_RequestFuture;
+            if (requestFuture != null)
+            {
+                requestFuture.cancel(mayInterruptIfRunning);
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    /**
+     * Completes the {@link ResultFuture} with the parsed {@link ApiResult}
+     * when the HTTP response arrives.
+     */
+    private class ResponseCallback<T> implements FutureCallback<HttpResponse>
+    {
+        private final HttpUriRequest m_Request;
+        private final ResponseParser<T> m_Parser;
+        private final ResultFuture<T> m_Result;
+
+        ResponseCallback(HttpUriRequest request, ResponseParser<T> parser,
+                ResultFuture<T> result)
+        {
+            m_Request = request;
+            m_Parser = parser;
+            m_Result = result;
+        }
+
+        @Override
+        public void completed(HttpResponse response)
+        {
+            int statusCode = response.getStatusLine().getStatusCode();
+            try
+            {
+                HttpEntity entity = response.getEntity();
+                String content = (entity == null) ? "" : EntityUtils.toString(entity);
+
+                if (m_Parser.isSuccess(statusCode))
+                {
+                    m_Result.completed(new ApiResult<T>(statusCode, m_Parser.parse(content)));
+                }
+                else
+                {
+                    String msg = String.format(
+                            "%s %s returned status code %d. Returned content = %s",
+                            m_Request.getMethod(), m_Request.getURI(),
+                            statusCode, content);
+
+                    LOGGER.error(msg);
+
+                    m_Result.completed(new ApiResult<T>(statusCode, parseError(content, msg)));
+                }
+            }
+            catch (IOException | RuntimeException e)
+            {
+                m_Result.failed(e);
+            }
+        }
+
+        @Override
+        public void failed(Exception ex)
+        {
+            LOGGER.error(m_Request.getMethod() + " " + m_Request.getURI() + " failed", ex);
+            m_Result.failed(ex);
+        }
+
+        @Override
+        public void cancelled()
+        {
+            m_Result.cancel(true);
+        }
+    }
+
+    /**
+     * Read the {@link ApiError} from the content of an error response.
+     * If the content is not an ApiError document one is created with
+     * <code>message</code>.
+     */
+    private ApiError parseError(String content, String message)
+    {
+        try
+        {
+            if (content.isEmpty() == false)
+            {
+                return m_JsonMapper.readValue(content, ApiError.class);
+            }
+        }
+        catch (IOException e)
+        {
+            LOGGER.debug("Error response is not an ApiError document", e);
+        }
+
+        ApiError error = new ApiError();
+        error.setMessage(message);
+        return error;
+    }
+}
@@ -24,13 +24,35 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipInputStream;
 
+import org.apache.http.HttpClientConnection;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
@@ -38,26 +60,40 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.prelert.job.DataDescription;
 import com.prelert.job.JobConfiguration;
 import com.prelert.job.JobDetails;
+import com.prelert.job.TransformConfig;
 import com.prelert.job.alert.Alert;
 import com.prelert.rs.data.AnomalyRecord;
 import com.prelert.rs.data.ApiError;
 import com.prelert.rs.data.Bucket;
+import com.prelert.rs.data.ErrorCode;
 import com.prelert.rs.data.Pagination;
 import com.prelert.rs.data.SingleDocument;
 
@@ -67,38 +103,270 @@ import com.prelert.rs.data.SingleDocument;
  * <br/>
  * Contains methods to create jobs, list jobs, upload data and query results.
  * <br/>
+ * The client is thread safe and is designed to be shared: requests are
+ * served from a pool of persistent connections bounded per route and in
+ * total, idle connections are evicted in the background.
+ * <br/>
+ * Every request method has a variant ending <code>Result</code> that
+ * returns the outcome of the call as an {@link ApiResult} holding either
+ * the response or the {@link ApiError}, which can be handed between threads. The other
+ * methods return the response alone and record the error for
+ * {@linkplain #getLastError()} per calling thread.
+ * <br/>
  * Implements closeable so it can be used in a try-with-resource statement
  */
 public class EngineApiClient implements Closeable
 {
     private static final Logger LOGGER = Logger.getLogger(EngineApiClient.class);
 
+    /**
+     * The default maximum number of pooled connections to a single
+     * Engine API host
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+
+    /**
+     * The default maximum number of pooled connections across all hosts
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 200;
+
+    /**
+     * Pooled connections that have been idle for longer than this
+     * are closed by the eviction task
+     */
+    public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT_MS = 30000;
+
+    /**
+     * The size of the chunks uploaded by
+     * {@linkplain #chunkedUpload(String, String, InputStream)}
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4096 * 1024;
+
+    private static final int WARM_UP_CONNECT_TIMEOUT_MS = 10000;
+
+    private static final int MAX_POOLED_CHUNK_BUFFERS = 4;
+
     private ObjectMapper m_JsonMapper;
 
+    private PoolingHttpClientConnectionManager m_ConnectionManager;
+
     private CloseableHttpClient m_HttpClient;
 
-    private ApiError m_LastError;
+    private ScheduledExecutorService m_IdleConnectionEvictor;
+
+    private ExecutorService m_BackgroundExecutor;
+
+    private final ThreadLocal<ApiError> m_LastError = new ThreadLocal<>();
+
+    private final BufferPool m_ChunkBufferPool =
+            new BufferPool(DEFAULT_CHUNK_SIZE, MAX_POOLED_CHUNK_BUFFERS);
+
+    private volatile ResultCache m_ResultCache;
 
     /**
-     * Creates a new http client and Json object mapper.
+     * Creates a new http client with the default connection pool
+     * limits and Json object mapper.
      * Call {@linkplain #close()} once finished
      */
     public EngineApiClient()
     {
-        m_HttpClient = HttpClients.createDefault();
+        this(DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_MAX_CONNECTIONS_TOTAL,
+                DEFAULT_IDLE_CONNECTION_TIMEOUT_MS);
+    }
+
+    /**
+     * Creates a new http client backed by a pool of persistent connections
+     * and a Json object mapper. A single instance can be shared by any
+     * number of threads. Call {@linkplain #close()} once finished
+     *
+     * @param maxConnectionsPerRoute The maximum number of concurrent
+     * connections to any one Engine API host
+     * @param maxConnectionsTotal The maximum number of concurrent
+     * connections across all hosts
+     * @param idleConnectionTimeoutMs Pooled connections idle for longer
+     * than this many milliseconds are closed. If &lt;= 0 idle connections
+     * are never evicted
+     */
+    public EngineApiClient(int maxConnectionsPerRoute, int maxConnectionsTotal,
+            final long idleConnectionTimeoutMs)
+    {
+        m_ConnectionManager = new PoolingHttpClientConnectionManager();
+        m_ConnectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        m_ConnectionManager.setMaxTotal(maxConnectionsTotal);
+
+        m_HttpClient = HttpClients.custom()
+                .setConnectionManager(m_ConnectionManager)
+                .build();
+
         m_JsonMapper = new ObjectMapper();
         m_JsonMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+        m_BackgroundExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+                {
+                    private final AtomicInteger m_Count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "engine-api-background-" +
+                                                    m_Count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        if (idleConnectionTimeoutMs > 0)
+        {
+            m_IdleConnectionEvictor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory()
+                    {
+                        @Override
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread thread = new Thread(r, "engine-api-idle-connection-evictor");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+
+            long period = Math.max(idleConnectionTimeoutMs / 2, 1000);
+            m_IdleConnectionEvictor.scheduleWithFixedDelay(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            m_ConnectionManager.closeExpiredConnections();
+                            m_ConnectionManager.closeIdleConnections(
+                                    idleConnectionTimeoutMs, TimeUnit.MILLISECONDS);
+                        }
+                    },
+                    period, period, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
-     * Close the http client
+     * The maximum number of concurrent connections to any one host
+     * @return The per route connection limit
+     */
+    public int getMaxConnectionsPerRoute()
+    {
+        return m_ConnectionManager.getDefaultMaxPerRoute();
+    }
+
+    /**
+     * The maximum number of concurrent connections across all hosts
+     * @return The total connection limit
+     */
+    public int getMaxConnectionsTotal()
+    {
+        return m_ConnectionManager.getMaxTotal();
+    }
+
+    /**
+     * Close the http client and all pooled connections
      */
     @Override
     public void close() throws IOException
     {
+        if (m_IdleConnectionEvictor != null)
+        {
+            m_IdleConnectionEvictor.shutdownNow();
+        }
+        m_BackgroundExecutor.shutdownNow();
         m_HttpClient.close();
     }
 
+    /**
+     * Open up to <code>connectionCount</code> connections to the host in
+     * <code>baseUrl</code> and return them to the pool so the first
+     * requests do not pay the connection set up cost. Each connection
+     * is exercised with a <code>HEAD</code> request to <code>baseUrl</code>
+     * and only kept if the server allows it to persist.
+     * The number of connections opened is capped by the per route limit.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param connectionCount The number of connections to open
+     * @return The number of connections successfully opened and pooled
+     */
+    public int warmUp(String baseUrl, int connectionCount)
+    {
+        URI uri = URI.create(baseUrl);
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort();
+        if (port <= 0)
+        {
+            port = secure ? 443 : 80;
+        }
+        HttpHost target = new HttpHost(uri.getHost(), port, uri.getScheme());
+        HttpRoute route = new HttpRoute(target, null, secure);
+
+        int count = Math.min(connectionCount, m_ConnectionManager.getMaxPerRoute(route));
+        String path = (uri.getRawPath() == null || uri.getRawPath().isEmpty()) ?
+                "/" : uri.getRawPath();
+
+        // Lease all the connections before returning any
+        // so that each one is a distinct socket
+        List<HttpClientConnection> connections = new ArrayList<>();
+        int opened = 0;
+        try
+        {
+            for (int i=0; i<count; i++)
+            {
+                ConnectionRequest request = m_ConnectionManager.requestConnection(route, null);
+                HttpClientConnection conn = request.get(WARM_UP_CONNECT_TIMEOUT_MS,
+                        TimeUnit.MILLISECONDS);
+                connections.add(conn);
+
+                if (conn.isOpen() == false)
+                {
+                    HttpClientContext context = HttpClientContext.create();
+                    m_ConnectionManager.connect(conn, route, WARM_UP_CONNECT_TIMEOUT_MS, context);
+                    m_ConnectionManager.routeComplete(conn, route, context);
+
+                    BasicHttpRequest head = new BasicHttpRequest("HEAD", path);
+                    head.addHeader(HTTP.TARGET_HOST, target.toHostString());
+                    conn.sendRequestHeader(head);
+                    conn.flush();
+                    HttpResponse response = conn.receiveResponseHeader();
+
+                    if (DefaultConnectionReuseStrategy.INSTANCE.keepAlive(response, context))
+                    {
+                        opened++;
+                    }
+                    else
+                    {
+                        conn.close();
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted warming up connections to " + target);
+        }
+        catch (ExecutionException | ConnectionPoolTimeoutException e)
+        {
+            LOGGER.warn("Could not lease connection to " + target, e);
+        }
+        catch (IOException | HttpException e)
+        {
+            LOGGER.warn("Error opening connection to " + target, e);
+        }
+        finally
+        {
+            for (HttpClientConnection conn : connections)
+            {
+                m_ConnectionManager.releaseConnection(conn, null,
+                        DEFAULT_IDLE_CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        LOGGER.debug("Warmed up " + opened + " connections to " + target);
+        return opened;
+    }
+
     /**
      * Get details of all the jobs in database
      *
@@ -110,11 +378,7 @@ public class EngineApiClient implements Closeable
     public Pagination<JobDetails> getJobs(String baseUrl)
     throws IOException
     {
-        String url = baseUrl + "/jobs";
-        LOGGER.debug("GET jobs: " + url);
-
-        Pagination<JobDetails> page = this.get(url,
-                new TypeReference<Pagination<JobDetails>>() {});
+        Pagination<JobDetails> page = recordOutcome(getJobsResult(baseUrl));
 
         if (page == null)
         {
@@ -125,6 +389,24 @@ public class EngineApiClient implements Closeable
         return page;
     }
 
+    /**
+     * Get details of all the jobs in database
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @return The outcome of the request, if successful the {@link Pagination}
+     * object containing a list of {@link JobDetails jobs}
+     * @throws IOException
+     */
+    public ApiResult<Pagination<JobDetails>> getJobsResult(String baseUrl)
+    throws IOException
+    {
+        String url = baseUrl + "/jobs";
+        LOGGER.debug("GET jobs: " + url);
+
+        return getResult(new HttpGet(url), new TypeReference<Pagination<JobDetails>>() {});
+    }
+
     /**
      * Get the individual job on the provided URL
      *
@@ -139,11 +421,7 @@ public class EngineApiClient implements Closeable
     public SingleDocument<JobDetails> getJob(String baseUrl, String jobId)
     throws IOException
     {
-        String url = baseUrl + "/jobs/" + jobId;
-        LOGGER.debug("GET job: " + url);
-
-        SingleDocument<JobDetails> doc = this.get(url,
-                new TypeReference<SingleDocument<JobDetails>>() {});
+        SingleDocument<JobDetails> doc = recordOutcome(getJobResult(baseUrl, jobId));
 
         if (doc == null)
         {
@@ -152,6 +430,27 @@ public class EngineApiClient implements Closeable
         return doc;
     }
 
+    /**
+     * Get the individual job on the provided URL
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     *
+     * @return The outcome of the request. If the job does not exist
+     * the {@link com.prelert.rs.data.SingleDocument SingleDocument} is empty
+     * @throws IOException
+     */
+    public ApiResult<SingleDocument<JobDetails>> getJobResult(String baseUrl, String jobId)
+    throws IOException
+    {
+        String url = baseUrl + "/jobs/" + jobId;
+        LOGGER.debug("GET job: " + url);
+
+        return getResult(new HttpGet(url),
+                new TypeReference<SingleDocument<JobDetails>>() {});
+    }
+
 
     /**
      * Create a new Job from the <code>JobConfiguration</code> object.
@@ -173,6 +472,24 @@ public class EngineApiClient implements Closeable
         return createJob(baseUrl, payLoad);
     }
 
+    /**
+     * Create a new Job from the <code>JobConfiguration</code> object.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobConfig
+     * @return The outcome of the request, if successful the new job's Id
+     * @throws ClientProtocolException
+     * @throws IOException
+     * @see #createJobResult(String, String)
+     */
+    public ApiResult<String> createJobResult(String baseUrl, JobConfiguration jobConfig)
+    throws ClientProtocolException, IOException
+    {
+        String payLoad = m_JsonMapper.writeValueAsString(jobConfig);
+        return createJobResult(baseUrl, payLoad);
+    }
+
 
     /**
      * Create a new job with the configuration in <code>createJobPayload</code>
@@ -188,6 +505,25 @@ public class EngineApiClient implements Closeable
      */
     public String createJob(String baseUrl, String createJobPayload)
     throws ClientProtocolException, IOException
+    {
+        String id = recordOutcome(createJobResult(baseUrl, createJobPayload));
+        return (id == null) ? "" : id;
+    }
+
+    /**
+     * Create a new job with the configuration in <code>createJobPayload</code>
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param createJobPayload The Json configuration for the new job
+     * @return The outcome of the request, if successful the new job's Id
+     * or an empty string if the response has no Id
+     *
+     * @throws ClientProtocolException
+     * @throws IOException
+     */
+    public ApiResult<String> createJobResult(String baseUrl, String createJobPayload)
+    throws ClientProtocolException, IOException
     {
         String url = baseUrl + "/jobs";
         LOGGER.debug("Create job: " + url);
@@ -202,40 +538,31 @@ public class EngineApiClient implements Closeable
         {
             HttpEntity responseEntity = response.getEntity();
             String content = EntityUtils.toString(responseEntity);
+            int statusCode = response.getStatusLine().getStatusCode();
 
-            if (response.getStatusLine().getStatusCode() == 201)
+            if (statusCode == 201)
             {
-
                 Map<String, String> msg = m_JsonMapper.readValue(content,
                         new TypeReference<Map<String, String>>() {} );
 
-                m_LastError = null;
-
                 if (msg.containsKey("id"))
                 {
-                    return msg.get("id");
-                }
-                else
-                {
-                    LOGGER.error("Job created but no 'id' field in returned content");
-                    LOGGER.error("Response Content = " + content);
+                    return new ApiResult<>(statusCode, msg.get("id"));
                 }
+
+                LOGGER.error("Job created but no 'id' field in returned content");
+                LOGGER.error("Response Content = " + content);
+                return new ApiResult<>(statusCode, "");
             }
-            else
-            {
-                String msg = String.format(
-                        "Error creating job status code = %d. "
-                        + "Returned content: %s",
-                        response.getStatusLine().getStatusCode(),
-                        content);
 
-                LOGGER.error(msg);
+            String msg = String.format(
+                    "Error creating job status code = %d. "
+                    + "Returned content: %s",
+                    statusCode, content);
 
-                m_LastError = m_JsonMapper.readValue(content,
-                        new TypeReference<ApiError>() {} );
-            }
+            LOGGER.error(msg);
 
-            return "";
+            return new ApiResult<String>(statusCode, parseError(content, msg));
         }
     }
 
@@ -255,6 +582,26 @@ public class EngineApiClient implements Closeable
     public boolean setJobDescription(String baseUrl, String jobId,
             String description)
     throws IOException
+    {
+        return Boolean.TRUE.equals(recordOutcome(
+                setJobDescriptionResult(baseUrl, jobId, description)));
+    }
+
+    /**
+     * PUTS the description parameter to the job and sets it as
+     * the job's new description field
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The job's unique ID
+     * @param description New description field
+     *
+     * @return The outcome of the request
+     * @throws IOException
+     */
+    public ApiResult<Boolean> setJobDescriptionResult(String baseUrl, String jobId,
+            String description)
+    throws IOException
     {
         String url = baseUrl + "/jobs/" + jobId + "/description";
         LOGGER.debug("PUT job description: " + url);
@@ -263,42 +610,73 @@ public class EngineApiClient implements Closeable
         StringEntity entity = new StringEntity(description);
         put.setEntity(entity);
 
-        return executeRequest(put, "putting job description");
+        return execute(put, 200, "putting job description");
     }
 
     /**
-     * Executes an HTTP request and checks if the response was OK. If not, it logs the error.
+     * Executes an HTTP request expecting <code>successCode</code> in
+     * response. If the response is different it logs the error.
      *
-     * @return True if response was OK, otherwise false.
+     * @return The outcome, the result is true if successful
      */
-    private boolean executeRequest(HttpUriRequest httpRequest, String activityDescription)
-            throws IOException, JsonParseException, JsonMappingException
+    private ApiResult<Boolean> execute(HttpUriRequest httpRequest, int successCode,
+            String activityDescription)
+    throws IOException
     {
         try (CloseableHttpResponse response = m_HttpClient.execute(httpRequest))
         {
-            if (response.getStatusLine().getStatusCode() == 200)
+            String content = EntityUtils.toString(response.getEntity());
+            int statusCode = response.getStatusLine().getStatusCode();
+
+            if (statusCode == successCode)
             {
-                m_LastError = null;
-                return true;
+                return new ApiResult<>(statusCode, Boolean.TRUE);
             }
-            else
-            {
-                String content = EntityUtils.toString(response.getEntity());
-                String msg = String.format(
-                        "Error %s. Status code = %d, "
-                        + "Returned content: %s",
-                        activityDescription,
-                        response.getStatusLine().getStatusCode(),
-                        content);
 
-                LOGGER.error(msg);
+            String msg = String.format(
+                    "Error %s. Status code = %d, "
+                    + "Returned content: %s",
+                    activityDescription, statusCode, content);
 
-                m_LastError = m_JsonMapper.readValue(content,
-                        new TypeReference<ApiError>() {} );
+            LOGGER.error(msg);
 
-                return false;
+            return new ApiResult<Boolean>(statusCode, parseError(content, msg));
+        }
+    }
+
+    /**
+     * Record the outcome of a request as the calling thread's last error
+     *
+     * @return The result of the request or <code>null</code> if it failed
+     */
+    private <T> T recordOutcome(ApiResult<T> result)
+    {
+        m_LastError.set(result.getError());
+        return result.getResult();
+    }
+
+    /**
+     * Read the {@link ApiError} from the content of an error response.
+     * If the content is not an ApiError document one is created with
+     * <code>message</code>.
+     */
+    private ApiError parseError(String content, String message)
+    {
+        try
+        {
+            if (content.isEmpty() == false)
+            {
+                return m_JsonMapper.readValue(content, ApiError.class);
             }
         }
+        catch (IOException e)
+        {
+            LOGGER.debug("Error response is not an ApiError document", e);
+        }
+
+        ApiError error = new ApiError();
+        error.setMessage(message);
+        return error;
     }
 
     /**
@@ -312,18 +690,32 @@ public class EngineApiClient implements Closeable
      */
     public boolean deleteJob(String baseUrl, String jobId)
     throws ClientProtocolException, IOException
+    {
+        return Boolean.TRUE.equals(recordOutcome(deleteJobResult(baseUrl, jobId)));
+    }
+
+    /**
+     * Delete an individual job
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @return The outcome of the request
+     * @throws IOException, ClientProtocolException
+     */
+    public ApiResult<Boolean> deleteJobResult(String baseUrl, String jobId)
+    throws ClientProtocolException, IOException
     {
         String url = baseUrl + "/jobs/" + jobId;
         LOGGER.debug("DELETE job: " + url);
 
-        HttpDelete delete = new HttpDelete(url);
-
-        return executeRequest(delete, "deleting job");
+        return execute(new HttpDelete(url), 200, "deleting job");
     }
 
     /**
-     * Read the input stream in 4Mb chunks and upload making a new connection
-     * for each chunk.
+     * Read the input stream in 4Mb chunks and upload each chunk in a
+     * separate request. The next chunk is read while the previous one is
+     * being uploaded.
      * The data is not set line-by-line or broken in chunks on newline
      * boundaries it is send in fixed size blocks. The API will manage
      * reconstructing the records from the chunks.
@@ -332,215 +724,454 @@ public class EngineApiClient implements Closeable
      * e.g <code>http://localhost:8080/engine/v1/</code>>
      * @param jobId The Job's unique Id
      * @param inputStream The data to write to the web service
-     * @return True
-     * @throws IOException
+     * @return True if every chunk was accepted. If false the error is
+     * available from {@linkplain #getLastError()}
+     * @throws IOException If <code>inputStream</code> cannot be read
+     * @see #chunkedUpload(String, String, InputStream, int, boolean)
      * @see #streamingUpload(String, String, InputStream, boolean)
      */
     public boolean chunkedUpload(String baseUrl, String jobId,
             InputStream inputStream)
     throws IOException
     {
-        String postUrl = baseUrl + "/data/" + jobId;
-        LOGGER.debug("Uploading chunked data to " + postUrl);
-
-        final int BUFF_SIZE = 4096 * 1024;
-        byte [] buffer = new byte[BUFF_SIZE];
-        int read = 0;
-        int uploadCount = 0;
-        while ((read = inputStream.read(buffer)) > -1)
-        {
-            ByteArrayEntity entity = new ByteArrayEntity(buffer, 0, read);
-            entity.setContentType("application/octet-stream");
-
-            LOGGER.info("Upload " + ++uploadCount);
-
-            HttpPost post = new HttpPost(postUrl);
-            post.setEntity(entity);
-            try (CloseableHttpResponse response = m_HttpClient.execute(post))
-            {
-
-                String content = EntityUtils.toString(response.getEntity());
-
-                if (response.getStatusLine().getStatusCode() != 202)
-                {
-                    String msg = String.format(
-                            "Upload of chunk %d failed, status code = %d. "
-                            + "Returned content: %s",
-                            uploadCount, response.getStatusLine().getStatusCode(),
-                            content);
-
-                    LOGGER.error(msg);
-
-                    m_LastError = m_JsonMapper.readValue(content,
-                            new TypeReference<ApiError>() {} );
-                }
-                else
-                {
-                    m_LastError = null;
-                }
-            }
-        }
-
-        return true;
+        return chunkedUpload(baseUrl, jobId, inputStream,
+                DEFAULT_CHUNK_SIZE, true).isSuccess();
     }
 
     /**
-     * Stream data from <code>inputStream</code> to the service.
-     * This is different to {@link #chunkedUpload(String, String, InputStream)}
-     * in that the entire stream is read and uploading at once without breaking
-     * the connection.
+     * Read the input stream in chunks of <code>chunkSize</code> bytes and
+     * upload each chunk in a separate request. Chunks are uploaded in
+     * order and the upload stops at the first chunk that is not accepted,
+     * the byte range of that chunk is reported in the returned
+     * {@link UploadResult}.
+     * <br/>
+     * If <code>pipelined</code> the next chunk is read on a background
+     * thread while the current chunk is uploaded so reading the input and
+     * waiting on the network overlap. Chunk buffers of the default size
+     * are reused between uploads.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
      * @param inputStream The data to write to the web service
-     * @param compressed Is the data gzipped compressed?
-     * @return True if successful
-     * @throws IOException
-     * @throws InterruptedException
-     * @see #chunkedUpload(String, String, InputStream)
+     * @param chunkSize The size of each uploaded chunk in bytes
+     * @param pipelined If true read ahead while uploading
+     * @return The result of the upload. The error is also available
+     * from {@linkplain #getLastError()}
+     * @throws IOException If <code>inputStream</code> cannot be read
      */
-    public boolean streamingUpload(String baseUrl, String jobId,
-            InputStream inputStream, boolean compressed)
+    public UploadResult chunkedUpload(String baseUrl, String jobId,
+            InputStream inputStream, int chunkSize, boolean pipelined)
     throws IOException
     {
-        String postUrl = baseUrl + "/data/" + jobId;
-        LOGGER.debug("Uploading data to " + postUrl);
+        if (chunkSize <= 0)
+        {
+            throw new IllegalArgumentException("chunkSize must be > 0");
+        }
 
-        InputStreamEntity entity = new InputStreamEntity(inputStream);
-        entity.setContentType("application/octet-stream");
-        entity.setChunked(true);
+        String postUrl = baseUrl + "/data/" + jobId;
+        LOGGER.debug("Uploading chunked data to " + postUrl);
 
-        HttpPost post = new HttpPost(postUrl);
-        if (compressed)
+        UploadResult result = new UploadResult();
+        if (pipelined)
         {
-            post.addHeader("Content-Encoding", "gzip");
+            pipelinedChunkUpload(postUrl, inputStream, chunkSize, result);
+        }
+        else
+        {
+            sequentialChunkUpload(postUrl, inputStream, chunkSize, result);
         }
-        post.setEntity(entity);
 
-        try (CloseableHttpResponse response = m_HttpClient.execute(post))
+        m_LastError.set(result.getError());
+        return result;
+    }
+
+    /**
+     * Upload <code>dataFile</code> in chunks recording the offset
+     * accepted after each chunk in <code>checkpointFile</code>. If the
+     * checkpoint exists for the same job and file the upload resumes
+     * from the recorded offset, so an upload interrupted by a failure
+     * or restart can be carried on by calling this again. Once the whole
+     * file is uploaded the checkpoint is left in place; calling this
+     * again only uploads data appended to the file since.
+     * <br/>
+     * Before resuming the checkpoint is reconciled with the job's counts:
+     * <ul>
+     * <li>If the job has received fewer bytes than when the upload started
+     * or its latest data time has gone backwards the job has been reset
+     * and the upload starts again from the beginning of the file.</li>
+     * <li>If the job has received exactly one chunk more than was
+     * recorded the process stopped before the checkpoint was written and
+     * that chunk is not sent again.</li>
+     * <li>Otherwise the checkpoint is used as is.</li>
+     * </ul>
+     * This assumes nothing else is uploading to the job at the same time.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param dataFile The uncompressed data to upload
+     * @param checkpointFile Where the progress is recorded
+     * @param chunkSize The size of each chunk in bytes. A resumed upload
+     * uses the chunk size it was started with
+     * @return The result of the upload, offsets are relative to the
+     * start of the file. The error is also available from
+     * {@linkplain #getLastError()}
+     * @throws IOException If the file or checkpoint cannot be read or
+     * written
+     * @see UploadCheckpoint
+     */
+    public UploadResult resumableUpload(String baseUrl, String jobId, File dataFile,
+            File checkpointFile, int chunkSize)
+    throws IOException
+    {
+        if (chunkSize <= 0)
         {
-            String content = EntityUtils.toString(response.getEntity());
+            throw new IllegalArgumentException("chunkSize must be > 0");
+        }
 
-            if (response.getStatusLine().getStatusCode() != 202)
-            {
-                String msg = String.format(
-                        "Streaming upload failed, status code = %d. "
-                        + "Returned content: %s",
-                        response.getStatusLine().getStatusCode(),
-                        content);
+        UploadResult result = new UploadResult();
 
-                LOGGER.error(msg);
+        SingleDocument<JobDetails> doc = getJob(baseUrl, jobId);
+        if (doc.isExists() == false)
+        {
+            ApiError error = new ApiError();
+            error.setMessage("Cannot upload data, job " + jobId + " not found");
+            LOGGER.error(error.getMessage());
+            result.failed(0, 0, error);
+            m_LastError.set(error);
+            return result;
+        }
 
-                if (content.isEmpty() == false)
-                {
-                    m_LastError = m_JsonMapper.readValue(content,
-                            new TypeReference<ApiError>() {} );
-                }
-                else
+        UploadCheckpoint checkpoint = UploadCheckpoint.load(checkpointFile);
+        if (checkpoint != null && checkpoint.matches(jobId, dataFile))
+        {
+            checkpoint = reconcileCheckpoint(checkpoint, doc.getDocument(), dataFile);
+        }
+        else
+        {
+            checkpoint = null;
+        }
+
+        if (checkpoint == null)
+        {
+            checkpoint = newCheckpoint(doc.getDocument(), dataFile, chunkSize);
+        }
+        checkpoint.save(checkpointFile);
+
+        String postUrl = baseUrl + "/data/" + jobId;
+        LOGGER.info("Uploading " + dataFile + " to " + postUrl + " from offset " +
+                checkpoint.getOffset());
+
+        result.resumedAt(checkpoint.getOffset());
+
+        byte [] buffer = m_ChunkBufferPool.acquire(checkpoint.getChunkSize());
+        try (FileInputStream input = new FileInputStream(dataFile))
+        {
+            input.getChannel().position(checkpoint.getOffset());
+
+            int read;
+            while ((read = readFully(input, buffer)) > 0)
+            {
+                if (uploadChunk(postUrl, buffer, read, result) == false)
                 {
-                    m_LastError = null;
+                    break;
                 }
 
-                return false;
+                checkpoint.chunkAccepted(read, countLines(buffer, read));
+                checkpoint.save(checkpointFile);
             }
-
-            return true;
         }
+        finally
+        {
+            m_ChunkBufferPool.release(buffer);
+        }
+
+        m_LastError.set(result.getError());
+        return result;
     }
 
+    private UploadCheckpoint newCheckpoint(JobDetails job, File dataFile, int chunkSize)
+    {
+        JobDetails.Counts counts = job.getCounts();
+        return new UploadCheckpoint(job.getId(), dataFile, chunkSize,
+                (counts == null) ? 0 : counts.getInputBytes(),
+                (counts == null) ? 0 : counts.getInputRecordCount(),
+                (job.getLastDataTime() == null) ? -1 : job.getLastDataTime().getTime());
+    }
 
     /**
-     * Upload the contents of <code>dataFile</code> to the server.
+     * Compare the checkpoint with what the job has received
      *
-     * @param baseUrl The base URL for the REST API including version number
-     * e.g <code>http://localhost:8080/engine/v1/</code>
-     * @param jobId The Job's Id
-     * @param dataFile Should match the data configuration format of the job
-     * @param compressed Is the data gzipped compressed?
-     * @return True if successful
-     * @throws IOException
+     * @return The checkpoint to resume from or <code>null</code> to
+     * start again
      */
-    public boolean fileUpload(String baseUrl, String jobId, File dataFile, boolean compressed)
+    private UploadCheckpoint reconcileCheckpoint(UploadCheckpoint checkpoint,
+            JobDetails job, File dataFile)
     throws IOException
     {
-        FileInputStream stream = new FileInputStream(dataFile);
+        JobDetails.Counts counts = job.getCounts();
+        long inputBytes = (counts == null) ? 0 : counts.getInputBytes();
+        long inputRecords = (counts == null) ? 0 : counts.getInputRecordCount();
+
+        long received = inputBytes - checkpoint.getBaseInputBytes();
+        long receivedRecords = inputRecords - checkpoint.getBaseInputRecordCount();
+
+        boolean timeWentBack = checkpoint.getBaseLastDataTime() >= 0 &&
+                (job.getLastDataTime() == null ||
+                job.getLastDataTime().getTime() < checkpoint.getBaseLastDataTime());
+        if (received < 0 || timeWentBack)
+        {
+            LOGGER.warn("Job " + job.getId() + " has been reset since the upload of " +
+                    dataFile + " started, uploading from the beginning");
+            return null;
+        }
+
+        if (received <= checkpoint.getOffset())
+        {
+            // the counts may lag behind the acknowledged chunks
+            return checkpoint;
+        }
+
+        int nextLength = (int)Math.min(checkpoint.getChunkSize(),
+                dataFile.length() - checkpoint.getOffset());
+        if (received == checkpoint.getOffset() + nextLength &&
+                receivedRecords >= checkpoint.getLineCount())
+        {
+            byte [] chunk = new byte[nextLength];
+            try (FileInputStream input = new FileInputStream(dataFile))
+            {
+                input.getChannel().position(checkpoint.getOffset());
+                readFully(input, chunk);
+            }
 
-        return streamingUpload(baseUrl, jobId, stream, compressed);
+            LOGGER.info("Job " + job.getId() + " accepted the chunk at offset " +
+                    checkpoint.getOffset() + " after the last checkpoint, skipping it");
+            checkpoint.chunkAccepted(nextLength, countLines(chunk, nextLength));
+            return checkpoint;
+        }
+
+        LOGGER.warn(String.format("Job %s has received %d bytes and %d records since " +
+                "the upload of %s started but %d bytes were acknowledged, " +
+                "resuming from the acknowledged offset",
+                job.getId(), received, receivedRecords, dataFile, checkpoint.getOffset()));
+        return checkpoint;
     }
 
+    private static long countLines(byte [] buffer, int length)
+    {
+        long lines = 0;
+        for (int i = 0; i < length; i++)
+        {
+            if (buffer[i] == '\n')
+            {
+                lines++;
+            }
+        }
+        return lines;
+    }
 
-    /**
-     * Flush the job, ensuring that no previously uploaded data is waiting in
-     * buffers.
-     *
-     * @param baseUrl The base URL for the REST API including version number
-     * e.g <code>http://localhost:8080/engine/v1/</code>
-     * @param jobId The Job's unique Id
-     * @param calcInterim Should interim results for the most recent bucket be
-     * calculated based on the partial data uploaded for it so far?
-     * @return True if successful
-     * @throws IOException
-     */
-    public boolean flushJob(String baseUrl, String jobId, boolean calcInterim)
+    private void sequentialChunkUpload(String postUrl, InputStream inputStream,
+            int chunkSize, UploadResult result)
     throws IOException
     {
-        // Send flush message
-        String flushUrl = baseUrl + "/data/" + jobId + "/flush";
-        if (calcInterim)
+        byte [] buffer = m_ChunkBufferPool.acquire(chunkSize);
+        try
         {
-            flushUrl += "?calcInterim=true";
+            int read;
+            while ((read = readFully(inputStream, buffer)) > 0)
+            {
+                if (uploadChunk(postUrl, buffer, read, result) == false)
+                {
+                    return;
+                }
+            }
         }
-        LOGGER.debug("Flushing job " + flushUrl);
-
-        HttpPost post = new HttpPost(flushUrl);
-        try (CloseableHttpResponse response = m_HttpClient.execute(post))
+        finally
         {
-            String content = EntityUtils.toString(response.getEntity());
+            m_ChunkBufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * A chunk read by the background reader, an empty chunk marks the
+     * end of the input.
+     */
+    private static class Chunk
+    {
+        byte [] m_Buffer;
+        int m_Length;
+        IOException m_Exception;
+    }
+
+    private void pipelinedChunkUpload(String postUrl, final InputStream inputStream,
+            final int chunkSize, UploadResult result)
+    throws IOException
+    {
+        // two buffers: one being uploaded and one being filled
+        final BlockingQueue<byte []> free = new ArrayBlockingQueue<>(2);
+        final BlockingQueue<Chunk> filled = new LinkedBlockingQueue<>();
+        free.add(m_ChunkBufferPool.acquire(chunkSize));
+        free.add(m_ChunkBufferPool.acquire(chunkSize));
+
+        // a read in progress cannot be interrupted so the reader
+        // checks this between reads rather than being cancelled
+        final AtomicBoolean stopped = new AtomicBoolean();
 
-            if (response.getStatusLine().getStatusCode() != 200)
+        Future<?> reader = m_BackgroundExecutor.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            int read = chunkSize;
+                            while (read == chunkSize)
+                            {
+                                Chunk chunk = new Chunk();
+                                while (chunk.m_Buffer == null)
+                                {
+                                    if (stopped.get())
+                                    {
+                                        return;
+                                    }
+                                    chunk.m_Buffer = free.poll(100, TimeUnit.MILLISECONDS);
+                                }
+
+                                try
+                                {
+                                    read = readFully(inputStream, chunk.m_Buffer);
+                                }
+                                catch (IOException e)
+                                {
+                                    chunk.m_Exception = e;
+                                    read = -1;
+                                }
+                                chunk.m_Length = read;
+                                filled.add(chunk);
+
+                                if (stopped.get())
+                                {
+                                    return;
+                                }
+                            }
+                        }
+                        catch (InterruptedException e)
+                        {
+                            // the upload has stopped
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+
+        Chunk chunk = null;
+        try
+        {
+            while (true)
             {
-                String msg = String.format(
-                        "Error flushing job %s, status code = %d. "
-                        + "Returned content: %s",
-                        jobId,
-                        response.getStatusLine().getStatusCode(),
-                        content);
+                chunk = filled.take();
+                if (chunk.m_Exception != null)
+                {
+                    throw chunk.m_Exception;
+                }
 
-                LOGGER.error(msg);
+                if (chunk.m_Length > 0 &&
+                        uploadChunk(postUrl, chunk.m_Buffer, chunk.m_Length, result) == false)
+                {
+                    return;
+                }
 
-                m_LastError = m_JsonMapper.readValue(content,
-                        new TypeReference<ApiError>() {} );
+                if (chunk.m_Length < chunkSize)
+                {
+                    return;
+                }
 
-                return false;
+                free.add(chunk.m_Buffer);
+                chunk = null;
             }
-            else
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during chunked upload");
+        }
+        finally
+        {
+            // nothing may read the caller's stream after this returns
+            stopped.set(true);
+            awaitQuietly(reader);
+
+            // the reader has finished so all the buffers are free
+            if (chunk != null)
+            {
+                m_ChunkBufferPool.release(chunk.m_Buffer);
+            }
+            for (Chunk unsent : filled)
+            {
+                m_ChunkBufferPool.release(unsent.m_Buffer);
+            }
+            for (byte [] buffer : free)
             {
-                m_LastError = null;
+                m_ChunkBufferPool.release(buffer);
             }
         }
-
-        return true;
     }
 
+    /**
+     * Wait for a background task to end even if interrupted,
+     * the interrupt status is restored afterwards
+     */
+    private static void awaitQuietly(Future<?> task)
+    {
+        boolean interrupted = Thread.interrupted();
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    task.get();
+                    return;
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException e)
+                {
+                    LOGGER.error("Chunk reader failed", e.getCause());
+                    return;
+                }
+            }
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
     /**
-     * Finish the job after all the data has been uploaded
+     * Upload a single chunk and record the outcome in <code>result</code>.
+     * A failed request is recorded as a failure of the chunk's byte range.
      *
-     * @param baseUrl The base URL for the REST API including version number
-     * e.g <code>http://localhost:8080/engine/v1/</code>
-     * @param jobId The Job's unique Id
-     * @return True if successful
-     * @throws IOException
+     * @return True if the chunk was accepted
      */
-    public boolean closeJob(String baseUrl, String jobId)
-    throws IOException
+    private boolean uploadChunk(String postUrl, byte [] buffer, int length,
+            UploadResult result)
     {
-        // Send finish message
-        String closeUrl = baseUrl + "/data/" + jobId + "/close";
-        LOGGER.debug("Closing job " + closeUrl);
+        int chunkNumber = result.getChunksAccepted() + 1;
+        long start = result.getBytesAccepted();
 
-        HttpPost post = new HttpPost(closeUrl);
+        ByteArrayEntity entity = new ByteArrayEntity(buffer, 0, length);
+        entity.setContentType("application/octet-stream");
+
+        LOGGER.info("Upload " + chunkNumber);
+
+        HttpPost post = new HttpPost(postUrl);
+        post.setEntity(entity);
         try (CloseableHttpResponse response = m_HttpClient.execute(post))
         {
             String content = EntityUtils.toString(response.getEntity());
@@ -548,1045 +1179,2511 @@ public class EngineApiClient implements Closeable
             if (response.getStatusLine().getStatusCode() != 202)
             {
                 String msg = String.format(
-                        "Error closing job %s, status code = %d. "
+                        "Upload of chunk %d failed, status code = %d. "
                         + "Returned content: %s",
-                        jobId,
-                        response.getStatusLine().getStatusCode(),
+                        chunkNumber, response.getStatusLine().getStatusCode(),
                         content);
 
                 LOGGER.error(msg);
 
-                m_LastError = m_JsonMapper.readValue(content,
-                        new TypeReference<ApiError>() {} );
-
+                result.failed(start, start + length, parseError(content, msg));
                 return false;
             }
-            else
-            {
-                m_LastError = null;
-            }
+        }
+        catch (IOException e)
+        {
+            String msg = String.format("Upload of chunk %d failed", chunkNumber);
+            LOGGER.error(msg, e);
+
+            ApiError error = new ApiError();
+            error.setMessage(msg + ": " + e.getMessage());
+            error.setCause(e);
+            result.failed(start, start + length, error);
+            return false;
         }
 
+        result.chunkAccepted(length);
         return true;
     }
 
+    /**
+     * Read until <code>buffer</code> is full or the end of the stream
+     *
+     * @return The number of bytes read, less than the buffer length
+     * only at the end of the stream
+     */
+    private static int readFully(InputStream inputStream, byte [] buffer)
+    throws IOException
+    {
+        int total = 0;
+        while (total < buffer.length)
+        {
+            int read = inputStream.read(buffer, total, buffer.length - total);
+            if (read < 0)
+            {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
 
     /**
-     * Get the bucket results for a particular job.
-     * Calls {@link #getBuckets(String, String, boolean, Long, Long, Double, Double)}
-     * with the skip and take parameters set to <code>null</code>
+     * Stream data from <code>inputStream</code> to the service.
+     * This is different to {@link #chunkedUpload(String, String, InputStream)}
+     * in that the entire stream is read and uploading at once without breaking
+     * the connection.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param expand If true include the anomaly records for the bucket
-     *
-     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
+     * @param inputStream The data to write to the web service
+     * @param compressed Is the data gzipped compressed?
+     * @return True if successful
      * @throws IOException
+     * @throws InterruptedException
+     * @see #chunkedUpload(String, String, InputStream)
      */
-    public Pagination<Bucket> getBuckets(String baseUrl, String jobId, boolean expand)
+    public boolean streamingUpload(String baseUrl, String jobId,
+            InputStream inputStream, boolean compressed)
     throws IOException
     {
-        return getBuckets(baseUrl, jobId, expand, false, null, null, null, null);
+        return Boolean.TRUE.equals(recordOutcome(
+                streamingUploadResult(baseUrl, jobId, inputStream, compressed)));
     }
 
     /**
-     * Get the bucket results for a particular job.
-     * Calls {@link #getBuckets(String, String, boolean, Long, Long, Double, Double)}
-     * with the skip and take parameters set to <code>null</code>
+     * Stream data from <code>inputStream</code> to the service in a
+     * single request.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param expand If true include the anomaly records for the bucket
-     * @param includeInterim Include interim results
-     *
-     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
+     * @param inputStream The data to write to the web service
+     * @param compressed Is the data gzipped compressed?
+     * @return The outcome of the upload
      * @throws IOException
+     * @see #streamingUpload(String, String, InputStream, boolean)
      */
-    public Pagination<Bucket> getBuckets(String baseUrl, String jobId, boolean expand,
-            boolean includeInterim)
+    public ApiResult<Boolean> streamingUploadResult(String baseUrl, String jobId,
+            InputStream inputStream, boolean compressed)
     throws IOException
     {
-        return getBuckets(baseUrl, jobId, expand, includeInterim, null, null, null, null);
+        String postUrl = baseUrl + "/data/" + jobId;
+        LOGGER.debug("Uploading data to " + postUrl);
+
+        InputStreamEntity entity = new InputStreamEntity(inputStream);
+        entity.setChunked(true);
+
+        return uploadResult(postUrl, entity, compressed, "Streaming upload");
     }
 
     /**
-     * Get the bucket results for a particular job and optionally filter by
-     * anomaly or unusual score.
-     *
-     * Calls {@link #getBuckets(String, String, boolean, Long, Long, , Double, Double)}
-     * with the skip and take parameters set to <code>null</code>
+     * Gzip the data from <code>inputStream</code> as it is streamed to
+     * the service. If <code>compressionThreads</code> is greater than 1
+     * blocks of the input are compressed in parallel, the data sent is
+     * still a single gzip stream.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param expand If true include the anomaly records for the bucket
-     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
-     * this value. If <code>null</code> then ignored
-     * @param normalizedProbabilityThreshold Return only buckets with a maxNormalizedProbability >=
-     * this value. If <code>null</code> then ignored
-     *
-     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
+     * @param inputStream The uncompressed data to write to the web service
+     * @param compressionLevel The deflate compression level 0-9 or
+     * {@linkplain java.util.zip.Deflater#DEFAULT_COMPRESSION}
+     * @param compressionThreads The number of blocks compressed in parallel
+     * @return True if successful
      * @throws IOException
+     * @see #streamingUpload(String, String, InputStream, boolean)
      */
-    public Pagination<Bucket> getBuckets(String baseUrl, String jobId,
-            boolean expand, Double anomalyScoreThreshold, Double normalizedProbabilityThreshold)
+    public boolean compressingUpload(String baseUrl, String jobId,
+            InputStream inputStream, int compressionLevel, int compressionThreads)
     throws IOException
     {
-        return getBuckets(baseUrl, jobId, expand, false, null, null,
-                anomalyScoreThreshold, normalizedProbabilityThreshold);
+        return Boolean.TRUE.equals(recordOutcome(compressingUploadResult(baseUrl, jobId,
+                inputStream, compressionLevel, compressionThreads)));
     }
 
     /**
-     * Get the bucket results for a particular job and optionally filter by
-     * anomaly or unusual score.
-     *
-     * Calls {@link #getBuckets(String, String, boolean, Long, Long, , Double, Double)}
-     * with the skip and take parameters set to <code>null</code>
+     * Gzip the data from <code>inputStream</code> as it is streamed to
+     * the service.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param expand If true include the anomaly records for the bucket
-     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
-     * this value. If <code>null</code> then ignored
-     * @param normalizedProbabilityThreshold Return only buckets with a maxNormalizedProbability >=
-     * this value. If <code>null</code> then ignored
-     *
-     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
+     * @param inputStream The uncompressed data to write to the web service
+     * @param compressionLevel The deflate compression level 0-9 or
+     * {@linkplain java.util.zip.Deflater#DEFAULT_COMPRESSION}
+     * @param compressionThreads The number of blocks compressed in parallel
+     * @return The outcome of the upload
      * @throws IOException
+     * @see #compressingUpload(String, String, InputStream, int, int)
      */
-    public Pagination<Bucket> getBuckets(String baseUrl, String jobId, boolean expand,
-            boolean includeInterim, Double anomalyScoreThreshold, Double normalizedProbabilityThreshold)
+    public ApiResult<Boolean> compressingUploadResult(String baseUrl, String jobId,
+            InputStream inputStream, int compressionLevel, int compressionThreads)
     throws IOException
     {
-        return getBuckets(baseUrl, jobId, expand, includeInterim, null, null,
-                anomalyScoreThreshold, normalizedProbabilityThreshold);
+        String postUrl = baseUrl + "/data/" + jobId;
+        LOGGER.debug("Uploading compressed data to " + postUrl);
+
+        GzipCompressingEntity entity = new GzipCompressingEntity(inputStream,
+                compressionLevel, compressionThreads, m_BackgroundExecutor);
+
+        return uploadResult(postUrl, entity, true, "Compressed upload");
     }
 
     /**
-     * Get the bucket results for a particular job with paging parameters.
+     * Stream data from <code>inputStream</code> to the service keeping
+     * only the time field and the fields the job's detectors use.
+     * The job's configuration is read first to find the fields.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param expand If true include the anomaly records for the bucket
-     * @param skip The number of buckets to skip
-     * @param take The max number of buckets to request.
-     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
-     * this value. If <code>null</code> then ignored
-     * @param normalizedProbabilityThreshold Return only buckets with a maxNormalizedProbability >=
-     * this value. If <code>null</code> then ignored
-     *
-     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
+     * @param inputStream The uncompressed data in the job's data format
+     * @return True if successful
      * @throws IOException
+     * @see FieldProjectingInputStream
      */
-    public Pagination<Bucket> getBuckets(String baseUrl, String jobId,
-            boolean expand, Long skip, Long take,
-            Double anomalyScoreThreshold, Double normalizedProbabilityThreshold)
+    public boolean projectedUpload(String baseUrl, String jobId,
+            InputStream inputStream)
     throws IOException
     {
-        return this.<String>getBuckets(baseUrl, jobId, expand, false, skip, take,
-                null, null, anomalyScoreThreshold, normalizedProbabilityThreshold);
+        return Boolean.TRUE.equals(recordOutcome(
+                projectedUploadResult(baseUrl, jobId, inputStream)));
     }
 
     /**
-     * Get the bucket results for a particular job with paging parameters.
+     * Stream data from <code>inputStream</code> to the service keeping
+     * only the time field and the fields the job's detectors use.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param expand If true include the anomaly records for the bucket
-     * @param includeInterim Include interim results
-     * @param skip The number of buckets to skip
-     * @param take The max number of buckets to request.
-     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
-     * this value. If <code>null</code> then ignored
-     * @param normalizedProbabilityThreshold Return only buckets with a maxNormalizedProbability >=
-     * this value. If <code>null</code> then ignored
-     *
-     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
+     * @param inputStream The uncompressed data in the job's data format
+     * @return The outcome of reading the job's configuration or of the upload
      * @throws IOException
+     * @see #projectedUpload(String, String, InputStream)
      */
-    public Pagination<Bucket> getBuckets(String baseUrl, String jobId,
-            boolean expand, boolean includeInterim, Long skip, Long take,
-            Double anomalyScoreThreshold, Double normalizedProbabilityThreshold)
+    public ApiResult<Boolean> projectedUploadResult(String baseUrl, String jobId,
+            InputStream inputStream)
     throws IOException
     {
-        return this.<String>getBuckets(baseUrl, jobId, expand, includeInterim, skip, take,
-                null, null, anomalyScoreThreshold, normalizedProbabilityThreshold);
+        ApiResult<JobDetails> jobResult = getJobForUpload(baseUrl, jobId);
+        if (jobResult.isSuccess() == false)
+        {
+            return new ApiResult<Boolean>(jobResult.getStatusCode(), jobResult.getError());
+        }
+        JobDetails job = jobResult.getResult();
+
+        try (FieldProjectingInputStream projected = new FieldProjectingInputStream(
+                inputStream, job.getAnalysisConfig(), job.getDataDescription(),
+                job.getTransforms()))
+        {
+            return streamingUploadResult(baseUrl, jobId, projected, false);
+        }
     }
 
     /**
-     * Get the bucket results filtered between the start and end dates.
-     * The arguments are optional only one of start/end needs be set
+     * Run <code>transforms</code> on the data from <code>inputStream</code>
+     * as it is streamed to the service so the transform outputs are
+     * computed by the client. Only the time field and the fields the
+     * job's detectors use are sent. The job must not also be configured
+     * with the transforms.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param expand If true include the anomaly records for the bucket
-     * @param skip The number of buckets to skip. If <code>null</code> then ignored
-     * @param take The max number of buckets to request. If <code>null</code> then ignored
-     * @param start The start date filter as either a Long (seconds from epoch)
-     * or an ISO 8601 date String. If <code>null</code> then ignored
-     * @param end The end date filter as either a Long (seconds from epoch)
-     * or an ISO 8601 date String. If <code>null</code> then ignored
-     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
-     * this value. If <code>null</code> then ignored
-     * @param normalizedProbabilityThreshold Return only buckets with a maxNormalizedProbability >=
-     * this value. If <code>null</code> then ignored
-     *
-     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
+     * @param inputStream The uncompressed data in the job's data format
+     * @param transforms The transforms to run
+     * @return True if successful
      * @throws IOException
+     * @see TransformingInputStream
      */
-    public <T> Pagination<Bucket> getBuckets(String baseUrl, String jobId,
-            boolean expand, Long skip, Long take, T start, T end,
-            Double anomalyScoreThreshold, Double normalizedProbabilityThreshold)
+    public boolean transformingUpload(String baseUrl, String jobId,
+            InputStream inputStream, List<TransformConfig> transforms)
     throws IOException
     {
-        return this.getBuckets(baseUrl, jobId, expand, false, skip, take,
-                start, end, anomalyScoreThreshold, normalizedProbabilityThreshold);
+        return Boolean.TRUE.equals(recordOutcome(
+                transformingUploadResult(baseUrl, jobId, inputStream, transforms)));
     }
 
     /**
-     * Get the bucket results filtered between the start and end dates.
-     * The arguments are optional only one of start/end needs be set
+     * Run <code>transforms</code> on the data from <code>inputStream</code>
+     * as it is streamed to the service.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param expand If true include the anomaly records for the bucket
-     * @param includeInterim Include interim results
-     * @param skip The number of buckets to skip. If <code>null</code> then ignored
-     * @param take The max number of buckets to request. If <code>null</code> then ignored
-     * @param start The start date filter as either a Long (seconds from epoch)
-     * or an ISO 8601 date String. If <code>null</code> then ignored
-     * @param end The end date filter as either a Long (seconds from epoch)
-     * or an ISO 8601 date String. If <code>null</code> then ignored
-     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
-     * this value. If <code>null</code> then ignored
-     * @param normalizedProbabilityThreshold Return only buckets with a maxNormalizedProbability >=
-     * this value. If <code>null</code> then ignored
-     *
-     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
+     * @param inputStream The uncompressed data in the job's data format
+     * @param transforms The transforms to run
+     * @return The outcome of reading the job's configuration or of the upload
      * @throws IOException
+     * @see #transformingUpload(String, String, InputStream, List)
      */
-    public <T> Pagination<Bucket> getBuckets(String baseUrl, String jobId,
-            boolean expand, boolean includeInterim,
-            Long skip, Long take, T start, T end,
-            Double anomalyScoreThreshold, Double normalizedProbabilityThreshold)
+    public ApiResult<Boolean> transformingUploadResult(String baseUrl, String jobId,
+            InputStream inputStream, List<TransformConfig> transforms)
     throws IOException
     {
-        String url = baseUrl + "/results/" + jobId + "/buckets/";
-        char queryChar = '?';
-        if (expand)
-        {
-            url += queryChar + "expand=true";
-            queryChar = '&';
-        }
-        if (includeInterim)
-        {
-            url += queryChar + "includeInterim=true";
-            queryChar = '&';
-        }
-        if (skip != null)
-        {
-            url += queryChar + "skip=" + skip;
-            queryChar = '&';
-        }
-        if (take != null)
-        {
-            url += queryChar + "take=" + take;
-            queryChar = '&';
-        }
-        if (start != null)
-        {
-            url += queryChar + "start=" + URLEncoder.encode(start.toString(), "UTF-8");
-            queryChar = '&';
-        }
-        if (end != null)
-        {
-            url += queryChar + "end=" + URLEncoder.encode(end.toString(), "UTF-8");
-            queryChar = '&';
-        }
-        if (anomalyScoreThreshold != null)
-        {
-            url += queryChar + "anomalyScore=" + anomalyScoreThreshold;
-            queryChar = '&';
-        }
-        if (normalizedProbabilityThreshold != null)
+        ApiResult<JobDetails> jobResult = getJobForUpload(baseUrl, jobId);
+        if (jobResult.isSuccess() == false)
         {
-            url += queryChar + "maxNormalizedProbability=" + normalizedProbabilityThreshold;
-            queryChar = '&';
+            return new ApiResult<Boolean>(jobResult.getStatusCode(), jobResult.getError());
         }
+        JobDetails job = jobResult.getResult();
 
-        LOGGER.debug("GET buckets " + url);
-
-        Pagination<Bucket> page = this.get(url,
-                new TypeReference<Pagination<Bucket>>() {});
-
-        // else return empty page
-        if (page == null)
+        try (TransformingInputStream transformed = new TransformingInputStream(
+                inputStream, job.getAnalysisConfig(), job.getDataDescription(),
+                transforms))
         {
-            page = new Pagination<>();
-            page.setDocuments(Collections.<Bucket>emptyList());
+            return streamingUploadResult(baseUrl, jobId, transformed, false);
         }
-
-        return page;
     }
 
-
     /**
-     * Get a single bucket for a particular job and bucket Id
+     * Sort the data from <code>inputStream</code> by time, spilling
+     * sorted runs to <code>tempDirectory</code> so the data can be larger
+     * than the heap, then stream the merged runs to the service. Only
+     * the time field and the fields the job uses are kept.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param bucketId The bucket to get
-     * @param expand If true include the anomaly records for the bucket
-     *
-     * @return A {@link SingleDocument} object containing the requested
-     * {@link Bucket} or an empty {@link SingleDocument} if it does not exist
+     * @param inputStream The uncompressed data in the job's data format
+     * @param tempDirectory Where the sorted runs are written. If
+     * <code>null</code> the default temporary file directory
+     * @return True if successful
      * @throws IOException
+     * @see ExternalTimeSorter
+     * @see ExternalTimeSorter#DEFAULT_MEMORY_BYTES
      */
-    public SingleDocument<Bucket> getBucket(String baseUrl, String jobId,
-            String bucketId, boolean expand)
-    throws JsonMappingException, IOException
+    public boolean sortedUpload(String baseUrl, String jobId,
+            InputStream inputStream, File tempDirectory)
+    throws IOException
     {
-        return getBucket(baseUrl, jobId, bucketId, expand, false);
+        return sortedUpload(baseUrl, jobId, inputStream, tempDirectory,
+                ExternalTimeSorter.DEFAULT_MEMORY_BYTES);
     }
 
-
     /**
-     * Get a single bucket for a particular job and bucket Id
+     * Sort the data from <code>inputStream</code> by time holding no
+     * more than about <code>memoryBytes</code> of records in memory,
+     * then stream the merged runs to the service.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param bucketId The bucket to get
-     * @param expand If true include the anomaly records for the bucket
-     * @param includeInterim Include interim results
-     *
-     * @return A {@link SingleDocument} object containing the requested
-     * {@link Bucket} or an empty {@link SingleDocument} if it does not exist
+     * @param inputStream The uncompressed data in the job's data format
+     * @param tempDirectory Where the sorted runs are written. If
+     * <code>null</code> the default temporary file directory
+     * @param memoryBytes The estimated size of the records held in memory
+     * by all the runs being read and sorted, must be &gt;= 1
+     * @return True if successful
      * @throws IOException
+     * @see ExternalTimeSorter#withMemoryBudget(com.prelert.job.DataDescription,
+     * List, TimeZone, File, long, int, java.util.concurrent.ExecutorService)
      */
-    public SingleDocument<Bucket> getBucket(String baseUrl, String jobId,
-            String bucketId, boolean expand, boolean includeInterim)
-    throws JsonMappingException, IOException
+    public boolean sortedUpload(String baseUrl, String jobId,
+            InputStream inputStream, File tempDirectory, long memoryBytes)
+    throws IOException
     {
-        String url = baseUrl + "/results/" + jobId + "/buckets/" + bucketId;
-        char queryChar = '?';
-        if (expand)
-        {
-            url += queryChar + "expand=true";
-            queryChar = '&';
-        }
-        if (includeInterim)
-        {
-            url += queryChar + "includeInterim=true";
-            queryChar = '&';
-        }
-
-        LOGGER.debug("GET bucket " + url);
-
-        SingleDocument<Bucket> doc = this.get(url,
-                new TypeReference<SingleDocument<Bucket>>() {});
-
-        // else return empty doc
-        if (doc == null)
-        {
-            doc = new SingleDocument<>();
-        }
-        return doc;
+        return Boolean.TRUE.equals(recordOutcome(
+                sortedUploadResult(baseUrl, jobId, inputStream, tempDirectory,
+                        memoryBytes)));
     }
 
-
     /**
-     * Get the anomaly records for the job. The records aren't organised
-     * by bucket
-     *
-     * Calls {@link #getRecords(String, String, Long, Long)} with the
-     * skip and take parameters set to <code>null</code>
+     * Sort the data from <code>inputStream</code> by time then stream
+     * the merged runs to the service.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     *
-     * @return A {@link Pagination} object containing a list of
-     * {@link AnomalyRecord anomaly records}
+     * @param inputStream The uncompressed data in the job's data format
+     * @param tempDirectory Where the sorted runs are written. If
+     * <code>null</code> the default temporary file directory
+     * @return The outcome of reading the job's configuration or of the upload
      * @throws IOException
+     * @see #sortedUpload(String, String, InputStream, File)
      */
-    public Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId)
+    public ApiResult<Boolean> sortedUploadResult(String baseUrl, String jobId,
+            InputStream inputStream, File tempDirectory)
     throws IOException
     {
-        return this.<String>getRecords(baseUrl, jobId, null, null, null, null,
-                false, null, null, null, null);
+        return sortedUploadResult(baseUrl, jobId, inputStream, tempDirectory,
+                ExternalTimeSorter.DEFAULT_MEMORY_BYTES);
     }
 
     /**
-     * Get the anomaly records for the job. The records aren't organised
-     * by bucket
-     *
-     * Calls {@link #getRecords(String, String, Long, Long)} with the
-     * skip and take parameters set to <code>null</code>
+     * Sort the data from <code>inputStream</code> by time within a
+     * memory budget then stream the merged runs to the service.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param includeInterim Include interim results
-     *
-     * @return A {@link Pagination} object containing a list of
-     * {@link AnomalyRecord anomaly records}
+     * @param inputStream The uncompressed data in the job's data format
+     * @param tempDirectory Where the sorted runs are written. If
+     * <code>null</code> the default temporary file directory
+     * @param memoryBytes The estimated size of the records held in memory
+     * by all the runs being read and sorted, must be &gt;= 1
+     * @return The outcome of reading the job's configuration or of the upload
      * @throws IOException
+     * @see #sortedUpload(String, String, InputStream, File, long)
      */
-    public Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId,
-            boolean includeInterim)
+    public ApiResult<Boolean> sortedUploadResult(String baseUrl, String jobId,
+            InputStream inputStream, File tempDirectory, long memoryBytes)
     throws IOException
     {
-        return this.<String>getRecords(baseUrl, jobId, null, null, null, null,
-                includeInterim, null, null, null, null);
+        ApiResult<JobDetails> jobResult = getJobForUpload(baseUrl, jobId);
+        if (jobResult.isSuccess() == false)
+        {
+            return new ApiResult<Boolean>(jobResult.getStatusCode(), jobResult.getError());
+        }
+        JobDetails job = jobResult.getResult();
+
+        ExternalTimeSorter sorter = ExternalTimeSorter.withMemoryBudget(
+                job.getDataDescription(),
+                FieldProjectingInputStream.projectedFields(job.getAnalysisConfig(),
+                        job.getDataDescription(), job.getTransforms()),
+                TimeZone.getDefault(), tempDirectory, memoryBytes,
+                Runtime.getRuntime().availableProcessors(), m_BackgroundExecutor);
+
+        try (InputStream sorted = sorter.sort(inputStream))
+        {
+            return streamingUploadResult(baseUrl, jobId, sorted, false);
+        }
     }
 
     /**
-     * Get the anomaly records for the job with skip and take parameters.
-     * The records aren't organised by bucket
-     *
-     * Calls {@link #getRecords(String, String, Long, Long)} with the
-     * skip and take parameters set to <code>null</code>
+     * Merge several inputs, each already in time order, into one time
+     * ordered stream and upload it. Only the time field and the fields
+     * the job uses are kept. All the inputs are closed.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param skip The number of records to skip
-     * @param take The max number of records to request.
-     * @return A {@link Pagination} object containing a list of
-     * {@link AnomalyRecord anomaly records}
+     * @param inputStreams The uncompressed time ordered data in the
+     * job's data format
+     * @return True if successful
      * @throws IOException
+     * @see MergingInputStream
      */
-    public Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId,
-                    Long skip, Long take)
+    public boolean mergedUpload(String baseUrl, String jobId, List<InputStream> inputStreams)
     throws IOException
     {
-        return this.<String>getRecords(baseUrl, jobId, skip, take, null, null,
-                false, null, null, null, null);
+        return Boolean.TRUE.equals(recordOutcome(
+                mergedUploadResult(baseUrl, jobId, inputStreams)));
     }
 
     /**
-     * Get the anomaly records for the job with skip and take parameters.
-     * The records aren't organised by bucket
-     *
-     * Calls {@link #getRecords(String, String, Long, Long)} with the
-     * skip and take parameters set to <code>null</code>
+     * Merge several inputs, each already in time order, into one time
+     * ordered stream and upload it. All the inputs are closed.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param skip The number of records to skip
-     * @param take The max number of records to request.
-     * @param includeInterim Include interim results
-     * @return A {@link Pagination} object containing a list of
-     * {@link AnomalyRecord anomaly records}
+     * @param inputStreams The uncompressed time ordered data in the
+     * job's data format
+     * @return The outcome of reading the job's configuration or of the upload
      * @throws IOException
+     * @see #mergedUpload(String, String, List)
      */
-    public Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId,
-                    Long skip, Long take, boolean includeInterim)
+    public ApiResult<Boolean> mergedUploadResult(String baseUrl, String jobId,
+            List<InputStream> inputStreams)
     throws IOException
     {
-        return this.<String>getRecords(baseUrl, jobId, skip, take, null, null,
-                includeInterim, null, null, null, null);
-    }
+        ApiResult<JobDetails> jobResult = getJobForUpload(baseUrl, jobId);
+        if (jobResult.isSuccess() == false)
+        {
+            return new ApiResult<Boolean>(jobResult.getStatusCode(), jobResult.getError());
+        }
+        JobDetails job = jobResult.getResult();
 
+        try (InputStream merged = new MergingInputStream(inputStreams, job.getDataDescription(),
+                FieldProjectingInputStream.projectedFields(job.getAnalysisConfig(),
+                        job.getDataDescription(), job.getTransforms()),
+                TimeZone.getDefault()))
+        {
+            return streamingUploadResult(baseUrl, jobId, merged, false);
+        }
+    }
 
     /**
-     * Get the anomaly records for the job with skip and take parameters.
-     * The records aren't organised by bucket
+     * Get the job's configuration for rewriting upload data.
+     * If the job has no data description the default is set.
      *
-     * Calls {@link #getRecords(String, String, Long, Long)} with the
-     * skip and take parameters set to <code>null</code>
+     * @return The job or the error if it cannot be read or does not exist
+     */
+    private ApiResult<JobDetails> getJobForUpload(String baseUrl, String jobId)
+    throws IOException
+    {
+        ApiResult<SingleDocument<JobDetails>> result = getJobResult(baseUrl, jobId);
+        if (result.isSuccess() == false)
+        {
+            return new ApiResult<JobDetails>(result.getStatusCode(), result.getError());
+        }
+
+        SingleDocument<JobDetails> doc = result.getResult();
+        if (doc == null || doc.isExists() == false)
+        {
+            String msg = "Cannot rewrite upload data, job " + jobId + " not found";
+            LOGGER.error(msg);
+
+            ApiError error = new ApiError(ErrorCode.MISSING_JOB_ERROR);
+            error.setMessage(msg);
+            return new ApiResult<JobDetails>(result.getStatusCode(), error);
+        }
+
+        JobDetails job = doc.getDocument();
+        if (job.getDataDescription() == null)
+        {
+            job.setDataDescription(new DataDescription());
+        }
+        return new ApiResult<>(result.getStatusCode(), job);
+    }
+
+    /**
+     * Post <code>entity</code> to <code>postUrl</code> in a single request
+     * expecting a 202 response.
+     *
+     * @param description Used in the error message
+     * @return The outcome of the upload
+     */
+    private ApiResult<Boolean> uploadResult(String postUrl, AbstractHttpEntity entity,
+            boolean compressed, String description)
+    throws IOException
+    {
+        entity.setContentType("application/octet-stream");
+
+        HttpPost post = new HttpPost(postUrl);
+        if (compressed)
+        {
+            post.addHeader("Content-Encoding", "gzip");
+        }
+        post.setEntity(entity);
+
+        return execute(post, 202, description + " to " + postUrl);
+    }
+
+
+    /**
+     * Upload the contents of <code>dataFile</code> to the server.
+     * The file is memory mapped and written to the connection
+     * region by region.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
-     * @param jobId The Job's unique Id
-     * @param skip The number of records to skip
-     * @param take The max number of records to request.
-     * @param start The start date filter as either a Long (seconds from epoch)
-     * or an ISO 8601 date String. If <code>null</code> then ignored
-     * @param end The end date filter as either a Long (seconds from epoch)
-     * or an ISO 8601 date String. If <code>null</code> then ignored
+     * @param jobId The Job's Id
+     * @param dataFile Should match the data configuration format of the job
+     * @param compressed Is the data gzipped compressed?
+     * @return True if successful
+     * @throws IOException
+     * @see #fileUpload(String, String, File, boolean, UploadProgressListener)
+     */
+    public boolean fileUpload(String baseUrl, String jobId, File dataFile, boolean compressed)
+    throws IOException
+    {
+        return fileUpload(baseUrl, jobId, dataFile, compressed, null);
+    }
+
+    /**
+     * Upload the contents of <code>dataFile</code> to the server
+     * reporting the byte offset reached as the upload progresses.
+     * The file is memory mapped and written to the connection
+     * region by region without passing through intermediate
+     * heap buffers. The file must not change during the upload.
      *
-     * @return A {@link Pagination} object containing a list of
-     * {@link AnomalyRecord anomaly records}
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's Id
+     * @param dataFile Should match the data configuration format of the job
+     * @param compressed Is the data gzipped compressed?
+     * @param listener Notified of the upload progress, may be <code>null</code>
+     * @return True if successful
      * @throws IOException
      */
-    public <T> Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId,
-                    Long skip, Long take, T start, T end)
+    public boolean fileUpload(String baseUrl, String jobId, File dataFile,
+            boolean compressed, UploadProgressListener listener)
     throws IOException
     {
-        return this.<T>getRecords(baseUrl, jobId, skip, take, start, end, false,
-                null, null, null, null);
+        return Boolean.TRUE.equals(recordOutcome(
+                fileUploadResult(baseUrl, jobId, dataFile, compressed, listener)));
     }
 
     /**
-     * Get the anomaly records for the job with skip and take parameters.
-     * The records aren't organised by bucket
+     * Upload the contents of <code>dataFile</code> to the server
+     * reporting the byte offset reached as the upload progresses.
      *
-     * Calls {@link #getRecords(String, String, Long, Long)} with the
-     * skip and take parameters set to <code>null</code>
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's Id
+     * @param dataFile Should match the data configuration format of the job
+     * @param compressed Is the data gzipped compressed?
+     * @param listener Notified of the upload progress, may be <code>null</code>
+     * @return The outcome of the upload
+     * @throws IOException
+     * @see #fileUpload(String, String, File, boolean, UploadProgressListener)
+     */
+    public ApiResult<Boolean> fileUploadResult(String baseUrl, String jobId, File dataFile,
+            boolean compressed, UploadProgressListener listener)
+    throws IOException
+    {
+        String postUrl = baseUrl + "/data/" + jobId;
+        LOGGER.debug("Uploading file " + dataFile + " to " + postUrl);
+
+        return uploadResult(postUrl, new ByteBufferEntity(dataFile, listener),
+                compressed, "File upload");
+    }
+
+    /**
+     * Upload the remaining bytes of each of the <code>buffers</code>, in
+     * order, as a single stream. The buffers are written directly and
+     * are not concatenated; their positions and limits are unchanged.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
-     * @param jobId The Job's unique Id
-     * @param skip The number of records to skip
-     * @param take The max number of records to request.
-     * @param start The start date filter as either a Long (seconds from epoch)
-     * or an ISO 8601 date String. If <code>null</code> then ignored
-     * @param end The end date filter as either a Long (seconds from epoch)
-     * or an ISO 8601 date String. If <code>null</code> then ignored
-     * @param includeInterim Include interim results
+     * @param jobId The Job's Id
+     * @param buffers The data, should match the data configuration
+     * format of the job
+     * @param compressed Is the data gzipped compressed?
+     * @param listener Notified of the upload progress, may be <code>null</code>
+     * @return True if successful
+     * @throws IOException
+     */
+    public boolean bufferUpload(String baseUrl, String jobId, List<ByteBuffer> buffers,
+            boolean compressed, UploadProgressListener listener)
+    throws IOException
+    {
+        return Boolean.TRUE.equals(recordOutcome(
+                bufferUploadResult(baseUrl, jobId, buffers, compressed, listener)));
+    }
+
+    /**
+     * Upload the remaining bytes of each of the <code>buffers</code>, in
+     * order, as a single stream.
      *
-     * @return A {@link Pagination} object containing a list of
-     * {@link AnomalyRecord anomaly records}
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's Id
+     * @param buffers The data, should match the data configuration
+     * format of the job
+     * @param compressed Is the data gzipped compressed?
+     * @param listener Notified of the upload progress, may be <code>null</code>
+     * @return The outcome of the upload
      * @throws IOException
+     * @see #bufferUpload(String, String, List, boolean, UploadProgressListener)
      */
-    public <T> Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId,
-                    Long skip, Long take, T start, T end, boolean includeInterim)
+    public ApiResult<Boolean> bufferUploadResult(String baseUrl, String jobId,
+            List<ByteBuffer> buffers, boolean compressed, UploadProgressListener listener)
     throws IOException
     {
-        return this.<T>getRecords(baseUrl, jobId, skip, take, start, end,
-                includeInterim, null, null, null, null);
+        String postUrl = baseUrl + "/data/" + jobId;
+        LOGGER.debug("Uploading " + buffers.size() + " buffers to " + postUrl);
+
+        return uploadResult(postUrl, new ByteBufferEntity(buffers, listener),
+                compressed, "Buffer upload");
     }
 
 
     /**
-     * Get the anomaly records for the job between the start and
-     * end dates with skip and take parameters sorted by field
-     * and optionally filtered by score. Only one of
-     * <code>anomalyScoreFilterValue</code> and <code>normalizedProbabilityFilterValue</code>
-     * should be specified it is an error if both are set
+     * Flush the job, ensuring that no previously uploaded data is waiting in
+     * buffers.
      *
-     * The records aren't grouped by bucket
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param calcInterim Should interim results for the most recent bucket be
+     * calculated based on the partial data uploaded for it so far?
+     * @return True if successful
+     * @throws IOException
+     */
+    public boolean flushJob(String baseUrl, String jobId, boolean calcInterim)
+    throws IOException
+    {
+        return Boolean.TRUE.equals(recordOutcome(flushJobResult(baseUrl, jobId, calcInterim)));
+    }
+
+    /**
+     * Flush the job, ensuring that no previously uploaded data is waiting in
+     * buffers.
      *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param calcInterim Should interim results for the most recent bucket be
+     * calculated based on the partial data uploaded for it so far?
+     * @return The outcome of the request
+     * @throws IOException
+     */
+    public ApiResult<Boolean> flushJobResult(String baseUrl, String jobId, boolean calcInterim)
+    throws IOException
+    {
+        // Send flush message
+        String flushUrl = flushUrl(baseUrl, jobId, calcInterim);
+        LOGGER.debug("Flushing job " + flushUrl);
+
+        return execute(new HttpPost(flushUrl), 200, "flushing job " + jobId);
+    }
+
+
+    /**
+     * Finish the job after all the data has been uploaded
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param skip The number of records to skip
-     * @param take The max number of records to request.
-     * @param start The start date filter as either a Long (seconds from epoch)
-     * or an ISO 8601 date String. If <code>null</code> then ignored
-     * @param end The end date filter as either a Long (seconds from epoch)
-     * or an ISO 8601 date String. If <code>null</code> then ignored
-     * @param sortField The field to sort the results by, ignored if <code>null</code>
-     * @param sortDescending If sort_field is not <code>null</code> then sort
-     * records in descending order if true else sort ascending
-     * @param anomalyScoreFilterValue If not <code>null</code> return only the
-     * records with an anomalyScore >= anomalyScoreFilterValue
-     * @param normalizedProbabilityFilterValue If not <code>null</code> return only the
-     * records with a normalizedProbability >= normalizedProbabilityFilterValue
+     * @return True if successful
+     * @throws IOException
+     */
+    public boolean closeJob(String baseUrl, String jobId)
+    throws IOException
+    {
+        return Boolean.TRUE.equals(recordOutcome(closeJobResult(baseUrl, jobId)));
+    }
+
+    /**
+     * Finish the job after all the data has been uploaded
      *
-     * @return A {@link Pagination} object containing a list of
-     * {@link AnomalyRecord anomaly records}
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @return The outcome of the request
      * @throws IOException
      */
-    public <T> Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId,
-            Long skip, Long take, T start, T end,
-            String sortField, Boolean sortDescending,
-            Double anomalyScoreFilterValue, Double normalizedProbabilityFilterValue)
+    public ApiResult<Boolean> closeJobResult(String baseUrl, String jobId)
     throws IOException
     {
-        return this.<T>getRecords(baseUrl, jobId, skip, take, start, end,
-                false, sortField, sortDescending,
-                anomalyScoreFilterValue, normalizedProbabilityFilterValue);
+        // Send finish message
+        String closeUrl = baseUrl + "/data/" + jobId + "/close";
+        LOGGER.debug("Closing job " + closeUrl);
+
+        return execute(new HttpPost(closeUrl), 202, "closing job " + jobId);
     }
 
+
     /**
-     * Get the anomaly records for the job between the start and
-     * end dates with skip and take parameters sorted by field
-     * and optionally filtered by score. Only one of
-     * <code>anomalyScoreFilterValue</code> and <code>normalizedProbabilityFilterValue</code>
-     * should be specified it is an error if both are set
+     * Get the bucket results for a particular job.
+     * Calls {@link #getBuckets(String, String, boolean, Long, Long, Double, Double)}
+     * with the skip and take parameters set to <code>null</code>
      *
-     * The records aren't grouped by bucket
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param expand If true include the anomaly records for the bucket
      *
+     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
+     * @throws IOException
+     */
+    public Pagination<Bucket> getBuckets(String baseUrl, String jobId, boolean expand)
+    throws IOException
+    {
+        return getBuckets(baseUrl, jobId, expand, false, null, null, null, null);
+    }
+
+    /**
+     * Get the bucket results for a particular job.
+     * Calls {@link #getBuckets(String, String, boolean, Long, Long, Double, Double)}
+     * with the skip and take parameters set to <code>null</code>
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param skip The number of records to skip
-     * @param take The max number of records to request.
-     * @param start The start date filter as either a Long (seconds from epoch)
-     * or an ISO 8601 date String. If <code>null</code> then ignored
-     * @param end The end date filter as either a Long (seconds from epoch)
-     * or an ISO 8601 date String. If <code>null</code> then ignored
+     * @param expand If true include the anomaly records for the bucket
      * @param includeInterim Include interim results
-     * @param sortField The field to sort the results by, ignored if <code>null</code>
-     * @param sortDescending If sort_field is not <code>null</code> then sort
-     * records in descending order if true else sort ascending
-     * @param anomalyScoreFilterValue If not <code>null</code> return only the
-     * records with an anomalyScore >= anomalyScoreFilterValue
-     * @param normalizedProbabilityFilterValue If not <code>null</code> return only the
-     * records with a normalizedProbability >= normalizedProbabilityFilterValue
      *
-     * @return A {@link Pagination} object containing a list of
-     * {@link AnomalyRecord anomaly records}
+     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
      * @throws IOException
      */
-    public <T> Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId,
-            Long skip, Long take, T start, T end, boolean includeInterim,
-            String sortField, Boolean sortDescending,
-            Double anomalyScoreFilterValue, Double normalizedProbabilityFilterValue)
+    public Pagination<Bucket> getBuckets(String baseUrl, String jobId, boolean expand,
+            boolean includeInterim)
     throws IOException
     {
-        String url = baseUrl + "/results/" + jobId + "/records/";
-        char queryChar = '?';
-
-        if (skip != null)
-        {
-            url += queryChar + "skip=" + skip;
-            queryChar = '&';
-        }
-        if (take != null)
-        {
-            url += queryChar + "take=" + take;
-            queryChar = '&';
-        }
-        if (start != null)
-        {
-            url += queryChar + "start=" + URLEncoder.encode(start.toString(), "UTF-8");
-            queryChar = '&';
-        }
-        if (end != null)
-        {
-            url += queryChar + "end=" + URLEncoder.encode(end.toString(), "UTF-8");
-            queryChar = '&';
-        }
-        if (includeInterim)
-        {
-            url += queryChar + "includeInterim=true";
-            queryChar = '&';
-        }
-        if (sortField != null)
-        {
-            url += queryChar + "sort=" + URLEncoder.encode(sortField, "UTF-8");
-            queryChar = '&';
-        }
-        if (sortDescending != null && sortDescending == false)
-        {
-            url += queryChar + "desc=false";
-            queryChar = '&';
-        }
-        if (anomalyScoreFilterValue != null)
-        {
-            url += queryChar + "anomalyScore=" + anomalyScoreFilterValue.toString();
-            queryChar = '&';
-        }
-        if (normalizedProbabilityFilterValue != null)
-        {
-            url += queryChar + "normalizedProbability=" + normalizedProbabilityFilterValue.toString();
-            queryChar = '&';
-        }
-
-
-        LOGGER.debug("GET records " + url);
-
-        Pagination<AnomalyRecord> page = this.get(url,
-                new TypeReference<Pagination<AnomalyRecord>>() {});
-
-        if (page == null)
-        {
-            page = new Pagination<>();
-            page.setDocuments(Collections.<AnomalyRecord>emptyList());
-        }
-        return page;
-    }
-
+        return getBuckets(baseUrl, jobId, expand, includeInterim, null, null, null, null);
+    }
 
     /**
-     * Long poll an alert from the job. Blocks until the alert occurs or the
-     * timeout period expires.
-     * If <code>timeout</code> is not null then wait <code>timeout</code> seconds
+     * Get the bucket results for a particular job and optionally filter by
+     * anomaly or unusual score.
+     *
+     * Calls {@link #getBuckets(String, String, boolean, Long, Long, , Double, Double)}
+     * with the skip and take parameters set to <code>null</code>
      *
      * @param baseUrl The base URL for the REST API including version number
-     * @param jobId The job id
      * e.g <code>http://localhost:8080/engine/v1/</code>
-     * @param timeout Timeout the request after this many seconds.
-     * If <code>null</code> then use the default.
-     * @param anomalyScoreThreshold Alert if a record has an anomalyScore threshold
-     * >= this value. This should be in the range 0-100, ignored if <code>null</code>.
-     * @param maxNormalizedProbability Alert if a bucket's maxNormalizedProbability
-     * is >= this value. This should be in the range 0-100, ignored if <code>null</code>.
+     * @param jobId The Job's unique Id
+     * @param expand If true include the anomaly records for the bucket
+     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
+     * this value. If <code>null</code> then ignored
+     * @param normalizedProbabilityThreshold Return only buckets with a maxNormalizedProbability >=
+     * this value. If <code>null</code> then ignored
      *
-     * @return
-     * @throws JsonParseException
-     * @throws JsonMappingException
+     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
      * @throws IOException
      */
-    public Alert pollJobAlert(String baseUrl, String jobId, Integer timeout,
-            Double anomalyScoreThreshold, Double maxNormalizedProbability)
-    throws JsonParseException, JsonMappingException, IOException
+    public Pagination<Bucket> getBuckets(String baseUrl, String jobId,
+            boolean expand, Double anomalyScoreThreshold, Double normalizedProbabilityThreshold)
+    throws IOException
     {
-        String url = baseUrl + "/alerts_longpoll/" + jobId;
-        char queryChar = '?';
-        if (timeout != null)
-        {
-            url += "?timeout=" + timeout;
-            queryChar = '&';
-        }
-
-        if (anomalyScoreThreshold != null)
-        {
-            url += queryChar + "score=" + anomalyScoreThreshold;
-            queryChar = '&';
-        }
-
-        if (maxNormalizedProbability != null)
-        {
-            url += queryChar + "probability=" + maxNormalizedProbability;
-        }
-
-
-        HttpGet get = new HttpGet(url);
-        CloseableHttpResponse response = m_HttpClient.execute(get);
-
-        try
-        {
-            HttpEntity entity = response.getEntity();
-            String content = EntityUtils.toString(entity);
-
-            if (response.getStatusLine().getStatusCode() == 200)
-            {
-                Alert alert = m_JsonMapper.readValue(content, Alert.class);
-                m_LastError = null;
-                return alert;
-            }
-            else
-            {
-                String msg = String.format(
-                        "long poll alert returned status code %d for job %s. "
-                        + "Returned content = %s",
-                        response.getStatusLine().getStatusCode(), jobId, content);
-
-                LOGGER.error(msg);
-
-                m_LastError = m_JsonMapper.readValue(content,
-                        new TypeReference<ApiError>() {} );
-            }
-        }
-        finally
-        {
-            response.close();
-        }
-
-        return null;
+        return getBuckets(baseUrl, jobId, expand, false, null, null,
+                anomalyScoreThreshold, normalizedProbabilityThreshold);
     }
 
-
     /**
-     * Get the last 10 lines of the job's latest log file
+     * Get the bucket results for a particular job and optionally filter by
+     * anomaly or unusual score.
+     *
+     * Calls {@link #getBuckets(String, String, boolean, Long, Long, , Double, Double)}
+     * with the skip and take parameters set to <code>null</code>
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @return The last 10 lines of the last log file
-     * @throws ClientProtocolException
+     * @param expand If true include the anomaly records for the bucket
+     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
+     * this value. If <code>null</code> then ignored
+     * @param normalizedProbabilityThreshold Return only buckets with a maxNormalizedProbability >=
+     * this value. If <code>null</code> then ignored
+     *
+     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
      * @throws IOException
      */
-    public String tailLog(String baseUrl, String jobId)
-    throws ClientProtocolException, IOException
+    public Pagination<Bucket> getBuckets(String baseUrl, String jobId, boolean expand,
+            boolean includeInterim, Double anomalyScoreThreshold, Double normalizedProbabilityThreshold)
+    throws IOException
     {
-        return tailLog(baseUrl, jobId, 10);
+        return getBuckets(baseUrl, jobId, expand, includeInterim, null, null,
+                anomalyScoreThreshold, normalizedProbabilityThreshold);
     }
 
     /**
-     * Tails the last <code>lineCount</code> lines from the job's
-     * last log file. This tails the autodetect process log file.
+     * Get the bucket results for a particular job with paging parameters.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param lineCount The number of lines to return
-     * @return The last <code>lineCount</code> lines of the log file
-     * @throws ClientProtocolException
+     * @param expand If true include the anomaly records for the bucket
+     * @param skip The number of buckets to skip
+     * @param take The max number of buckets to request.
+     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
+     * this value. If <code>null</code> then ignored
+     * @param normalizedProbabilityThreshold Return only buckets with a maxNormalizedProbability >=
+     * this value. If <code>null</code> then ignored
+     *
+     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
      * @throws IOException
      */
-    public String tailLog(String baseUrl, String jobId, int lineCount)
-    throws ClientProtocolException, IOException
+    public Pagination<Bucket> getBuckets(String baseUrl, String jobId,
+            boolean expand, Long skip, Long take,
+            Double anomalyScoreThreshold, Double normalizedProbabilityThreshold)
+    throws IOException
     {
-        String url = String.format("%s/logs/%s/tail?lines=%d",
-                baseUrl, jobId, lineCount);
-
-        LOGGER.debug("GET tail log " + url);
-
-        return this.getStringContent(url);
+        return this.<String>getBuckets(baseUrl, jobId, expand, false, skip, take,
+                null, null, anomalyScoreThreshold, normalizedProbabilityThreshold);
     }
 
-
     /**
-     * Tails the last <code>lineCount</code> lines from the named log file.
+     * Get the bucket results for a particular job with paging parameters.
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param logfileName the name of the log file without the '.log' suffix.
-     * @param lineCount The number of lines to return
-     * @return The last <code>lineCount</code> lines of the log file
-     * @throws ClientProtocolException
-     * @throws IOException
-     */
-    public String tailLog(String baseUrl, String jobId, String logfileName,
-            int lineCount)
-    throws ClientProtocolException, IOException
-    {
-        String url = String.format("%s/logs/%s/%s/tail?lines=%d",
-                baseUrl, jobId, logfileName, lineCount);
-
-        LOGGER.debug("GET tail log " + url);
-
-        return this.getStringContent(url);
-    }
-
-    /**
-     * Get content from Url and return as a string
+     * @param expand If true include the anomaly records for the bucket
+     * @param includeInterim Include interim results
+     * @param skip The number of buckets to skip
+     * @param take The max number of buckets to request.
+     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
+     * this value. If <code>null</code> then ignored
+     * @param normalizedProbabilityThreshold Return only buckets with a maxNormalizedProbability >=
+     * this value. If <code>null</code> then ignored
      *
-     * @param url
-     * @return If status code == 200 return the HTTP response content
-     * else return an empty string.
+     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
      * @throws IOException
-     * @throws ClientProtocolException
      */
-    private String getStringContent(String url)
-    throws ClientProtocolException, IOException
+    public Pagination<Bucket> getBuckets(String baseUrl, String jobId,
+            boolean expand, boolean includeInterim, Long skip, Long take,
+            Double anomalyScoreThreshold, Double normalizedProbabilityThreshold)
+    throws IOException
     {
-        HttpGet get = new HttpGet(url);
-
-        try (CloseableHttpResponse response = m_HttpClient.execute(get))
-        {
-            String content = EntityUtils.toString(response.getEntity());
-
-            if (response.getStatusLine().getStatusCode() == 200)
-            {
-                m_LastError = null;
-                return content;
-            }
-            else
-            {
-                String msg = String.format(
-                        "Error reading string content. Status code = %d. "
-                                + "Returned content: %s",
-                                response.getStatusLine().getStatusCode(),
-                                content);
-
-                LOGGER.error(msg);
-
-                m_LastError = m_JsonMapper.readValue(content,
-                        new TypeReference<ApiError>() {} );
-
-                return "";
-            }
-        }
+        return this.<String>getBuckets(baseUrl, jobId, expand, includeInterim, skip, take,
+                null, null, anomalyScoreThreshold, normalizedProbabilityThreshold);
     }
 
-
     /**
-     * Download the specified log file for the job.
-     * The autodetect process writes a log file named after with the job id
-     * <job_id>.log while the Java component logs to engine_api.log.
+     * Get the bucket results filtered between the start and end dates.
+     * The arguments are optional only one of start/end needs be set
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @param logfileName the name of the log file without the '.log' suffix.
-     * @return
-     * @throws ClientProtocolException
-     * @throws IOException
-     */
-    public String downloadLog(String baseUrl, String jobId, String logfileName)
-    throws ClientProtocolException, IOException
+     * @param expand If true include the anomaly records for the bucket
+     * @param skip The number of buckets to skip. If <code>null</code> then ignored
+     * @param take The max number of buckets to request. If <code>null</code> then ignored
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String. If <code>null</code> then ignored
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String. If <code>null</code> then ignored
+     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
+     * this value. If <code>null</code> then ignored
+     * @param normalizedProbabilityThreshold Return only buckets with a maxNormalizedProbability >=
+     * this value. If <code>null</code> then ignored
+     *
+     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
+     * @throws IOException
+     */
+    public <T> Pagination<Bucket> getBuckets(String baseUrl, String jobId,
+            boolean expand, Long skip, Long take, T start, T end,
+            Double anomalyScoreThreshold, Double normalizedProbabilityThreshold)
+    throws IOException
     {
-        String url = String.format("%s/logs/%s/%s",
-                baseUrl, jobId, logfileName);
-
-        LOGGER.debug("GET log file " + url);
-
-        return this.getStringContent(url);
+        return this.getBuckets(baseUrl, jobId, expand, false, skip, take,
+                start, end, anomalyScoreThreshold, normalizedProbabilityThreshold);
     }
 
-
     /**
-     * Download all the log files for the given job.
-     *
-     * <b>Important: the caller MUST close the ZipInputStream returned by
-     * this method, otherwise all subsequent client/server communications
-     * will be blocked.</b>
+     * Get the bucket results filtered between the start and end dates.
+     * The arguments are optional only one of start/end needs be set
      *
      * @param baseUrl The base URL for the REST API including version number
      * e.g <code>http://localhost:8080/engine/v1/</code>
      * @param jobId The Job's unique Id
-     * @return A ZipInputStream for the log files. If the inputstream is
-     * empty an error may have occurred.  The caller MUST close this
-     * ZipInputStream when they have finished with it.
-     * @throws ClientProtocolException
+     * @param expand If true include the anomaly records for the bucket
+     * @param includeInterim Include interim results
+     * @param skip The number of buckets to skip. If <code>null</code> then ignored
+     * @param take The max number of buckets to request. If <code>null</code> then ignored
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String. If <code>null</code> then ignored
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String. If <code>null</code> then ignored
+     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
+     * this value. If <code>null</code> then ignored
+     * @param normalizedProbabilityThreshold Return only buckets with a maxNormalizedProbability >=
+     * this value. If <code>null</code> then ignored
+     *
+     * @return A {@link Pagination} object containing a list of {@link Bucket buckets}
      * @throws IOException
      */
-    public ZipInputStream downloadAllLogs(String baseUrl, String jobId)
-    throws ClientProtocolException, IOException
+    public <T> Pagination<Bucket> getBuckets(String baseUrl, String jobId,
+            boolean expand, boolean includeInterim,
+            Long skip, Long take, T start, T end,
+            Double anomalyScoreThreshold, Double normalizedProbabilityThreshold)
+    throws IOException
     {
-        String url = String.format("%s/logs/%s", baseUrl, jobId);
+        Pagination<Bucket> page = recordOutcome(getBucketsResult(baseUrl, jobId,
+                expand, includeInterim, skip, take, start, end,
+                anomalyScoreThreshold, normalizedProbabilityThreshold));
 
-        LOGGER.debug("GET download logs " + url);
+        // else return empty page
+        if (page == null)
+        {
+            page = new Pagination<>();
+            page.setDocuments(Collections.<Bucket>emptyList());
+        }
 
-        HttpGet get = new HttpGet(url);
+        return page;
+    }
 
-        CloseableHttpResponse response = m_HttpClient.execute(get);
-        try
+    /**
+     * Get the bucket results filtered between the start and end dates.
+     * The arguments are optional if <code>null</code> they are ignored.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param expand If true include the anomaly records for the bucket
+     * @param includeInterim Include interim results
+     * @param skip The number of buckets to skip
+     * @param take The max number of buckets to request
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
+     * this value
+     * @param normalizedProbabilityThreshold Return only buckets with a
+     * maxNormalizedProbability >= this value
+     *
+     * @return The outcome of the request, if successful a {@link Pagination}
+     * object containing a list of {@link Bucket buckets}
+     * @throws IOException
+     */
+    public <T> ApiResult<Pagination<Bucket>> getBucketsResult(String baseUrl, String jobId,
+            boolean expand, boolean includeInterim,
+            Long skip, Long take, T start, T end,
+            Double anomalyScoreThreshold, Double normalizedProbabilityThreshold)
+    throws IOException
+    {
+        String url = bucketsUrl(baseUrl, jobId, expand, includeInterim, skip, take,
+                start, end, anomalyScoreThreshold, normalizedProbabilityThreshold);
+
+        ResultCache cache = m_ResultCache;
+        if (cache != null)
         {
-            if (response.getStatusLine().getStatusCode() == 200)
+            Pagination<Bucket> cached = cache.getBuckets(jobId, url);
+            if (cached != null)
             {
-                ZipInputStream result = new ZipInputStream(response.getEntity().getContent());
-                // In this case we DON'T want the response to be automatically
-                // closed - the caller MUST close the ZipInputStream when they
-                // are finished with it
-                m_LastError = null;
-                response = null;
-                return result;
+                return new ApiResult<>(200, cached);
             }
-            else
-            {
-                String content = EntityUtils.toString(response.getEntity());
-                String msg = String.format(
-                        "Error downloading log files for job %s, status code = %d. "
-                                + "Returned content: %s",
-                                jobId,
-                                response.getStatusLine().getStatusCode(),
-                                content);
+        }
 
-                LOGGER.error(msg);
+        LOGGER.debug("GET buckets " + url);
 
-                m_LastError = m_JsonMapper.readValue(content,
-                        new TypeReference<ApiError>() {} );
+        ApiResult<Pagination<Bucket>> result = getResult(new HttpGet(url),
+                new TypeReference<Pagination<Bucket>>() {});
 
-                // return an empty stream
-                return new ZipInputStream(new ByteArrayInputStream(new byte[0]));
-            }
-        }
-        finally
+        if (result.isSuccess() && cache != null)
         {
-            if (response != null)
-            {
-                response.close();
-            }
+            learnFinalAge(cache, baseUrl, jobId);
+            cache.putBuckets(jobId, url, result.getResult());
         }
+
+        return result;
     }
 
 
     /**
-     * A generic HTTP GET to any Url. The result is converted from Json to
-     * the type referenced in <code>typeRef</code>. A <code>TypeReference</code>
-     * has to be used to preserve the generic type information that is usually
-     * lost in due to erasure.
-     * <br/>
-     * If the response code is 200 or 404 try to parse the returned content
-     * into an object of the generic parameter type <code>T</code>.
-     * The 404 status code is not considered an error it simply means an
-     * empty document was returned by the API.
-     * <br/>
-     * This method is useful for paging through a set of results via the
-     * next or previous page links in a {@link Pagination} object.
+     * A lazy view of all the buckets matching the query. Iterating
+     * follows the next page links and fetches the following
+     * {@value PagedResults#DEFAULT_PAGES_AHEAD} pages in the background
+     * while the caller processes the current page.
+     * The arguments are optional if <code>null</code> they are ignored.
      *
-     * @param fullUrl
-     * @param typeRef
-     * @return A new T or <code>null</code>
-     * @throws JsonParseException
-     * @throws JsonMappingException
-     * @throws IOException
-     * @see #get(URI, TypeReference)
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param expand If true include the anomaly records for the bucket
+     * @param includeInterim Include interim results
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
+     * this value
+     * @param normalizedProbabilityThreshold Return only buckets with a
+     * maxNormalizedProbability >= this value
+     * @param pageSize The number of buckets requested per page
+     *
+     * @return An Iterable over all the {@link Bucket buckets}
+     * @throws IOException If the url cannot be encoded
      */
-    public <T> T get(String fullUrl, TypeReference<T> typeRef)
-    throws JsonParseException, JsonMappingException, IOException
+    public <T> PagedResults<Bucket> iterateBuckets(String baseUrl, String jobId,
+            boolean expand, boolean includeInterim, T start, T end,
+            Double anomalyScoreThreshold, Double normalizedProbabilityThreshold,
+            Long pageSize)
+    throws IOException
     {
-        HttpGet get = new HttpGet(fullUrl);
-        return get(get,typeRef);
+        String url = bucketsUrl(baseUrl, jobId, expand, includeInterim, null, pageSize,
+                start, end, anomalyScoreThreshold, normalizedProbabilityThreshold);
+
+        return new PagedResults<>(this, url, new TypeReference<Pagination<Bucket>>() {},
+                PagedResults.DEFAULT_PAGES_AHEAD, m_BackgroundExecutor);
     }
 
+
     /**
-     * A generic HTTP GET to any Url. The result is converted from Json to
-     * the type referenced in <code>typeRef</code>. A <code>TypeReference</code>
-     * has to be used to preserve the generic type information that is usually
-     * lost in due to erasure.
-     * <br>
-     * If the response code is 200 or 404 try to parse the returned content
-     * into an object of the generic parameter type <code>T</code>.
-     * The 404 status code is not considered an error it simply means an
-     * empty document was returned by the API.
-     * <br>
-     * This method is useful for paging through a set of results via the
-     * next or previous page links in a {@link Pagination} object.
+     * Get a single bucket for a particular job and bucket Id
      *
-     * @param uri
-     * @param typeRef
-     * @return A new T or <code>null</code>
-     * @throws JsonParseException
-     * @throws JsonMappingException
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param bucketId The bucket to get
+     * @param expand If true include the anomaly records for the bucket
+     *
+     * @return A {@link SingleDocument} object containing the requested
+     * {@link Bucket} or an empty {@link SingleDocument} if it does not exist
      * @throws IOException
-     * @see #get(String, TypeReference)
      */
-    public <T> T get(URI uri, TypeReference<T> typeRef)
-    throws JsonParseException, JsonMappingException, IOException
+    public SingleDocument<Bucket> getBucket(String baseUrl, String jobId,
+            String bucketId, boolean expand)
+    throws JsonMappingException, IOException
     {
-        HttpGet get = new HttpGet(uri);
-        return get(get,typeRef);
+        return getBucket(baseUrl, jobId, bucketId, expand, false);
     }
 
-    private <T> T get(HttpGet get, TypeReference<T> typeRef)
-    throws JsonParseException, JsonMappingException, IOException
+
+    /**
+     * Get a single bucket for a particular job and bucket Id
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param bucketId The bucket to get
+     * @param expand If true include the anomaly records for the bucket
+     * @param includeInterim Include interim results
+     *
+     * @return A {@link SingleDocument} object containing the requested
+     * {@link Bucket} or an empty {@link SingleDocument} if it does not exist
+     * @throws IOException
+     */
+    public SingleDocument<Bucket> getBucket(String baseUrl, String jobId,
+            String bucketId, boolean expand, boolean includeInterim)
+    throws JsonMappingException, IOException
     {
-        CloseableHttpResponse response = m_HttpClient.execute(get);
+        SingleDocument<Bucket> doc = recordOutcome(
+                getBucketResult(baseUrl, jobId, bucketId, expand, includeInterim));
 
-        try
+        // else return empty doc
+        if (doc == null)
         {
-            HttpEntity entity = response.getEntity();
-            String content = EntityUtils.toString(entity);
+            doc = new SingleDocument<>();
+        }
+        return doc;
+    }
 
-            // 404 errors return empty paging docs so still read them
-            if (response.getStatusLine().getStatusCode() == 200 ||
-                response.getStatusLine().getStatusCode() == 404)
+    /**
+     * Get a single bucket for a particular job and bucket Id
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param bucketId The bucket to get
+     * @param expand If true include the anomaly records for the bucket
+     * @param includeInterim Include interim results
+     *
+     * @return The outcome of the request. If the bucket does not exist
+     * the {@link SingleDocument} is empty
+     * @throws IOException
+     */
+    public ApiResult<SingleDocument<Bucket>> getBucketResult(String baseUrl, String jobId,
+            String bucketId, boolean expand, boolean includeInterim)
+    throws JsonMappingException, IOException
+    {
+        String url = baseUrl + "/results/" + jobId + "/buckets/" + bucketId;
+        char queryChar = '?';
+        if (expand)
+        {
+            url += queryChar + "expand=true";
+            queryChar = '&';
+        }
+        if (includeInterim)
+        {
+            url += queryChar + "includeInterim=true";
+            queryChar = '&';
+        }
 
+        ResultCache cache = m_ResultCache;
+        if (cache != null)
+        {
+            SingleDocument<Bucket> cached = cache.getBucket(jobId, url);
+            if (cached != null)
             {
-                T docs = m_JsonMapper.readValue(content, typeRef);
-                m_LastError = null;
-                return docs;
+                return new ApiResult<>(200, cached);
             }
-            else
-            {
-                String msg = String.format(
-                        "GET returned status code %d for url %s. "
-                        + "Returned content = %s",
-                        response.getStatusLine().getStatusCode(), get.getURI(),
-                        content);
+        }
 
-                LOGGER.error(msg);
+        LOGGER.debug("GET bucket " + url);
 
-                m_LastError = m_JsonMapper.readValue(content,
-                        new TypeReference<ApiError>() {} );
-            }
-        }
+        ApiResult<SingleDocument<Bucket>> result = getResult(new HttpGet(url),
+                new TypeReference<SingleDocument<Bucket>>() {});
+
+        if (result.isSuccess() && result.getResult() != null && cache != null)
+        {
+            learnFinalAge(cache, baseUrl, jobId);
+            cache.putBucket(jobId, url, result.getResult());
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Get the anomaly records for the job. The records aren't organised
+     * by bucket
+     *
+     * Calls {@link #getRecords(String, String, Long, Long)} with the
+     * skip and take parameters set to <code>null</code>
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     *
+     * @return A {@link Pagination} object containing a list of
+     * {@link AnomalyRecord anomaly records}
+     * @throws IOException
+     */
+    public Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId)
+    throws IOException
+    {
+        return this.<String>getRecords(baseUrl, jobId, null, null, null, null,
+                false, null, null, null, null);
+    }
+
+    /**
+     * Get the anomaly records for the job. The records aren't organised
+     * by bucket
+     *
+     * Calls {@link #getRecords(String, String, Long, Long)} with the
+     * skip and take parameters set to <code>null</code>
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param includeInterim Include interim results
+     *
+     * @return A {@link Pagination} object containing a list of
+     * {@link AnomalyRecord anomaly records}
+     * @throws IOException
+     */
+    public Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId,
+            boolean includeInterim)
+    throws IOException
+    {
+        return this.<String>getRecords(baseUrl, jobId, null, null, null, null,
+                includeInterim, null, null, null, null);
+    }
+
+    /**
+     * Get the anomaly records for the job with skip and take parameters.
+     * The records aren't organised by bucket
+     *
+     * Calls {@link #getRecords(String, String, Long, Long)} with the
+     * skip and take parameters set to <code>null</code>
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param skip The number of records to skip
+     * @param take The max number of records to request.
+     * @return A {@link Pagination} object containing a list of
+     * {@link AnomalyRecord anomaly records}
+     * @throws IOException
+     */
+    public Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId,
+                    Long skip, Long take)
+    throws IOException
+    {
+        return this.<String>getRecords(baseUrl, jobId, skip, take, null, null,
+                false, null, null, null, null);
+    }
+
+    /**
+     * Get the anomaly records for the job with skip and take parameters.
+     * The records aren't organised by bucket
+     *
+     * Calls {@link #getRecords(String, String, Long, Long)} with the
+     * skip and take parameters set to <code>null</code>
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param skip The number of records to skip
+     * @param take The max number of records to request.
+     * @param includeInterim Include interim results
+     * @return A {@link Pagination} object containing a list of
+     * {@link AnomalyRecord anomaly records}
+     * @throws IOException
+     */
+    public Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId,
+                    Long skip, Long take, boolean includeInterim)
+    throws IOException
+    {
+        return this.<String>getRecords(baseUrl, jobId, skip, take, null, null,
+                includeInterim, null, null, null, null);
+    }
+
+
+    /**
+     * Get the anomaly records for the job with skip and take parameters.
+     * The records aren't organised by bucket
+     *
+     * Calls {@link #getRecords(String, String, Long, Long)} with the
+     * skip and take parameters set to <code>null</code>
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param skip The number of records to skip
+     * @param take The max number of records to request.
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String. If <code>null</code> then ignored
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String. If <code>null</code> then ignored
+     *
+     * @return A {@link Pagination} object containing a list of
+     * {@link AnomalyRecord anomaly records}
+     * @throws IOException
+     */
+    public <T> Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId,
+                    Long skip, Long take, T start, T end)
+    throws IOException
+    {
+        return this.<T>getRecords(baseUrl, jobId, skip, take, start, end, false,
+                null, null, null, null);
+    }
+
+    /**
+     * Get the anomaly records for the job with skip and take parameters.
+     * The records aren't organised by bucket
+     *
+     * Calls {@link #getRecords(String, String, Long, Long)} with the
+     * skip and take parameters set to <code>null</code>
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param skip The number of records to skip
+     * @param take The max number of records to request.
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String. If <code>null</code> then ignored
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String. If <code>null</code> then ignored
+     * @param includeInterim Include interim results
+     *
+     * @return A {@link Pagination} object containing a list of
+     * {@link AnomalyRecord anomaly records}
+     * @throws IOException
+     */
+    public <T> Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId,
+                    Long skip, Long take, T start, T end, boolean includeInterim)
+    throws IOException
+    {
+        return this.<T>getRecords(baseUrl, jobId, skip, take, start, end,
+                includeInterim, null, null, null, null);
+    }
+
+
+    /**
+     * Get the anomaly records for the job between the start and
+     * end dates with skip and take parameters sorted by field
+     * and optionally filtered by score. Only one of
+     * <code>anomalyScoreFilterValue</code> and <code>normalizedProbabilityFilterValue</code>
+     * should be specified it is an error if both are set
+     *
+     * The records aren't grouped by bucket
+     *
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param skip The number of records to skip
+     * @param take The max number of records to request.
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String. If <code>null</code> then ignored
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String. If <code>null</code> then ignored
+     * @param sortField The field to sort the results by, ignored if <code>null</code>
+     * @param sortDescending If sort_field is not <code>null</code> then sort
+     * records in descending order if true else sort ascending
+     * @param anomalyScoreFilterValue If not <code>null</code> return only the
+     * records with an anomalyScore >= anomalyScoreFilterValue
+     * @param normalizedProbabilityFilterValue If not <code>null</code> return only the
+     * records with a normalizedProbability >= normalizedProbabilityFilterValue
+     *
+     * @return A {@link Pagination} object containing a list of
+     * {@link AnomalyRecord anomaly records}
+     * @throws IOException
+     */
+    public <T> Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId,
+            Long skip, Long take, T start, T end,
+            String sortField, Boolean sortDescending,
+            Double anomalyScoreFilterValue, Double normalizedProbabilityFilterValue)
+    throws IOException
+    {
+        return this.<T>getRecords(baseUrl, jobId, skip, take, start, end,
+                false, sortField, sortDescending,
+                anomalyScoreFilterValue, normalizedProbabilityFilterValue);
+    }
+
+    /**
+     * Get the anomaly records for the job between the start and
+     * end dates with skip and take parameters sorted by field
+     * and optionally filtered by score. Only one of
+     * <code>anomalyScoreFilterValue</code> and <code>normalizedProbabilityFilterValue</code>
+     * should be specified it is an error if both are set
+     *
+     * The records aren't grouped by bucket
+     *
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param skip The number of records to skip
+     * @param take The max number of records to request.
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String. If <code>null</code> then ignored
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String. If <code>null</code> then ignored
+     * @param includeInterim Include interim results
+     * @param sortField The field to sort the results by, ignored if <code>null</code>
+     * @param sortDescending If sort_field is not <code>null</code> then sort
+     * records in descending order if true else sort ascending
+     * @param anomalyScoreFilterValue If not <code>null</code> return only the
+     * records with an anomalyScore >= anomalyScoreFilterValue
+     * @param normalizedProbabilityFilterValue If not <code>null</code> return only the
+     * records with a normalizedProbability >= normalizedProbabilityFilterValue
+     *
+     * @return A {@link Pagination} object containing a list of
+     * {@link AnomalyRecord anomaly records}
+     * @throws IOException
+     */
+    public <T> Pagination<AnomalyRecord> getRecords(String baseUrl, String jobId,
+            Long skip, Long take, T start, T end, boolean includeInterim,
+            String sortField, Boolean sortDescending,
+            Double anomalyScoreFilterValue, Double normalizedProbabilityFilterValue)
+    throws IOException
+    {
+        Pagination<AnomalyRecord> page = recordOutcome(getRecordsResult(baseUrl, jobId,
+                skip, take, start, end, includeInterim, sortField, sortDescending,
+                anomalyScoreFilterValue, normalizedProbabilityFilterValue));
+
+        if (page == null)
+        {
+            page = new Pagination<>();
+            page.setDocuments(Collections.<AnomalyRecord>emptyList());
+        }
+        return page;
+    }
+
+    /**
+     * Get the anomaly records filtered between the start and end dates.
+     * The arguments are optional if <code>null</code> they are ignored.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param skip The number of records to skip
+     * @param take The max number of records to request
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param includeInterim Include interim results
+     * @param sortField The field to sort the results by
+     * @param sortDescending If sortField is not <code>null</code> then sort
+     * records in descending order if true else sort ascending
+     * @param anomalyScoreFilterValue Return only records with an anomalyScore >=
+     * this value
+     * @param normalizedProbabilityFilterValue Return only records with a
+     * normalizedProbability >= this value
+     *
+     * @return The outcome of the request, if successful a {@link Pagination}
+     * object containing a list of {@link AnomalyRecord anomaly records}
+     * @throws IOException
+     */
+    public <T> ApiResult<Pagination<AnomalyRecord>> getRecordsResult(String baseUrl,
+            String jobId, Long skip, Long take, T start, T end, boolean includeInterim,
+            String sortField, Boolean sortDescending,
+            Double anomalyScoreFilterValue, Double normalizedProbabilityFilterValue)
+    throws IOException
+    {
+        String url = recordsUrl(baseUrl, jobId, skip, take, start, end,
+                includeInterim, sortField, sortDescending,
+                anomalyScoreFilterValue, normalizedProbabilityFilterValue);
+
+        ResultCache cache = m_ResultCache;
+        if (cache != null)
+        {
+            Pagination<AnomalyRecord> cached = cache.getRecords(jobId, url);
+            if (cached != null)
+            {
+                return new ApiResult<>(200, cached);
+            }
+        }
+
+        LOGGER.debug("GET records " + url);
+
+        ApiResult<Pagination<AnomalyRecord>> result = getResult(new HttpGet(url),
+                new TypeReference<Pagination<AnomalyRecord>>() {});
+
+        if (result.isSuccess() && cache != null)
+        {
+            learnFinalAge(cache, baseUrl, jobId);
+            cache.putRecords(jobId, url, result.getResult());
+        }
+
+        return result;
+    }
+
+
+    /**
+     * A lazy view of all the anomaly records matching the query. Iterating
+     * follows the next page links and fetches the following
+     * {@value PagedResults#DEFAULT_PAGES_AHEAD} pages in the background
+     * while the caller processes the current page.
+     * The arguments are optional if <code>null</code> they are ignored.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param includeInterim Include interim results
+     * @param sortField The field to sort the results by
+     * @param sortDescending If sort_field is not <code>null</code> then sort
+     * records in descending order if true else sort ascending
+     * @param anomalyScoreFilterValue Return only the records with an
+     * anomalyScore >= anomalyScoreFilterValue
+     * @param normalizedProbabilityFilterValue Return only the records with a
+     * normalizedProbability >= normalizedProbabilityFilterValue
+     * @param pageSize The number of records requested per page
+     *
+     * @return An Iterable over all the {@link AnomalyRecord anomaly records}
+     * @throws IOException If the url cannot be encoded
+     */
+    public <T> PagedResults<AnomalyRecord> iterateRecords(String baseUrl, String jobId,
+            T start, T end, boolean includeInterim,
+            String sortField, Boolean sortDescending,
+            Double anomalyScoreFilterValue, Double normalizedProbabilityFilterValue,
+            Long pageSize)
+    throws IOException
+    {
+        String url = recordsUrl(baseUrl, jobId, null, pageSize, start, end,
+                includeInterim, sortField, sortDescending,
+                anomalyScoreFilterValue, normalizedProbabilityFilterValue);
+
+        return new PagedResults<>(this, url, new TypeReference<Pagination<AnomalyRecord>>() {},
+                PagedResults.DEFAULT_PAGES_AHEAD, m_BackgroundExecutor);
+    }
+
+
+    /**
+     * Long poll an alert from the job. Blocks until the alert occurs or the
+     * timeout period expires.
+     * If <code>timeout</code> is not null then wait <code>timeout</code> seconds
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * @param jobId The job id
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param timeout Timeout the request after this many seconds.
+     * If <code>null</code> then use the default.
+     * @param anomalyScoreThreshold Alert if a record has an anomalyScore threshold
+     * >= this value. This should be in the range 0-100, ignored if <code>null</code>.
+     * @param maxNormalizedProbability Alert if a bucket's maxNormalizedProbability
+     * is >= this value. This should be in the range 0-100, ignored if <code>null</code>.
+     *
+     * @return
+     * @throws JsonParseException
+     * @throws JsonMappingException
+     * @throws IOException
+     */
+    public Alert pollJobAlert(String baseUrl, String jobId, Integer timeout,
+            Double anomalyScoreThreshold, Double maxNormalizedProbability)
+    throws JsonParseException, JsonMappingException, IOException
+    {
+        return recordOutcome(pollJobAlertResult(baseUrl, jobId, timeout,
+                anomalyScoreThreshold, maxNormalizedProbability));
+    }
+
+    /**
+     * Long poll an alert from the job. Blocks until the alert occurs or the
+     * timeout period expires.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The job id
+     * @param timeout Timeout the request after this many seconds.
+     * If <code>null</code> then use the default.
+     * @param anomalyScoreThreshold Alert if a record has an anomalyScore threshold
+     * >= this value. This should be in the range 0-100, ignored if <code>null</code>.
+     * @param maxNormalizedProbability Alert if a bucket's maxNormalizedProbability
+     * is >= this value. This should be in the range 0-100, ignored if <code>null</code>.
+     *
+     * @return The outcome of the request, if successful the alert
+     * @throws IOException
+     * @see #pollJobAlert(String, String, Integer, Double, Double)
+     */
+    public ApiResult<Alert> pollJobAlertResult(String baseUrl, String jobId, Integer timeout,
+            Double anomalyScoreThreshold, Double maxNormalizedProbability)
+    throws JsonParseException, JsonMappingException, IOException
+    {
+        String url = alertUrl(baseUrl, jobId, timeout, anomalyScoreThreshold,
+                maxNormalizedProbability);
+
+        HttpGet get = new HttpGet(url);
+
+        try (CloseableHttpResponse response = m_HttpClient.execute(get))
+        {
+            HttpEntity entity = response.getEntity();
+            int statusCode = response.getStatusLine().getStatusCode();
+
+            if (statusCode == 200)
+            {
+                Alert alert = m_JsonMapper.readValue(entity.getContent(), Alert.class);
+                return new ApiResult<>(statusCode, alert);
+            }
+
+            String content = EntityUtils.toString(entity);
+            String msg = String.format(
+                    "long poll alert returned status code %d for job %s. "
+                    + "Returned content = %s",
+                    statusCode, jobId, content);
+
+            LOGGER.error(msg);
+
+            return new ApiResult<Alert>(statusCode, parseError(content, msg));
+        }
+    }
+
+
+    /**
+     * Get the last 10 lines of the job's latest log file
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @return The last 10 lines of the last log file
+     * @throws ClientProtocolException
+     * @throws IOException
+     */
+    public String tailLog(String baseUrl, String jobId)
+    throws ClientProtocolException, IOException
+    {
+        return tailLog(baseUrl, jobId, 10);
+    }
+
+    /**
+     * Tails the last <code>lineCount</code> lines from the job's
+     * last log file. This tails the autodetect process log file.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param lineCount The number of lines to return
+     * @return The last <code>lineCount</code> lines of the log file
+     * @throws ClientProtocolException
+     * @throws IOException
+     */
+    public String tailLog(String baseUrl, String jobId, int lineCount)
+    throws ClientProtocolException, IOException
+    {
+        return getStringContent(tailLogResult(baseUrl, jobId, lineCount));
+    }
+
+    /**
+     * Tails the last <code>lineCount</code> lines from the job's
+     * last log file.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param lineCount The number of lines to return
+     * @return The outcome of the request, if successful the last
+     * <code>lineCount</code> lines of the log file
+     * @throws ClientProtocolException
+     * @throws IOException
+     */
+    public ApiResult<String> tailLogResult(String baseUrl, String jobId, int lineCount)
+    throws ClientProtocolException, IOException
+    {
+        String url = String.format("%s/logs/%s/tail?lines=%d",
+                baseUrl, jobId, lineCount);
+
+        LOGGER.debug("GET tail log " + url);
+
+        return getStringContentResult(url);
+    }
+
+
+    /**
+     * Tails the last <code>lineCount</code> lines from the named log file.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param logfileName the name of the log file without the '.log' suffix.
+     * @param lineCount The number of lines to return
+     * @return The last <code>lineCount</code> lines of the log file
+     * @throws ClientProtocolException
+     * @throws IOException
+     */
+    public String tailLog(String baseUrl, String jobId, String logfileName,
+            int lineCount)
+    throws ClientProtocolException, IOException
+    {
+        return getStringContent(tailLogResult(baseUrl, jobId, logfileName, lineCount));
+    }
+
+    /**
+     * Tails the last <code>lineCount</code> lines from the named log file.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param logfileName the name of the log file without the '.log' suffix.
+     * @param lineCount The number of lines to return
+     * @return The outcome of the request, if successful the last
+     * <code>lineCount</code> lines of the log file
+     * @throws ClientProtocolException
+     * @throws IOException
+     */
+    public ApiResult<String> tailLogResult(String baseUrl, String jobId, String logfileName,
+            int lineCount)
+    throws ClientProtocolException, IOException
+    {
+        String url = String.format("%s/logs/%s/%s/tail?lines=%d",
+                baseUrl, jobId, logfileName, lineCount);
+
+        LOGGER.debug("GET tail log " + url);
+
+        return getStringContentResult(url);
+    }
+
+    /**
+     * Record the outcome of a string content request
+     *
+     * @return The content or an empty string if the request failed
+     */
+    private String getStringContent(ApiResult<String> result)
+    {
+        String content = recordOutcome(result);
+        return (content == null) ? "" : content;
+    }
+
+    /**
+     * Get content from Url as a string
+     *
+     * @param url
+     * @return If status code == 200 the HTTP response content
+     * else the error
+     * @throws IOException
+     * @throws ClientProtocolException
+     */
+    private ApiResult<String> getStringContentResult(String url)
+    throws ClientProtocolException, IOException
+    {
+        HttpGet get = new HttpGet(url);
+
+        try (CloseableHttpResponse response = m_HttpClient.execute(get))
+        {
+            String content = EntityUtils.toString(response.getEntity());
+            int statusCode = response.getStatusLine().getStatusCode();
+
+            if (statusCode == 200)
+            {
+                return new ApiResult<>(statusCode, content);
+            }
+
+            String msg = String.format(
+                    "Error reading string content. Status code = %d. "
+                            + "Returned content: %s",
+                            statusCode, content);
+
+            LOGGER.error(msg);
+
+            return new ApiResult<String>(statusCode, parseError(content, msg));
+        }
+    }
+
+
+    /**
+     * Download the specified log file for the job.
+     * The autodetect process writes a log file named after with the job id
+     * <job_id>.log while the Java component logs to engine_api.log.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param logfileName the name of the log file without the '.log' suffix.
+     * @return
+     * @throws ClientProtocolException
+     * @throws IOException
+     */
+    public String downloadLog(String baseUrl, String jobId, String logfileName)
+    throws ClientProtocolException, IOException
+    {
+        return getStringContent(downloadLogResult(baseUrl, jobId, logfileName));
+    }
+
+    /**
+     * Download the specified log file for the job.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param logfileName the name of the log file without the '.log' suffix.
+     * @return The outcome of the request, if successful the log file contents
+     * @throws ClientProtocolException
+     * @throws IOException
+     * @see #downloadLog(String, String, String)
+     */
+    public ApiResult<String> downloadLogResult(String baseUrl, String jobId,
+            String logfileName)
+    throws ClientProtocolException, IOException
+    {
+        String url = String.format("%s/logs/%s/%s",
+                baseUrl, jobId, logfileName);
+
+        LOGGER.debug("GET log file " + url);
+
+        return getStringContentResult(url);
+    }
+
+
+    /**
+     * Download all the log files for the given job.
+     *
+     * <b>Important: the caller MUST close the ZipInputStream returned by
+     * this method, otherwise all subsequent client/server communications
+     * will be blocked.</b>
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @return A ZipInputStream for the log files. If the inputstream is
+     * empty an error may have occurred.  The caller MUST close this
+     * ZipInputStream when they have finished with it.
+     * @throws ClientProtocolException
+     * @throws IOException
+     */
+    public ZipInputStream downloadAllLogs(String baseUrl, String jobId)
+    throws ClientProtocolException, IOException
+    {
+        ZipInputStream logs = recordOutcome(downloadAllLogsResult(baseUrl, jobId));
+        if (logs == null)
+        {
+            // return an empty stream
+            logs = new ZipInputStream(new ByteArrayInputStream(new byte[0]));
+        }
+        return logs;
+    }
+
+    /**
+     * Download all the log files for the given job.
+     *
+     * <b>Important: if the request succeeds the caller MUST close the
+     * ZipInputStream result, otherwise all subsequent client/server
+     * communications will be blocked.</b>
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @return The outcome of the request, if successful a ZipInputStream
+     * for the log files which the caller MUST close
+     * @throws ClientProtocolException
+     * @throws IOException
+     * @see #downloadAllLogs(String, String)
+     */
+    public ApiResult<ZipInputStream> downloadAllLogsResult(String baseUrl, String jobId)
+    throws ClientProtocolException, IOException
+    {
+        String url = String.format("%s/logs/%s", baseUrl, jobId);
+
+        LOGGER.debug("GET download logs " + url);
+
+        HttpGet get = new HttpGet(url);
+
+        CloseableHttpResponse response = m_HttpClient.execute(get);
+        try
+        {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == 200)
+            {
+                ZipInputStream result = new ZipInputStream(response.getEntity().getContent());
+                // In this case we DON'T want the response to be automatically
+                // closed - the caller MUST close the ZipInputStream when they
+                // are finished with it
+                response = null;
+                return new ApiResult<>(statusCode, result);
+            }
+            else
+            {
+                String content = EntityUtils.toString(response.getEntity());
+                String msg = String.format(
+                        "Error downloading log files for job %s, status code = %d. "
+                                + "Returned content: %s",
+                                jobId, statusCode, content);
+
+                LOGGER.error(msg);
+
+                return new ApiResult<ZipInputStream>(statusCode, parseError(content, msg));
+            }
+        }
         finally
         {
-            response.close();
+            if (response != null)
+            {
+                response.close();
+            }
+        }
+    }
+
+
+    /**
+     * A generic HTTP GET to any Url. The result is converted from Json to
+     * the type referenced in <code>typeRef</code>. A <code>TypeReference</code>
+     * has to be used to preserve the generic type information that is usually
+     * lost in due to erasure.
+     * <br/>
+     * If the response code is 200 or 404 try to parse the returned content
+     * into an object of the generic parameter type <code>T</code>.
+     * The 404 status code is not considered an error it simply means an
+     * empty document was returned by the API.
+     * <br/>
+     * This method is useful for paging through a set of results via the
+     * next or previous page links in a {@link Pagination} object.
+     *
+     * @param fullUrl
+     * @param typeRef
+     * @return A new T or <code>null</code>
+     * @throws JsonParseException
+     * @throws JsonMappingException
+     * @throws IOException
+     * @see #get(URI, TypeReference)
+     */
+    public <T> T get(String fullUrl, TypeReference<T> typeRef)
+    throws JsonParseException, JsonMappingException, IOException
+    {
+        HttpGet get = new HttpGet(fullUrl);
+        return get(get,typeRef);
+    }
+
+    /**
+     * A generic HTTP GET to any Url. The result is converted from Json to
+     * the type referenced in <code>typeRef</code>. A <code>TypeReference</code>
+     * has to be used to preserve the generic type information that is usually
+     * lost in due to erasure.
+     * <br>
+     * If the response code is 200 or 404 try to parse the returned content
+     * into an object of the generic parameter type <code>T</code>.
+     * The 404 status code is not considered an error it simply means an
+     * empty document was returned by the API.
+     * <br>
+     * This method is useful for paging through a set of results via the
+     * next or previous page links in a {@link Pagination} object.
+     *
+     * @param uri
+     * @param typeRef
+     * @return A new T or <code>null</code>
+     * @throws JsonParseException
+     * @throws JsonMappingException
+     * @throws IOException
+     * @see #get(String, TypeReference)
+     */
+    public <T> T get(URI uri, TypeReference<T> typeRef)
+    throws JsonParseException, JsonMappingException, IOException
+    {
+        HttpGet get = new HttpGet(uri);
+        return get(get,typeRef);
+    }
+
+    private <T> T get(HttpGet get, TypeReference<T> typeRef)
+    throws JsonParseException, JsonMappingException, IOException
+    {
+        return recordOutcome(getResult(get, typeRef));
+    }
+
+    /**
+     * A generic HTTP GET to any Url returning the outcome of the request.
+     * If the response code is 200 or 404 the returned content is parsed
+     * into an object of the generic parameter type <code>T</code>
+     * otherwise the result holds the error.
+     *
+     * @param fullUrl
+     * @param typeRef
+     * @return The outcome of the request
+     * @throws JsonParseException
+     * @throws JsonMappingException
+     * @throws IOException
+     * @see #get(String, TypeReference)
+     */
+    public <T> ApiResult<T> getResult(String fullUrl, TypeReference<T> typeRef)
+    throws JsonParseException, JsonMappingException, IOException
+    {
+        return getResult(new HttpGet(fullUrl), typeRef);
+    }
+
+    /**
+     * A generic HTTP GET to any Uri returning the outcome of the request.
+     *
+     * @param uri
+     * @param typeRef
+     * @return The outcome of the request
+     * @throws JsonParseException
+     * @throws JsonMappingException
+     * @throws IOException
+     * @see #getResult(String, TypeReference)
+     */
+    public <T> ApiResult<T> getResult(URI uri, TypeReference<T> typeRef)
+    throws JsonParseException, JsonMappingException, IOException
+    {
+        return getResult(new HttpGet(uri), typeRef);
+    }
+
+    private <T> ApiResult<T> getResult(HttpGet get, TypeReference<T> typeRef)
+    throws JsonParseException, JsonMappingException, IOException
+    {
+        try (CloseableHttpResponse response = m_HttpClient.execute(get))
+        {
+            HttpEntity entity = response.getEntity();
+            int statusCode = response.getStatusLine().getStatusCode();
+
+            // 404 errors return empty paging docs so still read them
+            if (statusCode == 200 || statusCode == 404)
+            {
+                // parse straight from the stream rather than
+                // buffering the whole response as a string first
+                T docs = m_JsonMapper.readValue(entity.getContent(), typeRef);
+                return new ApiResult<>(statusCode, docs);
+            }
+
+            String content = EntityUtils.toString(entity);
+            String msg = String.format(
+                    "GET returned status code %d for url %s. "
+                    + "Returned content = %s",
+                    statusCode, get.getURI(), content);
+
+            LOGGER.error(msg);
+
+            return new ApiResult<T>(statusCode, parseError(content, msg));
+        }
+    }
+
+
+    /**
+     * Stream the bucket results for a particular job to <code>consumer</code>.
+     * Each bucket is passed to the consumer as soon as it has been parsed
+     * from the response so the page is never held in memory in full.
+     * The arguments are optional if <code>null</code> they are ignored.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param expand If true include the anomaly records for the bucket
+     * @param includeInterim Include interim results
+     * @param skip The number of buckets to skip
+     * @param take The max number of buckets to request
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
+     * this value
+     * @param normalizedProbabilityThreshold Return only buckets with a
+     * maxNormalizedProbability >= this value
+     * @param consumer Receives each bucket in turn
+     *
+     * @return A {@link Pagination} object with the paging details but
+     * an empty list of documents. If the request failed the page is
+     * empty and the error is available from {@linkplain #getLastError()}
+     * @throws IOException
+     * @see #stream(String, Class, DocumentConsumer)
+     */
+    public <T> Pagination<Bucket> streamBuckets(String baseUrl, String jobId,
+            boolean expand, boolean includeInterim,
+            Long skip, Long take, T start, T end,
+            Double anomalyScoreThreshold, Double normalizedProbabilityThreshold,
+            DocumentConsumer<Bucket> consumer)
+    throws IOException
+    {
+        return streamedPage(streamBucketsResult(baseUrl, jobId, expand, includeInterim,
+                skip, take, start, end, anomalyScoreThreshold, normalizedProbabilityThreshold,
+                consumer));
+    }
+
+    /**
+     * Stream the bucket results for a particular job to <code>consumer</code>.
+     * The arguments are optional if <code>null</code> they are ignored.
+     * When paging check each result, a failed request has no next page.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param expand If true include the anomaly records for the bucket
+     * @param includeInterim Include interim results
+     * @param skip The number of buckets to skip
+     * @param take The max number of buckets to request
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param anomalyScoreThreshold Return only buckets with an anomalyScore >=
+     * this value
+     * @param normalizedProbabilityThreshold Return only buckets with a
+     * maxNormalizedProbability >= this value
+     * @param consumer Receives each bucket in turn
+     *
+     * @return The outcome of the request, if successful a {@link Pagination}
+     * object with the paging details but an empty list of documents
+     * @throws IOException
+     * @see #streamResult(String, Class, DocumentConsumer)
+     */
+    public <T> ApiResult<Pagination<Bucket>> streamBucketsResult(String baseUrl, String jobId,
+            boolean expand, boolean includeInterim,
+            Long skip, Long take, T start, T end,
+            Double anomalyScoreThreshold, Double normalizedProbabilityThreshold,
+            DocumentConsumer<Bucket> consumer)
+    throws IOException
+    {
+        String url = bucketsUrl(baseUrl, jobId, expand, includeInterim, skip, take,
+                start, end, anomalyScoreThreshold, normalizedProbabilityThreshold);
+
+        LOGGER.debug("Stream buckets " + url);
+
+        return streamResult(url, Bucket.class, consumer);
+    }
+
+    /**
+     * Stream the anomaly records for a particular job to <code>consumer</code>.
+     * Each record is passed to the consumer as soon as it has been parsed
+     * from the response so the page is never held in memory in full.
+     * The arguments are optional if <code>null</code> they are ignored.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param skip The number of records to skip
+     * @param take The max number of records to request.
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param includeInterim Include interim results
+     * @param sortField The field to sort the results by
+     * @param sortDescending If sort_field is not <code>null</code> then sort
+     * records in descending order if true else sort ascending
+     * @param anomalyScoreFilterValue Return only the records with an
+     * anomalyScore >= anomalyScoreFilterValue
+     * @param normalizedProbabilityFilterValue Return only the records with a
+     * normalizedProbability >= normalizedProbabilityFilterValue
+     * @param consumer Receives each record in turn
+     *
+     * @return A {@link Pagination} object with the paging details but
+     * an empty list of documents. If the request failed the page is
+     * empty and the error is available from {@linkplain #getLastError()}
+     * @throws IOException
+     * @see #stream(String, Class, DocumentConsumer)
+     */
+    public <T> Pagination<AnomalyRecord> streamRecords(String baseUrl, String jobId,
+            Long skip, Long take, T start, T end, boolean includeInterim,
+            String sortField, Boolean sortDescending,
+            Double anomalyScoreFilterValue, Double normalizedProbabilityFilterValue,
+            DocumentConsumer<AnomalyRecord> consumer)
+    throws IOException
+    {
+        return streamedPage(streamRecordsResult(baseUrl, jobId, skip, take, start, end,
+                includeInterim, sortField, sortDescending,
+                anomalyScoreFilterValue, normalizedProbabilityFilterValue, consumer));
+    }
+
+    /**
+     * Stream the anomaly records for a particular job to <code>consumer</code>.
+     * The arguments are optional if <code>null</code> they are ignored.
+     * When paging check each result, a failed request has no next page.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param skip The number of records to skip
+     * @param take The max number of records to request
+     * @param start The start date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param end The end date filter as either a Long (seconds from epoch)
+     * or an ISO 8601 date String
+     * @param includeInterim Include interim results
+     * @param sortField The field to sort the results by, ignored if <code>null</code>
+     * @param sortDescending Sort in descending order
+     * @param anomalyScoreFilterValue If not <code>null</code> return only the
+     * records with an anomalyScore >= anomalyScoreFilterValue
+     * @param normalizedProbabilityFilterValue If not <code>null</code> return only the
+     * records with a normalizedProbability >= normalizedProbabilityFilterValue
+     * @param consumer Receives each record in turn
+     *
+     * @return The outcome of the request, if successful a {@link Pagination}
+     * object with the paging details but an empty list of documents
+     * @throws IOException
+     * @see #streamResult(String, Class, DocumentConsumer)
+     */
+    public <T> ApiResult<Pagination<AnomalyRecord>> streamRecordsResult(String baseUrl,
+            String jobId, Long skip, Long take, T start, T end, boolean includeInterim,
+            String sortField, Boolean sortDescending,
+            Double anomalyScoreFilterValue, Double normalizedProbabilityFilterValue,
+            DocumentConsumer<AnomalyRecord> consumer)
+    throws IOException
+    {
+        String url = recordsUrl(baseUrl, jobId, skip, take, start, end,
+                includeInterim, sortField, sortDescending,
+                anomalyScoreFilterValue, normalizedProbabilityFilterValue);
+
+        LOGGER.debug("Stream records " + url);
+
+        return streamResult(url, AnomalyRecord.class, consumer);
+    }
+
+    /**
+     * A generic HTTP GET of a page of results where each document in
+     * the page is parsed in turn directly from the response stream and
+     * passed to <code>consumer</code>. The documents list is never
+     * materialised.
+     * <br/>
+     * As with {@link #get(String, TypeReference)} the 404 status code
+     * is not considered an error. Use this method to follow the next
+     * page links in the returned {@link Pagination} object.
+     *
+     * @param fullUrl
+     * @param documentClass The type of the documents in the page
+     * @param consumer Receives each document in turn
+     * @return A {@link Pagination} object with the paging details but
+     * an empty list of documents. If the request failed the page is
+     * empty and the error is available from {@linkplain #getLastError()},
+     * use {@linkplain #streamResult(String, Class, DocumentConsumer)}
+     * when paging so a failure is not mistaken for the last page.
+     * @throws IOException
+     */
+    public <T> Pagination<T> stream(String fullUrl, Class<T> documentClass,
+            DocumentConsumer<T> consumer)
+    throws IOException
+    {
+        return streamedPage(streamResult(fullUrl, documentClass, consumer));
+    }
+
+    /**
+     * A generic HTTP GET of a page of results where each document in
+     * the page is parsed in turn directly from the response stream and
+     * passed to <code>consumer</code>. As with
+     * {@link #getResult(String, TypeReference)} the 404 status code
+     * is not considered an error.
+     *
+     * @param fullUrl
+     * @param documentClass The type of the documents in the page
+     * @param consumer Receives each document in turn
+     * @return The outcome of the request, if successful a {@link Pagination}
+     * object with the paging details but an empty list of documents
+     * @throws IOException
+     * @see #stream(String, Class, DocumentConsumer)
+     */
+    public <T> ApiResult<Pagination<T>> streamResult(String fullUrl, Class<T> documentClass,
+            DocumentConsumer<T> consumer)
+    throws IOException
+    {
+        HttpGet get = new HttpGet(fullUrl);
+        try (CloseableHttpResponse response = m_HttpClient.execute(get))
+        {
+            HttpEntity entity = response.getEntity();
+            int statusCode = response.getStatusLine().getStatusCode();
+
+            if (statusCode == 200 || statusCode == 404)
+            {
+                Pagination<T> page = new Pagination<>();
+                page.setDocuments(Collections.<T>emptyList());
+
+                try (JsonParser parser = m_JsonMapper.getFactory().createParser(
+                                                        entity.getContent()))
+                {
+                    readPage(parser, page, documentClass, consumer);
+                }
+                return new ApiResult<>(statusCode, page);
+            }
+
+            String content = EntityUtils.toString(entity);
+            String msg = String.format(
+                    "GET returned status code %d for url %s. "
+                    + "Returned content = %s",
+                    statusCode, get.getURI(), content);
+
+            LOGGER.error(msg);
+
+            return new ApiResult<Pagination<T>>(statusCode, parseError(content, msg));
+        }
+    }
+
+    /**
+     * Record the outcome of a streamed page
+     *
+     * @return The page or an empty page without a next page
+     * if the request failed
+     */
+    private <T> Pagination<T> streamedPage(ApiResult<Pagination<T>> result)
+    {
+        Pagination<T> page = recordOutcome(result);
+        if (page == null)
+        {
+            page = new Pagination<>();
+            page.setDocuments(Collections.<T>emptyList());
+        }
+        return page;
+    }
+
+    /**
+     * Read the fields of a {@link Pagination} document from
+     * <code>parser</code> into <code>page</code> passing each
+     * element of the documents array to <code>consumer</code>.
+     */
+    private <T> void readPage(JsonParser parser, Pagination<T> page,
+            Class<T> documentClass, DocumentConsumer<T> consumer)
+    throws IOException
+    {
+        if (parser.nextToken() != JsonToken.START_OBJECT)
+        {
+            throw new JsonParseException("Expected a Pagination object",
+                    parser.getCurrentLocation());
+        }
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String fieldName = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+
+            if (token == JsonToken.VALUE_NULL)
+            {
+                continue;
+            }
+
+            if ("hitCount".equals(fieldName))
+            {
+                page.setHitCount(parser.getLongValue());
+            }
+            else if ("skip".equals(fieldName))
+            {
+                page.setSkip(parser.getIntValue());
+            }
+            else if ("take".equals(fieldName))
+            {
+                page.setTake(parser.getIntValue());
+            }
+            else if ("nextPage".equals(fieldName))
+            {
+                page.setNextPage(URI.create(parser.getText()));
+            }
+            else if ("previousPage".equals(fieldName))
+            {
+                page.setPreviousPage(URI.create(parser.getText()));
+            }
+            else if ("documents".equals(fieldName) && token == JsonToken.START_ARRAY)
+            {
+                while (parser.nextToken() == JsonToken.START_OBJECT)
+                {
+                    consumer.consume(m_JsonMapper.readValue(parser, documentClass));
+                }
+            }
+            else
+            {
+                parser.skipChildren();
+            }
+        }
+    }
+
+
+    /**
+     * Cache the results of {@linkplain #getBuckets(String, String, boolean, boolean, Long, Long, Object, Object, Double, Double)},
+     * {@linkplain #getBucket(String, String, String, boolean, boolean)} and
+     * {@linkplain #getRecords(String, String, Long, Long, Object, Object, boolean, String, Boolean, Double, Double)}.
+     * Cached results are shared so must not be modified.
+     *
+     * @param cache The cache or <code>null</code> to stop caching
+     */
+    public void setResultCache(ResultCache cache)
+    {
+        m_ResultCache = cache;
+    }
+
+    /**
+     * The result cache
+     * @return The cache or <code>null</code> if results are not cached
+     */
+    public ResultCache getResultCache()
+    {
+        return m_ResultCache;
+    }
+
+    /**
+     * The first time results of a job are cached set the age at which
+     * they are final from the job's analysis configuration. If the job
+     * cannot be read the cache's default age is used and the job is
+     * read again the next time.
+     */
+    private void learnFinalAge(ResultCache cache, String baseUrl, String jobId)
+    throws IOException
+    {
+        if (cache.hasFinalAge(jobId))
+        {
+            return;
+        }
+
+        ApiResult<SingleDocument<JobDetails>> job = getJobResult(baseUrl, jobId);
+        if (job.isSuccess() && job.getResult() != null && job.getResult().isExists() &&
+                job.getResult().getDocument().getAnalysisConfig() != null)
+        {
+            cache.setFinalAge(jobId,
+                    ResultCache.finalAge(job.getResult().getDocument().getAnalysisConfig()));
+        }
+        else
+        {
+            LOGGER.warn("Cannot read the configuration of job " + jobId +
+                    ", caching its results with the default final age");
+        }
+    }
+
+
+    /**
+     * The pool used for background work such as prefetching pages
+     */
+    ExecutorService backgroundExecutor()
+    {
+        return m_BackgroundExecutor;
+    }
+
+
+    /**
+     * Build the URL for a flush request
+     */
+    static String flushUrl(String baseUrl, String jobId, boolean calcInterim)
+    {
+        String flushUrl = baseUrl + "/data/" + jobId + "/flush";
+        if (calcInterim)
+        {
+            flushUrl += "?calcInterim=true";
+        }
+        return flushUrl;
+    }
+
+    /**
+     * Build the URL for a buckets query.
+     * <code>null</code> arguments are not added to the query string.
+     */
+    static <T> String bucketsUrl(String baseUrl, String jobId,
+            boolean expand, boolean includeInterim,
+            Long skip, Long take, T start, T end,
+            Double anomalyScoreThreshold, Double normalizedProbabilityThreshold)
+    throws UnsupportedEncodingException
+    {
+        String url = baseUrl + "/results/" + jobId + "/buckets/";
+        char queryChar = '?';
+        if (expand)
+        {
+            url += queryChar + "expand=true";
+            queryChar = '&';
+        }
+        if (includeInterim)
+        {
+            url += queryChar + "includeInterim=true";
+            queryChar = '&';
+        }
+        if (skip != null)
+        {
+            url += queryChar + "skip=" + skip;
+            queryChar = '&';
+        }
+        if (take != null)
+        {
+            url += queryChar + "take=" + take;
+            queryChar = '&';
+        }
+        if (start != null)
+        {
+            url += queryChar + "start=" + URLEncoder.encode(start.toString(), "UTF-8");
+            queryChar = '&';
+        }
+        if (end != null)
+        {
+            url += queryChar + "end=" + URLEncoder.encode(end.toString(), "UTF-8");
+            queryChar = '&';
+        }
+        if (anomalyScoreThreshold != null)
+        {
+            url += queryChar + "anomalyScore=" + anomalyScoreThreshold;
+            queryChar = '&';
+        }
+        if (normalizedProbabilityThreshold != null)
+        {
+            url += queryChar + "maxNormalizedProbability=" + normalizedProbabilityThreshold;
+            queryChar = '&';
+        }
+
+        return url;
+    }
+
+    /**
+     * Build the URL for a records query.
+     * <code>null</code> arguments are not added to the query string.
+     */
+    static <T> String recordsUrl(String baseUrl, String jobId,
+            Long skip, Long take, T start, T end, boolean includeInterim,
+            String sortField, Boolean sortDescending,
+            Double anomalyScoreFilterValue, Double normalizedProbabilityFilterValue)
+    throws UnsupportedEncodingException
+    {
+        String url = baseUrl + "/results/" + jobId + "/records/";
+        char queryChar = '?';
+
+        if (skip != null)
+        {
+            url += queryChar + "skip=" + skip;
+            queryChar = '&';
+        }
+        if (take != null)
+        {
+            url += queryChar + "take=" + take;
+            queryChar = '&';
+        }
+        if (start != null)
+        {
+            url += queryChar + "start=" + URLEncoder.encode(start.toString(), "UTF-8");
+            queryChar = '&';
+        }
+        if (end != null)
+        {
+            url += queryChar + "end=" + URLEncoder.encode(end.toString(), "UTF-8");
+            queryChar = '&';
+        }
+        if (includeInterim)
+        {
+            url += queryChar + "includeInterim=true";
+            queryChar = '&';
+        }
+        if (sortField != null)
+        {
+            url += queryChar + "sort=" + URLEncoder.encode(sortField, "UTF-8");
+            queryChar = '&';
+        }
+        if (sortDescending != null && sortDescending == false)
+        {
+            url += queryChar + "desc=false";
+            queryChar = '&';
+        }
+        if (anomalyScoreFilterValue != null)
+        {
+            url += queryChar + "anomalyScore=" + anomalyScoreFilterValue.toString();
+            queryChar = '&';
+        }
+        if (normalizedProbabilityFilterValue != null)
+        {
+            url += queryChar + "normalizedProbability=" + normalizedProbabilityFilterValue.toString();
+            queryChar = '&';
         }
 
-        return null;
+        return url;
     }
 
+    /**
+     * Build the URL for an alert long poll.
+     * <code>null</code> arguments are not added to the query string.
+     */
+    static String alertUrl(String baseUrl, String jobId, Integer timeout,
+            Double anomalyScoreThreshold, Double maxNormalizedProbability)
+    {
+        String url = baseUrl + "/alerts_longpoll/" + jobId;
+        char queryChar = '?';
+        if (timeout != null)
+        {
+            url += "?timeout=" + timeout;
+            queryChar = '&';
+        }
+
+        if (anomalyScoreThreshold != null)
+        {
+            url += queryChar + "score=" + anomalyScoreThreshold;
+            queryChar = '&';
+        }
+
+        if (maxNormalizedProbability != null)
+        {
+            url += queryChar + "probability=" + maxNormalizedProbability;
+        }
+
+        return url;
+    }
 
     /**
-     * Get the last error message
-     * @return The error or null if no errors have occurred
+     * Get the last error message for the calling thread. Errors are
+     * recorded per thread so a client shared between threads reports
+     * the outcome of the calling thread's own last request. Where the
+     * outcome has to be passed between threads use the methods
+     * returning an {@link ApiResult} instead.
+     * @return The error or null if the calling thread's last request
+     * succeeded or no errors have occurred
      */
     public ApiError getLastError()
     {
-        return m_LastError;
+        return m_LastError.get();
     }
 }
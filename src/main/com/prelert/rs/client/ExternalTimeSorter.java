@@ -0,0 +1,636 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.prelert.job.DataDescription;
+
+/**
+ * Sorts upload data by its time field using bounded memory so
+ * data sets much larger than the heap can be put in time order
+ * before they are uploaded.
+ * <br/>
+ * The input is read into runs of about <code>runBytes</code>. Each run
+ * is sorted and spilled to a temporary file on the executor, up to
+ * <code>parallelism</code> runs at a time, while the next run is read,
+ * so up to <code>(parallelism + 1) * runBytes</code> of records are held
+ * in memory. {@linkplain #withMemoryBudget(DataDescription, List, TimeZone,
+ * File, long, int, ExecutorService)} splits one memory budget between
+ * the runs.
+ * The stream returned by {@linkplain #sort(InputStream)} then merges
+ * the run files and writes the records in the input format, so it
+ * can be passed straight to
+ * {@linkplain EngineApiClient#streamingUpload(String, String, InputStream, boolean)}.
+ * If the input fits in a single run nothing is written to disk.
+ * <br/>
+ * The sort is stable: records with the same time keep their input
+ * order. Records whose time cannot be parsed are dropped.
+ * Closing the returned stream deletes the run files. If the sort
+ * fails the run files already written are deleted, including those
+ * of spill tasks that finish after the failure.
+ */
+public class ExternalTimeSorter
+{
+    private static final Logger LOGGER = Logger.getLogger(ExternalTimeSorter.class);
+
+    /**
+     * The default estimated size of the records in a run
+     */
+    public static final long DEFAULT_RUN_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The default estimated size of all the records held in memory
+     * by a sort
+     */
+    public static final long DEFAULT_MEMORY_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Runs are not made smaller than this to use more parallelism
+     */
+    private static final long MIN_PARALLEL_RUN_BYTES = 8L * 1024 * 1024;
+
+    private static final int RECORD_OVERHEAD_BYTES = 64;
+    private static final int STRING_OVERHEAD_BYTES = 48;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private final DataDescription m_DataDescription;
+    private final List<String> m_Fields;
+    private final TimeZone m_Zone;
+    private final File m_TempDirectory;
+    private final long m_RunBytes;
+    private final int m_Parallelism;
+    private final ExecutorService m_Executor;
+
+    private volatile long m_RecordCount;
+    private volatile long m_InvalidDateCount;
+    private volatile int m_RunCount;
+
+    /**
+     * @param dataDescription The format of the data
+     * @param fields The fields to keep, must include the time field. May be
+     * <code>null</code> for delineated data to keep all the columns
+     * @param zone The time zone of times without an offset
+     * @param tempDirectory Where the runs are spilled. If <code>null</code>
+     * the default temporary file directory
+     * @param runBytes The estimated size of the records sorted in memory
+     * as one run
+     * @param parallelism The number of runs sorted and spilled concurrently
+     * @param executor Sorts and spills the runs
+     */
+    public ExternalTimeSorter(DataDescription dataDescription, List<String> fields,
+            TimeZone zone, File tempDirectory, long runBytes, int parallelism,
+            ExecutorService executor)
+    {
+        if (parallelism < 1)
+        {
+            throw new IllegalArgumentException("parallelism must be >= 1");
+        }
+
+        m_DataDescription = dataDescription;
+        m_Fields = fields;
+        m_Zone = zone;
+        m_TempDirectory = tempDirectory;
+        m_RunBytes = runBytes;
+        m_Parallelism = parallelism;
+        m_Executor = executor;
+    }
+
+    /**
+     * Create a sorter that holds no more than about
+     * <code>memoryBytes</code> of records in memory. The parallelism
+     * is reduced from <code>maxParallelism</code> if the budget would
+     * otherwise give runs smaller than 8MB, then the budget is divided
+     * between the runs being sorted and the run being read.
+     *
+     * @param dataDescription The format of the data
+     * @param fields The fields to keep, must include the time field. May be
+     * <code>null</code> for delineated data to keep all the columns
+     * @param zone The time zone of times without an offset
+     * @param tempDirectory Where the runs are spilled. If <code>null</code>
+     * the default temporary file directory
+     * @param memoryBytes The estimated size of all the records held in
+     * memory, must be &gt;= 1
+     * @param maxParallelism The most runs sorted and spilled concurrently
+     * @param executor Sorts and spills the runs
+     * @return The sorter
+     */
+    public static ExternalTimeSorter withMemoryBudget(DataDescription dataDescription,
+            List<String> fields, TimeZone zone, File tempDirectory, long memoryBytes,
+            int maxParallelism, ExecutorService executor)
+    {
+        if (memoryBytes < 1)
+        {
+            throw new IllegalArgumentException("memoryBytes must be >= 1");
+        }
+        if (maxParallelism < 1)
+        {
+            throw new IllegalArgumentException("maxParallelism must be >= 1");
+        }
+
+        long affordable = memoryBytes / MIN_PARALLEL_RUN_BYTES - 1;
+        int parallelism = (int)Math.max(1, Math.min(maxParallelism, affordable));
+        long runBytes = Math.max(1, memoryBytes / (parallelism + 1));
+
+        return new ExternalTimeSorter(dataDescription, fields, zone, tempDirectory,
+                runBytes, parallelism, executor);
+    }
+
+    /**
+     * The number of records read by the last sort
+     * @return The record count
+     */
+    public long getRecordCount()
+    {
+        return m_RecordCount;
+    }
+
+    /**
+     * The number of records dropped by the last sort because the time
+     * could not be parsed
+     * @return The invalid date count
+     */
+    public long getInvalidDateCount()
+    {
+        return m_InvalidDateCount;
+    }
+
+    /**
+     * The number of runs spilled to disk by the last sort
+     * @return The run count
+     */
+    public int getRunCount()
+    {
+        return m_RunCount;
+    }
+
+    /**
+     * Read all of <code>input</code> and return a stream of the records
+     * in time order. The input is closed.
+     *
+     * @param input The unsorted data
+     * @return The sorted data in the same format
+     * @throws IOException
+     */
+    public InputStream sort(InputStream input)
+    throws IOException
+    {
+        m_RecordCount = 0;
+        m_InvalidDateCount = 0;
+        m_RunCount = 0;
+
+        TimestampParser parser = TimestampParser.compile(m_DataDescription.getTimeFormat(), m_Zone);
+
+        Deque<Future<File>> pending = new ArrayDeque<>();
+        SpilledRuns spilled = new SpilledRuns();
+        List<File> runFiles = new ArrayList<>();
+        List<TimedRecordSource> sources = new ArrayList<>();
+        boolean complete = false;
+
+        try (RecordReader reader = RecordReader.create(input, m_DataDescription, m_Fields))
+        {
+            List<String> fields = reader.fields();
+            int timeIndex = fields.indexOf(m_DataDescription.getTimeField());
+            if (timeIndex < 0 && fields.isEmpty() == false)
+            {
+                throw new IOException("The time field '" + m_DataDescription.getTimeField() +
+                        "' is not in the data fields " + fields);
+            }
+
+            List<TimedRecord> run = new ArrayList<>();
+            long runBytes = 0;
+            long sequence = 0;
+            String [] record = new String[fields.size()];
+
+            while (reader.read(record))
+            {
+                m_RecordCount++;
+
+                long time = parser.parse(record[timeIndex]);
+                if (time == TimestampParser.INVALID)
+                {
+                    m_InvalidDateCount++;
+                    continue;
+                }
+
+                TimedRecord timed = new TimedRecord(time, sequence++, record.clone());
+                run.add(timed);
+                runBytes += timed.estimatedBytes();
+
+                if (runBytes >= m_RunBytes)
+                {
+                    while (pending.size() >= m_Parallelism)
+                    {
+                        runFiles.add(waitFor(pending.removeFirst()));
+                    }
+                    pending.addLast(m_Executor.submit(new SpillTask(run, spilled)));
+
+                    run = new ArrayList<>();
+                    runBytes = 0;
+                }
+            }
+
+            if (m_InvalidDateCount > 0)
+            {
+                LOGGER.warn(m_InvalidDateCount + " of " + m_RecordCount +
+                        " records had invalid times and were dropped");
+            }
+
+            if (pending.isEmpty() && runFiles.isEmpty())
+            {
+                Collections.sort(run, TimedRecord.ORDER);
+                sources.add(new MemoryRunSource(run));
+            }
+            else
+            {
+                if (run.isEmpty() == false)
+                {
+                    pending.addLast(m_Executor.submit(new SpillTask(run, spilled)));
+                }
+                while (pending.isEmpty() == false)
+                {
+                    runFiles.add(waitFor(pending.removeFirst()));
+                }
+                m_RunCount = runFiles.size();
+
+                for (File file : runFiles)
+                {
+                    sources.add(new RunFileSource(file, fields.size()));
+                }
+            }
+
+            MergingRecordReader merged = new MergingRecordReader(fields, sources);
+            complete = true;
+            return new SortedInputStream(merged, m_DataDescription);
+        }
+        finally
+        {
+            if (complete == false)
+            {
+                for (Future<File> future : pending)
+                {
+                    future.cancel(true);
+                }
+                for (TimedRecordSource source : sources)
+                {
+                    closeQuietly(source);
+                }
+                for (File file : spilled.abandon())
+                {
+                    deleteRun(file);
+                }
+            }
+        }
+    }
+
+    private static File waitFor(Future<File> future)
+    throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a sorted run", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Error sorting run", e.getCause());
+        }
+    }
+
+    private static void closeQuietly(TimedRecordSource source)
+    {
+        try
+        {
+            source.close();
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Error closing sort run", e);
+        }
+    }
+
+    private static void deleteRun(File file)
+    {
+        if (file.delete() == false && file.exists())
+        {
+            LOGGER.warn("Cannot delete sort run file " + file);
+        }
+    }
+
+
+    /**
+     * A parsed record with its time and input position
+     */
+    private static class TimedRecord
+    {
+        static final Comparator<TimedRecord> ORDER = new Comparator<TimedRecord>()
+                {
+                    @Override
+                    public int compare(TimedRecord a, TimedRecord b)
+                    {
+                        if (a.m_Time != b.m_Time)
+                        {
+                            return (a.m_Time < b.m_Time) ? -1 : 1;
+                        }
+                        return (a.m_Sequence < b.m_Sequence) ? -1 :
+                                (a.m_Sequence == b.m_Sequence ? 0 : 1);
+                    }
+                };
+
+        final long m_Time;
+        final long m_Sequence;
+        final String [] m_Values;
+
+        TimedRecord(long time, long sequence, String [] values)
+        {
+            m_Time = time;
+            m_Sequence = sequence;
+            m_Values = values;
+        }
+
+        long estimatedBytes()
+        {
+            long bytes = RECORD_OVERHEAD_BYTES;
+            for (String value : m_Values)
+            {
+                bytes += (value == null) ? 8 : STRING_OVERHEAD_BYTES + 2 * value.length();
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * The run files written by the spill tasks of one sort. Once the
+     * sort has been abandoned a task deletes the file it has written
+     * itself.
+     */
+    private static class SpilledRuns
+    {
+        private final List<File> m_Files = new ArrayList<>();
+        private boolean m_Abandoned;
+
+        /**
+         * @return False if the sort has been abandoned
+         */
+        synchronized boolean add(File file)
+        {
+            if (m_Abandoned)
+            {
+                return false;
+            }
+            m_Files.add(file);
+            return true;
+        }
+
+        /**
+         * Mark the sort abandoned
+         * @return The files written so far
+         */
+        synchronized List<File> abandon()
+        {
+            m_Abandoned = true;
+            return new ArrayList<>(m_Files);
+        }
+    }
+
+    /**
+     * Sorts a run and writes it to a temporary file. Each record is
+     * its time followed by its values as length prefixed UTF-8,
+     * a length of -1 is a <code>null</code> value.
+     */
+    private class SpillTask implements Callable<File>
+    {
+        private final List<TimedRecord> m_Run;
+        private final SpilledRuns m_Spilled;
+
+        SpillTask(List<TimedRecord> run, SpilledRuns spilled)
+        {
+            m_Run = run;
+            m_Spilled = spilled;
+        }
+
+        @Override
+        public File call()
+        throws IOException
+        {
+            Collections.sort(m_Run, TimedRecord.ORDER);
+
+            File file = File.createTempFile("engine-sort-run", ".bin", m_TempDirectory);
+
+            boolean written = false;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), IO_BUFFER_SIZE)))
+            {
+                for (TimedRecord record : m_Run)
+                {
+                    out.writeLong(record.m_Time);
+                    for (String value : record.m_Values)
+                    {
+                        if (value == null)
+                        {
+                            out.writeInt(-1);
+                        }
+                        else
+                        {
+                            byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+                            out.writeInt(bytes.length);
+                            out.write(bytes);
+                        }
+                    }
+                }
+                written = true;
+            }
+            finally
+            {
+                if (written == false || m_Spilled.add(file) == false)
+                {
+                    deleteRun(file);
+                }
+            }
+
+            LOGGER.debug("Spilled " + m_Run.size() + " sorted records to " + file);
+            return file;
+        }
+    }
+
+    /**
+     * Reads a spilled run, deleting the file when closed
+     */
+    private static class RunFileSource extends TimedRecordSource
+    {
+        private final File m_File;
+        private final DataInputStream m_Input;
+        private final String [] m_Record;
+        private byte [] m_Bytes = new byte[256];
+        private long m_Time;
+
+        RunFileSource(File file, int fieldCount)
+        throws IOException
+        {
+            m_File = file;
+            m_Input = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), IO_BUFFER_SIZE));
+            m_Record = new String[fieldCount];
+        }
+
+        @Override
+        boolean next()
+        throws IOException
+        {
+            try
+            {
+                m_Time = m_Input.readLong();
+            }
+            catch (EOFException e)
+            {
+                return false;
+            }
+
+            for (int i = 0; i < m_Record.length; i++)
+            {
+                int length = m_Input.readInt();
+                if (length < 0)
+                {
+                    m_Record[i] = null;
+                    continue;
+                }
+                if (length > m_Bytes.length)
+                {
+                    m_Bytes = new byte[Math.max(length, m_Bytes.length * 2)];
+                }
+                m_Input.readFully(m_Bytes, 0, length);
+                m_Record[i] = new String(m_Bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            return true;
+        }
+
+        @Override
+        long time()
+        {
+            return m_Time;
+        }
+
+        @Override
+        String [] record()
+        {
+            return m_Record;
+        }
+
+        @Override
+        public void close()
+        throws IOException
+        {
+            try
+            {
+                m_Input.close();
+            }
+            finally
+            {
+                deleteRun(m_File);
+            }
+        }
+    }
+
+    /**
+     * A run that was never spilled
+     */
+    private static class MemoryRunSource extends TimedRecordSource
+    {
+        private final List<TimedRecord> m_Run;
+        private int m_Index = -1;
+
+        MemoryRunSource(List<TimedRecord> run)
+        {
+            m_Run = run;
+        }
+
+        @Override
+        boolean next()
+        {
+            return ++m_Index < m_Run.size();
+        }
+
+        @Override
+        long time()
+        {
+            return m_Run.get(m_Index).m_Time;
+        }
+
+        @Override
+        String [] record()
+        {
+            return m_Run.get(m_Index).m_Values;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * Writes the merged records unchanged
+     */
+    private static class SortedInputStream extends RecordRewritingInputStream
+    {
+        SortedInputStream(RecordReader reader, DataDescription dataDescription)
+        throws IOException
+        {
+            super(reader, dataDescription, null);
+        }
+
+        @Override
+        protected void processRecord(String [] record)
+        throws IOException
+        {
+            emit(record);
+        }
+    }
+}
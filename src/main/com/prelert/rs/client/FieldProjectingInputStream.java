@@ -0,0 +1,103 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.prelert.job.AnalysisConfig;
+import com.prelert.job.DataDescription;
+import com.prelert.job.TransformConfig;
+import com.prelert.job.TransformConfigs;
+
+/**
+ * Rewrites upload data keeping only the fields the job uses: the time
+ * field, the {@linkplain AnalysisConfig#analysisFields() analysis fields}
+ * and the inputs of any transforms. Fields produced by the transforms
+ * are not expected in the source data. Every other column of
+ * delineated data and every other field of JSON objects is dropped
+ * before the data is sent.
+ */
+public class FieldProjectingInputStream extends RecordRewritingInputStream
+{
+    /**
+     * @param input The source data
+     * @param analysisConfig The job's analysis configuration
+     * @param dataDescription The format of the data
+     * @throws IOException If the source header cannot be read or does
+     * not contain one of the required fields
+     */
+    public FieldProjectingInputStream(InputStream input, AnalysisConfig analysisConfig,
+            DataDescription dataDescription)
+    throws IOException
+    {
+        this(input, analysisConfig, dataDescription, null);
+    }
+
+    /**
+     * @param input The source data
+     * @param analysisConfig The job's analysis configuration
+     * @param dataDescription The format of the data
+     * @param transforms The job's transforms, may be <code>null</code>
+     * @throws IOException If the source header cannot be read or does
+     * not contain one of the required fields
+     */
+    public FieldProjectingInputStream(InputStream input, AnalysisConfig analysisConfig,
+            DataDescription dataDescription, List<TransformConfig> transforms)
+    throws IOException
+    {
+        super(input, dataDescription,
+                projectedFields(analysisConfig, dataDescription, transforms), null);
+    }
+
+    /**
+     * The fields kept by the projection: the time field followed by the
+     * analysis fields and the transform inputs that are not themselves
+     * transform outputs.
+     *
+     * @param analysisConfig The job's analysis configuration
+     * @param dataDescription The format of the data
+     * @param transforms The job's transforms, may be <code>null</code>
+     * @return The field names
+     */
+    public static List<String> projectedFields(AnalysisConfig analysisConfig,
+            DataDescription dataDescription, List<TransformConfig> transforms)
+    {
+        TransformConfigs transformConfigs = new TransformConfigs(transforms);
+
+        Set<String> fields = new LinkedHashSet<>();
+        fields.add(dataDescription.getTimeField());
+        fields.addAll(analysisConfig.analysisFields());
+        fields.addAll(transformConfigs.inputFieldNames());
+        fields.removeAll(transformConfigs.outputFieldNames());
+
+        return new ArrayList<>(fields);
+    }
+
+    @Override
+    protected void processRecord(String [] record)
+    throws IOException
+    {
+        emit(record);
+    }
+}
@@ -0,0 +1,156 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * A chunked request entity that gzips the content of an
+ * <code>InputStream</code> as it is written to the connection.
+ * With more than one compression thread the blocks of the input
+ * are compressed in parallel by a {@link ParallelGzipOutputStream}.
+ */
+class GzipCompressingEntity extends AbstractHttpEntity
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream m_Source;
+    private final int m_Level;
+    private final int m_Threads;
+    private final ExecutorService m_Executor;
+
+    /**
+     * @param source The uncompressed content
+     * @param level The deflate compression level 0-9 or -1 for the default
+     * @param threads The number of blocks to compress in parallel, if
+     * &lt;= 1 the content is compressed on the writing thread
+     * @param executor Runs the parallel compression, not used if
+     * <code>threads</code> &lt;= 1
+     */
+    GzipCompressingEntity(InputStream source, int level, int threads,
+            ExecutorService executor)
+    {
+        m_Source = source;
+        m_Level = level;
+        m_Threads = threads;
+        m_Executor = executor;
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable()
+    {
+        return false;
+    }
+
+    @Override
+    public long getContentLength()
+    {
+        return -1;
+    }
+
+    @Override
+    public boolean isStreaming()
+    {
+        return true;
+    }
+
+    @Override
+    public InputStream getContent()
+    {
+        throw new UnsupportedOperationException(
+                "The compressed content can only be written");
+    }
+
+    @Override
+    public void writeTo(OutputStream out)
+    throws IOException
+    {
+        byte [] buffer = new byte[BUFFER_SIZE];
+
+        if (m_Threads > 1)
+        {
+            ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out,
+                    m_Level, m_Threads, m_Executor);
+            try
+            {
+                copy(buffer, gzip);
+                gzip.finish();
+            }
+            finally
+            {
+                // no-op after finish(), otherwise cancels the blocks in
+                // flight and releases the deflaters
+                gzip.abort();
+            }
+        }
+        else
+        {
+            LevelGzipOutputStream gzip = new LevelGzipOutputStream(out, m_Level);
+            try
+            {
+                copy(buffer, gzip);
+                gzip.finish();
+            }
+            finally
+            {
+                // release the native deflater without closing the connection
+                gzip.end();
+            }
+        }
+
+        out.flush();
+    }
+
+    private void copy(byte [] buffer, OutputStream gzip)
+    throws IOException
+    {
+        int read;
+        while ((read = m_Source.read(buffer)) > -1)
+        {
+            gzip.write(buffer, 0, read);
+        }
+    }
+
+
+    /**
+     * A gzip stream with a configurable level whose deflater can be
+     * released without closing the underlying stream
+     */
+    private static class LevelGzipOutputStream extends GZIPOutputStream
+    {
+        LevelGzipOutputStream(OutputStream out, int level)
+        throws IOException
+        {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+
+        void end()
+        {
+            def.end();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads a sequence of JSON objects, optionally wrapped in an array.
+ * The fields of nested objects are named by joining the names of
+ * the enclosing fields with '.', array values are ignored. Scalar
+ * values are read as their text.
+ */
+class JsonRecordReader extends RecordReader
+{
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final JsonParser m_Parser;
+    private final List<String> m_Fields;
+    private final Map<String, Integer> m_FieldIndexes;
+
+    JsonRecordReader(InputStream input, List<String> fields)
+    throws IOException
+    {
+        m_Parser = JSON_FACTORY.createParser(input);
+        m_Fields = Collections.unmodifiableList(new ArrayList<>(fields));
+
+        m_FieldIndexes = new HashMap<>();
+        for (int i = 0; i < m_Fields.size(); i++)
+        {
+            m_FieldIndexes.put(m_Fields.get(i), i);
+        }
+    }
+
+    @Override
+    List<String> fields()
+    {
+        return m_Fields;
+    }
+
+    @Override
+    boolean read(String [] record)
+    throws IOException
+    {
+        Arrays.fill(record, 0, m_Fields.size(), null);
+
+        JsonToken token = m_Parser.nextToken();
+        while (token == JsonToken.START_ARRAY || token == JsonToken.END_ARRAY)
+        {
+            token = m_Parser.nextToken();
+        }
+
+        if (token == null)
+        {
+            return false;
+        }
+        if (token != JsonToken.START_OBJECT)
+        {
+            throw new IOException("Expected a JSON object but found " + token +
+                    " at " + m_Parser.getCurrentLocation());
+        }
+
+        readObject("", record);
+        return true;
+    }
+
+    private void readObject(String prefix, String [] record)
+    throws IOException
+    {
+        while (m_Parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String name = prefix + m_Parser.getCurrentName();
+            JsonToken token = m_Parser.nextToken();
+
+            if (token == JsonToken.START_OBJECT)
+            {
+                readObject(name + ".", record);
+            }
+            else if (token == JsonToken.START_ARRAY)
+            {
+                m_Parser.skipChildren();
+            }
+            else if (token != JsonToken.VALUE_NULL)
+            {
+                Integer index = m_FieldIndexes.get(name);
+                if (index != null)
+                {
+                    record[index] = m_Parser.getText();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        m_Parser.close();
+    }
+}
@@ -0,0 +1,76 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Writes each record as a flat JSON object on its own line.
+ * All values are written as strings.
+ */
+class JsonRecordWriter extends RecordWriter
+{
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final JsonGenerator m_Generator;
+    private final List<String> m_Fields;
+
+    JsonRecordWriter(OutputStream output, List<String> fields)
+    throws IOException
+    {
+        m_Generator = JSON_FACTORY.createGenerator(output, JsonEncoding.UTF8);
+        m_Generator.setRootValueSeparator(new SerializedString("\n"));
+        m_Fields = fields;
+    }
+
+    @Override
+    void start()
+    {
+        // JSON has no header
+    }
+
+    @Override
+    void write(String [] record)
+    throws IOException
+    {
+        m_Generator.writeStartObject();
+        for (int i = 0; i < m_Fields.size(); i++)
+        {
+            if (record[i] != null)
+            {
+                m_Generator.writeStringField(m_Fields.get(i), record[i]);
+            }
+        }
+        m_Generator.writeEndObject();
+    }
+
+    @Override
+    void flush()
+    throws IOException
+    {
+        m_Generator.flush();
+    }
+}
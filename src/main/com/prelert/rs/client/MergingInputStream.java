@@ -0,0 +1,242 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+
+import com.prelert.job.DataDescription;
+
+/**
+ * Interleaves several inputs, each in time order, into a single time
+ * ordered stream for one upload, for example the rotated or per node
+ * log files feeding a job. The merge streams: each input is parsed
+ * incrementally with its own reusable buffers and a heap of the inputs'
+ * cursors keyed on the time of their current record picks the next
+ * record. Records with equal times are taken from the inputs in the
+ * order they were given.
+ * <br/>
+ * All the inputs must be in the same format. Records whose time cannot
+ * be parsed are dropped. A record earlier than the previous record of
+ * the same input is counted as out of order; it is still merged but
+ * the output will not be in order around it.
+ * Closing this stream closes all the inputs.
+ */
+public class MergingInputStream extends RecordRewritingInputStream
+{
+    private static final Logger LOGGER = Logger.getLogger(MergingInputStream.class);
+
+    private final MergingRecordReader m_Merger;
+
+    /**
+     * Merge delineated inputs keeping all the columns of the first
+     * input's header. Times without an offset are in the default time zone.
+     *
+     * @param inputs The time ordered inputs
+     * @param dataDescription The format of the inputs
+     * @throws IOException If a header cannot be read or does not contain
+     * the fields
+     */
+    public MergingInputStream(List<InputStream> inputs, DataDescription dataDescription)
+    throws IOException
+    {
+        this(inputs, dataDescription, null, TimeZone.getDefault());
+    }
+
+    /**
+     * @param inputs The time ordered inputs
+     * @param dataDescription The format of the inputs
+     * @param fields The fields to keep, must include the time field. May be
+     * <code>null</code> for delineated data to keep all the columns of
+     * the first input's header
+     * @param zone The time zone of times without an offset
+     * @throws IOException If a header cannot be read or does not contain
+     * the fields
+     */
+    public MergingInputStream(List<InputStream> inputs, DataDescription dataDescription,
+            List<String> fields, TimeZone zone)
+    throws IOException
+    {
+        this(createMerger(inputs, dataDescription, fields, zone), dataDescription);
+    }
+
+    private MergingInputStream(MergingRecordReader merger, DataDescription dataDescription)
+    throws IOException
+    {
+        super(merger, dataDescription, null);
+        m_Merger = merger;
+    }
+
+    private static MergingRecordReader createMerger(List<InputStream> inputs,
+            DataDescription dataDescription, List<String> fields, TimeZone zone)
+    throws IOException
+    {
+        List<InputSource> sources = new ArrayList<>();
+        try
+        {
+            for (InputStream input : inputs)
+            {
+                RecordReader reader = RecordReader.create(input, dataDescription, fields);
+                if (fields == null)
+                {
+                    fields = reader.fields();
+                }
+                sources.add(new InputSource(reader, dataDescription, zone, sources.size()));
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            for (InputSource source : sources)
+            {
+                source.close();
+            }
+            throw e;
+        }
+
+        if (fields == null)
+        {
+            fields = new ArrayList<>();
+        }
+        return new MergingRecordReader(fields, sources);
+    }
+
+    /**
+     * The number of records dropped so far because the time could
+     * not be parsed
+     * @return The invalid date count
+     */
+    public long getInvalidDateCount()
+    {
+        long count = 0;
+        for (TimedRecordSource source : m_Merger.sources())
+        {
+            count += ((InputSource)source).m_InvalidDateCount;
+        }
+        return count;
+    }
+
+    /**
+     * The number of records so far that were earlier than the previous
+     * record of the same input
+     * @return The out of order count
+     */
+    public long getOutOfOrderCount()
+    {
+        long count = 0;
+        for (TimedRecordSource source : m_Merger.sources())
+        {
+            count += ((InputSource)source).m_OutOfOrderCount;
+        }
+        return count;
+    }
+
+    @Override
+    protected void processRecord(String [] record)
+    throws IOException
+    {
+        emit(record);
+    }
+
+
+    /**
+     * A cursor over one input
+     */
+    private static class InputSource extends TimedRecordSource
+    {
+        private final RecordReader m_Reader;
+        private final TimestampParser m_Parser;
+        private final int m_TimeIndex;
+        private final int m_InputNumber;
+        private final String [] m_Record;
+        private long m_Time = Long.MIN_VALUE;
+
+        long m_InvalidDateCount;
+        long m_OutOfOrderCount;
+
+        InputSource(RecordReader reader, DataDescription dataDescription, TimeZone zone,
+                int inputNumber)
+        throws IOException
+        {
+            m_Reader = reader;
+            m_Parser = TimestampParser.compile(dataDescription.getTimeFormat(), zone);
+            m_TimeIndex = reader.fields().indexOf(dataDescription.getTimeField());
+            m_InputNumber = inputNumber;
+            m_Record = new String[reader.fields().size()];
+
+            if (m_TimeIndex < 0 && reader.fields().isEmpty() == false)
+            {
+                reader.close();
+                throw new IOException("The time field '" + dataDescription.getTimeField() +
+                        "' is not in the fields " + reader.fields() + " of input " + inputNumber);
+            }
+        }
+
+        @Override
+        boolean next()
+        throws IOException
+        {
+            while (m_Reader.read(m_Record))
+            {
+                long time = m_Parser.parse(m_Record[m_TimeIndex]);
+                if (time == TimestampParser.INVALID)
+                {
+                    if (m_InvalidDateCount++ == 0)
+                    {
+                        LOGGER.warn("Cannot parse the time '" + m_Record[m_TimeIndex] +
+                                "' in input " + m_InputNumber +
+                                ", records with invalid times are dropped");
+                    }
+                    continue;
+                }
+
+                if (time < m_Time)
+                {
+                    m_OutOfOrderCount++;
+                }
+                m_Time = time;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        long time()
+        {
+            return m_Time;
+        }
+
+        @Override
+        String [] record()
+        {
+            return m_Record;
+        }
+
+        @Override
+        public void close()
+        throws IOException
+        {
+            m_Reader.close();
+        }
+    }
+}
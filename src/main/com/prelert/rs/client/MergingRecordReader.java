@@ -0,0 +1,149 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges several time ordered record sources into one time ordered
+ * sequence. A heap of the sources' cursors is keyed on the time of
+ * each source's current record; records with equal times are taken
+ * from the source that comes first in the list.
+ */
+class MergingRecordReader extends RecordReader
+{
+    private final List<String> m_Fields;
+    private final List<TimedRecordSource> m_Sources;
+    private final PriorityQueue<Cursor> m_Heap;
+    private Cursor m_Current;
+    private boolean m_Started;
+
+    /**
+     * @param fields The fields of the sources' records
+     * @param sources Closed with this reader
+     */
+    MergingRecordReader(List<String> fields, List<? extends TimedRecordSource> sources)
+    {
+        m_Fields = Collections.unmodifiableList(new ArrayList<>(fields));
+        m_Sources = new ArrayList<TimedRecordSource>(sources);
+        m_Heap = new PriorityQueue<>(Math.max(1, sources.size()));
+    }
+
+    @Override
+    List<String> fields()
+    {
+        return m_Fields;
+    }
+
+    /**
+     * The sources in merge priority order
+     */
+    List<TimedRecordSource> sources()
+    {
+        return Collections.unmodifiableList(m_Sources);
+    }
+
+    @Override
+    boolean read(String [] record)
+    throws IOException
+    {
+        if (m_Started == false)
+        {
+            for (int i = 0; i < m_Sources.size(); i++)
+            {
+                Cursor cursor = new Cursor(m_Sources.get(i), i);
+                if (cursor.m_Source.next())
+                {
+                    m_Heap.add(cursor);
+                }
+            }
+            m_Started = true;
+        }
+        else if (m_Current != null && m_Current.m_Source.next())
+        {
+            // re-insert the cursor at the time of its new record
+            m_Heap.add(m_Current);
+        }
+
+        m_Current = m_Heap.poll();
+        if (m_Current == null)
+        {
+            return false;
+        }
+
+        String [] values = m_Current.m_Source.record();
+        System.arraycopy(values, 0, record, 0, m_Fields.size());
+        return true;
+    }
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        IOException first = null;
+        for (TimedRecordSource source : m_Sources)
+        {
+            try
+            {
+                source.close();
+            }
+            catch (IOException e)
+            {
+                if (first == null)
+                {
+                    first = e;
+                }
+            }
+        }
+
+        if (first != null)
+        {
+            throw first;
+        }
+    }
+
+
+    private static class Cursor implements Comparable<Cursor>
+    {
+        final TimedRecordSource m_Source;
+        final int m_Index;
+
+        Cursor(TimedRecordSource source, int index)
+        {
+            m_Source = source;
+            m_Index = index;
+        }
+
+        @Override
+        public int compareTo(Cursor other)
+        {
+            long a = m_Source.time();
+            long b = other.m_Source.time();
+            if (a != b)
+            {
+                return (a < b) ? -1 : 1;
+            }
+            return (m_Index < other.m_Index) ? -1 : (m_Index == other.m_Index ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.prelert.rs.data.ApiError;
+import com.prelert.rs.data.Pagination;
+
+/**
+ * A lazy view of all the documents in a paged result set.
+ * Iterating follows the {@linkplain Pagination#getNextPage()} links
+ * fetching the following pages in the background while the caller
+ * works through the current one. At most <code>pagesAhead</code>
+ * pages are buffered ahead of the caller.
+ * <br/>
+ * Each call to {@linkplain #iterator()} starts a new walk from the
+ * first page. If the iteration is abandoned before the end close the
+ * iterator to stop the background fetch. The fetch only holds the
+ * iterator weakly so one that cannot be closed, as in a for-each loop
+ * that breaks early, stops fetching once the iterator has been garbage
+ * collected; until then it holds at most <code>pagesAhead</code> pages
+ * and a thread of the executor. A caller may take as long as it likes
+ * over each page.
+ * <br/>
+ * If the API returns an error the iteration ends early and the
+ * error is available from {@linkplain #getLastError()}. If a page
+ * cannot be read an {@link IllegalStateException} wrapping the
+ * <code>IOException</code> is thrown by the iterator.
+ *
+ * @param <T> The document type
+ */
+public class PagedResults<T> implements Iterable<T>
+{
+    private static final Logger LOGGER = Logger.getLogger(PagedResults.class);
+
+    /**
+     * The default number of pages fetched ahead of the caller
+     */
+    public static final int DEFAULT_PAGES_AHEAD = 2;
+
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+    private final EngineApiClient m_Client;
+    private final String m_FirstPageUrl;
+    private final TypeReference<Pagination<T>> m_TypeRef;
+    private final int m_PagesAhead;
+    private final Executor m_Executor;
+
+    private volatile ApiError m_LastError;
+
+    /**
+     * @param client The client used to fetch the pages
+     * @param firstPageUrl The full url of the first page
+     * @param typeRef The type of the page
+     * @param pagesAhead The maximum number of pages buffered ahead
+     * of the caller, must be &gt;= 1
+     * @param executor Runs the background fetch
+     */
+    public PagedResults(EngineApiClient client, String firstPageUrl,
+            TypeReference<Pagination<T>> typeRef, int pagesAhead, Executor executor)
+    {
+        if (pagesAhead < 1)
+        {
+            throw new IllegalArgumentException("pagesAhead must be >= 1");
+        }
+
+        m_Client = client;
+        m_FirstPageUrl = firstPageUrl;
+        m_TypeRef = typeRef;
+        m_PagesAhead = pagesAhead;
+        m_Executor = executor;
+    }
+
+    /**
+     * Start a new walk over the results. The returned iterator
+     * is also {@link Closeable}.
+     */
+    @Override
+    public ResultIterator iterator()
+    {
+        m_LastError = null;
+
+        ResultIterator iter = new ResultIterator();
+        m_Executor.execute(new Fetcher(iter));
+        return iter;
+    }
+
+    /**
+     * The error returned by the API during the most recent iteration
+     * @return The error or <code>null</code>
+     */
+    public ApiError getLastError()
+    {
+        return m_LastError;
+    }
+
+
+    /**
+     * A fetched page, the last page or a failure
+     */
+    private static class FetchedPage<T>
+    {
+        List<T> m_Documents = Collections.emptyList();
+        boolean m_IsLast;
+        ApiError m_Error;
+        IOException m_Exception;
+    }
+
+    /**
+     * The buffer shared by an iterator and its fetch. The fetch
+     * refers to this and not to the iterator so the iterator can
+     * be collected while the fetch is blocked.
+     */
+    private static class PageBuffer<T>
+    {
+        final BlockingQueue<FetchedPage<T>> m_Pages;
+        volatile boolean m_Closed;
+        volatile boolean m_FetcherDone;
+
+        PageBuffer(int pagesAhead)
+        {
+            m_Pages = new ArrayBlockingQueue<>(pagesAhead);
+        }
+    }
+
+    /**
+     * Iterates over the documents of the buffered pages
+     */
+    public class ResultIterator implements Iterator<T>, Closeable
+    {
+        private final PageBuffer<T> m_Buffer;
+        private Iterator<T> m_Current;
+        private boolean m_Finished;
+
+        private ResultIterator()
+        {
+            m_Buffer = new PageBuffer<>(m_PagesAhead);
+            m_Current = Collections.<T>emptyList().iterator();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while (m_Current.hasNext() == false)
+            {
+                if (m_Finished)
+                {
+                    return false;
+                }
+
+                FetchedPage<T> page = takePage();
+                if (page.m_Exception != null)
+                {
+                    m_Finished = true;
+                    throw new IllegalStateException("Error reading result page",
+                            page.m_Exception);
+                }
+                if (page.m_Error != null)
+                {
+                    m_LastError = page.m_Error;
+                    m_Finished = true;
+                    return false;
+                }
+
+                m_Current = page.m_Documents.iterator();
+                m_Finished = page.m_IsLast;
+            }
+
+            return true;
+        }
+
+        @Override
+        public T next()
+        {
+            if (hasNext() == false)
+            {
+                throw new NoSuchElementException();
+            }
+            return m_Current.next();
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stop the background fetch and discard any buffered pages
+         */
+        @Override
+        public void close()
+        {
+            m_Buffer.m_Closed = true;
+            m_Finished = true;
+            m_Current = Collections.<T>emptyList().iterator();
+            m_Buffer.m_Pages.clear();
+        }
+
+        private FetchedPage<T> takePage()
+        {
+            try
+            {
+                while (true)
+                {
+                    FetchedPage<T> page = m_Buffer.m_Pages.poll(OFFER_TIMEOUT_MS,
+                            TimeUnit.MILLISECONDS);
+                    if (page != null)
+                    {
+                        return page;
+                    }
+
+                    // check the queue again in case the last page
+                    // was added just before the fetcher finished
+                    if (m_Buffer.m_FetcherDone && m_Buffer.m_Pages.isEmpty())
+                    {
+                        m_Finished = true;
+                        throw new IllegalStateException("The result page fetch stopped unexpectedly");
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException("Interrupted waiting for result page", e);
+            }
+        }
+    }
+
+    /**
+     * Runs in the background following the next page links until
+     * the last page, the iterator is closed or it has been collected
+     */
+    private class Fetcher implements Runnable
+    {
+        private final PageBuffer<T> m_Buffer;
+        private final WeakReference<ResultIterator> m_Owner;
+
+        Fetcher(ResultIterator owner)
+        {
+            m_Buffer = owner.m_Buffer;
+            m_Owner = new WeakReference<>(owner);
+        }
+
+        @Override
+        public void run()
+        {
+            String url = m_FirstPageUrl;
+            try
+            {
+                while (url != null && m_Buffer.m_Closed == false)
+                {
+                    FetchedPage<T> fetched = new FetchedPage<>();
+
+                    ApiResult<Pagination<T>> result = m_Client.getResult(url, m_TypeRef);
+                    Pagination<T> page = result.getResult();
+                    if (page == null)
+                    {
+                        fetched.m_Error = result.getError();
+                        if (fetched.m_Error == null)
+                        {
+                            fetched.m_Error = new ApiError();
+                            fetched.m_Error.setMessage("No page returned for " + url);
+                        }
+                        put(fetched);
+                        return;
+                    }
+
+                    url = (page.getNextPage() == null) ? null : page.getNextPage().toString();
+
+                    if (page.getDocuments() != null)
+                    {
+                        fetched.m_Documents = page.getDocuments();
+                    }
+                    fetched.m_IsLast = (url == null);
+                    put(fetched);
+                }
+            }
+            catch (IOException e)
+            {
+                LOGGER.error("Error fetching result page " + url, e);
+
+                FetchedPage<T> fetched = new FetchedPage<>();
+                fetched.m_Exception = e;
+                put(fetched);
+            }
+            finally
+            {
+                m_Buffer.m_FetcherDone = true;
+            }
+        }
+
+        /**
+         * Block while the buffer is full unless the iterator is
+         * closed or has been garbage collected
+         */
+        private void put(FetchedPage<T> page)
+        {
+            try
+            {
+                while (m_Buffer.m_Closed == false)
+                {
+                    if (m_Buffer.m_Pages.offer(page, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                    {
+                        return;
+                    }
+
+                    if (m_Owner.get() == null)
+                    {
+                        LOGGER.debug("Result iterator abandoned without being closed, " +
+                                "stopping the fetch of " + m_FirstPageUrl);
+                        m_Buffer.m_Closed = true;
+                        m_Buffer.m_Pages.clear();
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                m_Buffer.m_Closed = true;
+            }
+        }
+    }
+}
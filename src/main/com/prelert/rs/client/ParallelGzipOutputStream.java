@@ -0,0 +1,401 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a single gzip stream compressing blocks of the input in
+ * parallel. Each block is deflated independently on the executor,
+ * primed with the last 32Kb of the previous block as its dictionary
+ * so the compression ratio stays close to that of a serial compressor,
+ * and ended on a byte boundary with a sync flush so the compressed
+ * blocks can simply be concatenated. The output is an ordinary gzip
+ * stream that any gzip reader accepts.
+ * <br/>
+ * At most <code>maxBlocksInFlight</code> blocks are compressed at once
+ * which bounds both the memory used and the parallelism.
+ * <br/>
+ * Not thread safe, a single thread should write to the stream.
+ * {@linkplain #finish()} or {@linkplain #close()} must be called to
+ * complete the gzip stream.
+ */
+public class ParallelGzipOutputStream extends FilterOutputStream
+{
+    /**
+     * The default size of the uncompressed blocks
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte [] GZIP_HEADER = new byte [] {
+        (byte)0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final int m_Level;
+    private final int m_MaxBlocksInFlight;
+    private final ExecutorService m_Executor;
+
+    private final Deque<Future<byte []>> m_Pending = new ArrayDeque<>();
+    private final Queue<Deflater> m_Deflaters = new ConcurrentLinkedQueue<>();
+    private final CRC32 m_Crc = new CRC32();
+    private long m_UncompressedSize;
+
+    private byte [] m_Block;
+    private int m_BlockLength;
+    private byte [] m_Dictionary;
+
+    private boolean m_HeaderWritten;
+
+    // read by the compression tasks
+    private volatile boolean m_Finished;
+
+    /**
+     * Compress with the default block size
+     *
+     * @param out The compressed output
+     * @param level The deflate compression level 0-9 or -1 for the default
+     * @param maxBlocksInFlight The maximum number of blocks compressed
+     * concurrently
+     * @param executor Runs the compression tasks
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level,
+            int maxBlocksInFlight, ExecutorService executor)
+    {
+        this(out, level, maxBlocksInFlight, executor, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param out The compressed output
+     * @param level The deflate compression level 0-9 or -1 for the default
+     * @param maxBlocksInFlight The maximum number of blocks compressed
+     * concurrently
+     * @param executor Runs the compression tasks
+     * @param blockSize The size of the uncompressed blocks
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level,
+            int maxBlocksInFlight, ExecutorService executor, int blockSize)
+    {
+        super(out);
+
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+        {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        if (maxBlocksInFlight < 1)
+        {
+            throw new IllegalArgumentException("maxBlocksInFlight must be >= 1");
+        }
+        if (blockSize < DICTIONARY_SIZE)
+        {
+            throw new IllegalArgumentException("blockSize must be >= " + DICTIONARY_SIZE);
+        }
+
+        m_Level = level;
+        m_MaxBlocksInFlight = maxBlocksInFlight;
+        m_Executor = executor;
+        m_Block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b)
+    throws IOException
+    {
+        write(new byte [] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte [] b, int off, int len)
+    throws IOException
+    {
+        if (m_Finished)
+        {
+            throw new IOException("Write after the gzip stream was finished");
+        }
+
+        while (len > 0)
+        {
+            int length = Math.min(len, m_Block.length - m_BlockLength);
+            System.arraycopy(b, off, m_Block, m_BlockLength, length);
+            m_BlockLength += length;
+            off += length;
+            len -= length;
+
+            if (m_BlockLength == m_Block.length)
+            {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Writes the compressed blocks that are already complete and
+     * flushes the underlying stream. Data buffered in the current
+     * block is not flushed.
+     */
+    @Override
+    public void flush()
+    throws IOException
+    {
+        writeHeader();
+        while (m_Pending.isEmpty() == false && m_Pending.peekFirst().isDone())
+        {
+            writeNextBlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Compress the remaining data and write the gzip trailer
+     * without closing the underlying stream.
+     *
+     * @throws IOException
+     */
+    public void finish()
+    throws IOException
+    {
+        if (m_Finished)
+        {
+            return;
+        }
+
+        try
+        {
+            submitBlock(true);
+            while (m_Pending.isEmpty() == false)
+            {
+                writeNextBlock();
+            }
+            writeTrailer();
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    /**
+     * Stop without writing the rest of the gzip stream, cancelling the
+     * blocks still being compressed and releasing the native deflaters.
+     * Use when the data cannot be completed, after
+     * {@linkplain #finish()} this does nothing.
+     */
+    public void abort()
+    {
+        if (m_Finished == false)
+        {
+            release();
+        }
+    }
+
+    private void release()
+    {
+        m_Finished = true;
+        for (Future<byte []> future : m_Pending)
+        {
+            future.cancel(true);
+        }
+        m_Pending.clear();
+
+        Deflater deflater;
+        while ((deflater = m_Deflaters.poll()) != null)
+        {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        try
+        {
+            finish();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void submitBlock(boolean last)
+    throws IOException
+    {
+        writeHeader();
+
+        m_Crc.update(m_Block, 0, m_BlockLength);
+        m_UncompressedSize += m_BlockLength;
+
+        while (m_Pending.size() >= m_MaxBlocksInFlight)
+        {
+            writeNextBlock();
+        }
+
+        m_Pending.addLast(m_Executor.submit(
+                new CompressTask(m_Block, m_BlockLength, m_Dictionary, last)));
+
+        if (last == false)
+        {
+            m_Dictionary = Arrays.copyOfRange(m_Block,
+                            m_BlockLength - DICTIONARY_SIZE, m_BlockLength);
+            // the submitted block belongs to the task now
+            m_Block = new byte[m_Block.length];
+            m_BlockLength = 0;
+        }
+    }
+
+    private void writeNextBlock()
+    throws IOException
+    {
+        Future<byte []> future = m_Pending.removeFirst();
+        try
+        {
+            out.write(future.get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for compressed block", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Error compressing block", e.getCause());
+        }
+    }
+
+    private void writeHeader()
+    throws IOException
+    {
+        if (m_HeaderWritten == false)
+        {
+            out.write(GZIP_HEADER);
+            m_HeaderWritten = true;
+        }
+    }
+
+    private void writeTrailer()
+    throws IOException
+    {
+        byte [] trailer = new byte[8];
+        writeIntLE(trailer, 0, m_Crc.getValue());
+        writeIntLE(trailer, 4, m_UncompressedSize);
+        out.write(trailer);
+    }
+
+    private static void writeIntLE(byte [] b, int off, long value)
+    {
+        b[off] = (byte)value;
+        b[off + 1] = (byte)(value >> 8);
+        b[off + 2] = (byte)(value >> 16);
+        b[off + 3] = (byte)(value >> 24);
+    }
+
+    /**
+     * Deflates one block to a raw deflate fragment
+     */
+    private class CompressTask implements Callable<byte []>
+    {
+        private final byte [] m_Input;
+        private final int m_Length;
+        private final byte [] m_Dict;
+        private final boolean m_Last;
+
+        CompressTask(byte [] input, int length, byte [] dictionary, boolean last)
+        {
+            m_Input = input;
+            m_Length = length;
+            m_Dict = dictionary;
+            m_Last = last;
+        }
+
+        @Override
+        public byte [] call()
+        {
+            Deflater deflater = m_Deflaters.poll();
+            if (deflater == null)
+            {
+                deflater = new Deflater(m_Level, true);
+            }
+
+            try
+            {
+                if (m_Dict != null)
+                {
+                    deflater.setDictionary(m_Dict);
+                }
+                deflater.setInput(m_Input, 0, m_Length);
+                if (m_Last)
+                {
+                    deflater.finish();
+                }
+
+                byte [] output = new byte[m_Length / 2 + 64];
+                int outputLength = 0;
+                while (true)
+                {
+                    if (outputLength == output.length)
+                    {
+                        output = Arrays.copyOf(output, output.length * 2);
+                    }
+
+                    int space = output.length - outputLength;
+                    int written = deflater.deflate(output, outputLength, space,
+                            m_Last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    outputLength += written;
+
+                    // a sync flush is complete when it leaves space
+                    // in the output buffer
+                    boolean done = m_Last ? deflater.finished() : written < space;
+                    if (done)
+                    {
+                        break;
+                    }
+                }
+
+                return Arrays.copyOf(output, outputLength);
+            }
+            finally
+            {
+                deflater.reset();
+                m_Deflaters.offer(deflater);
+
+                // a task still running when the stream was finished or
+                // aborted returns its deflater after the pooled ones
+                // have been ended
+                if (m_Finished && m_Deflaters.remove(deflater))
+                {
+                    deflater.end();
+                }
+            }
+        }
+    }
+}
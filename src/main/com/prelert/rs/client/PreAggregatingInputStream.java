@@ -0,0 +1,609 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import com.prelert.job.AnalysisConfig;
+import com.prelert.job.DataDescription;
+import com.prelert.job.Detector;
+import com.prelert.job.JobDetails;
+
+/**
+ * Collapses raw events into summary rows before they are uploaded.
+ * Events are grouped by time slot and the values of all the by, over
+ * and partition fields; each group is written as one row whose time is
+ * the start of the slot and whose
+ * {@linkplain AnalysisConfig#getSummaryCountFieldName() summary count
+ * field} is the number of events in the group.
+ * <br/>
+ * Pre-aggregation is only done when every detector's function can be
+ * computed from the summary rows:
+ * <ul>
+ * <li>The count functions need only the summary count</li>
+ * <li>The sum functions write the sum of the field values</li>
+ * <li><code>min</code> and <code>max</code> write the minimum or maximum</li>
+ * <li>The mean functions write the mean, which the Engine weights by
+ * the summary count. As a row has a single count the events of a group
+ * are further divided by which of the mean fields they have a value for,
+ * so every mean is over exactly the row's summary count of values and a
+ * field with no values is left empty.</li>
+ * </ul>
+ * Any other function, a field that would need two different aggregates
+ * or a job without a summary count field is refused with an
+ * <code>IllegalArgumentException</code>; see
+ * {@linkplain #aggregationProblem(AnalysisConfig)}.
+ * <br/>
+ * A slot is written once the data has moved on past the end of the slot
+ * by more than the job's latency. Events for a slot that has already
+ * been written are sent as their own summary row. The output times are
+ * in seconds since the epoch so the receiving job must use the time
+ * format {@value DataDescription#EPOCH}.
+ */
+public class PreAggregatingInputStream extends RecordRewritingInputStream
+{
+    private static final Logger LOGGER = Logger.getLogger(PreAggregatingInputStream.class);
+
+    private enum Aggregate
+    {
+        SUM, MIN, MAX, MEAN
+    }
+
+    private static final Map<String, Aggregate> METRIC_FUNCTIONS = new HashMap<>();
+    static
+    {
+        METRIC_FUNCTIONS.put(Detector.SUM, Aggregate.SUM);
+        METRIC_FUNCTIONS.put(Detector.LOW_SUM, Aggregate.SUM);
+        METRIC_FUNCTIONS.put(Detector.HIGH_SUM, Aggregate.SUM);
+        METRIC_FUNCTIONS.put(Detector.NON_NULL_SUM, Aggregate.SUM);
+        METRIC_FUNCTIONS.put(Detector.LOW_NON_NULL_SUM, Aggregate.SUM);
+        METRIC_FUNCTIONS.put(Detector.HIGH_NON_NULL_SUM, Aggregate.SUM);
+        METRIC_FUNCTIONS.put(Detector.MIN, Aggregate.MIN);
+        METRIC_FUNCTIONS.put(Detector.MAX, Aggregate.MAX);
+        METRIC_FUNCTIONS.put(Detector.MEAN, Aggregate.MEAN);
+        METRIC_FUNCTIONS.put(Detector.AVG, Aggregate.MEAN);
+        METRIC_FUNCTIONS.put(Detector.HIGH_MEAN, Aggregate.MEAN);
+        METRIC_FUNCTIONS.put(Detector.HIGH_AVG, Aggregate.MEAN);
+        METRIC_FUNCTIONS.put(Detector.LOW_MEAN, Aggregate.MEAN);
+        METRIC_FUNCTIONS.put(Detector.LOW_AVG, Aggregate.MEAN);
+    }
+
+    private static final int MAX_MEAN_FIELDS = 64;
+
+    private final TimestampParser m_TimeParser;
+    private final long m_SlotSpan;
+    private final long m_Latency;
+    private final int m_SplitFieldCount;
+    private final Aggregate [] m_Aggregates;
+    private final double [] m_MetricValues;
+    private final boolean [] m_MetricPresent;
+
+    private final TreeMap<Long, Map<GroupKey, Group>> m_OpenSlots = new TreeMap<>();
+    private final GroupKey m_Probe;
+    private final String [] m_Output;
+
+    private long m_MaxTime = Long.MIN_VALUE;
+    private long m_ClosedBefore = Long.MIN_VALUE;
+    private long m_RecordCount;
+    private long m_RowCount;
+    private long m_LateRecordCount;
+    private long m_InvalidDateCount;
+
+    /**
+     * Aggregate into slots of the job's bucket span
+     *
+     * @param input The raw events
+     * @param analysisConfig The job's analysis configuration
+     * @param dataDescription The format of the events
+     * @throws IOException If the source header cannot be read or does
+     * not contain one of the required fields
+     * @throws IllegalArgumentException If the job's detectors cannot
+     * be run on pre-aggregated data
+     */
+    public PreAggregatingInputStream(InputStream input, AnalysisConfig analysisConfig,
+            DataDescription dataDescription)
+    throws IOException
+    {
+        this(input, analysisConfig, dataDescription, bucketSpan(analysisConfig));
+    }
+
+    /**
+     * @param input The raw events
+     * @param analysisConfig The job's analysis configuration
+     * @param dataDescription The format of the events
+     * @param slotSpan The width of the time slots in seconds, must
+     * divide the bucket span
+     * @throws IOException If the source header cannot be read or does
+     * not contain one of the required fields
+     * @throws IllegalArgumentException If the job's detectors cannot
+     * be run on pre-aggregated data or the slot span is invalid
+     */
+    public PreAggregatingInputStream(InputStream input, AnalysisConfig analysisConfig,
+            DataDescription dataDescription, long slotSpan)
+    throws IOException
+    {
+        super(input, dataDescription, inputFields(analysisConfig, dataDescription),
+                outputFields(analysisConfig, dataDescription));
+
+        long bucketSpan = bucketSpan(analysisConfig);
+        if (slotSpan <= 0 || bucketSpan % slotSpan != 0)
+        {
+            throw new IllegalArgumentException("The slot span " + slotSpan +
+                    " must divide the bucket span " + bucketSpan);
+        }
+
+        m_TimeParser = TimestampParser.compile(dataDescription.getTimeFormat(),
+                TimeZone.getDefault());
+        m_SlotSpan = slotSpan;
+        m_Latency = (analysisConfig.getLatency() == null) ? 0 : analysisConfig.getLatency();
+
+        List<String> splitFields = splitFields(analysisConfig);
+        Map<String, Aggregate> metrics = metricFields(analysisConfig);
+        m_SplitFieldCount = splitFields.size();
+        m_Aggregates = metrics.values().toArray(new Aggregate[metrics.size()]);
+        m_MetricValues = new double[m_Aggregates.length];
+        m_MetricPresent = new boolean[m_Aggregates.length];
+
+        int meanCount = 0;
+        for (Aggregate aggregate : m_Aggregates)
+        {
+            meanCount += (aggregate == Aggregate.MEAN) ? 1 : 0;
+        }
+        if (meanCount > MAX_MEAN_FIELDS)
+        {
+            throw new IllegalArgumentException("Cannot pre-aggregate more than " +
+                    MAX_MEAN_FIELDS + " mean fields");
+        }
+
+        m_Probe = new GroupKey(new String[m_SplitFieldCount], 0);
+        m_Output = new String[getOutputFields().size()];
+    }
+
+    /**
+     * Check whether the job's detectors can be run on data
+     * pre-aggregated by this class
+     *
+     * @param analysisConfig The job's analysis configuration
+     * @return <code>null</code> if the data can be pre-aggregated else
+     * the reason it cannot
+     */
+    public static String aggregationProblem(AnalysisConfig analysisConfig)
+    {
+        if (analysisConfig.getSummaryCountFieldName() == null ||
+                analysisConfig.getSummaryCountFieldName().isEmpty())
+        {
+            return "The job has no summaryCountFieldName";
+        }
+
+        Map<String, Aggregate> fieldAggregates = new HashMap<>();
+        for (Detector detector : analysisConfig.getDetectors())
+        {
+            String function = detector.getFunction();
+            if (function == null || function.isEmpty())
+            {
+                function = (detector.getFieldName() == null) ? Detector.COUNT : Detector.METRIC;
+            }
+
+            if (Detector.COUNT_WITHOUT_FIELD_FUNCTIONS.contains(function))
+            {
+                continue;
+            }
+
+            Aggregate aggregate = METRIC_FUNCTIONS.get(function);
+            if (aggregate == null)
+            {
+                return "The function '" + function + "' cannot be computed from summarised data";
+            }
+
+            Aggregate previous = fieldAggregates.put(detector.getFieldName(), aggregate);
+            if (previous != null && previous != aggregate)
+            {
+                return "The field '" + detector.getFieldName() + "' is used by both " +
+                        previous.name().toLowerCase() + " and " +
+                        aggregate.name().toLowerCase() + " functions";
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The number of raw events read so far
+     * @return The event count
+     */
+    public long getRecordCount()
+    {
+        return m_RecordCount;
+    }
+
+    /**
+     * The number of summary rows written so far
+     * @return The row count
+     */
+    public long getRowCount()
+    {
+        return m_RowCount;
+    }
+
+    /**
+     * The number of events that arrived after their slot was written
+     * and were sent as their own summary row
+     * @return The late event count
+     */
+    public long getLateRecordCount()
+    {
+        return m_LateRecordCount;
+    }
+
+    /**
+     * The number of events dropped because the time could not be parsed
+     * @return The invalid date count
+     */
+    public long getInvalidDateCount()
+    {
+        return m_InvalidDateCount;
+    }
+
+    @Override
+    protected void processRecord(String [] record)
+    throws IOException
+    {
+        m_RecordCount++;
+
+        long time = m_TimeParser.parse(record[0]);
+        if (time == TimestampParser.INVALID)
+        {
+            if (m_InvalidDateCount++ == 0)
+            {
+                LOGGER.warn("Cannot parse the time '" + record[0] + "', " +
+                            "records with invalid times are dropped");
+            }
+            return;
+        }
+
+        long slot = TimestampParser.floorDiv(time, m_SlotSpan) * m_SlotSpan;
+        m_MaxTime = Math.max(m_MaxTime, time);
+
+        long meanMask = parseMetrics(record);
+
+        if (slot < m_ClosedBefore)
+        {
+            m_LateRecordCount++;
+            Group group = new Group(copySplitValues(record), meanMask, m_Aggregates.length);
+            group.add();
+            emitGroup(slot, group);
+            return;
+        }
+
+        Map<GroupKey, Group> groups = m_OpenSlots.get(slot);
+        if (groups == null)
+        {
+            groups = new LinkedHashMap<>();
+            m_OpenSlots.put(slot, groups);
+        }
+
+        System.arraycopy(record, 1, m_Probe.m_Values, 0, m_SplitFieldCount);
+        m_Probe.m_MeanMask = meanMask;
+        m_Probe.rehash();
+        Group group = groups.get(m_Probe);
+        if (group == null)
+        {
+            group = new Group(copySplitValues(record), meanMask, m_Aggregates.length);
+            groups.put(group.m_Key, group);
+        }
+        group.add();
+
+        closeSlots(false);
+    }
+
+    /**
+     * Parse the record's metric values into <code>m_MetricValues</code>
+     * and <code>m_MetricPresent</code>
+     *
+     * @return A bit for each mean field in order, set if the
+     * record has a value for it
+     */
+    private long parseMetrics(String [] record)
+    {
+        long meanMask = 0;
+        int mean = 0;
+        for (int m = 0; m < m_Aggregates.length; m++)
+        {
+            m_MetricPresent[m] = false;
+
+            String text = record[1 + m_SplitFieldCount + m];
+            if (text != null && text.isEmpty() == false)
+            {
+                try
+                {
+                    m_MetricValues[m] = Double.parseDouble(text);
+                    m_MetricPresent[m] = true;
+                }
+                catch (NumberFormatException e)
+                {
+                    // treated as a missing value
+                }
+            }
+
+            if (m_Aggregates[m] == Aggregate.MEAN)
+            {
+                if (m_MetricPresent[m])
+                {
+                    meanMask |= 1L << mean;
+                }
+                mean++;
+            }
+        }
+        return meanMask;
+    }
+
+    @Override
+    protected void endOfInput()
+    throws IOException
+    {
+        closeSlots(true);
+    }
+
+    private void closeSlots(boolean all)
+    throws IOException
+    {
+        Iterator<Map.Entry<Long, Map<GroupKey, Group>>> iter = m_OpenSlots.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry<Long, Map<GroupKey, Group>> entry = iter.next();
+            long slotEnd = entry.getKey() + m_SlotSpan;
+            if (all == false && slotEnd + m_Latency > m_MaxTime)
+            {
+                break;
+            }
+
+            for (Group group : entry.getValue().values())
+            {
+                emitGroup(entry.getKey(), group);
+            }
+            iter.remove();
+            m_ClosedBefore = Math.max(m_ClosedBefore, slotEnd);
+        }
+    }
+
+    private void emitGroup(long slot, Group group)
+    throws IOException
+    {
+        int i = 0;
+        m_Output[i++] = Long.toString(slot);
+        for (String value : group.m_Key.m_Values)
+        {
+            m_Output[i++] = value;
+        }
+        for (int m = 0; m < m_Aggregates.length; m++)
+        {
+            m_Output[i++] = group.value(m, m_Aggregates[m]);
+        }
+        m_Output[i] = Long.toString(group.m_Count);
+
+        emit(m_Output);
+        m_RowCount++;
+    }
+
+    private String [] copySplitValues(String [] record)
+    {
+        return Arrays.copyOfRange(record, 1, 1 + m_SplitFieldCount);
+    }
+
+    private static long bucketSpan(AnalysisConfig analysisConfig)
+    {
+        return (analysisConfig.getBucketSpan() == null) ?
+                JobDetails.DEFAULT_BUCKETSPAN : analysisConfig.getBucketSpan();
+    }
+
+    /**
+     * The by, over and partition fields of all the detectors
+     */
+    private static List<String> splitFields(AnalysisConfig analysisConfig)
+    {
+        Set<String> fields = new LinkedHashSet<>();
+        for (Detector detector : analysisConfig.getDetectors())
+        {
+            for (String field : new String [] {detector.getByFieldName(),
+                    detector.getOverFieldName(), detector.getPartitionFieldName()})
+            {
+                if (field != null && field.isEmpty() == false)
+                {
+                    fields.add(field);
+                }
+            }
+        }
+        return new ArrayList<>(fields);
+    }
+
+    /**
+     * The metric fields and their aggregate, in field order
+     */
+    private static Map<String, Aggregate> metricFields(AnalysisConfig analysisConfig)
+    {
+        Map<String, Aggregate> fields = new LinkedHashMap<>();
+        for (Detector detector : analysisConfig.getDetectors())
+        {
+            Aggregate aggregate = METRIC_FUNCTIONS.get(detector.getFunction());
+            if (aggregate != null)
+            {
+                fields.put(detector.getFieldName(), aggregate);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Time, split fields then metric fields
+     */
+    private static List<String> inputFields(AnalysisConfig analysisConfig,
+            DataDescription dataDescription)
+    {
+        String problem = aggregationProblem(analysisConfig);
+        if (problem != null)
+        {
+            throw new IllegalArgumentException("Cannot pre-aggregate: " + problem);
+        }
+
+        List<String> fields = new ArrayList<>();
+        fields.add(dataDescription.getTimeField());
+        fields.addAll(splitFields(analysisConfig));
+        fields.addAll(metricFields(analysisConfig).keySet());
+        return fields;
+    }
+
+    /**
+     * The input fields then the summary count field
+     */
+    private static List<String> outputFields(AnalysisConfig analysisConfig,
+            DataDescription dataDescription)
+    {
+        List<String> fields = inputFields(analysisConfig, dataDescription);
+        fields.add(analysisConfig.getSummaryCountFieldName());
+        return fields;
+    }
+
+    private static String format(double value)
+    {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+        {
+            return Long.toString((long)value);
+        }
+        return Double.toString(value);
+    }
+
+
+    /**
+     * The split field values of a group and which mean fields its
+     * events have values for. The probe key is reused for lookups
+     * so a key is only copied for a new group.
+     */
+    private static class GroupKey
+    {
+        final String [] m_Values;
+        long m_MeanMask;
+        int m_Hash;
+
+        GroupKey(String [] values, long meanMask)
+        {
+            m_Values = values;
+            m_MeanMask = meanMask;
+            rehash();
+        }
+
+        void rehash()
+        {
+            m_Hash = 31 * Arrays.hashCode(m_Values) + (int)(m_MeanMask ^ (m_MeanMask >>> 32));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return m_Hash;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof GroupKey &&
+                    m_MeanMask == ((GroupKey)other).m_MeanMask &&
+                    Arrays.equals(m_Values, ((GroupKey)other).m_Values);
+        }
+    }
+
+    /**
+     * The running aggregates of a group
+     */
+    private class Group
+    {
+        final GroupKey m_Key;
+        long m_Count;
+        final double [] m_Values;
+        final long [] m_ValueCounts;
+
+        Group(String [] splitValues, long meanMask, int metricCount)
+        {
+            m_Key = new GroupKey(splitValues, meanMask);
+            m_Values = new double[metricCount];
+            m_ValueCounts = new long[metricCount];
+        }
+
+        /**
+         * Add the metric values last parsed
+         */
+        void add()
+        {
+            m_Count++;
+            for (int m = 0; m < m_Values.length; m++)
+            {
+                if (m_MetricPresent[m] == false)
+                {
+                    continue;
+                }
+
+                double value = m_MetricValues[m];
+                if (m_ValueCounts[m]++ == 0)
+                {
+                    m_Values[m] = value;
+                    continue;
+                }
+
+                switch (m_Aggregates[m])
+                {
+                    case MIN:
+                        m_Values[m] = Math.min(m_Values[m], value);
+                        break;
+                    case MAX:
+                        m_Values[m] = Math.max(m_Values[m], value);
+                        break;
+                    default:
+                        m_Values[m] += value;
+                        break;
+                }
+            }
+        }
+
+        String value(int m, Aggregate aggregate)
+        {
+            if (m_ValueCounts[m] == 0)
+            {
+                return null;
+            }
+            if (aggregate == Aggregate.MEAN)
+            {
+                return format(m_Values[m] / m_ValueCounts[m]);
+            }
+            return format(m_Values[m]);
+        }
+    }
+}
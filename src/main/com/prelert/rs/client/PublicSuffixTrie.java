@@ -0,0 +1,391 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An immutable trie of public suffix rules in the format of the
+ * <a href="https://publicsuffix.org/list/">Public Suffix List</a>,
+ * used to split a host name into its sub domain and highest registered
+ * domain. The rules are compiled once into sorted label arrays so a
+ * lookup walks the labels of the host in place without allocating.
+ * <br/>
+ * Normal rules (<code>co.uk</code>), wildcard rules (<code>*.ck</code>)
+ * and exception rules (<code>!www.ck</code>) are supported. A host whose
+ * last label matches no rule is treated as having a one label public
+ * suffix.
+ * <br/>
+ * {@linkplain #defaultTrie()} compiles the list from the classpath
+ * resource {@value #PUBLIC_SUFFIX_RESOURCE}, which is bundled in the
+ * client jar. If the resource is missing a built in list of the common
+ * suffixes is used and a warning logged; the sub domain and
+ * <code>hrd</code> found by the client side <code>domain_lookup</code>
+ * transform may then differ from the Engine API server's, and also
+ * will if the bundled list is older or newer than the server's.
+ * Thread safe.
+ */
+public class PublicSuffixTrie
+{
+    private static final Logger LOGGER = Logger.getLogger(PublicSuffixTrie.class);
+
+    /**
+     * The classpath resource the default trie is compiled from
+     */
+    public static final String PUBLIC_SUFFIX_RESOURCE = "/public_suffix_list.dat";
+
+    private static final String [] BUILT_IN_RULES = {
+        "com", "net", "org", "edu", "gov", "mil", "int", "info", "biz", "name",
+        "pro", "aero", "coop", "museum", "mobi", "asia", "tel", "travel", "jobs",
+        "cat", "xxx", "io", "me", "tv", "cc", "ly", "ai", "app", "dev", "xyz",
+        "online", "site", "eu", "us", "ca", "de", "fr", "it", "es", "nl", "be",
+        "ch", "at", "se", "no", "dk", "fi", "pl", "ru", "ie", "pt", "cz", "gr",
+        "hu", "ro", "ua", "lu",
+        "uk", "co.uk", "org.uk", "me.uk", "ltd.uk", "plc.uk", "net.uk", "ac.uk",
+        "gov.uk", "sch.uk", "nhs.uk", "police.uk",
+        "jp", "co.jp", "ne.jp", "or.jp", "ac.jp", "go.jp", "ad.jp", "ed.jp",
+        "au", "com.au", "net.au", "org.au", "edu.au", "gov.au", "asn.au", "id.au",
+        "nz", "co.nz", "org.nz", "net.nz", "govt.nz", "ac.nz", "school.nz",
+        "br", "com.br", "net.br", "org.br", "gov.br", "edu.br",
+        "cn", "com.cn", "net.cn", "org.cn", "gov.cn", "edu.cn", "ac.cn",
+        "in", "co.in", "net.in", "org.in", "gov.in", "ac.in", "firm.in", "gen.in",
+        "za", "co.za", "org.za", "gov.za", "ac.za", "web.za",
+        "kr", "co.kr", "or.kr", "go.kr", "ac.kr", "ne.kr",
+        "mx", "com.mx", "org.mx", "gob.mx", "edu.mx",
+        "ar", "com.ar", "org.ar", "gob.ar", "net.ar",
+        "tr", "com.tr", "org.tr", "gov.tr", "net.tr",
+        "sg", "com.sg", "org.sg", "gov.sg", "edu.sg", "net.sg",
+        "hk", "com.hk", "org.hk", "gov.hk", "edu.hk", "net.hk",
+        "tw", "com.tw", "org.tw", "gov.tw", "edu.tw", "net.tw",
+        "il", "co.il", "org.il", "ac.il", "gov.il", "net.il",
+        "ck", "*.ck", "!www.ck",
+        "bd", "*.bd",
+    };
+
+    private static volatile PublicSuffixTrie s_Default;
+
+    private final Node m_Root;
+
+    /**
+     * Compile the trie from a collection of rules. Blank rules and
+     * rules starting with <code>//</code> are ignored.
+     *
+     * @param rules
+     */
+    public PublicSuffixTrie(Collection<String> rules)
+    {
+        BuildNode root = new BuildNode();
+        for (String rule : rules)
+        {
+            rule = rule.trim();
+            if (rule.isEmpty() || rule.startsWith("//"))
+            {
+                continue;
+            }
+
+            boolean exception = rule.startsWith("!");
+            if (exception)
+            {
+                rule = rule.substring(1);
+            }
+
+            String [] labels = rule.toLowerCase(Locale.ROOT).split("\\.");
+            BuildNode node = root;
+            for (int i = labels.length - 1; i >= 0; i--)
+            {
+                BuildNode child = node.m_Children.get(labels[i]);
+                if (child == null)
+                {
+                    child = new BuildNode();
+                    node.m_Children.put(labels[i], child);
+                }
+                node = child;
+            }
+
+            if (exception)
+            {
+                node.m_IsException = true;
+            }
+            else
+            {
+                node.m_IsRule = true;
+            }
+        }
+
+        m_Root = root.compile();
+    }
+
+    /**
+     * Compile the trie from a stream in the Public Suffix List format.
+     * Only the first whitespace delimited token of each line is read.
+     *
+     * @param input UTF-8 text, not closed
+     * @return The trie
+     * @throws IOException
+     */
+    public static PublicSuffixTrie load(InputStream input)
+    throws IOException
+    {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(input, StandardCharsets.UTF_8));
+
+        List<String> rules = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            String [] tokens = line.trim().split("\\s+", 2);
+            rules.add(tokens[0]);
+        }
+
+        return new PublicSuffixTrie(rules);
+    }
+
+    /**
+     * The shared trie compiled from {@value #PUBLIC_SUFFIX_RESOURCE}
+     * or, if the resource is not on the classpath, the built in list
+     * of common suffixes.
+     *
+     * @return The default trie
+     */
+    public static PublicSuffixTrie defaultTrie()
+    {
+        PublicSuffixTrie trie = s_Default;
+        if (trie == null)
+        {
+            synchronized (PublicSuffixTrie.class)
+            {
+                trie = s_Default;
+                if (trie == null)
+                {
+                    trie = compileDefault();
+                    s_Default = trie;
+                }
+            }
+        }
+        return trie;
+    }
+
+    private static PublicSuffixTrie compileDefault()
+    {
+        try (InputStream input = PublicSuffixTrie.class.getResourceAsStream(PUBLIC_SUFFIX_RESOURCE))
+        {
+            if (input != null)
+            {
+                return load(input);
+            }
+
+            LOGGER.warn(PUBLIC_SUFFIX_RESOURCE + " is not on the classpath, " +
+                    "using the built in public suffixes. Domain lookups " +
+                    "may differ from the server's");
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Error reading " + PUBLIC_SUFFIX_RESOURCE +
+                    ", using the built in public suffixes", e);
+        }
+
+        return new PublicSuffixTrie(Arrays.asList(BUILT_IN_RULES));
+    }
+
+    /**
+     * Find where the public suffix of <code>host</code> starts.
+     * A trailing '.' is not part of the suffix.
+     *
+     * @param host The host name
+     * @return The index of the first character of the public suffix
+     */
+    public int publicSuffixStart(String host)
+    {
+        int end = hostEnd(host);
+        int suffixStart = labelStart(host, end);
+        Node node = m_Root;
+        int labelEnd = end;
+
+        while (labelEnd > 0 && node != null)
+        {
+            int labelStart = labelStart(host, labelEnd);
+
+            Node child = node.find(host, labelStart, labelEnd);
+            if (child != null && child.m_IsException)
+            {
+                // the exception's parent is the suffix
+                return (labelEnd == end) ? labelStart : labelEnd + 1;
+            }
+            if (child != null && child.m_IsRule)
+            {
+                suffixStart = labelStart;
+            }
+            else if (child == null && node.m_Wildcard != null)
+            {
+                suffixStart = labelStart;
+            }
+
+            if (child == null)
+            {
+                child = node.m_Wildcard;
+            }
+
+            node = child;
+            labelEnd = labelStart - 1;
+        }
+
+        return suffixStart;
+    }
+
+    /**
+     * Find where the highest registered domain of <code>host</code>
+     * starts, that is the public suffix and one more label.
+     *
+     * @param host The host name
+     * @return The index of the first character of the registered domain.
+     * 0 if the host is a public suffix.
+     */
+    public int registeredDomainStart(String host)
+    {
+        int suffixStart = publicSuffixStart(host);
+        if (suffixStart <= 1)
+        {
+            return 0;
+        }
+        return labelStart(host, suffixStart - 1);
+    }
+
+    private static int hostEnd(String host)
+    {
+        int end = host.length();
+        if (end > 0 && host.charAt(end - 1) == '.')
+        {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * The start of the label that ends at <code>end</code>
+     */
+    private static int labelStart(String host, int end)
+    {
+        int dot = host.lastIndexOf('.', end - 1);
+        return dot + 1;
+    }
+
+
+    /**
+     * A compiled node, children are held in label order for
+     * binary search
+     */
+    private static class Node
+    {
+        String [] m_Labels;
+        Node [] m_Children;
+        Node m_Wildcard;
+        boolean m_IsRule;
+        boolean m_IsException;
+
+        Node find(String host, int start, int end)
+        {
+            int low = 0;
+            int high = m_Labels.length - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(m_Labels[mid], host, start, end);
+                if (cmp < 0)
+                {
+                    low = mid + 1;
+                }
+                else if (cmp > 0)
+                {
+                    high = mid - 1;
+                }
+                else
+                {
+                    return m_Children[mid];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Compare the lower case <code>label</code> with the region of
+         * <code>host</code> ignoring case
+         */
+        private static int compare(String label, String host, int start, int end)
+        {
+            int length = end - start;
+            int common = Math.min(label.length(), length);
+            for (int i = 0; i < common; i++)
+            {
+                char a = label.charAt(i);
+                char b = Character.toLowerCase(host.charAt(start + i));
+                if (a != b)
+                {
+                    return a - b;
+                }
+            }
+            return label.length() - length;
+        }
+    }
+
+    /**
+     * Mutable node used while building the trie
+     */
+    private static class BuildNode
+    {
+        final Map<String, BuildNode> m_Children = new TreeMap<>();
+        boolean m_IsRule;
+        boolean m_IsException;
+
+        Node compile()
+        {
+            Node node = new Node();
+            node.m_IsRule = m_IsRule;
+            node.m_IsException = m_IsException;
+
+            BuildNode wildcard = m_Children.remove("*");
+            if (wildcard != null)
+            {
+                node.m_Wildcard = wildcard.compile();
+                node.m_Wildcard.m_IsRule = true;
+            }
+
+            node.m_Labels = m_Children.keySet().toArray(new String[m_Children.size()]);
+            node.m_Children = new Node[node.m_Labels.length];
+            int i = 0;
+            for (BuildNode child : m_Children.values())
+            {
+                node.m_Children[i++] = child.compile();
+            }
+            return node;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import com.prelert.job.DataDescription;
+import com.prelert.job.DataDescription.DataFormat;
+
+/**
+ * Reads the records of upload data in the format described by a
+ * {@link DataDescription}. Each record is read as the values of a
+ * fixed list of fields, in the order of {@linkplain #fields()}.
+ */
+abstract class RecordReader implements Closeable
+{
+    /**
+     * Create a reader for the data format in <code>dataDescription</code>
+     *
+     * @param input The data
+     * @param dataDescription Describes the data format
+     * @param fields The fields to read. For delineated data this may be
+     * <code>null</code> in which case every column in the header is read.
+     * @return The reader
+     * @throws IOException If the header cannot be read
+     */
+    static RecordReader create(InputStream input, DataDescription dataDescription,
+            List<String> fields)
+    throws IOException
+    {
+        if (dataDescription.getFormat() == DataFormat.JSON)
+        {
+            if (fields == null)
+            {
+                throw new IllegalArgumentException("The fields of JSON data must be given");
+            }
+            return new JsonRecordReader(input, fields);
+        }
+
+        return new DelimitedRecordReader(input, dataDescription, fields);
+    }
+
+    /**
+     * The fields read, in record order
+     * @return The field names
+     */
+    abstract List<String> fields();
+
+    /**
+     * Read the next record into <code>record</code> which must be
+     * at least as long as {@linkplain #fields()}. A field absent
+     * from the record is set to <code>null</code>.
+     *
+     * @param record The record values are written here
+     * @return False at the end of the input
+     * @throws IOException
+     */
+    abstract boolean read(String [] record)
+    throws IOException;
+}
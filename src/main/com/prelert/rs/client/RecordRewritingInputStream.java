@@ -0,0 +1,254 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import com.prelert.job.DataDescription;
+
+/**
+ * Base class for streams that rewrite upload data record by record
+ * on the fly. The source data is parsed in the format of the job's
+ * {@link DataDescription} and each record is passed to
+ * {@linkplain #processRecord(String[])} which may {@linkplain #emit(String[])}
+ * any number of output records. The output is written in the same
+ * format and read from this stream so it can be passed to any of the
+ * upload methods of {@link EngineApiClient}.
+ * <br/>
+ * Records are processed in batches as the stream is read so only a
+ * small amount of the data is held in memory at a time.
+ */
+public abstract class RecordRewritingInputStream extends InputStream
+{
+    private static final int BATCH_SIZE = 64 * 1024;
+    private static final int RECORDS_PER_SIZE_CHECK = 32;
+
+    private final RecordReader m_Reader;
+    private final RecordWriter m_Writer;
+    private final List<String> m_InputFields;
+    private final List<String> m_OutputFields;
+    private final String [] m_Record;
+
+    private final BatchBuffer m_Batch = new BatchBuffer();
+    private int m_BatchPosition;
+    private boolean m_Started;
+    private boolean m_EndOfInput;
+
+    /**
+     * @param input The source data
+     * @param dataDescription The format of the source and output data
+     * @param inputFields The fields read from each source record.
+     * If <code>null</code> and the data is delineated all the columns
+     * are read.
+     * @param outputFields The fields of the output records. If
+     * <code>null</code> the same as the input fields.
+     * @throws IOException If the source header cannot be read
+     */
+    protected RecordRewritingInputStream(InputStream input, DataDescription dataDescription,
+            List<String> inputFields, List<String> outputFields)
+    throws IOException
+    {
+        this(RecordReader.create(input, dataDescription, inputFields),
+                dataDescription, outputFields);
+    }
+
+    /**
+     * Rewrite the records from <code>reader</code>
+     *
+     * @param reader The source records
+     * @param dataDescription The format of the output data
+     * @param outputFields The fields of the output records. If
+     * <code>null</code> the same as the reader's fields.
+     * @throws IOException
+     */
+    RecordRewritingInputStream(RecordReader reader, DataDescription dataDescription,
+            List<String> outputFields)
+    throws IOException
+    {
+        m_Reader = reader;
+        m_InputFields = m_Reader.fields();
+        m_OutputFields = (outputFields == null) ? m_InputFields : outputFields;
+        m_Writer = RecordWriter.create(m_Batch, dataDescription, m_OutputFields);
+        m_Record = new String[m_InputFields.size()];
+    }
+
+    /**
+     * The fields of the source records in the order they are passed
+     * to {@linkplain #processRecord(String[])}
+     * @return The input field names
+     */
+    public List<String> getInputFields()
+    {
+        return m_InputFields;
+    }
+
+    /**
+     * The fields of the output records in the order expected by
+     * {@linkplain #emit(String[])}
+     * @return The output field names
+     */
+    public List<String> getOutputFields()
+    {
+        return m_OutputFields;
+    }
+
+    /**
+     * Process a source record. The array is reused for the next record
+     * so implementations that hold on to a record must copy it.
+     *
+     * @param record The values of the {@linkplain #getInputFields()},
+     * <code>null</code> if the field is missing
+     * @throws IOException
+     */
+    protected abstract void processRecord(String [] record)
+    throws IOException;
+
+    /**
+     * Called once at the end of the source data so implementations
+     * can emit any records they are holding. Does nothing by default.
+     *
+     * @throws IOException
+     */
+    protected void endOfInput()
+    throws IOException
+    {
+    }
+
+    /**
+     * Write an output record
+     *
+     * @param record The values of the {@linkplain #getOutputFields()}
+     * @throws IOException
+     */
+    protected final void emit(String [] record)
+    throws IOException
+    {
+        m_Writer.write(record);
+    }
+
+    @Override
+    public int read()
+    throws IOException
+    {
+        if (available() == 0 && fill() == false)
+        {
+            return -1;
+        }
+        return m_Batch.byteAt(m_BatchPosition++);
+    }
+
+    @Override
+    public int read(byte [] b, int off, int len)
+    throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (available() == 0 && fill() == false)
+        {
+            return -1;
+        }
+
+        int length = Math.min(len, available());
+        m_Batch.copyTo(m_BatchPosition, b, off, length);
+        m_BatchPosition += length;
+        return length;
+    }
+
+    @Override
+    public int available()
+    {
+        return m_Batch.size() - m_BatchPosition;
+    }
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        m_Reader.close();
+    }
+
+    /**
+     * Rewrite the next batch of records
+     * @return False if there is no more output
+     */
+    private boolean fill()
+    throws IOException
+    {
+        m_Batch.reset();
+        m_BatchPosition = 0;
+
+        if (m_Started == false)
+        {
+            m_Writer.start();
+            m_Started = true;
+        }
+
+        int count = 0;
+        while (m_EndOfInput == false)
+        {
+            if (m_Reader.read(m_Record))
+            {
+                processRecord(m_Record);
+            }
+            else
+            {
+                m_EndOfInput = true;
+                endOfInput();
+            }
+
+            if (++count % RECORDS_PER_SIZE_CHECK == 0)
+            {
+                m_Writer.flush();
+                if (m_Batch.size() >= BATCH_SIZE)
+                {
+                    break;
+                }
+            }
+        }
+
+        m_Writer.flush();
+        return m_Batch.size() > 0;
+    }
+
+    /**
+     * Exposes the buffer so it can be read without copying
+     */
+    private static class BatchBuffer extends ByteArrayOutputStream
+    {
+        BatchBuffer()
+        {
+            super(BATCH_SIZE + BATCH_SIZE / 2);
+        }
+
+        int byteAt(int index)
+        {
+            return buf[index] & 0xff;
+        }
+
+        void copyTo(int index, byte [] b, int off, int len)
+        {
+            System.arraycopy(buf, index, b, off, len);
+        }
+    }
+}
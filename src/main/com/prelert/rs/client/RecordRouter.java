@@ -0,0 +1,643 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.prelert.job.DataDescription;
+
+/**
+ * Splits one input between many jobs parsing it only once.
+ * Each record is passed to a {@link RoutingRule} that names its job,
+ * for example by the value of a customer field, and is written to
+ * that job's buffer. When a job's buffer reaches <code>chunkBytes</code>
+ * it is sent as one bounded upload on the client's background threads.
+ * Each job's chunks are uploaded in order, one at a time.
+ * <br/>
+ * A connection is held only while a chunk is being uploaded and no
+ * more uploads run at once than the client allows connections per
+ * route. The uploads are shared fairly between the jobs that have
+ * chunks waiting, so any number of jobs can be routed to.
+ * <br/>
+ * Reading never waits for a slow job. A chunk made while an earlier
+ * chunk of the same job is still waiting or uploading is spilled to a
+ * temporary file and uploaded from there, so a slow job uses disk
+ * rather than holding up the other jobs, and no data is dropped. Each
+ * job holds at most two chunks in memory: the one being filled and
+ * the one waiting or uploading. Once an upload to a job has failed
+ * the job's later records are dropped and counted in
+ * {@linkplain #getDroppedCounts()}.
+ * <br/>
+ * For delineated data every chunk starts with the header. The routed
+ * data is written in the input's format with the same fields, so every
+ * job must accept that format. Not thread safe.
+ */
+public class RecordRouter
+{
+    private static final Logger LOGGER = Logger.getLogger(RecordRouter.class);
+
+    /**
+     * The default size of the chunks uploaded to each job
+     */
+    public static final int DEFAULT_CHUNK_BYTES = 1024 * 1024;
+
+    private final EngineApiClient m_Client;
+    private final String m_BaseUrl;
+    private final DataDescription m_DataDescription;
+    private final List<String> m_Fields;
+    private final RoutingRule m_Rule;
+    private final int m_ChunkBytes;
+    private final File m_TempDirectory;
+
+    private long m_RecordCount;
+    private long m_UnroutedCount;
+    private final Map<String, Route> m_Routes = new LinkedHashMap<>();
+
+    /**
+     * The jobs with chunks waiting for an uploader, in turn.
+     * Also guards the routes' chunk queues and the fields below.
+     */
+    private final Deque<Route> m_Ready = new ArrayDeque<>();
+    private int m_MaxUploaders;
+    private int m_ActiveUploaders;
+    private boolean m_Abandoned;
+
+    /**
+     * Route delineated or JSON records by the value of
+     * <code>routeField</code>, the value is the job Id.
+     *
+     * @param client Uploads the data
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param dataDescription The format of the input
+     * @param fields The fields to read and send. May be <code>null</code>
+     * for delineated data to send all the columns of the header
+     * @param routeField The field whose value is the job Id
+     */
+    public RecordRouter(EngineApiClient client, String baseUrl,
+            DataDescription dataDescription, List<String> fields, String routeField)
+    {
+        this(client, baseUrl, dataDescription, fields, new FieldValueRule(routeField, null),
+                DEFAULT_CHUNK_BYTES, null);
+    }
+
+    /**
+     * Route records by the value of <code>routeField</code> looked up in
+     * <code>jobsByValue</code>. Records with other values are dropped.
+     *
+     * @param client Uploads the data
+     * @param baseUrl The base URL for the REST API including version number
+     * @param dataDescription The format of the input
+     * @param fields The fields to read and send. May be <code>null</code>
+     * for delineated data to send all the columns of the header
+     * @param routeField The field to route on
+     * @param jobsByValue Map of field value to job Id
+     */
+    public RecordRouter(EngineApiClient client, String baseUrl,
+            DataDescription dataDescription, List<String> fields, String routeField,
+            Map<String, String> jobsByValue)
+    {
+        this(client, baseUrl, dataDescription, fields,
+                new FieldValueRule(routeField, new HashMap<>(jobsByValue)),
+                DEFAULT_CHUNK_BYTES, null);
+    }
+
+    /**
+     * @param client Uploads the data
+     * @param baseUrl The base URL for the REST API including version number
+     * @param dataDescription The format of the input
+     * @param fields The fields to read and send. May be <code>null</code>
+     * for delineated data to send all the columns of the header
+     * @param rule Chooses the job for each record
+     * @param chunkBytes The size of each upload to a job, must be &gt;= 1
+     * @param tempDirectory Where the chunks of slow jobs are spilled.
+     * If <code>null</code> the default temporary file directory
+     */
+    public RecordRouter(EngineApiClient client, String baseUrl,
+            DataDescription dataDescription, List<String> fields, RoutingRule rule,
+            int chunkBytes, File tempDirectory)
+    {
+        if (chunkBytes < 1)
+        {
+            throw new IllegalArgumentException("chunkBytes must be >= 1");
+        }
+
+        m_Client = client;
+        m_BaseUrl = baseUrl;
+        m_DataDescription = dataDescription;
+        m_Fields = fields;
+        m_Rule = rule;
+        m_ChunkBytes = chunkBytes;
+        m_TempDirectory = tempDirectory;
+    }
+
+    /**
+     * Read all of <code>input</code> routing each record to its job
+     * then wait for all the uploads to finish. The input is closed.
+     * Each call starts new uploads and resets the counts.
+     *
+     * @param input The data in the format of the data description
+     * @return The outcome of the uploads to each job that had records,
+     * in the order the jobs were first seen
+     * @throws IOException If the input cannot be read, a chunk cannot
+     * be spilled or an upload could not be sent
+     */
+    public Map<String, UploadResult> route(InputStream input)
+    throws IOException
+    {
+        m_Routes.clear();
+        m_RecordCount = 0;
+        m_UnroutedCount = 0;
+        synchronized (m_Ready)
+        {
+            m_Ready.clear();
+            m_MaxUploaders = Math.min(m_Client.getMaxConnectionsPerRoute(),
+                    m_Client.getMaxConnectionsTotal());
+            m_Abandoned = false;
+        }
+
+        boolean complete = false;
+        try
+        {
+            try (RecordReader reader = RecordReader.create(input, m_DataDescription, m_Fields))
+            {
+                List<String> fields = Collections.unmodifiableList(reader.fields());
+                String [] record = new String[fields.size()];
+
+                while (reader.read(record))
+                {
+                    m_RecordCount++;
+
+                    String jobId = m_Rule.route(fields, record);
+                    if (jobId == null)
+                    {
+                        m_UnroutedCount++;
+                        continue;
+                    }
+
+                    Route route = m_Routes.get(jobId);
+                    if (route == null)
+                    {
+                        route = new Route(jobId, fields);
+                        m_Routes.put(jobId, route);
+                    }
+                    route.write(record);
+                }
+            }
+
+            for (Route route : m_Routes.values())
+            {
+                route.endChunk();
+            }
+            awaitUploaders();
+
+            Map<String, UploadResult> results = new LinkedHashMap<>();
+            for (Route route : m_Routes.values())
+            {
+                results.put(route.m_JobId, route.result());
+            }
+            complete = true;
+            return results;
+        }
+        finally
+        {
+            if (complete == false)
+            {
+                abandon();
+            }
+        }
+    }
+
+    /**
+     * The number of records read so far
+     * @return The record count
+     */
+    public long getRecordCount()
+    {
+        return m_RecordCount;
+    }
+
+    /**
+     * The number of records the rule did not route to any job
+     * @return The unrouted count
+     */
+    public long getUnroutedCount()
+    {
+        return m_UnroutedCount;
+    }
+
+    /**
+     * The number of records dropped for each job because an earlier
+     * upload to the job failed or routing was abandoned
+     * @return Map of job Id to dropped record count
+     */
+    public Map<String, Long> getDroppedCounts()
+    {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Route route : m_Routes.values())
+        {
+            counts.put(route.m_JobId, route.m_DroppedCount.get());
+        }
+        return counts;
+    }
+
+    /**
+     * Queue <code>route</code> for an uploader if it is not already
+     * queued or uploading, starting an uploader if fewer than the
+     * maximum are running. Call holding the m_Ready lock.
+     */
+    private void schedule(Route route)
+    {
+        if (route.m_Scheduled)
+        {
+            return;
+        }
+
+        route.m_Scheduled = true;
+        m_Ready.addLast(route);
+        if (m_ActiveUploaders < m_MaxUploaders)
+        {
+            m_ActiveUploaders++;
+            m_Client.backgroundExecutor().execute(new Uploader());
+        }
+    }
+
+    private void awaitUploaders()
+    throws IOException
+    {
+        synchronized (m_Ready)
+        {
+            try
+            {
+                while (m_ActiveUploaders > 0)
+                {
+                    m_Ready.wait();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the routed uploads", e);
+            }
+        }
+    }
+
+    /**
+     * Drop the chunks not yet uploaded and wait for the uploads
+     * in progress, which are bounded by the chunk size, to end
+     */
+    private void abandon()
+    {
+        synchronized (m_Ready)
+        {
+            m_Abandoned = true;
+            for (Route route : m_Ready)
+            {
+                route.dropChunks();
+                route.m_Scheduled = false;
+            }
+            m_Ready.clear();
+
+            while (m_ActiveUploaders > 0)
+            {
+                try
+                {
+                    m_Ready.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Routes on the value of a field, optionally mapped to a job Id
+     */
+    private static class FieldValueRule implements RoutingRule
+    {
+        private final String m_Field;
+        private final Map<String, String> m_JobsByValue;
+        private List<String> m_Fields;
+        private int m_Index;
+
+        FieldValueRule(String field, Map<String, String> jobsByValue)
+        {
+            m_Field = field;
+            m_JobsByValue = jobsByValue;
+        }
+
+        @Override
+        public String route(List<String> fields, String [] record)
+        {
+            if (fields != m_Fields)
+            {
+                m_Fields = fields;
+                m_Index = fields.indexOf(m_Field);
+                if (m_Index < 0)
+                {
+                    throw new IllegalArgumentException("The route field '" + m_Field +
+                            "' is not in the fields " + fields);
+                }
+            }
+
+            String value = record[m_Index];
+            if (value == null || value.isEmpty())
+            {
+                return null;
+            }
+            return (m_JobsByValue == null) ? value : m_JobsByValue.get(value);
+        }
+    }
+
+    /**
+     * The data for one upload, in memory or spilled to a file
+     */
+    private static class Chunk
+    {
+        private final byte [] m_Data;
+        private final File m_File;
+        private final long m_Length;
+        private final int m_Records;
+
+        Chunk(byte [] data, File file, long length, int records)
+        {
+            m_Data = data;
+            m_File = file;
+            m_Length = length;
+            m_Records = records;
+        }
+
+        void discard()
+        {
+            if (m_File != null && m_File.delete() == false && m_File.exists())
+            {
+                LOGGER.warn("Failed to delete routed chunk file " + m_File);
+            }
+        }
+    }
+
+    /**
+     * The chunk writer, queued chunks and upload outcome for one job
+     */
+    private class Route
+    {
+        private final String m_JobId;
+        private final List<String> m_RecordFields;
+        private final ByteArrayOutputStream m_Batch;
+        private RecordWriter m_Writer;
+        private int m_BatchRecords;
+
+        // guarded by m_Ready, the first chunk is the one uploading
+        private final Deque<Chunk> m_Chunks = new ArrayDeque<>();
+        private boolean m_Scheduled;
+
+        // written by one uploader at a time, read after they have all ended
+        private final UploadResult m_Result = new UploadResult();
+        private volatile IOException m_Error;
+        private volatile boolean m_Failed;
+        private final AtomicLong m_DroppedCount = new AtomicLong();
+
+        Route(String jobId, List<String> fields)
+        {
+            m_JobId = jobId;
+            m_RecordFields = fields;
+            m_Batch = new ByteArrayOutputStream(Math.min(m_ChunkBytes, 64 * 1024));
+        }
+
+        void write(String [] record)
+        throws IOException
+        {
+            if (m_Failed)
+            {
+                m_DroppedCount.incrementAndGet();
+                return;
+            }
+
+            if (m_Writer == null)
+            {
+                // every upload starts with the header
+                m_Batch.reset();
+                m_Writer = RecordWriter.create(m_Batch, m_DataDescription, m_RecordFields);
+                m_Writer.start();
+            }
+
+            m_Writer.write(record);
+            m_BatchRecords++;
+            if (m_Batch.size() >= m_ChunkBytes)
+            {
+                endChunk();
+            }
+        }
+
+        /**
+         * Queue the records written since the last chunk for upload,
+         * in memory if nothing is ahead of them else spilled to disk
+         */
+        void endChunk()
+        throws IOException
+        {
+            if (m_Writer == null)
+            {
+                return;
+            }
+
+            m_Writer.flush();
+            m_Writer = null;
+            int records = m_BatchRecords;
+            m_BatchRecords = 0;
+
+            boolean inMemory;
+            synchronized (m_Ready)
+            {
+                if (m_Failed || m_Abandoned)
+                {
+                    m_DroppedCount.addAndGet(records);
+                    return;
+                }
+                inMemory = m_Chunks.isEmpty();
+            }
+
+            // only this thread adds chunks so an empty queue stays empty
+            Chunk chunk = inMemory ?
+                    new Chunk(m_Batch.toByteArray(), null, m_Batch.size(), records) :
+                    spill(records);
+
+            synchronized (m_Ready)
+            {
+                m_Chunks.addLast(chunk);
+                schedule(this);
+            }
+        }
+
+        private Chunk spill(int records)
+        throws IOException
+        {
+            File file = File.createTempFile("routed-", ".chunk", m_TempDirectory);
+            try (OutputStream out = new FileOutputStream(file))
+            {
+                m_Batch.writeTo(out);
+            }
+            catch (IOException e)
+            {
+                file.delete();
+                throw e;
+            }
+            return new Chunk(null, file, m_Batch.size(), records);
+        }
+
+        /**
+         * Upload one chunk, on an uploader thread
+         */
+        void upload(Chunk chunk)
+        {
+            try
+            {
+                ApiResult<Boolean> upload;
+                if (chunk.m_File != null)
+                {
+                    upload = m_Client.fileUploadResult(m_BaseUrl, m_JobId, chunk.m_File,
+                            false, null);
+                }
+                else
+                {
+                    upload = m_Client.bufferUploadResult(m_BaseUrl, m_JobId,
+                            Collections.singletonList(ByteBuffer.wrap(chunk.m_Data)),
+                            false, null);
+                }
+
+                if (upload.isSuccess())
+                {
+                    m_Result.chunkAccepted(chunk.m_Length);
+                }
+                else
+                {
+                    long start = m_Result.getBytesAccepted();
+                    m_Result.failed(start, start + chunk.m_Length, upload.getError());
+                    m_Failed = true;
+                }
+            }
+            catch (IOException | RuntimeException e)
+            {
+                m_Error = (e instanceof IOException) ? (IOException)e : new IOException(e);
+                m_Failed = true;
+            }
+            finally
+            {
+                chunk.discard();
+            }
+
+            if (m_Failed)
+            {
+                LOGGER.warn("Upload to job " + m_JobId + " failed, its later records " +
+                        "will be dropped");
+            }
+        }
+
+        /**
+         * Discard the queued chunks, call holding the m_Ready lock
+         */
+        void dropChunks()
+        {
+            for (Chunk chunk : m_Chunks)
+            {
+                m_DroppedCount.addAndGet(chunk.m_Records);
+                chunk.discard();
+            }
+            m_Chunks.clear();
+        }
+
+        UploadResult result()
+        throws IOException
+        {
+            if (m_Error != null)
+            {
+                throw new IOException("Error uploading to job " + m_JobId, m_Error);
+            }
+            return m_Result;
+        }
+    }
+
+    /**
+     * Uploads the next chunk of each ready job in turn until
+     * no job has chunks waiting
+     */
+    private class Uploader implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                Route route;
+                Chunk chunk;
+                synchronized (m_Ready)
+                {
+                    route = m_Ready.pollFirst();
+                    if (route == null)
+                    {
+                        m_ActiveUploaders--;
+                        m_Ready.notifyAll();
+                        return;
+                    }
+                    chunk = route.m_Chunks.peekFirst();
+                }
+
+                route.upload(chunk);
+
+                synchronized (m_Ready)
+                {
+                    route.m_Chunks.removeFirst();
+                    if (route.m_Failed || m_Abandoned)
+                    {
+                        route.dropChunks();
+                    }
+
+                    if (route.m_Chunks.isEmpty())
+                    {
+                        route.m_Scheduled = false;
+                    }
+                    else
+                    {
+                        m_Ready.addLast(route);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.prelert.job.DataDescription;
+import com.prelert.job.DataDescription.DataFormat;
+
+/**
+ * Writes records in the format described by a {@link DataDescription}.
+ * Each record is the values of a fixed list of fields.
+ */
+abstract class RecordWriter
+{
+    /**
+     * Create a writer for the data format in <code>dataDescription</code>
+     *
+     * @param output
+     * @param dataDescription Describes the data format
+     * @param fields The fields in record order
+     * @return The writer
+     * @throws IOException
+     */
+    static RecordWriter create(OutputStream output, DataDescription dataDescription,
+            List<String> fields)
+    throws IOException
+    {
+        if (dataDescription.getFormat() == DataFormat.JSON)
+        {
+            return new JsonRecordWriter(output, fields);
+        }
+
+        return new DelimitedRecordWriter(output, dataDescription, fields);
+    }
+
+    /**
+     * Write anything that precedes the first record such as a header
+     * @throws IOException
+     */
+    abstract void start()
+    throws IOException;
+
+    /**
+     * Write a record. <code>null</code> values are written as empty
+     * values in delineated data and omitted from JSON.
+     *
+     * @param record The values in field order
+     * @throws IOException
+     */
+    abstract void write(String [] record)
+    throws IOException;
+
+    /**
+     * Flush buffered output to the underlying stream
+     * @throws IOException
+     */
+    abstract void flush()
+    throws IOException;
+}
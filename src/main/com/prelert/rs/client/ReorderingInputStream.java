@@ -0,0 +1,310 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+
+import com.prelert.job.AnalysisConfig;
+import com.prelert.job.DataDescription;
+
+/**
+ * Puts slightly out of order records back into time order before
+ * they are uploaded. Records are held in a priority queue keyed on
+ * their time and released once the latest time seen is more than the
+ * reorder window after them, so a record can arrive up to the window
+ * late and still be sent in order.
+ * <br/>
+ * The memory held is bounded: when the estimated size of the held
+ * records exceeds the limit the earliest records are released early.
+ * A record older than the last one released cannot be sent in order
+ * and is dropped, these late drops are counted. Records with times
+ * that cannot be parsed are also dropped and counted.
+ * <br/>
+ * The records are written unchanged.
+ */
+public class ReorderingInputStream extends RecordRewritingInputStream
+{
+    private static final Logger LOGGER = Logger.getLogger(ReorderingInputStream.class);
+
+    /**
+     * The default limit on the estimated size of the held records
+     */
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 64L * 1024 * 1024;
+
+    private static final int RECORD_OVERHEAD_BYTES = 64;
+    private static final int STRING_OVERHEAD_BYTES = 48;
+
+    private final TimestampParser m_TimeParser;
+    private final int m_TimeIndex;
+    private final long m_Window;
+    private final long m_MaxBufferedBytes;
+
+    private final PriorityQueue<Held> m_Queue;
+    private long m_BufferedBytes;
+    private long m_Sequence;
+    private long m_MaxTime = Long.MIN_VALUE;
+    private long m_LastReleasedTime = Long.MIN_VALUE;
+
+    private long m_RecordCount;
+    private long m_ReorderedCount;
+    private long m_LateDropCount;
+    private long m_EarlyReleaseCount;
+    private long m_InvalidDateCount;
+    private int m_MaxHeldCount;
+
+    /**
+     * Reorder within the job's latency keeping only the fields the
+     * job uses. Times without an offset are in the default time zone.
+     *
+     * @param input The source data
+     * @param analysisConfig The job's analysis configuration
+     * @param dataDescription The format of the data
+     * @throws IOException If the source header cannot be read or does
+     * not contain one of the required fields
+     */
+    public ReorderingInputStream(InputStream input, AnalysisConfig analysisConfig,
+            DataDescription dataDescription)
+    throws IOException
+    {
+        this(input, dataDescription,
+                FieldProjectingInputStream.projectedFields(analysisConfig, dataDescription, null),
+                (analysisConfig.getLatency() == null) ? 0 : analysisConfig.getLatency(),
+                DEFAULT_MAX_BUFFERED_BYTES, TimeZone.getDefault());
+    }
+
+    /**
+     * @param input The source data
+     * @param dataDescription The format of the data
+     * @param fields The fields to keep, must include the time field. May be
+     * <code>null</code> for delineated data to keep all the columns
+     * @param windowSeconds How late a record may be and still be sent in order
+     * @param maxBufferedBytes The limit on the estimated size of the
+     * held records
+     * @param zone The time zone of times without an offset
+     * @throws IOException If the source header cannot be read or does
+     * not contain the time field
+     */
+    public ReorderingInputStream(InputStream input, DataDescription dataDescription,
+            List<String> fields, long windowSeconds, long maxBufferedBytes, TimeZone zone)
+    throws IOException
+    {
+        super(input, dataDescription, fields, null);
+
+        if (windowSeconds < 0)
+        {
+            throw new IllegalArgumentException("windowSeconds must be >= 0");
+        }
+
+        m_TimeParser = TimestampParser.compile(dataDescription.getTimeFormat(), zone);
+        m_TimeIndex = getInputFields().indexOf(dataDescription.getTimeField());
+        if (m_TimeIndex < 0 && getInputFields().isEmpty() == false)
+        {
+            throw new IOException("The time field '" + dataDescription.getTimeField() +
+                    "' is not in the data fields " + getInputFields());
+        }
+
+        m_Window = windowSeconds;
+        m_MaxBufferedBytes = maxBufferedBytes;
+        m_Queue = new PriorityQueue<>(1024, new Comparator<Held>()
+                {
+                    @Override
+                    public int compare(Held a, Held b)
+                    {
+                        if (a.m_Time != b.m_Time)
+                        {
+                            return (a.m_Time < b.m_Time) ? -1 : 1;
+                        }
+                        return (a.m_Sequence < b.m_Sequence) ? -1 :
+                                (a.m_Sequence == b.m_Sequence ? 0 : 1);
+                    }
+                });
+    }
+
+    /**
+     * The number of records read so far
+     * @return The record count
+     */
+    public long getRecordCount()
+    {
+        return m_RecordCount;
+    }
+
+    /**
+     * The number of records that arrived out of order but were
+     * sent in order
+     * @return The reordered record count
+     */
+    public long getReorderedCount()
+    {
+        return m_ReorderedCount;
+    }
+
+    /**
+     * The number of records dropped because they were older than
+     * a record already sent
+     * @return The late drop count
+     */
+    public long getLateDropCount()
+    {
+        return m_LateDropCount;
+    }
+
+    /**
+     * The number of records released before the end of their window
+     * because the memory limit was reached
+     * @return The early release count
+     */
+    public long getEarlyReleaseCount()
+    {
+        return m_EarlyReleaseCount;
+    }
+
+    /**
+     * The number of records dropped because the time could not be parsed
+     * @return The invalid date count
+     */
+    public long getInvalidDateCount()
+    {
+        return m_InvalidDateCount;
+    }
+
+    /**
+     * The largest number of records held at once
+     * @return The high water mark
+     */
+    public int getMaxHeldCount()
+    {
+        return m_MaxHeldCount;
+    }
+
+    @Override
+    protected void processRecord(String [] record)
+    throws IOException
+    {
+        m_RecordCount++;
+
+        long time = m_TimeParser.parse(record[m_TimeIndex]);
+        if (time == TimestampParser.INVALID)
+        {
+            if (m_InvalidDateCount++ == 0)
+            {
+                LOGGER.warn("Cannot parse the time '" + record[m_TimeIndex] + "', " +
+                            "records with invalid times are dropped");
+            }
+            return;
+        }
+
+        if (time < m_LastReleasedTime)
+        {
+            if (m_LateDropCount++ == 0)
+            {
+                LOGGER.warn("Record with time " + record[m_TimeIndex] +
+                        " is too late to reorder and is dropped");
+            }
+            return;
+        }
+
+        if (time < m_MaxTime)
+        {
+            m_ReorderedCount++;
+        }
+        m_MaxTime = Math.max(m_MaxTime, time);
+
+        Held held = new Held(time, m_Sequence++, record.clone());
+        m_Queue.add(held);
+        m_BufferedBytes += held.m_Bytes;
+        m_MaxHeldCount = Math.max(m_MaxHeldCount, m_Queue.size());
+
+        while (m_Queue.isEmpty() == false)
+        {
+            Held head = m_Queue.peek();
+            if (head.m_Time + m_Window <= m_MaxTime)
+            {
+                release();
+            }
+            else if (m_BufferedBytes > m_MaxBufferedBytes)
+            {
+                m_EarlyReleaseCount++;
+                release();
+            }
+            else
+            {
+                break;
+            }
+        }
+    }
+
+    @Override
+    protected void endOfInput()
+    throws IOException
+    {
+        while (m_Queue.isEmpty() == false)
+        {
+            release();
+        }
+
+        if (m_LateDropCount > 0 || m_InvalidDateCount > 0)
+        {
+            LOGGER.warn(m_LateDropCount + " late records and " + m_InvalidDateCount +
+                    " records with invalid times were dropped out of " + m_RecordCount);
+        }
+    }
+
+    private void release()
+    throws IOException
+    {
+        Held held = m_Queue.poll();
+        m_BufferedBytes -= held.m_Bytes;
+        m_LastReleasedTime = held.m_Time;
+        emit(held.m_Record);
+    }
+
+
+    /**
+     * A record waiting to be released
+     */
+    private static class Held
+    {
+        final long m_Time;
+        final long m_Sequence;
+        final String [] m_Record;
+        final long m_Bytes;
+
+        Held(long time, long sequence, String [] record)
+        {
+            m_Time = time;
+            m_Sequence = sequence;
+            m_Record = record;
+
+            long bytes = RECORD_OVERHEAD_BYTES;
+            for (String value : record)
+            {
+                bytes += (value == null) ? 8 : STRING_OVERHEAD_BYTES + 2 * value.length();
+            }
+            m_Bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,822 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.prelert.job.AnalysisConfig;
+import com.prelert.job.JobDetails;
+import com.prelert.rs.data.AnomalyRecord;
+import com.prelert.rs.data.Bucket;
+import com.prelert.rs.data.Pagination;
+import com.prelert.rs.data.SingleDocument;
+
+/**
+ * A size bounded cache of bucket and record results for
+ * {@link EngineApiClient}, see {@linkplain EngineApiClient#setResultCache(ResultCache)}.
+ * Entries are keyed by the request's endpoint and its query parameters
+ * in a normalised order and evicted least recently used first once the
+ * approximate size of the cached results exceeds the limit.
+ * <br/>
+ * Results only change until they are final so a page of buckets or
+ * records is final only if the request has an explicit <code>end</code>
+ * at or before the job's final age ago and none of its results are
+ * interim. The final age is the job's bucket span plus its latency, the
+ * client reads them from the job's configuration the first time it
+ * caches the job's results. A single bucket is
+ * final if it is not interim and older than the final age. Open ended
+ * requests, which can gain results and so change their hit count and
+ * next page, are cached for the short time to live or, if that is 0,
+ * not cached at all.
+ * <br/>
+ * Renormalisation can still change the scores of final buckets, and
+ * with them which buckets pass a score filter. When a bucket that is
+ * in the cache is fetched again in another request and its scores have
+ * changed enough to count as a big normalised update (see
+ * {@linkplain Bucket#hadBigNormalisedUpdate()}) every cached entry of
+ * the job covering that bucket's time is invalidated. A request that
+ * is only ever answered from the cache cannot see the update itself so
+ * final entries are also revalidated, by fetching them again, once they
+ * are older than the final time to live.
+ * <br/>
+ * Cached results are shared between callers and must not be modified.
+ */
+public class ResultCache
+{
+    private static final Logger LOGGER = Logger.getLogger(ResultCache.class);
+
+    /**
+     * The default limit on the approximate size of the cached results
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 64L * 1024 * 1024;
+
+    /**
+     * The default age in seconds after which results are final
+     * if the job's configuration cannot be read
+     */
+    public static final long DEFAULT_FINAL_AGE = 2 * JobDetails.DEFAULT_BUCKETSPAN;
+
+    /**
+     * The default time final results are cached before they are
+     * fetched again to pick up renormalised scores
+     */
+    public static final long DEFAULT_FINAL_TTL_MILLIS = 60 * 60 * 1000L;
+
+    /**
+     * The formats of an ISO 8601 <code>end</code> parameter
+     */
+    private static final String [] END_DATE_FORMATS = {
+        "yyyy-MM-dd'T'HH:mm:ss.SSSX", "yyyy-MM-dd'T'HH:mm:ssX",
+        "yyyy-MM-dd'T'HH:mm:ss.SSS", "yyyy-MM-dd'T'HH:mm:ss" };
+
+    // rough heap sizes used to weigh entries
+    private static final long ENTRY_WEIGHT = 256;
+    private static final long BUCKET_WEIGHT = 256;
+    private static final long RECORD_WEIGHT = 512;
+
+    private enum Endpoint { BUCKETS, BUCKET, RECORDS }
+
+    private final long m_MaxWeight;
+    private final long m_DefaultFinalAge;
+    private final long m_ShortTtlMillis;
+    private final long m_FinalTtlMillis;
+    private final Map<String, Long> m_FinalAges = new ConcurrentHashMap<>();
+
+    private final LinkedHashMap<String, Entry> m_Entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, JobEntries> m_EntriesByJob = new HashMap<>();
+    private long m_Weight;
+
+    private long m_HitCount;
+    private long m_MissCount;
+    private long m_BypassCount;
+    private long m_EvictionCount;
+    private long m_InvalidationCount;
+
+    public ResultCache()
+    {
+        this(DEFAULT_MAX_WEIGHT, DEFAULT_FINAL_AGE, 0, DEFAULT_FINAL_TTL_MILLIS);
+    }
+
+    /**
+     * Final results are revalidated after {@value #DEFAULT_FINAL_TTL_MILLIS}ms
+     *
+     * @param maxWeight The limit on the approximate size in bytes
+     * of the cached results
+     * @param defaultFinalAge The age in seconds after which results
+     * are final for jobs whose configuration cannot be read
+     * @param shortTtlMillis How long pages that are not final are
+     * cached, 0 to not cache them
+     */
+    public ResultCache(long maxWeight, long defaultFinalAge, long shortTtlMillis)
+    {
+        this(maxWeight, defaultFinalAge, shortTtlMillis, DEFAULT_FINAL_TTL_MILLIS);
+    }
+
+    /**
+     * @param maxWeight The limit on the approximate size in bytes
+     * of the cached results
+     * @param defaultFinalAge The age in seconds after which results
+     * are final for jobs whose configuration cannot be read
+     * @param shortTtlMillis How long pages that are not final are
+     * cached, 0 to not cache them
+     * @param finalTtlMillis How long final results are cached before
+     * they are fetched again to pick up renormalised scores
+     */
+    public ResultCache(long maxWeight, long defaultFinalAge, long shortTtlMillis,
+            long finalTtlMillis)
+    {
+        m_MaxWeight = maxWeight;
+        m_DefaultFinalAge = defaultFinalAge;
+        m_ShortTtlMillis = shortTtlMillis;
+        m_FinalTtlMillis = finalTtlMillis;
+    }
+
+    /**
+     * The age at which a job's results are final: the bucket span
+     * plus the latency
+     *
+     * @param analysisConfig The job's analysis configuration
+     * @return Age in seconds
+     */
+    public static long finalAge(AnalysisConfig analysisConfig)
+    {
+        long bucketSpan = (analysisConfig.getBucketSpan() == null) ?
+                JobDetails.DEFAULT_BUCKETSPAN : analysisConfig.getBucketSpan();
+        long latency = (analysisConfig.getLatency() == null) ? 0 : analysisConfig.getLatency();
+        return bucketSpan + latency;
+    }
+
+    /**
+     * Set the age at which the job's results are final. The client
+     * sets it from the job's configuration the first time it caches
+     * the job's results unless it has already been set.
+     *
+     * @param jobId
+     * @param seconds Age in seconds, see {@linkplain #finalAge(AnalysisConfig)}
+     */
+    public void setFinalAge(String jobId, long seconds)
+    {
+        m_FinalAges.put(jobId, seconds);
+    }
+
+    boolean hasFinalAge(String jobId)
+    {
+        return m_FinalAges.containsKey(jobId);
+    }
+
+    Pagination<Bucket> getBuckets(String jobId, String url)
+    {
+        return cast(lookup(url));
+    }
+
+    void putBuckets(String jobId, String url, Pagination<Bucket> page)
+    {
+        List<Bucket> buckets = (page.getDocuments() == null) ?
+                Collections.<Bucket>emptyList() : page.getDocuments();
+        put(jobId, url, Endpoint.BUCKETS, page, buckets, Collections.<AnomalyRecord>emptyList());
+    }
+
+    SingleDocument<Bucket> getBucket(String jobId, String url)
+    {
+        return cast(lookup(url));
+    }
+
+    void putBucket(String jobId, String url, SingleDocument<Bucket> doc)
+    {
+        List<Bucket> buckets = (doc.getDocument() == null) ?
+                Collections.<Bucket>emptyList() : Arrays.asList(doc.getDocument());
+        put(jobId, url, Endpoint.BUCKET, doc, buckets, Collections.<AnomalyRecord>emptyList());
+    }
+
+    Pagination<AnomalyRecord> getRecords(String jobId, String url)
+    {
+        return cast(lookup(url));
+    }
+
+    void putRecords(String jobId, String url, Pagination<AnomalyRecord> page)
+    {
+        List<AnomalyRecord> records = (page.getDocuments() == null) ?
+                Collections.<AnomalyRecord>emptyList() : page.getDocuments();
+        put(jobId, url, Endpoint.RECORDS, page, Collections.<Bucket>emptyList(), records);
+    }
+
+    /**
+     * Remove all the job's entries
+     * @param jobId
+     */
+    public synchronized void invalidate(String jobId)
+    {
+        JobEntries entries = m_EntriesByJob.remove(jobId);
+        if (entries != null)
+        {
+            for (Entry entry : entries.all())
+            {
+                m_Entries.remove(entry.m_Key);
+                m_Weight -= entry.m_Weight;
+                m_InvalidationCount++;
+            }
+        }
+    }
+
+    /**
+     * Remove all entries, the metrics are kept
+     */
+    public synchronized void clear()
+    {
+        m_Entries.clear();
+        m_EntriesByJob.clear();
+        m_Weight = 0;
+    }
+
+    public synchronized long getHitCount()
+    {
+        return m_HitCount;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return m_MissCount;
+    }
+
+    /**
+     * The number of fetched results not cached because they
+     * were not final and there is no short time to live
+     * @return Bypass count
+     */
+    public synchronized long getBypassCount()
+    {
+        return m_BypassCount;
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return m_EvictionCount;
+    }
+
+    /**
+     * The number of entries removed by {@linkplain #invalidate(String)}
+     * or because a bucket had a big normalised update
+     * @return Invalidation count
+     */
+    public synchronized long getInvalidationCount()
+    {
+        return m_InvalidationCount;
+    }
+
+    /**
+     * Hits as a proportion of lookups
+     * @return The hit rate between 0 and 1, 0 if there have been no lookups
+     */
+    public synchronized double getHitRate()
+    {
+        long lookups = m_HitCount + m_MissCount;
+        return (lookups == 0) ? 0.0 : (double)m_HitCount / lookups;
+    }
+
+    /**
+     * The approximate size of the cached results
+     * @return Weight in bytes
+     */
+    public synchronized long getWeight()
+    {
+        return m_Weight;
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return m_Entries.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object value)
+    {
+        return (T)value;
+    }
+
+    private synchronized Object lookup(String url)
+    {
+        String key = normaliseKey(url);
+        Entry entry = m_Entries.get(key);
+        if (entry != null && entry.m_ExpiresAt < System.currentTimeMillis())
+        {
+            remove(entry);
+            entry = null;
+        }
+
+        if (entry == null)
+        {
+            m_MissCount++;
+            return null;
+        }
+
+        m_HitCount++;
+        return entry.m_Value;
+    }
+
+    private synchronized void put(String jobId, String url, Endpoint endpoint, Object value,
+            List<Bucket> buckets, List<AnomalyRecord> records)
+    {
+        Entry entry = new Entry(normaliseKey(url), jobId, value);
+
+        boolean interim = false;
+        long recordCount = records.size();
+        for (Bucket bucket : buckets)
+        {
+            interim |= Boolean.TRUE.equals(bucket.isInterim());
+            entry.include(bucket.getEpoch());
+            if (bucket.getRecords() != null)
+            {
+                recordCount += bucket.getRecords().size();
+            }
+        }
+        for (AnomalyRecord record : records)
+        {
+            interim |= Boolean.TRUE.equals(record.isInterim());
+            if (record.getTimestamp() != null)
+            {
+                entry.include(record.getTimestamp().getTime() / 1000);
+            }
+        }
+
+        invalidateUpdated(jobId, buckets);
+
+        entry.m_Weight = ENTRY_WEIGHT + url.length() * 2 +
+                buckets.size() * BUCKET_WEIGHT + recordCount * RECORD_WEIGHT;
+        if (endpoint != Endpoint.RECORDS)
+        {
+            entry.setScores(buckets);
+        }
+
+        long now = System.currentTimeMillis();
+        Long finalAge = m_FinalAges.get(jobId);
+        long finalBefore = now / 1000 - ((finalAge == null) ? m_DefaultFinalAge : finalAge);
+
+        boolean isFinal;
+        if (endpoint == Endpoint.BUCKET)
+        {
+            // the request names the bucket, a missing one may be written later
+            isFinal = interim == false && entry.m_MaxEpoch != Long.MIN_VALUE &&
+                    entry.m_MaxEpoch < finalBefore;
+        }
+        else
+        {
+            // without an end later results can join the page
+            Long end = queryEnd(url);
+            isFinal = interim == false && end != null && end <= finalBefore;
+        }
+
+        if (isFinal)
+        {
+            entry.m_ExpiresAt = now + m_FinalTtlMillis;
+        }
+        else
+        {
+            if (m_ShortTtlMillis <= 0)
+            {
+                m_BypassCount++;
+                return;
+            }
+            entry.m_ExpiresAt = now + m_ShortTtlMillis;
+        }
+
+        if (entry.m_Weight > m_MaxWeight)
+        {
+            m_BypassCount++;
+            return;
+        }
+
+        Entry old = m_Entries.get(entry.m_Key);
+        if (old != null)
+        {
+            remove(old);
+        }
+
+        m_Entries.put(entry.m_Key, entry);
+        JobEntries jobEntries = m_EntriesByJob.get(jobId);
+        if (jobEntries == null)
+        {
+            jobEntries = new JobEntries();
+            m_EntriesByJob.put(jobId, jobEntries);
+        }
+        jobEntries.add(entry);
+        m_Weight += entry.m_Weight;
+
+        Iterator<Entry> eldest = m_Entries.values().iterator();
+        while (m_Weight > m_MaxWeight && eldest.hasNext())
+        {
+            Entry evict = eldest.next();
+            eldest.remove();
+            unlink(evict);
+            m_EvictionCount++;
+        }
+    }
+
+    /**
+     * Compare freshly fetched buckets with the cached copies and remove
+     * the job's entries covering any bucket that had a big update.
+     * Only the entries whose time range covers each fetched bucket
+     * are examined.
+     */
+    private void invalidateUpdated(String jobId, List<Bucket> fetched)
+    {
+        JobEntries jobEntries = m_EntriesByJob.get(jobId);
+        if (jobEntries == null || fetched.isEmpty())
+        {
+            return;
+        }
+
+        Set<Entry> stale = new HashSet<>();
+        for (Bucket bucket : fetched)
+        {
+            List<Entry> covering = jobEntries.covering(bucket.getEpoch());
+            for (Entry entry : covering)
+            {
+                if (entry.hadBigUpdate(bucket))
+                {
+                    LOGGER.debug("Bucket " + bucket.getEpoch() + " of job " + jobId +
+                            " had a big normalised update, invalidating " +
+                            covering.size() + " cached results");
+                    stale.addAll(covering);
+                    break;
+                }
+            }
+        }
+
+        for (Entry entry : stale)
+        {
+            remove(entry);
+            m_InvalidationCount++;
+        }
+    }
+
+    private void remove(Entry entry)
+    {
+        m_Entries.remove(entry.m_Key);
+        unlink(entry);
+    }
+
+    private void unlink(Entry entry)
+    {
+        m_Weight -= entry.m_Weight;
+        JobEntries jobEntries = m_EntriesByJob.get(entry.m_JobId);
+        if (jobEntries != null)
+        {
+            jobEntries.remove(entry);
+            if (jobEntries.isEmpty())
+            {
+                m_EntriesByJob.remove(entry.m_JobId);
+            }
+        }
+    }
+
+    /**
+     * The <code>end</code> query parameter of the URL
+     *
+     * @return Seconds from the epoch or <code>null</code> if there is
+     * no end or it cannot be parsed
+     */
+    static Long queryEnd(String url)
+    {
+        int query = url.indexOf('?');
+        if (query < 0)
+        {
+            return null;
+        }
+
+        for (String param : url.substring(query + 1).split("&"))
+        {
+            if (param.startsWith("end=") == false)
+            {
+                continue;
+            }
+
+            String value;
+            try
+            {
+                value = URLDecoder.decode(param.substring("end=".length()), "UTF-8");
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                return null;
+            }
+
+            try
+            {
+                return Long.parseLong(value);
+            }
+            catch (NumberFormatException e)
+            {
+                // not seconds from the epoch, try ISO 8601
+            }
+
+            for (String format : END_DATE_FORMATS)
+            {
+                SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+                dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+                dateFormat.setLenient(false);
+                try
+                {
+                    return dateFormat.parse(value).getTime() / 1000;
+                }
+                catch (ParseException e)
+                {
+                    // try the next format
+                }
+            }
+            LOGGER.debug("Cannot parse end parameter '" + value + "' of " + url);
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * The URL with the query parameters sorted so equivalent
+     * requests share an entry
+     */
+    static String normaliseKey(String url)
+    {
+        int query = url.indexOf('?');
+        String path = (query < 0) ? url : url.substring(0, query);
+        try
+        {
+            path = new URI(path).normalize().toString();
+        }
+        catch (URISyntaxException e)
+        {
+            // use the path as is
+        }
+        while (path.endsWith("/"))
+        {
+            path = path.substring(0, path.length() - 1);
+        }
+
+        if (query < 0 || query == url.length() - 1)
+        {
+            return path;
+        }
+
+        String [] params = url.substring(query + 1).split("&");
+        Arrays.sort(params);
+        StringBuilder key = new StringBuilder(path).append('?');
+        for (int i = 0; i < params.length; i++)
+        {
+            if (i > 0)
+            {
+                key.append('&');
+            }
+            key.append(params[i]);
+        }
+        return key.toString();
+    }
+
+
+    /**
+     * A job's entries indexed by the start of their time range so the
+     * entries covering a time are found without visiting them all.
+     * <br/>
+     * The entries are grouped by the length of their range in powers
+     * of 2, an entry covering a time must start no earlier than the
+     * time less the longest range of its group. One long range does
+     * not widen the search for the many short ones. Entries with no
+     * time range are kept apart and never cover a time.
+     */
+    private static class JobEntries
+    {
+        // span group -> start of range -> entries
+        private final Map<Integer, NavigableMap<Long, Set<Entry>>> m_BySpan = new TreeMap<>();
+        private final Set<Entry> m_Unranged = new HashSet<>();
+        private int m_Size;
+
+        void add(Entry entry)
+        {
+            if (entry.m_MinEpoch > entry.m_MaxEpoch)
+            {
+                m_Unranged.add(entry);
+            }
+            else
+            {
+                int group = spanGroup(entry);
+                NavigableMap<Long, Set<Entry>> byMinEpoch = m_BySpan.get(group);
+                if (byMinEpoch == null)
+                {
+                    byMinEpoch = new TreeMap<>();
+                    m_BySpan.put(group, byMinEpoch);
+                }
+                Set<Entry> entries = byMinEpoch.get(entry.m_MinEpoch);
+                if (entries == null)
+                {
+                    entries = new HashSet<>();
+                    byMinEpoch.put(entry.m_MinEpoch, entries);
+                }
+                entries.add(entry);
+            }
+            m_Size++;
+        }
+
+        void remove(Entry entry)
+        {
+            boolean removed = false;
+            if (entry.m_MinEpoch > entry.m_MaxEpoch)
+            {
+                removed = m_Unranged.remove(entry);
+            }
+            else
+            {
+                int group = spanGroup(entry);
+                NavigableMap<Long, Set<Entry>> byMinEpoch = m_BySpan.get(group);
+                Set<Entry> entries = (byMinEpoch == null) ? null : byMinEpoch.get(entry.m_MinEpoch);
+                if (entries != null)
+                {
+                    removed = entries.remove(entry);
+                    if (entries.isEmpty())
+                    {
+                        byMinEpoch.remove(entry.m_MinEpoch);
+                        if (byMinEpoch.isEmpty())
+                        {
+                            m_BySpan.remove(group);
+                        }
+                    }
+                }
+            }
+            if (removed)
+            {
+                m_Size--;
+            }
+        }
+
+        boolean isEmpty()
+        {
+            return m_Size == 0;
+        }
+
+        /**
+         * The entries whose range includes <code>epoch</code>
+         */
+        List<Entry> covering(long epoch)
+        {
+            List<Entry> covering = new ArrayList<>();
+            for (Map.Entry<Integer, NavigableMap<Long, Set<Entry>>> group : m_BySpan.entrySet())
+            {
+                long from = epoch - maxSpan(group.getKey());
+                if (from > epoch)
+                {
+                    // underflowed
+                    from = Long.MIN_VALUE;
+                }
+                for (Set<Entry> entries :
+                        group.getValue().subMap(from, true, epoch, true).values())
+                {
+                    for (Entry entry : entries)
+                    {
+                        if (epoch <= entry.m_MaxEpoch)
+                        {
+                            covering.add(entry);
+                        }
+                    }
+                }
+            }
+            return covering;
+        }
+
+        List<Entry> all()
+        {
+            List<Entry> all = new ArrayList<>(m_Unranged);
+            for (NavigableMap<Long, Set<Entry>> byMinEpoch : m_BySpan.values())
+            {
+                for (Set<Entry> entries : byMinEpoch.values())
+                {
+                    all.addAll(entries);
+                }
+            }
+            return all;
+        }
+
+        /**
+         * Group n holds the spans from 2^(n-1) to 2^n - 1, group 0 a span of 0
+         */
+        private static int spanGroup(Entry entry)
+        {
+            return 64 - Long.numberOfLeadingZeros(entry.m_MaxEpoch - entry.m_MinEpoch);
+        }
+
+        private static long maxSpan(int group)
+        {
+            return (group >= 63) ? Long.MAX_VALUE : (1L << group) - 1;
+        }
+    }
+
+    /**
+     * A cached result and the time range it covers
+     */
+    private static class Entry
+    {
+        final String m_Key;
+        final String m_JobId;
+        final Object m_Value;
+        long m_Weight;
+        long m_ExpiresAt = Long.MAX_VALUE;
+        long m_MinEpoch = Long.MAX_VALUE;
+        long m_MaxEpoch = Long.MIN_VALUE;
+
+        // the scores of the cached buckets sorted by epoch
+        long [] m_Epochs = new long[0];
+        double [] m_AnomalyScores;
+        double [] m_MaxNormalizedProbabilities;
+
+        Entry(String key, String jobId, Object value)
+        {
+            m_Key = key;
+            m_JobId = jobId;
+            m_Value = value;
+        }
+
+        void include(long epoch)
+        {
+            m_MinEpoch = Math.min(m_MinEpoch, epoch);
+            m_MaxEpoch = Math.max(m_MaxEpoch, epoch);
+        }
+
+        void setScores(List<Bucket> buckets)
+        {
+            List<Bucket> sorted = new ArrayList<>(buckets);
+            Collections.sort(sorted, new Comparator<Bucket>()
+            {
+                @Override
+                public int compare(Bucket b1, Bucket b2)
+                {
+                    return Long.compare(b1.getEpoch(), b2.getEpoch());
+                }
+            });
+
+            m_Epochs = new long[sorted.size()];
+            m_AnomalyScores = new double[sorted.size()];
+            m_MaxNormalizedProbabilities = new double[sorted.size()];
+            for (int i = 0; i < sorted.size(); i++)
+            {
+                m_Epochs[i] = sorted.get(i).getEpoch();
+                m_AnomalyScores[i] = sorted.get(i).getAnomalyScore();
+                m_MaxNormalizedProbabilities[i] = sorted.get(i).getMaxNormalizedProbability();
+            }
+        }
+
+        /**
+         * True if this entry holds <code>fetched</code>'s bucket
+         * and the scores have changed by a big normalised update
+         */
+        boolean hadBigUpdate(Bucket fetched)
+        {
+            int i = Arrays.binarySearch(m_Epochs, fetched.getEpoch());
+            if (i < 0)
+            {
+                return false;
+            }
+
+            // replay the change on a bucket to use its definition of a big update
+            Bucket compare = new Bucket();
+            compare.setAnomalyScore(m_AnomalyScores[i]);
+            compare.setMaxNormalizedProbability(m_MaxNormalizedProbabilities[i]);
+            compare.resetBigNormalisedUpdateFlag();
+            compare.setAnomalyScore(fetched.getAnomalyScore());
+            compare.setMaxNormalizedProbability(fetched.getMaxNormalizedProbability());
+            return compare.hadBigNormalisedUpdate();
+        }
+    }
+}
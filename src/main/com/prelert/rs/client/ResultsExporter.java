@@ -0,0 +1,462 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.prelert.job.AnalysisConfig;
+import com.prelert.job.JobDetails;
+import com.prelert.rs.data.AnomalyRecord;
+import com.prelert.rs.data.ApiError;
+import com.prelert.rs.data.Bucket;
+import com.prelert.rs.data.Pagination;
+import com.prelert.rs.data.SingleDocument;
+
+/**
+ * Export a job's bucket or record history by splitting the query into
+ * independent slices that are fetched concurrently and emitted in order.
+ * <br/>
+ * Time range exports split the <code>[start, end)</code> window into
+ * sub-ranges aligned to the job's bucket span. Exports without a time
+ * range split the result set into skip/take slices sized from the
+ * query's hit count. At most <code>parallelism</code> slices are in
+ * flight or buffered at once, each slice is delivered to the consumer
+ * in timestamp order once all the slices before it have been delivered.
+ * <br/>
+ * As with {@link EngineApiClient} if the API returns an error the
+ * export stops, the export method returns false and the error is
+ * available from {@linkplain #getLastError()}.
+ */
+public class ResultsExporter
+{
+    private static final Logger LOGGER = Logger.getLogger(ResultsExporter.class);
+
+    /**
+     * The default number of buckets in each time range slice
+     */
+    public static final int DEFAULT_BUCKETS_PER_SLICE = 500;
+
+    /**
+     * Records are sorted by this field so slices are in time order
+     */
+    private static final String TIMESTAMP_SORT_FIELD = "timestamp";
+
+    private final EngineApiClient m_Client;
+    private final int m_Parallelism;
+
+    private volatile ApiError m_LastError;
+
+    /**
+     * @param client The client used to fetch the results. The client's
+     * connection pool should allow at least <code>parallelism</code>
+     * connections per route.
+     * @param parallelism The maximum number of slices fetched concurrently
+     */
+    public ResultsExporter(EngineApiClient client, int parallelism)
+    {
+        if (parallelism < 1)
+        {
+            throw new IllegalArgumentException("parallelism must be >= 1");
+        }
+
+        m_Client = client;
+        m_Parallelism = parallelism;
+    }
+
+    /**
+     * The error returned by the API during the last export
+     * @return The error or <code>null</code>
+     */
+    public ApiError getLastError()
+    {
+        return m_LastError;
+    }
+
+    /**
+     * Export all the buckets with timestamps in <code>[start, end)</code>
+     * to <code>consumer</code> in timestamp order.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param expand If true include the anomaly records for the bucket
+     * @param includeInterim Include interim results
+     * @param start The start of the window in seconds from the epoch
+     * @param end The end of the window in seconds from the epoch, exclusive
+     * @param bucketSpan The job's bucket span in seconds. If <code>null</code>
+     * it is read from the job's {@link AnalysisConfig}
+     * @param bucketsPerSlice The number of buckets in each time range
+     * slice, must be &gt;= 1
+     * @param consumer Receives the buckets
+     * @return True if all the buckets were exported
+     * @throws IOException
+     */
+    public boolean exportBuckets(final String baseUrl, final String jobId,
+            final boolean expand, final boolean includeInterim,
+            long start, long end, Long bucketSpan, int bucketsPerSlice,
+            DocumentConsumer<Bucket> consumer)
+    throws IOException
+    {
+        if (bucketsPerSlice < 1)
+        {
+            throw new IllegalArgumentException("bucketsPerSlice must be >= 1");
+        }
+
+        m_LastError = null;
+
+        long span = resolveBucketSpan(baseUrl, jobId, bucketSpan);
+        final long take = bucketsPerSlice;
+
+        List<Callable<Slice<Bucket>>> slices = new ArrayList<>();
+        for (long[] range : timeRanges(start, end, span * bucketsPerSlice, span))
+        {
+            final long sliceStart = range[0];
+            final long sliceEnd = range[1];
+            slices.add(new Callable<Slice<Bucket>>()
+            {
+                @Override
+                public Slice<Bucket> call() throws IOException
+                {
+                    String url = EngineApiClient.bucketsUrl(baseUrl, jobId, expand,
+                            includeInterim, null, take, sliceStart, sliceEnd, null, null);
+                    return fetchSlice(url, new TypeReference<Pagination<Bucket>>() {});
+                }
+            });
+        }
+
+        return export(slices, consumer);
+    }
+
+    /**
+     * Export all the buckets to <code>consumer</code> in timestamp order
+     * splitting the result set into skip/take slices of
+     * <code>sliceSize</code> buckets.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param expand If true include the anomaly records for the bucket
+     * @param includeInterim Include interim results
+     * @param sliceSize The number of buckets in each slice, must be &gt;= 1
+     * @param consumer Receives the buckets
+     * @return True if all the buckets were exported
+     * @throws IOException
+     */
+    public boolean exportBuckets(final String baseUrl, final String jobId,
+            final boolean expand, final boolean includeInterim, final long sliceSize,
+            DocumentConsumer<Bucket> consumer)
+    throws IOException
+    {
+        if (sliceSize < 1)
+        {
+            throw new IllegalArgumentException("sliceSize must be >= 1");
+        }
+
+        m_LastError = null;
+
+        ApiResult<Pagination<Bucket>> result = m_Client.getBucketsResult(baseUrl, jobId,
+                false, includeInterim, 0L, 1L, null, null, null, null);
+        if (result.isSuccess() == false)
+        {
+            m_LastError = result.getError();
+            return false;
+        }
+        Pagination<Bucket> first = result.getResult();
+
+        List<Callable<Slice<Bucket>>> slices = new ArrayList<>();
+        for (long skip = 0; skip < first.getHitCount(); skip += sliceSize)
+        {
+            final long sliceSkip = skip;
+            slices.add(new Callable<Slice<Bucket>>()
+            {
+                @Override
+                public Slice<Bucket> call() throws IOException
+                {
+                    String url = EngineApiClient.<String>bucketsUrl(baseUrl, jobId, expand,
+                            includeInterim, sliceSkip, sliceSize, null, null, null, null);
+                    return fetchPage(url, new TypeReference<Pagination<Bucket>>() {});
+                }
+            });
+        }
+
+        return export(slices, consumer);
+    }
+
+    /**
+     * Export all the anomaly records with timestamps in
+     * <code>[start, end)</code> to <code>consumer</code> in timestamp order.
+     *
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param includeInterim Include interim results
+     * @param start The start of the window in seconds from the epoch
+     * @param end The end of the window in seconds from the epoch, exclusive
+     * @param bucketSpan The job's bucket span in seconds. If <code>null</code>
+     * it is read from the job's {@link AnalysisConfig}
+     * @param bucketsPerSlice The number of buckets spanned by each time
+     * range slice, must be &gt;= 1
+     * @param pageSize The number of records requested per page within a
+     * slice, must be &gt;= 1
+     * @param consumer Receives the records
+     * @return True if all the records were exported
+     * @throws IOException
+     */
+    public boolean exportRecords(final String baseUrl, final String jobId,
+            final boolean includeInterim, long start, long end, Long bucketSpan,
+            int bucketsPerSlice, final long pageSize,
+            DocumentConsumer<AnomalyRecord> consumer)
+    throws IOException
+    {
+        if (bucketsPerSlice < 1)
+        {
+            throw new IllegalArgumentException("bucketsPerSlice must be >= 1");
+        }
+        if (pageSize < 1)
+        {
+            throw new IllegalArgumentException("pageSize must be >= 1");
+        }
+
+        m_LastError = null;
+
+        long span = resolveBucketSpan(baseUrl, jobId, bucketSpan);
+
+        List<Callable<Slice<AnomalyRecord>>> slices = new ArrayList<>();
+        for (long[] range : timeRanges(start, end, span * bucketsPerSlice, span))
+        {
+            final long sliceStart = range[0];
+            final long sliceEnd = range[1];
+            slices.add(new Callable<Slice<AnomalyRecord>>()
+            {
+                @Override
+                public Slice<AnomalyRecord> call() throws IOException
+                {
+                    String url = EngineApiClient.recordsUrl(baseUrl, jobId, null, pageSize,
+                            sliceStart, sliceEnd, includeInterim,
+                            TIMESTAMP_SORT_FIELD, false, null, null);
+                    return fetchSlice(url, new TypeReference<Pagination<AnomalyRecord>>() {});
+                }
+            });
+        }
+
+        return export(slices, consumer);
+    }
+
+
+    /**
+     * Split <code>[start, end)</code> into consecutive ranges of
+     * <code>width</code> seconds, the first range starts on a
+     * multiple of <code>alignment</code>.
+     */
+    static List<long[]> timeRanges(long start, long end, long width, long alignment)
+    {
+        if (width < 1 || alignment < 1)
+        {
+            throw new IllegalArgumentException("The slice width and alignment must be >= 1");
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+
+        long rangeStart = start - (start % alignment);
+        while (rangeStart < end)
+        {
+            long rangeEnd = Math.min(rangeStart + width, end);
+            // never query before the requested start
+            ranges.add(new long[] {Math.max(rangeStart, start), rangeEnd});
+            rangeStart += width;
+        }
+
+        return ranges;
+    }
+
+    private long resolveBucketSpan(String baseUrl, String jobId, Long bucketSpan)
+    throws IOException
+    {
+        if (bucketSpan != null && bucketSpan > 0)
+        {
+            return bucketSpan;
+        }
+
+        SingleDocument<JobDetails> job = m_Client.getJob(baseUrl, jobId);
+        if (job.isExists() && job.getDocument().getAnalysisConfig() != null
+                && job.getDocument().getAnalysisConfig().getBucketSpan() != null)
+        {
+            return job.getDocument().getAnalysisConfig().getBucketSpan();
+        }
+
+        LOGGER.warn("Bucket span for job " + jobId + " not known, using the default "
+                + JobDetails.DEFAULT_BUCKETSPAN);
+        return JobDetails.DEFAULT_BUCKETSPAN;
+    }
+
+    /**
+     * The documents of one slice or the error that stopped it
+     */
+    private static class Slice<T>
+    {
+        List<T> m_Documents = new ArrayList<>();
+        ApiError m_Error;
+    }
+
+    /**
+     * Fetch all the pages of the query starting at <code>url</code>
+     */
+    private <T> Slice<T> fetchSlice(String url, TypeReference<Pagination<T>> typeRef)
+    throws IOException
+    {
+        Slice<T> slice = new Slice<>();
+
+        while (url != null)
+        {
+            ApiResult<Pagination<T>> result = m_Client.getResult(url, typeRef);
+            Pagination<T> page = result.getResult();
+            if (page == null)
+            {
+                slice.m_Error = errorFor(result, url);
+                return slice;
+            }
+
+            if (page.getDocuments() != null)
+            {
+                slice.m_Documents.addAll(page.getDocuments());
+            }
+            url = (page.getNextPage() == null) ? null : page.getNextPage().toString();
+        }
+
+        return slice;
+    }
+
+    /**
+     * Fetch only the page at <code>url</code>
+     */
+    private <T> Slice<T> fetchPage(String url, TypeReference<Pagination<T>> typeRef)
+    throws IOException
+    {
+        Slice<T> slice = new Slice<>();
+
+        ApiResult<Pagination<T>> result = m_Client.getResult(url, typeRef);
+        Pagination<T> page = result.getResult();
+        if (page == null)
+        {
+            slice.m_Error = errorFor(result, url);
+        }
+        else if (page.getDocuments() != null)
+        {
+            slice.m_Documents = page.getDocuments();
+        }
+
+        return slice;
+    }
+
+    /**
+     * The error for a failed GET of <code>url</code>
+     */
+    private static ApiError errorFor(ApiResult<?> result, String url)
+    {
+        ApiError error = result.getError();
+        if (error == null)
+        {
+            error = new ApiError();
+            error.setMessage("No results returned for " + url);
+        }
+        return error;
+    }
+
+    /**
+     * Run the slices keeping at most <code>m_Parallelism</code> in flight
+     * and deliver them to the consumer in order.
+     */
+    private <T> boolean export(List<Callable<Slice<T>>> slices, DocumentConsumer<T> consumer)
+    throws IOException
+    {
+        Iterator<Callable<Slice<T>>> iter = slices.iterator();
+        Deque<Future<Slice<T>>> inFlight = new ArrayDeque<>();
+
+        try
+        {
+            while (inFlight.size() < m_Parallelism && iter.hasNext())
+            {
+                inFlight.add(m_Client.backgroundExecutor().submit(iter.next()));
+            }
+
+            while (inFlight.isEmpty() == false)
+            {
+                Slice<T> slice = await(inFlight.poll());
+
+                if (iter.hasNext())
+                {
+                    inFlight.add(m_Client.backgroundExecutor().submit(iter.next()));
+                }
+
+                if (slice.m_Error != null)
+                {
+                    m_LastError = slice.m_Error;
+                    return false;
+                }
+
+                for (T doc : slice.m_Documents)
+                {
+                    consumer.consume(doc);
+                }
+            }
+        }
+        finally
+        {
+            for (Future<Slice<T>> future : inFlight)
+            {
+                future.cancel(true);
+            }
+        }
+
+        return true;
+    }
+
+    private <T> Slice<T> await(Future<Slice<T>> future)
+    throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for export slice", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Error fetching export slice", e.getCause());
+        }
+    }
+}
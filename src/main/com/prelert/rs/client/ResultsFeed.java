@@ -0,0 +1,263 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.prelert.job.AnalysisConfig;
+import com.prelert.job.JobDetails;
+import com.prelert.rs.data.Bucket;
+import com.prelert.rs.data.Pagination;
+
+/**
+ * Follows the results of a job as they are produced. Each
+ * {@linkplain #poll()} fetches only the buckets, with their records,
+ * from the earliest bucket that was still interim at the last poll or
+ * else from just after the newest bucket seen, and reports what has
+ * changed to the listener:
+ * <ul>
+ * <li>{@linkplain EventType#NEW} for a bucket seen for the first time,
+ * interim or not</li>
+ * <li>{@linkplain EventType#INTERIM_UPDATED} when the scores or counts
+ * of an interim bucket have changed</li>
+ * <li>{@linkplain EventType#FINALIZED} when a bucket that was interim
+ * is returned as final</li>
+ * </ul>
+ * The feed also tracks a completeness watermark: every bucket that
+ * starts before it is final. As records may arrive up to
+ * <code>latency</code> seconds out of order a bucket is complete once
+ * the newest bucket seen is at least the bucket span plus the latency
+ * after its start.
+ * <br/>
+ * The feed is not thread safe, poll from a single thread.
+ */
+public class ResultsFeed
+{
+    /**
+     * The kinds of bucket event
+     */
+    public enum EventType
+    {
+        NEW, INTERIM_UPDATED, FINALIZED
+    }
+
+    /**
+     * The default number of buckets requested per page
+     */
+    public static final long DEFAULT_PAGE_SIZE = 500;
+
+    private final EngineApiClient m_Client;
+    private final String m_BaseUrl;
+    private final String m_JobId;
+    private final long m_BucketSpan;
+    private final long m_Latency;
+    private final long m_PageSize;
+    private final ResultsFeedListener m_Listener;
+
+    private final Map<Long, Bucket> m_InterimBuckets = new TreeMap<>();
+    private long m_NextStart;
+    private long m_LastSeen = Long.MIN_VALUE;
+    private long m_EventCount;
+
+    /**
+     * Follow the job's results from <code>start</code> using the bucket
+     * span and latency of the job's analysis configuration
+     *
+     * @param client Fetches the results
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The job Id
+     * @param analysisConfig The job's analysis configuration
+     * @param start The first bucket time of interest in seconds since the epoch
+     * @param listener Receives the events
+     */
+    public ResultsFeed(EngineApiClient client, String baseUrl, String jobId,
+            AnalysisConfig analysisConfig, long start, ResultsFeedListener listener)
+    {
+        this(client, baseUrl, jobId,
+                (analysisConfig.getBucketSpan() == null) ?
+                        JobDetails.DEFAULT_BUCKETSPAN : analysisConfig.getBucketSpan(),
+                (analysisConfig.getLatency() == null) ? 0 : analysisConfig.getLatency(),
+                start, DEFAULT_PAGE_SIZE, listener);
+    }
+
+    /**
+     * @param client Fetches the results
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The job Id
+     * @param bucketSpan The job's bucket span in seconds
+     * @param latency The job's latency in seconds
+     * @param start The first bucket time of interest in seconds since the epoch
+     * @param pageSize The number of buckets per request
+     * @param listener Receives the events
+     */
+    public ResultsFeed(EngineApiClient client, String baseUrl, String jobId,
+            long bucketSpan, long latency, long start, long pageSize,
+            ResultsFeedListener listener)
+    {
+        m_Client = client;
+        m_BaseUrl = baseUrl;
+        m_JobId = jobId;
+        m_BucketSpan = bucketSpan;
+        m_Latency = latency;
+        m_PageSize = pageSize;
+        m_Listener = listener;
+        m_NextStart = start;
+    }
+
+    /**
+     * Fetch the results since the last poll and report the changes
+     *
+     * @return The number of events reported
+     * @throws IOException
+     */
+    public long poll()
+    throws IOException
+    {
+        long before = m_EventCount;
+
+        DocumentConsumer<Bucket> consumer = new DocumentConsumer<Bucket>()
+        {
+            @Override
+            public void consume(Bucket bucket)
+            {
+                accept(bucket);
+            }
+        };
+
+        String description = "Polling the results of job " + m_JobId;
+        Pagination<Bucket> page = m_Client.streamBucketsResult(m_BaseUrl, m_JobId, true, true,
+                null, m_PageSize, m_NextStart, null, null, null, consumer)
+                .getResultOrThrow(description);
+        while (page.getNextPage() != null)
+        {
+            page = m_Client.streamResult(page.getNextPage().toString(), Bucket.class, consumer)
+                    .getResultOrThrow(description);
+        }
+
+        if (m_InterimBuckets.isEmpty() == false)
+        {
+            m_NextStart = m_InterimBuckets.keySet().iterator().next();
+        }
+        else if (m_LastSeen != Long.MIN_VALUE)
+        {
+            m_NextStart = Math.max(m_NextStart, m_LastSeen + 1);
+        }
+
+        return m_EventCount - before;
+    }
+
+    /**
+     * The time before which all buckets are final
+     *
+     * @return Seconds since the epoch or <code>Long.MIN_VALUE</code>
+     * if no buckets have been seen
+     */
+    public long getCompletenessWatermark()
+    {
+        if (m_LastSeen == Long.MIN_VALUE)
+        {
+            return Long.MIN_VALUE;
+        }
+
+        long watermark = TimestampParser.floorDiv(m_LastSeen - m_Latency, m_BucketSpan) *
+                m_BucketSpan;
+        if (m_InterimBuckets.isEmpty() == false)
+        {
+            watermark = Math.min(watermark, m_InterimBuckets.keySet().iterator().next());
+        }
+        return watermark;
+    }
+
+    /**
+     * The time of the newest bucket seen
+     * @return Seconds since the epoch or <code>Long.MIN_VALUE</code>
+     */
+    public long getLastSeenTimestamp()
+    {
+        return m_LastSeen;
+    }
+
+    /**
+     * The bucket time the next poll starts from
+     * @return Seconds since the epoch
+     */
+    public long getNextStart()
+    {
+        return m_NextStart;
+    }
+
+    /**
+     * The number of events reported so far
+     * @return The event count
+     */
+    public long getEventCount()
+    {
+        return m_EventCount;
+    }
+
+    private void accept(Bucket bucket)
+    {
+        long epoch = bucket.getEpoch();
+        boolean interim = Boolean.TRUE.equals(bucket.isInterim());
+
+        Bucket previous = m_InterimBuckets.get(epoch);
+        if (previous != null)
+        {
+            if (interim == false)
+            {
+                m_InterimBuckets.remove(epoch);
+                fire(EventType.FINALIZED, bucket);
+            }
+            else if (changed(previous, bucket))
+            {
+                m_InterimBuckets.put(epoch, bucket);
+                fire(EventType.INTERIM_UPDATED, bucket);
+            }
+        }
+        else if (epoch > m_LastSeen)
+        {
+            if (interim)
+            {
+                m_InterimBuckets.put(epoch, bucket);
+            }
+            fire(EventType.NEW, bucket);
+        }
+        // else already seen as final
+
+        m_LastSeen = Math.max(m_LastSeen, epoch);
+    }
+
+    private static boolean changed(Bucket previous, Bucket bucket)
+    {
+        return previous.getAnomalyScore() != bucket.getAnomalyScore() ||
+                previous.getMaxNormalizedProbability() != bucket.getMaxNormalizedProbability() ||
+                previous.getRecordCount() != bucket.getRecordCount() ||
+                previous.getEventCount() != bucket.getEventCount();
+    }
+
+    private void fire(EventType type, Bucket bucket)
+    {
+        m_EventCount++;
+        m_Listener.bucketEvent(type, bucket);
+    }
+}
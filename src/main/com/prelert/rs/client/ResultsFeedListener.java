@@ -0,0 +1,35 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import com.prelert.rs.data.Bucket;
+
+/**
+ * Receives the bucket events of a {@link ResultsFeed}.
+ * Called on the thread calling {@linkplain ResultsFeed#poll()}.
+ */
+public interface ResultsFeedListener
+{
+    /**
+     * @param type What happened to the bucket
+     * @param bucket The bucket as now returned by the API including
+     * its anomaly records
+     */
+    void bucketEvent(ResultsFeed.EventType type, Bucket bucket);
+}
@@ -0,0 +1,811 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import com.prelert.rs.data.AnomalyRecord;
+import com.prelert.rs.data.Bucket;
+import com.prelert.rs.data.Pagination;
+
+/**
+ * A local copy of a job's buckets and anomaly records that is kept up
+ * to date by fetching only the results since the last sync, so scans
+ * over the full history run against local files and the Engine serves
+ * each result once.
+ * <br/>
+ * The results are stored in a directory per job, split into segments
+ * of <code>segmentSpan</code> seconds of bucket time. Each segment has
+ * an append only file of fixed size bucket rows and one of variable
+ * size record rows, both in time order, and is read by memory mapping.
+ * Record causes are not stored.
+ * <br/>
+ * Each sync is numbered. It re-fetches from the earliest bucket that
+ * was interim at the last sync, so an interim bucket is later stored
+ * again as final. After the sync the segments it wrote to are compacted
+ * keeping, for each bucket time, only the rows of the latest sync.
+ * <br/>
+ * Scans may run concurrently with each other but not with a sync.
+ */
+public class ResultsMirror
+{
+    private static final Logger LOGGER = Logger.getLogger(ResultsMirror.class);
+
+    /**
+     * The default span of a segment, one day
+     */
+    public static final long DEFAULT_SEGMENT_SPAN = 86400;
+
+    /**
+     * The default number of buckets fetched per page during a sync
+     */
+    public static final long DEFAULT_PAGE_SIZE = 1000;
+
+    private static final String STATE_FILE = "mirror.properties";
+    private static final String BUCKETS_PREFIX = "buckets-";
+    private static final String RECORDS_PREFIX = "records-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final String JOB_ID = "jobId";
+    private static final String SEGMENT_SPAN = "segmentSpan";
+    private static final String LAST_SYNCED = "lastSyncedTimestamp";
+    private static final String GENERATION = "generation";
+
+    /**
+     * epoch, anomalyScore, maxNormalizedProbability, rawAnomalyScore,
+     * eventCount, recordCount, generation, flags
+     */
+    static final int BUCKET_ROW_SIZE = 8 + 8 + 8 + 8 + 8 + 4 + 4 + 4;
+
+    private static final int INTERIM_FLAG = 1;
+    private static final int TYPICAL_FLAG = 2;
+    private static final int ACTUAL_FLAG = 4;
+
+    /**
+     * fieldName, function, byFieldName, byFieldValue, overFieldName,
+     * overFieldValue, partitionFieldName, partitionFieldValue
+     */
+    private static final int STRING_FIELD_COUNT = 8;
+
+    private final File m_Directory;
+    private final String m_JobId;
+    private final long m_SegmentSpan;
+    private final ReadWriteLock m_Lock = new ReentrantReadWriteLock();
+
+    private long m_LastSyncedTimestamp;
+    private int m_Generation;
+
+    /**
+     * Open the mirror of <code>jobId</code> in <code>directory</code>
+     * creating it if it does not exist. An existing mirror keeps the
+     * segment span it was created with.
+     *
+     * @param directory The job's mirror directory
+     * @param jobId The job Id
+     * @param segmentSpan The span of a segment in seconds for a new mirror
+     * @throws IOException If the directory cannot be created or holds
+     * another job's mirror
+     */
+    public ResultsMirror(File directory, String jobId, long segmentSpan)
+    throws IOException
+    {
+        if (segmentSpan <= 0)
+        {
+            throw new IllegalArgumentException("segmentSpan must be > 0");
+        }
+        if (directory.isDirectory() == false && directory.mkdirs() == false)
+        {
+            throw new IOException("Cannot create the mirror directory " + directory);
+        }
+
+        m_Directory = directory;
+        m_JobId = jobId;
+
+        File stateFile = new File(directory, STATE_FILE);
+        if (stateFile.exists())
+        {
+            Properties state = new Properties();
+            try (InputStream in = new FileInputStream(stateFile))
+            {
+                state.load(in);
+            }
+
+            if (jobId.equals(state.getProperty(JOB_ID)) == false)
+            {
+                throw new IOException("The mirror in " + directory + " is for job " +
+                        state.getProperty(JOB_ID) + " not " + jobId);
+            }
+            try
+            {
+                m_SegmentSpan = Long.parseLong(state.getProperty(SEGMENT_SPAN));
+                m_LastSyncedTimestamp = Long.parseLong(state.getProperty(LAST_SYNCED));
+                m_Generation = Integer.parseInt(state.getProperty(GENERATION));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IOException("Invalid mirror state " + stateFile, e);
+            }
+        }
+        else
+        {
+            m_SegmentSpan = segmentSpan;
+            saveState();
+        }
+    }
+
+    public String getJobId()
+    {
+        return m_JobId;
+    }
+
+    /**
+     * The bucket time the next sync starts from
+     * @return Seconds since the epoch, 0 if never synced
+     */
+    public long getLastSyncedTimestamp()
+    {
+        return m_LastSyncedTimestamp;
+    }
+
+    /**
+     * Fetch the results since the last sync and add them to the mirror
+     *
+     * @param client Fetches the results
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param pageSize The number of buckets per request
+     * @return The number of buckets fetched
+     * @throws IOException
+     */
+    public long sync(EngineApiClient client, String baseUrl, long pageSize)
+    throws IOException
+    {
+        m_Lock.writeLock().lock();
+        try
+        {
+            // number the sync before writing so the rows of an
+            // interrupted sync are superseded by the next one
+            final int generation = ++m_Generation;
+            saveState();
+
+            final long start = m_LastSyncedTimestamp;
+            final SyncWriter writer = new SyncWriter(generation);
+            try
+            {
+                String description = "Syncing the results of job " + m_JobId;
+                Pagination<Bucket> page = client.streamBucketsResult(baseUrl, m_JobId, true,
+                        true, null, pageSize, (start > 0) ? Long.valueOf(start) : null, null,
+                        null, null, writer).getResultOrThrow(description);
+
+                while (page.getNextPage() != null)
+                {
+                    page = client.streamResult(page.getNextPage().toString(), Bucket.class,
+                            writer).getResultOrThrow(description);
+                }
+            }
+            finally
+            {
+                writer.close();
+            }
+
+            for (Long segment : writer.m_Segments.keySet())
+            {
+                if (writer.m_Segments.get(segment))
+                {
+                    compact(segment);
+                }
+            }
+
+            if (writer.m_FirstInterim != Long.MAX_VALUE)
+            {
+                m_LastSyncedTimestamp = writer.m_FirstInterim;
+            }
+            else if (writer.m_LastEpoch != Long.MIN_VALUE)
+            {
+                m_LastSyncedTimestamp = writer.m_LastEpoch + 1;
+            }
+            saveState();
+
+            LOGGER.info("Synced " + writer.m_BucketCount + " buckets of job " + m_JobId +
+                    " from " + start + ", next sync from " + m_LastSyncedTimestamp);
+            return writer.m_BucketCount;
+        }
+        finally
+        {
+            m_Lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Pass the mirrored buckets with times in <code>[start, end)</code>
+     * to <code>consumer</code> in time order
+     *
+     * @param start Seconds since the epoch, inclusive
+     * @param end Seconds since the epoch, exclusive
+     * @param expand If true the buckets include their records
+     * @param consumer Receives the buckets
+     * @throws IOException
+     */
+    public void scanBuckets(long start, long end, boolean expand,
+            DocumentConsumer<Bucket> consumer)
+    throws IOException
+    {
+        m_Lock.readLock().lock();
+        try
+        {
+            for (long segment : segments(start, end))
+            {
+                ByteBuffer buckets = map(bucketFile(segment));
+                ByteBuffer records = expand ? map(recordFile(segment)) : null;
+
+                while (buckets.remaining() >= BUCKET_ROW_SIZE)
+                {
+                    Bucket bucket = readBucket(buckets);
+                    long epoch = bucket.getEpoch();
+
+                    if (records != null)
+                    {
+                        List<AnomalyRecord> bucketRecords = new ArrayList<>();
+                        while (records.remaining() > 0 && peekRecordEpoch(records) <= epoch)
+                        {
+                            AnomalyRecord record = readRecord(records);
+                            if (record.getTimestamp().getTime() / 1000 == epoch)
+                            {
+                                bucketRecords.add(record);
+                            }
+                        }
+                        bucket.setRecords(bucketRecords);
+                    }
+
+                    if (epoch >= start && epoch < end)
+                    {
+                        consumer.consume(bucket);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            m_Lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Pass the mirrored records with times in <code>[start, end)</code>
+     * to <code>consumer</code> in time order
+     *
+     * @param start Seconds since the epoch, inclusive
+     * @param end Seconds since the epoch, exclusive
+     * @param consumer Receives the records
+     * @throws IOException
+     */
+    public void scanRecords(long start, long end, DocumentConsumer<AnomalyRecord> consumer)
+    throws IOException
+    {
+        m_Lock.readLock().lock();
+        try
+        {
+            for (long segment : segments(start, end))
+            {
+                ByteBuffer records = map(recordFile(segment));
+                while (records.remaining() > 0)
+                {
+                    long epoch = peekRecordEpoch(records);
+                    if (epoch >= end)
+                    {
+                        break;
+                    }
+
+                    if (epoch < start)
+                    {
+                        records.position(records.position() + 4 + records.getInt(records.position()));
+                    }
+                    else
+                    {
+                        consumer.consume(readRecord(records));
+                    }
+                }
+            }
+        }
+        finally
+        {
+            m_Lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The starts of the segments overlapping <code>[start, end)</code>
+     * that have files, in order
+     */
+    private List<Long> segments(long start, long end)
+    {
+        List<Long> segments = new ArrayList<>();
+        String [] names = m_Directory.list();
+        if (names == null)
+        {
+            return segments;
+        }
+
+        long first = TimestampParser.floorDiv(start, m_SegmentSpan) * m_SegmentSpan;
+        for (String name : names)
+        {
+            if (name.startsWith(BUCKETS_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+            {
+                try
+                {
+                    long segment = Long.parseLong(name.substring(BUCKETS_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length()));
+                    if (segment >= first && segment < end)
+                    {
+                        segments.add(segment);
+                    }
+                }
+                catch (NumberFormatException e)
+                {
+                    LOGGER.warn("Ignoring unexpected file " + name + " in " + m_Directory);
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private long segmentOf(long epoch)
+    {
+        return TimestampParser.floorDiv(epoch, m_SegmentSpan) * m_SegmentSpan;
+    }
+
+    private File bucketFile(long segment)
+    {
+        return new File(m_Directory, BUCKETS_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    private File recordFile(long segment)
+    {
+        return new File(m_Directory, RECORDS_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    private static ByteBuffer map(File file)
+    throws IOException
+    {
+        if (file.exists() == false || file.length() == 0)
+        {
+            return ByteBuffer.allocate(0);
+        }
+
+        try (FileInputStream in = new FileInputStream(file);
+            FileChannel channel = in.getChannel())
+        {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return buffer;
+        }
+    }
+
+    /**
+     * Keep only the rows of the latest sync for each bucket time
+     */
+    private void compact(long segment)
+    throws IOException
+    {
+        ByteBuffer buckets = map(bucketFile(segment));
+        Map<Long, Integer> latest = new HashMap<>();
+        int rows = 0;
+        while (buckets.remaining() >= BUCKET_ROW_SIZE)
+        {
+            int row = buckets.position();
+            long epoch = buckets.getLong(row);
+            int generation = buckets.getInt(row + BUCKET_ROW_SIZE - 8);
+            Integer previous = latest.put(epoch, generation);
+            if (previous != null && previous > generation)
+            {
+                latest.put(epoch, previous);
+            }
+            buckets.position(row + BUCKET_ROW_SIZE);
+            rows++;
+        }
+        if (latest.size() == rows && hasSupersededRecords(segment, latest) == false)
+        {
+            return;
+        }
+
+        buckets.rewind();
+        File bucketTmp = new File(m_Directory, bucketFile(segment).getName() + ".tmp");
+        int kept = 0;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(bucketTmp)))
+        {
+            byte [] row = new byte[BUCKET_ROW_SIZE];
+            while (buckets.remaining() >= BUCKET_ROW_SIZE)
+            {
+                int position = buckets.position();
+                long epoch = buckets.getLong(position);
+                int generation = buckets.getInt(position + BUCKET_ROW_SIZE - 8);
+                buckets.get(row);
+                if (latest.get(epoch) == generation)
+                {
+                    out.write(row);
+                    kept++;
+                }
+            }
+        }
+
+        ByteBuffer records = map(recordFile(segment));
+        File recordTmp = new File(m_Directory, recordFile(segment).getName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(recordTmp)))
+        {
+            byte [] row = new byte[256];
+            while (records.remaining() > 0)
+            {
+                int position = records.position();
+                int length = 4 + records.getInt(position);
+                long epoch = records.getLong(position + 4);
+                int generation = records.getInt(position + 12);
+                if (row.length < length)
+                {
+                    row = new byte[length * 2];
+                }
+                records.get(row, 0, length);
+
+                Integer live = latest.get(epoch);
+                if (live != null && live == generation)
+                {
+                    out.write(row, 0, length);
+                }
+            }
+        }
+
+        replace(bucketTmp, bucketFile(segment));
+        replace(recordTmp, recordFile(segment));
+        LOGGER.debug("Compacted segment " + segment + " of job " + m_JobId + " from " +
+                rows + " to " + kept + " buckets");
+    }
+
+    private boolean hasSupersededRecords(long segment, Map<Long, Integer> latest)
+    throws IOException
+    {
+        ByteBuffer records = map(recordFile(segment));
+        while (records.remaining() > 0)
+        {
+            int position = records.position();
+            Integer live = latest.get(records.getLong(position + 4));
+            if (live == null || live != records.getInt(position + 12))
+            {
+                return true;
+            }
+            records.position(position + 4 + records.getInt(position));
+        }
+        return false;
+    }
+
+    private static void replace(File from, File to)
+    throws IOException
+    {
+        try
+        {
+            Files.move(from.toPath(), to.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void saveState()
+    throws IOException
+    {
+        Properties state = new Properties();
+        state.setProperty(JOB_ID, m_JobId);
+        state.setProperty(SEGMENT_SPAN, Long.toString(m_SegmentSpan));
+        state.setProperty(LAST_SYNCED, Long.toString(m_LastSyncedTimestamp));
+        state.setProperty(GENERATION, Integer.toString(m_Generation));
+
+        File tmp = new File(m_Directory, STATE_FILE + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp))
+        {
+            state.store(out, "Results mirror");
+        }
+        replace(tmp, new File(m_Directory, STATE_FILE));
+    }
+
+    private static Bucket readBucket(ByteBuffer buffer)
+    {
+        Bucket bucket = new Bucket();
+        long epoch = buffer.getLong();
+        bucket.setTimestamp(new Date(epoch * 1000));
+        bucket.setAnomalyScore(buffer.getDouble());
+        bucket.setMaxNormalizedProbability(buffer.getDouble());
+        bucket.setRawAnomalyScore(buffer.getDouble());
+        bucket.setEventCount(buffer.getLong());
+        bucket.setRecordCount(buffer.getInt());
+        buffer.getInt(); // generation
+        int flags = buffer.getInt();
+        bucket.setInterim((flags & INTERIM_FLAG) != 0 ? Boolean.TRUE : null);
+        bucket.resetBigNormalisedUpdateFlag();
+        return bucket;
+    }
+
+    private static long peekRecordEpoch(ByteBuffer buffer)
+    {
+        return buffer.getLong(buffer.position() + 4);
+    }
+
+    private static AnomalyRecord readRecord(ByteBuffer buffer)
+    {
+        AnomalyRecord record = new AnomalyRecord();
+        buffer.getInt(); // length
+        record.setTimestamp(new Date(buffer.getLong() * 1000));
+        buffer.getInt(); // generation
+        int flags = buffer.get();
+        record.setAnomalyScore(buffer.getDouble());
+        record.setNormalizedProbability(buffer.getDouble());
+        record.setProbability(buffer.getDouble());
+        double typical = buffer.getDouble();
+        double actual = buffer.getDouble();
+        if ((flags & TYPICAL_FLAG) != 0)
+        {
+            record.setTypical(typical);
+        }
+        if ((flags & ACTUAL_FLAG) != 0)
+        {
+            record.setActual(actual);
+        }
+        record.setInterim((flags & INTERIM_FLAG) != 0 ? Boolean.TRUE : null);
+
+        // the setters intern their values so cannot be passed null
+        String [] values = new String[STRING_FIELD_COUNT];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = readString(buffer);
+        }
+        if (values[0] != null)
+        {
+            record.setFieldName(values[0]);
+        }
+        if (values[1] != null)
+        {
+            record.setFunction(values[1]);
+        }
+        if (values[2] != null)
+        {
+            record.setByFieldName(values[2]);
+        }
+        if (values[3] != null)
+        {
+            record.setByFieldValue(values[3]);
+        }
+        if (values[4] != null)
+        {
+            record.setOverFieldName(values[4]);
+        }
+        if (values[5] != null)
+        {
+            record.setOverFieldValue(values[5]);
+        }
+        if (values[6] != null)
+        {
+            record.setPartitionFieldName(values[6]);
+        }
+        if (values[7] != null)
+        {
+            record.setPartitionFieldValue(values[7]);
+        }
+        record.resetBigNormalisedUpdateFlag();
+        return record;
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        int length = buffer.getShort();
+        if (length < 0)
+        {
+            return null;
+        }
+        byte [] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Appends the fetched buckets and their records to the segment files
+     */
+    private class SyncWriter implements DocumentConsumer<Bucket>, Closeable
+    {
+        private final int m_SyncGeneration;
+
+        /**
+         * The segments written to and if they had rows before this sync
+         */
+        final Map<Long, Boolean> m_Segments = new TreeMap<>();
+        long m_FirstInterim = Long.MAX_VALUE;
+        long m_LastEpoch = Long.MIN_VALUE;
+        long m_BucketCount;
+
+        private long m_Segment = Long.MIN_VALUE;
+        private DataOutputStream m_Buckets;
+        private DataOutputStream m_Records;
+        private final RowBuffer m_Row = new RowBuffer();
+
+        SyncWriter(int generation)
+        {
+            m_SyncGeneration = generation;
+        }
+
+        @Override
+        public void consume(Bucket bucket)
+        throws IOException
+        {
+            long epoch = bucket.getEpoch();
+            long segment = segmentOf(epoch);
+            if (segment != m_Segment)
+            {
+                openSegment(segment);
+            }
+
+            boolean interim = Boolean.TRUE.equals(bucket.isInterim());
+            m_Buckets.writeLong(epoch);
+            m_Buckets.writeDouble(bucket.getAnomalyScore());
+            m_Buckets.writeDouble(bucket.getMaxNormalizedProbability());
+            m_Buckets.writeDouble(bucket.getRawAnomalyScore());
+            m_Buckets.writeLong(bucket.getEventCount());
+            m_Buckets.writeInt(bucket.getRecordCount());
+            m_Buckets.writeInt(m_SyncGeneration);
+            m_Buckets.writeInt(interim ? INTERIM_FLAG : 0);
+
+            if (bucket.getRecords() != null)
+            {
+                for (AnomalyRecord record : bucket.getRecords())
+                {
+                    writeRecord(epoch, record);
+                }
+            }
+
+            if (interim)
+            {
+                m_FirstInterim = Math.min(m_FirstInterim, epoch);
+            }
+            m_LastEpoch = Math.max(m_LastEpoch, epoch);
+            m_BucketCount++;
+        }
+
+        private void writeRecord(long epoch, AnomalyRecord record)
+        throws IOException
+        {
+            int flags = Boolean.TRUE.equals(record.isInterim()) ? INTERIM_FLAG : 0;
+            flags |= (record.getTypical() != null) ? TYPICAL_FLAG : 0;
+            flags |= (record.getActual() != null) ? ACTUAL_FLAG : 0;
+
+            DataOutputStream row = m_Row.start();
+            row.writeLong(epoch);
+            row.writeInt(m_SyncGeneration);
+            row.writeByte(flags);
+            row.writeDouble(record.getAnomalyScore());
+            row.writeDouble(record.getNormalizedProbability());
+            row.writeDouble(record.getProbability());
+            row.writeDouble((record.getTypical() != null) ? record.getTypical() : 0.0);
+            row.writeDouble((record.getActual() != null) ? record.getActual() : 0.0);
+            writeString(row, record.getFieldName());
+            writeString(row, record.getFunction());
+            writeString(row, record.getByFieldName());
+            writeString(row, record.getByFieldValue());
+            writeString(row, record.getOverFieldName());
+            writeString(row, record.getOverFieldValue());
+            writeString(row, record.getPartitionFieldName());
+            writeString(row, record.getPartitionFieldValue());
+            row.flush();
+
+            m_Records.writeInt(m_Row.size());
+            m_Row.writeTo(m_Records);
+        }
+
+        private void writeString(DataOutputStream out, String value)
+        throws IOException
+        {
+            if (value == null)
+            {
+                out.writeShort(-1);
+                return;
+            }
+
+            byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(bytes.length, Short.MAX_VALUE);
+            out.writeShort(length);
+            out.write(bytes, 0, length);
+        }
+
+        private void openSegment(long segment)
+        throws IOException
+        {
+            close();
+
+            File bucketFile = bucketFile(segment);
+            if (m_Segments.containsKey(segment) == false)
+            {
+                m_Segments.put(segment, bucketFile.length() > 0);
+            }
+
+            m_Segment = segment;
+            m_Buckets = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(bucketFile, true), 64 * 1024));
+            m_Records = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(recordFile(segment), true), 64 * 1024));
+        }
+
+        @Override
+        public void close()
+        throws IOException
+        {
+            if (m_Buckets != null)
+            {
+                // records first so a bucket is never stored without them
+                m_Records.close();
+                m_Buckets.close();
+                m_Buckets = null;
+                m_Records = null;
+            }
+            m_Segment = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Builds a record row so its length can be written first
+     */
+    private static class RowBuffer extends ByteArrayOutputStream
+    {
+        private final DataOutputStream m_Data = new DataOutputStream(this);
+
+        /**
+         * Clear the buffer for a new row
+         * @return The stream to write the row to
+         */
+        DataOutputStream start()
+        {
+            reset();
+            return m_Data;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.util.List;
+
+/**
+ * Chooses the job each record is sent to by a {@link RecordRouter}.
+ * The rule is called from the single thread reading the input.
+ */
+public interface RoutingRule
+{
+    /**
+     * The job for <code>record</code>
+     *
+     * @param fields The names of the record's fields, the same list
+     * for every record of the input
+     * @param record The values in field order. The array is reused
+     * for the next record so must not be kept.
+     * @return The job Id or <code>null</code> to drop the record
+     */
+    String route(List<String> fields, String [] record);
+}
@@ -0,0 +1,672 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import com.prelert.rs.data.Bucket;
+import com.prelert.rs.data.Pagination;
+
+/**
+ * Finds the historical buckets of a job whose scores have been
+ * changed by renormalisation without downloading the results again.
+ * <br/>
+ * The tree holds the <code>anomalyScore</code> and
+ * <code>maxNormalizedProbability</code> of every final bucket last
+ * reported to the caller grouped into fixed time ranges, the leaves,
+ * each with a digest of its scores. Parent nodes digest groups of
+ * {@value #FANOUT} children up to a single root.
+ * <br/>
+ * {@linkplain #refresh(EngineApiClient, String, long, long, DocumentConsumer)}
+ * scans the bucket scores without their records, builds the tree of
+ * the scanned scores and walks both trees from the root into only the
+ * subtrees whose digests differ. The buckets of the differing leaves
+ * are compared with the values held and where a bucket has had a big
+ * normalised update, as defined by {@linkplain Bucket#hadBigNormalisedUpdate()},
+ * just those leaf ranges are fetched again with their anomaly records
+ * and the updated buckets are passed to the consumer.
+ * <br/>
+ * Small changes are not reported and the previous scores are kept so
+ * drift accumulated over several refreshes is reported once it is big.
+ * The tree can be saved between runs, it is written to a temporary
+ * file and moved over the old one.
+ * <br/>
+ * Not thread safe.
+ */
+public class ScoreDigestTree
+{
+    private static final Logger LOGGER = Logger.getLogger(ScoreDigestTree.class);
+
+    /**
+     * The default time range of a leaf in seconds
+     */
+    public static final long DEFAULT_LEAF_SPAN = 86400;
+
+    /**
+     * The default number of buckets requested per page
+     */
+    public static final long DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * The number of children of each node
+     */
+    public static final int FANOUT = 16;
+
+    private static final int FILE_MAGIC = 0x50524454;
+    private static final int FILE_VERSION = 1;
+
+    private final String m_JobId;
+    private final long m_LeafSpan;
+    private TreeMap<Long, Leaf> m_Leaves = new TreeMap<>();
+
+    private long m_ChangedLeafCount;
+    private long m_FetchedLeafCount;
+    private long m_BigUpdateCount;
+
+    /**
+     * An empty tree
+     *
+     * @param jobId The job Id
+     * @param leafSpan The time range of each leaf in seconds
+     */
+    public ScoreDigestTree(String jobId, long leafSpan)
+    {
+        if (leafSpan <= 0)
+        {
+            throw new IllegalArgumentException("leafSpan must be > 0");
+        }
+
+        m_JobId = jobId;
+        m_LeafSpan = leafSpan;
+    }
+
+    /**
+     * Read a saved tree
+     *
+     * @param file
+     * @return The tree or <code>null</code> if the file does not exist
+     * @throws IOException If the file cannot be read or is not a tree
+     */
+    public static ScoreDigestTree load(File file)
+    throws IOException
+    {
+        if (file.exists() == false)
+        {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+            {
+                throw new IOException("Not a score digest tree " + file);
+            }
+
+            ScoreDigestTree tree = new ScoreDigestTree(in.readUTF(), in.readLong());
+            int leafCount = in.readInt();
+            for (int i = 0; i < leafCount; i++)
+            {
+                long index = in.readLong();
+                int size = in.readInt();
+                Leaf leaf = new Leaf(size);
+                for (int j = 0; j < size; j++)
+                {
+                    leaf.m_Epochs[j] = in.readLong();
+                    leaf.m_AnomalyScores[j] = in.readDouble();
+                    leaf.m_MaxNormalizedProbabilities[j] = in.readDouble();
+                }
+                leaf.m_Size = size;
+                leaf.computeDigest();
+                tree.m_Leaves.put(index, leaf);
+            }
+            return tree;
+        }
+    }
+
+    /**
+     * Write the tree to a temporary file then move it over <code>file</code>
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file)
+    throws IOException
+    {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp))))
+        {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(m_JobId);
+            out.writeLong(m_LeafSpan);
+            out.writeInt(m_Leaves.size());
+            for (Map.Entry<Long, Leaf> entry : m_Leaves.entrySet())
+            {
+                Leaf leaf = entry.getValue();
+                out.writeLong(entry.getKey());
+                out.writeInt(leaf.m_Size);
+                for (int j = 0; j < leaf.m_Size; j++)
+                {
+                    out.writeLong(leaf.m_Epochs[j]);
+                    out.writeDouble(leaf.m_AnomalyScores[j]);
+                    out.writeDouble(leaf.m_MaxNormalizedProbabilities[j]);
+                }
+            }
+        }
+
+        try
+        {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Scan the final bucket scores in the range, extended to whole
+     * leaves, and report the buckets with big normalised updates since
+     * the last refresh. Buckets not seen before are added to the tree
+     * without being reported.
+     * <br/>
+     * The tree is only updated once all the updated buckets have been
+     * consumed, if the scan, fetching them or the consumer fails the
+     * tree is unchanged and the next refresh reports them again.
+     * Buckets held that the scan does not return are kept with their
+     * previous scores rather than dropped, so they are not mistaken
+     * for new buckets when they are next returned.
+     *
+     * @param client Fetches the results
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param start The start of the range in seconds since the epoch
+     * @param end The end of the range in seconds since the epoch, exclusive
+     * @param consumer Receives the updated buckets with their anomaly records
+     * @return The number of buckets reported
+     * @throws IOException
+     */
+    public long refresh(EngineApiClient client, String baseUrl, long start, long end,
+            DocumentConsumer<Bucket> consumer)
+    throws IOException
+    {
+        long firstLeaf = TimestampParser.floorDiv(start, m_LeafSpan);
+        long lastLeaf = TimestampParser.floorDiv(end - 1, m_LeafSpan);
+
+        // scores only, the records are fetched for the changed leaves
+        final TreeMap<Long, Leaf> scanned = new TreeMap<>();
+        DocumentConsumer<Bucket> scanner = new DocumentConsumer<Bucket>()
+        {
+            @Override
+            public void consume(Bucket bucket)
+            {
+                long index = TimestampParser.floorDiv(bucket.getEpoch(), m_LeafSpan);
+                Leaf leaf = scanned.get(index);
+                if (leaf == null)
+                {
+                    leaf = new Leaf(16);
+                    scanned.put(index, leaf);
+                }
+                leaf.add(bucket.getEpoch(), bucket.getAnomalyScore(),
+                        bucket.getMaxNormalizedProbability());
+            }
+        };
+
+        String description = "Scanning the scores of job " + m_JobId;
+        Pagination<Bucket> page = client.streamBucketsResult(baseUrl, m_JobId, false, false,
+                null, DEFAULT_PAGE_SIZE, Long.valueOf(firstLeaf * m_LeafSpan),
+                Long.valueOf((lastLeaf + 1) * m_LeafSpan), null, null, scanner)
+                .getResultOrThrow(description);
+        while (page.getNextPage() != null)
+        {
+            page = client.streamResult(page.getNextPage().toString(), Bucket.class, scanner)
+                    .getResultOrThrow(description);
+        }
+
+        // leaves outside the scanned range are unchanged
+        TreeMap<Long, Leaf> candidate = new TreeMap<>(m_Leaves);
+        candidate.subMap(firstLeaf, true, lastLeaf, true).clear();
+        for (Map.Entry<Long, Leaf> entry : scanned.entrySet())
+        {
+            entry.getValue().computeDigest();
+            candidate.put(entry.getKey(), entry.getValue());
+        }
+
+        // nor are leaves held that the scan did not return
+        long missingBuckets = 0;
+        for (Map.Entry<Long, Leaf> entry :
+                m_Leaves.subMap(firstLeaf, true, lastLeaf, true).entrySet())
+        {
+            if (scanned.containsKey(entry.getKey()) == false)
+            {
+                candidate.put(entry.getKey(), entry.getValue());
+                missingBuckets += entry.getValue().m_Size;
+            }
+        }
+
+        List<Long> changedLeaves = changedLeaves(m_Leaves, candidate);
+
+        // merge the scanned leaves keeping the reported scores of
+        // buckets with only small changes
+        Set<Long> bigUpdates = new HashSet<>();
+        List<Long> leavesToFetch = new ArrayList<>();
+        for (Long index : changedLeaves)
+        {
+            Leaf previous = m_Leaves.get(index);
+            Leaf current = candidate.get(index);
+            if (previous == null || current == null)
+            {
+                continue;
+            }
+
+            missingBuckets += current.keepMissing(previous);
+
+            int before = bigUpdates.size();
+            current.keepSmallChanges(previous, bigUpdates);
+            if (bigUpdates.size() > before)
+            {
+                leavesToFetch.add(index);
+            }
+        }
+
+        if (missingBuckets > 0)
+        {
+            LOGGER.warn("The scan of job " + m_JobId + " did not return " + missingBuckets +
+                    " buckets seen before, their previous scores are kept");
+        }
+
+        fetchUpdated(client, baseUrl, leavesToFetch, bigUpdates, consumer);
+
+        m_Leaves = candidate;
+        m_ChangedLeafCount = changedLeaves.size();
+        m_FetchedLeafCount = leavesToFetch.size();
+        m_BigUpdateCount = bigUpdates.size();
+
+        LOGGER.debug(String.format("Job %s: %d changed leaves, %d fetched, %d big updates",
+                m_JobId, m_ChangedLeafCount, m_FetchedLeafCount, m_BigUpdateCount));
+
+        return bigUpdates.size();
+    }
+
+    /**
+     * Fetch the expanded buckets of the leaves, adjacent leaves in a
+     * single request, and pass on those with big updates
+     */
+    private void fetchUpdated(EngineApiClient client, String baseUrl,
+            List<Long> leaves, final Set<Long> bigUpdates,
+            final DocumentConsumer<Bucket> consumer)
+    throws IOException
+    {
+        DocumentConsumer<Bucket> filter = new DocumentConsumer<Bucket>()
+        {
+            @Override
+            public void consume(Bucket bucket)
+            throws IOException
+            {
+                if (bigUpdates.contains(bucket.getEpoch()))
+                {
+                    consumer.consume(bucket);
+                }
+            }
+        };
+
+        int i = 0;
+        while (i < leaves.size())
+        {
+            long first = leaves.get(i);
+            long last = first;
+            while (++i < leaves.size() && leaves.get(i) == last + 1)
+            {
+                last++;
+            }
+
+            String description = "Fetching the updated buckets of job " + m_JobId;
+            Pagination<Bucket> page = client.streamBucketsResult(baseUrl, m_JobId, true, false,
+                    null, DEFAULT_PAGE_SIZE, Long.valueOf(first * m_LeafSpan),
+                    Long.valueOf((last + 1) * m_LeafSpan), null, null, filter)
+                    .getResultOrThrow(description);
+            while (page.getNextPage() != null)
+            {
+                page = client.streamResult(page.getNextPage().toString(), Bucket.class, filter)
+                        .getResultOrThrow(description);
+            }
+        }
+    }
+
+    /**
+     * Walk down from the roots of both trees into the nodes
+     * whose digests differ
+     *
+     * @return The sorted indexes of the differing leaves
+     */
+    static List<Long> changedLeaves(TreeMap<Long, Leaf> before, TreeMap<Long, Leaf> after)
+    {
+        List<Map<Long, Long>> levelsBefore = new ArrayList<>();
+        List<Map<Long, Long>> levelsAfter = new ArrayList<>();
+
+        Map<Long, Long> leavesBefore = new HashMap<>();
+        for (Map.Entry<Long, Leaf> entry : before.entrySet())
+        {
+            leavesBefore.put(entry.getKey(), entry.getValue().m_Digest);
+        }
+        Map<Long, Long> leavesAfter = new HashMap<>();
+        for (Map.Entry<Long, Leaf> entry : after.entrySet())
+        {
+            leavesAfter.put(entry.getKey(), entry.getValue().m_Digest);
+        }
+        levelsBefore.add(leavesBefore);
+        levelsAfter.add(leavesAfter);
+
+        while (levelsBefore.get(levelsBefore.size() - 1).size() > 1 ||
+                levelsAfter.get(levelsAfter.size() - 1).size() > 1)
+        {
+            levelsBefore.add(parents(levelsBefore.get(levelsBefore.size() - 1)));
+            levelsAfter.add(parents(levelsAfter.get(levelsAfter.size() - 1)));
+        }
+
+        // the nodes that differ at the top then at each level below
+        // only the children of differing parents
+        Set<Long> differing = differingNodes(levelsBefore.get(levelsBefore.size() - 1),
+                levelsAfter.get(levelsAfter.size() - 1), null);
+        for (int level = levelsBefore.size() - 2; level >= 0 && differing.isEmpty() == false; level--)
+        {
+            differing = differingNodes(levelsBefore.get(level), levelsAfter.get(level),
+                    differing);
+        }
+
+        List<Long> changed = new ArrayList<>(differing);
+        Collections.sort(changed);
+        return changed;
+    }
+
+    private static Set<Long> differingNodes(Map<Long, Long> before, Map<Long, Long> after,
+            Set<Long> differingParents)
+    {
+        Set<Long> keys = new HashSet<>(before.keySet());
+        keys.addAll(after.keySet());
+
+        Set<Long> differing = new HashSet<>();
+        for (Long key : keys)
+        {
+            if (differingParents != null &&
+                    differingParents.contains(TimestampParser.floorDiv(key, FANOUT)) == false)
+            {
+                continue;
+            }
+
+            Long digestBefore = before.get(key);
+            Long digestAfter = after.get(key);
+            if (digestBefore == null || digestAfter == null ||
+                    digestBefore.longValue() != digestAfter.longValue())
+            {
+                differing.add(key);
+            }
+        }
+        return differing;
+    }
+
+    private static Map<Long, Long> parents(Map<Long, Long> children)
+    {
+        // combine the children in key order so the digest
+        // does not depend on the map's iteration order
+        TreeMap<Long, Long> sorted = new TreeMap<>(children);
+        Map<Long, Long> parents = new HashMap<>();
+        for (Map.Entry<Long, Long> entry : sorted.entrySet())
+        {
+            long parent = TimestampParser.floorDiv(entry.getKey(), FANOUT);
+            Long digest = parents.get(parent);
+            long combined = mix(((digest == null) ? 0 : digest) ^ mix(entry.getKey()))
+                    ^ entry.getValue();
+            parents.put(parent, combined);
+        }
+        return parents;
+    }
+
+    /**
+     * The finalisation step of MurmurHash3
+     */
+    private static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public String getJobId()
+    {
+        return m_JobId;
+    }
+
+    public long getLeafSpan()
+    {
+        return m_LeafSpan;
+    }
+
+    /**
+     * The number of buckets held
+     * @return The bucket count
+     */
+    public long getBucketCount()
+    {
+        long count = 0;
+        for (Leaf leaf : m_Leaves.values())
+        {
+            count += leaf.m_Size;
+        }
+        return count;
+    }
+
+    /**
+     * The number of leaves whose digests differed in the last refresh
+     * @return The leaf count
+     */
+    public long getChangedLeafCount()
+    {
+        return m_ChangedLeafCount;
+    }
+
+    /**
+     * The number of leaves fetched with their records in the last refresh
+     * @return The leaf count
+     */
+    public long getFetchedLeafCount()
+    {
+        return m_FetchedLeafCount;
+    }
+
+    /**
+     * The number of buckets with big updates in the last refresh
+     * @return The bucket count
+     */
+    public long getBigUpdateCount()
+    {
+        return m_BigUpdateCount;
+    }
+
+
+    /**
+     * The scores of the buckets in a leaf's time range in time order
+     */
+    static class Leaf
+    {
+        long[] m_Epochs;
+        double[] m_AnomalyScores;
+        double[] m_MaxNormalizedProbabilities;
+        int m_Size;
+        long m_Digest;
+
+        Leaf(int capacity)
+        {
+            m_Epochs = new long[capacity];
+            m_AnomalyScores = new double[capacity];
+            m_MaxNormalizedProbabilities = new double[capacity];
+        }
+
+        void add(long epoch, double anomalyScore, double maxNormalizedProbability)
+        {
+            if (m_Size == m_Epochs.length)
+            {
+                int capacity = m_Size * 2;
+                m_Epochs = Arrays.copyOf(m_Epochs, capacity);
+                m_AnomalyScores = Arrays.copyOf(m_AnomalyScores, capacity);
+                m_MaxNormalizedProbabilities = Arrays.copyOf(m_MaxNormalizedProbabilities,
+                        capacity);
+            }
+            m_Epochs[m_Size] = epoch;
+            m_AnomalyScores[m_Size] = anomalyScore;
+            m_MaxNormalizedProbabilities[m_Size] = maxNormalizedProbability;
+            m_Size++;
+        }
+
+        void computeDigest()
+        {
+            long h = m_Size;
+            for (int i = 0; i < m_Size; i++)
+            {
+                h = mix(h ^ m_Epochs[i]);
+                h = mix(h ^ Double.doubleToLongBits(m_AnomalyScores[i]));
+                h = mix(h ^ Double.doubleToLongBits(m_MaxNormalizedProbabilities[i]));
+            }
+            m_Digest = h;
+        }
+
+        /**
+         * Add the previous scores of the buckets that are missing
+         * from this leaf, keeping the time order
+         *
+         * @return The number of buckets added
+         */
+        int keepMissing(Leaf previous)
+        {
+            int missing = 0;
+            for (int j = 0; j < previous.m_Size; j++)
+            {
+                if (Arrays.binarySearch(m_Epochs, 0, m_Size, previous.m_Epochs[j]) < 0)
+                {
+                    missing++;
+                }
+            }
+            if (missing == 0)
+            {
+                return 0;
+            }
+
+            int size = m_Size + missing;
+            long [] epochs = new long[size];
+            double [] anomalyScores = new double[size];
+            double [] maxNormalizedProbabilities = new double[size];
+
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (i < m_Size || j < previous.m_Size)
+            {
+                if (j == previous.m_Size ||
+                        (i < m_Size && m_Epochs[i] <= previous.m_Epochs[j]))
+                {
+                    if (j < previous.m_Size && m_Epochs[i] == previous.m_Epochs[j])
+                    {
+                        j++;
+                    }
+                    epochs[k] = m_Epochs[i];
+                    anomalyScores[k] = m_AnomalyScores[i];
+                    maxNormalizedProbabilities[k] = m_MaxNormalizedProbabilities[i];
+                    i++;
+                }
+                else
+                {
+                    epochs[k] = previous.m_Epochs[j];
+                    anomalyScores[k] = previous.m_AnomalyScores[j];
+                    maxNormalizedProbabilities[k] = previous.m_MaxNormalizedProbabilities[j];
+                    j++;
+                }
+                k++;
+            }
+
+            m_Epochs = epochs;
+            m_AnomalyScores = anomalyScores;
+            m_MaxNormalizedProbabilities = maxNormalizedProbabilities;
+            m_Size = size;
+            return missing;
+        }
+
+        /**
+         * Compare with the previous scores adding the epochs of the
+         * buckets with big updates to <code>bigUpdates</code>. Buckets
+         * with small changes revert to their previous scores.
+         */
+        void keepSmallChanges(Leaf previous, Set<Long> bigUpdates)
+        {
+            for (int i = 0; i < m_Size; i++)
+            {
+                int j = Arrays.binarySearch(previous.m_Epochs, 0, previous.m_Size, m_Epochs[i]);
+                if (j < 0)
+                {
+                    continue;
+                }
+
+                // replay the change on a bucket to use its definition of a big update
+                Bucket compare = new Bucket();
+                compare.setAnomalyScore(previous.m_AnomalyScores[j]);
+                compare.setMaxNormalizedProbability(previous.m_MaxNormalizedProbabilities[j]);
+                compare.resetBigNormalisedUpdateFlag();
+                compare.setAnomalyScore(m_AnomalyScores[i]);
+                compare.setMaxNormalizedProbability(m_MaxNormalizedProbabilities[i]);
+
+                if (compare.hadBigNormalisedUpdate())
+                {
+                    bigUpdates.add(m_Epochs[i]);
+                }
+                else
+                {
+                    m_AnomalyScores[i] = previous.m_AnomalyScores[j];
+                    m_MaxNormalizedProbabilities[i] = previous.m_MaxNormalizedProbabilities[j];
+                }
+            }
+            computeDigest();
+        }
+    }
+}
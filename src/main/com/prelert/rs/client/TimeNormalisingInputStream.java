@@ -0,0 +1,214 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+
+import com.prelert.job.AnalysisConfig;
+import com.prelert.job.DataDescription;
+
+/**
+ * Parses the time field of each record on the client and rewrites it
+ * as seconds since the epoch. Records with a missing or unparseable
+ * time are counted and dropped, optionally they are written to a
+ * separate stream in the source format so they can be inspected.
+ * <br/>
+ * The job receiving the rewritten data must have the time format
+ * {@value DataDescription#EPOCH}, see
+ * {@linkplain #normalisedDataDescription(DataDescription)}.
+ *
+ * @see TimestampParser
+ */
+public class TimeNormalisingInputStream extends RecordRewritingInputStream
+{
+    private static final Logger LOGGER = Logger.getLogger(TimeNormalisingInputStream.class);
+
+    private final TimestampParser m_Parser;
+    private final int m_TimeIndex;
+    private final RecordWriter m_RejectedWriter;
+
+    private long m_RecordCount;
+    private long m_InvalidDateCount;
+
+    /**
+     * Rewrite the time of delineated data keeping all the columns.
+     * Times without an offset are in the default time zone.
+     *
+     * @param input The source data
+     * @param dataDescription The format of the source data
+     * @throws IOException If the source header cannot be read
+     */
+    public TimeNormalisingInputStream(InputStream input, DataDescription dataDescription)
+    throws IOException
+    {
+        this(input, dataDescription, null, TimeZone.getDefault(), null);
+    }
+
+    /**
+     * Rewrite the time keeping only the fields the job uses.
+     * Times without an offset are in the default time zone.
+     *
+     * @param input The source data
+     * @param analysisConfig The job's analysis configuration
+     * @param dataDescription The format of the source data
+     * @throws IOException If the source header cannot be read
+     */
+    public TimeNormalisingInputStream(InputStream input, AnalysisConfig analysisConfig,
+            DataDescription dataDescription)
+    throws IOException
+    {
+        this(input, dataDescription,
+                FieldProjectingInputStream.projectedFields(analysisConfig, dataDescription, null),
+                TimeZone.getDefault(), null);
+    }
+
+    /**
+     * @param input The source data
+     * @param dataDescription The format of the source data
+     * @param fields The fields to keep, must include the time field. May be
+     * <code>null</code> for delineated data to keep all the columns
+     * @param zone The time zone of times without an offset
+     * @param rejected Records with invalid times are written here, may be
+     * <code>null</code>. Not closed by this stream.
+     * @throws IOException If the source header cannot be read or does
+     * not contain the time field
+     * @throws IllegalArgumentException If the time format is invalid
+     */
+    public TimeNormalisingInputStream(InputStream input, DataDescription dataDescription,
+            List<String> fields, TimeZone zone, OutputStream rejected)
+    throws IOException
+    {
+        super(input, dataDescription, fields, null);
+
+        m_Parser = TimestampParser.compile(dataDescription.getTimeFormat(), zone);
+        m_TimeIndex = getInputFields().indexOf(dataDescription.getTimeField());
+        if (m_TimeIndex < 0 && getInputFields().isEmpty() == false)
+        {
+            throw new IOException("The time field '" + dataDescription.getTimeField() +
+                    "' is not in the data fields " + getInputFields());
+        }
+
+        m_RejectedWriter = (rejected == null) ? null :
+                RecordWriter.create(rejected, dataDescription, getInputFields());
+        if (m_RejectedWriter != null)
+        {
+            m_RejectedWriter.start();
+        }
+    }
+
+    /**
+     * A copy of <code>dataDescription</code> with the time format
+     * {@value DataDescription#EPOCH} describing the rewritten data
+     *
+     * @param dataDescription The format of the source data
+     * @return The format of the data after the time is rewritten
+     */
+    public static DataDescription normalisedDataDescription(DataDescription dataDescription)
+    {
+        DataDescription normalised = new DataDescription();
+        normalised.setFormat(dataDescription.getFormat());
+        normalised.setTimeField(dataDescription.getTimeField());
+        normalised.setTimeFormat(DataDescription.EPOCH);
+        normalised.setFieldDelimiter(dataDescription.getFieldDelimiter());
+        normalised.setQuoteCharacter(dataDescription.getQuoteCharacter());
+        return normalised;
+    }
+
+    /**
+     * The number of source records read so far
+     * @return The record count
+     */
+    public long getRecordCount()
+    {
+        return m_RecordCount;
+    }
+
+    /**
+     * The number of records dropped so far because the time
+     * was missing or could not be parsed
+     * @return The invalid date count
+     */
+    public long getInvalidDateCount()
+    {
+        return m_InvalidDateCount;
+    }
+
+    @Override
+    protected void processRecord(String [] record)
+    throws IOException
+    {
+        m_RecordCount++;
+
+        long epoch = m_Parser.parse(record[m_TimeIndex]);
+        if (epoch == TimestampParser.INVALID)
+        {
+            if (m_InvalidDateCount++ == 0)
+            {
+                LOGGER.warn("Cannot parse the time '" + record[m_TimeIndex] + "', " +
+                            "records with invalid times are dropped");
+            }
+            if (m_RejectedWriter != null)
+            {
+                m_RejectedWriter.write(record);
+            }
+            return;
+        }
+
+        record[m_TimeIndex] = Long.toString(epoch);
+        emit(record);
+    }
+
+    @Override
+    protected void endOfInput()
+    throws IOException
+    {
+        if (m_RejectedWriter != null)
+        {
+            m_RejectedWriter.flush();
+        }
+        if (m_InvalidDateCount > 0)
+        {
+            LOGGER.warn(m_InvalidDateCount + " of " + m_RecordCount +
+                    " records had invalid times and were dropped");
+        }
+    }
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        try
+        {
+            if (m_RejectedWriter != null)
+            {
+                m_RejectedWriter.flush();
+            }
+        }
+        finally
+        {
+            super.close();
+        }
+    }
+}
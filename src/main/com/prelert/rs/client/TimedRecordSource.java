@@ -0,0 +1,48 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A cursor over a time ordered sequence of records, one of the
+ * inputs of a {@link MergingRecordReader}.
+ */
+abstract class TimedRecordSource implements Closeable
+{
+    /**
+     * Advance to the next record
+     * @return False if there are no more records
+     * @throws IOException
+     */
+    abstract boolean next()
+    throws IOException;
+
+    /**
+     * The time of the current record in epoch seconds
+     */
+    abstract long time();
+
+    /**
+     * The values of the current record. The array may be reused
+     * when the cursor advances.
+     */
+    abstract String [] record();
+}
@@ -0,0 +1,717 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import com.prelert.job.DataDescription;
+
+/**
+ * Parses the time strings of upload data to seconds since the epoch.
+ * {@linkplain #compile(String, TimeZone)} turns a
+ * {@linkplain DataDescription#getTimeFormat() time format} into a
+ * specialised parser: {@value DataDescription#EPOCH} and
+ * {@value DataDescription#EPOCH_MS} are parsed as numbers and
+ * <code>SimpleDateFormat</code> patterns made of the common pattern
+ * letters are compiled into a sequence of field parsers that read the
+ * string in place without allocating.
+ * <br/>
+ * The compiled patterns support the letters <code>y M d H h a m s S E
+ * X Z</code> and quoted literals. Month and day names are English.
+ * Unlike <code>SimpleDateFormat</code> out of range values are rejected
+ * and fractional seconds are ignored rather than added as milliseconds.
+ * Patterns with any other letters fall back to a
+ * <code>SimpleDateFormat</code>.
+ * <br/>
+ * Parsers are not thread safe.
+ */
+public abstract class TimestampParser
+{
+    /**
+     * Returned by {@linkplain #parse(String)} for a string that
+     * cannot be parsed
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    /**
+     * Parse <code>text</code> to seconds since the epoch
+     *
+     * @param text The time string, may be <code>null</code>
+     * @return The epoch seconds or {@value #INVALID}
+     */
+    public abstract long parse(String text);
+
+    /**
+     * Compile a parser for <code>timeFormat</code>
+     *
+     * @param timeFormat {@value DataDescription#EPOCH},
+     * {@value DataDescription#EPOCH_MS} or a <code>SimpleDateFormat</code>
+     * pattern. <code>null</code> or empty is the same as
+     * {@value DataDescription#EPOCH}
+     * @param zone The time zone of times without an offset
+     * @return The parser
+     * @throws IllegalArgumentException If the pattern is invalid
+     */
+    public static TimestampParser compile(String timeFormat, TimeZone zone)
+    {
+        if (timeFormat == null || timeFormat.isEmpty() ||
+                DataDescription.EPOCH.equals(timeFormat))
+        {
+            return new EpochParser(1);
+        }
+        if (DataDescription.EPOCH_MS.equals(timeFormat))
+        {
+            return new EpochParser(1000);
+        }
+
+        List<Element> elements = PatternParser.compile(timeFormat);
+        if (elements == null)
+        {
+            return new SimpleDateFormatParser(timeFormat, zone);
+        }
+        return new PatternParser(elements, zone);
+    }
+
+
+    /**
+     * Division rounding towards negative infinity
+     */
+    static long floorDiv(long dividend, long divisor)
+    {
+        long quotient = dividend / divisor;
+        if ((dividend % divisor != 0) && ((dividend < 0) != (divisor < 0)))
+        {
+            quotient--;
+        }
+        return quotient;
+    }
+
+
+    /**
+     * Whole or fractional epoch seconds or milliseconds
+     */
+    private static class EpochParser extends TimestampParser
+    {
+        private final long m_Divisor;
+
+        EpochParser(long divisor)
+        {
+            m_Divisor = divisor;
+        }
+
+        @Override
+        public long parse(String text)
+        {
+            if (text == null)
+            {
+                return INVALID;
+            }
+
+            int length = text.length();
+            int i = 0;
+            boolean negative = false;
+            if (length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+'))
+            {
+                negative = text.charAt(0) == '-';
+                i++;
+            }
+
+            int start = i;
+            long value = 0;
+            for (; i < length; i++)
+            {
+                char c = text.charAt(i);
+                if (c < '0' || c > '9')
+                {
+                    break;
+                }
+                if (i - start >= 18)
+                {
+                    return INVALID;
+                }
+                value = value * 10 + (c - '0');
+            }
+
+            if (i == start)
+            {
+                return INVALID;
+            }
+
+            // ignore the fraction
+            if (i < length && text.charAt(i) == '.')
+            {
+                for (i++; i < length; i++)
+                {
+                    char c = text.charAt(i);
+                    if (c < '0' || c > '9')
+                    {
+                        return INVALID;
+                    }
+                }
+            }
+            if (i != length)
+            {
+                return INVALID;
+            }
+
+            if (negative)
+            {
+                value = -value;
+            }
+            return floorDiv(value, m_Divisor);
+        }
+    }
+
+    /**
+     * Delegates to <code>SimpleDateFormat</code> for the patterns that
+     * are not compiled
+     */
+    private static class SimpleDateFormatParser extends TimestampParser
+    {
+        private final SimpleDateFormat m_Format;
+        private final ParsePosition m_Position = new ParsePosition(0);
+
+        SimpleDateFormatParser(String pattern, TimeZone zone)
+        {
+            m_Format = new SimpleDateFormat(pattern, Locale.ENGLISH);
+            m_Format.setTimeZone(zone);
+        }
+
+        @Override
+        public long parse(String text)
+        {
+            if (text == null)
+            {
+                return INVALID;
+            }
+
+            m_Position.setIndex(0);
+            m_Position.setErrorIndex(-1);
+            Date date = m_Format.parse(text, m_Position);
+            if (date == null || m_Position.getIndex() != text.length())
+            {
+                return INVALID;
+            }
+            return floorDiv(date.getTime(), 1000L);
+        }
+    }
+
+
+    private enum ElementType
+    {
+        LITERAL, YEAR, MONTH, MONTH_NAME, DAY, HOUR_OF_DAY, HOUR_OF_HALF_DAY,
+        AM_PM, MINUTE, SECOND, FRACTION, DAY_NAME, ISO_OFFSET, RFC_OFFSET
+    }
+
+    /**
+     * One field or literal of a compiled pattern
+     */
+    private static class Element
+    {
+        final ElementType m_Type;
+        final int m_Count;
+        final String m_Literal;
+        /** Fixed width when followed directly by another number */
+        int m_Width;
+
+        Element(ElementType type, int count, String literal)
+        {
+            m_Type = type;
+            m_Count = count;
+            m_Literal = literal;
+        }
+
+        boolean isNumeric()
+        {
+            switch (m_Type)
+            {
+                case YEAR:
+                case DAY:
+                case HOUR_OF_DAY:
+                case HOUR_OF_HALF_DAY:
+                case MINUTE:
+                case SECOND:
+                case FRACTION:
+                    return true;
+                case MONTH:
+                    return m_Count <= 2;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * A compiled <code>SimpleDateFormat</code> pattern
+     */
+    private static class PatternParser extends TimestampParser
+    {
+        private static final String [] MONTHS = {
+            "january", "february", "march", "april", "may", "june", "july",
+            "august", "september", "october", "november", "december"
+        };
+
+        private static final long UNSET = Long.MIN_VALUE;
+
+        /**
+         * Two digit years are within 80 years before and 20 years
+         * after this year, as in <code>SimpleDateFormat</code>
+         */
+        private static final long TWO_DIGIT_YEAR_START =
+                Calendar.getInstance().get(Calendar.YEAR) - 80;
+
+        private final Element [] m_Elements;
+        private final TimeZone m_Zone;
+        private final boolean m_ZoneIsUtc;
+
+        private int m_Position;
+        private long m_Value;
+
+        PatternParser(List<Element> elements, TimeZone zone)
+        {
+            m_Elements = elements.toArray(new Element[elements.size()]);
+            m_Zone = zone;
+            m_ZoneIsUtc = zone.getRawOffset() == 0 && zone.useDaylightTime() == false;
+        }
+
+        /**
+         * @return The elements or <code>null</code> if the pattern
+         * uses letters that are not compiled
+         */
+        static List<Element> compile(String pattern)
+        {
+            List<Element> elements = new ArrayList<>();
+            int i = 0;
+            while (i < pattern.length())
+            {
+                char c = pattern.charAt(i);
+                if (c == '\'')
+                {
+                    int close = pattern.indexOf('\'', i + 1);
+                    if (close < 0)
+                    {
+                        throw new IllegalArgumentException("Unterminated quote in " + pattern);
+                    }
+                    // '' is a literal quote
+                    String literal = (close == i + 1) ? "'" : pattern.substring(i + 1, close);
+                    elements.add(new Element(ElementType.LITERAL, 0, literal));
+                    i = close + 1;
+                    continue;
+                }
+
+                if ((c < 'a' || c > 'z') && (c < 'A' || c > 'Z'))
+                {
+                    elements.add(new Element(ElementType.LITERAL, 0, String.valueOf(c)));
+                    i++;
+                    continue;
+                }
+
+                int count = 1;
+                while (i + count < pattern.length() && pattern.charAt(i + count) == c)
+                {
+                    count++;
+                }
+                i += count;
+
+                ElementType type;
+                switch (c)
+                {
+                    case 'y': type = ElementType.YEAR; break;
+                    case 'M': type = (count >= 3) ? ElementType.MONTH_NAME : ElementType.MONTH; break;
+                    case 'd': type = ElementType.DAY; break;
+                    case 'H': type = ElementType.HOUR_OF_DAY; break;
+                    case 'h': type = ElementType.HOUR_OF_HALF_DAY; break;
+                    case 'a': type = ElementType.AM_PM; break;
+                    case 'm': type = ElementType.MINUTE; break;
+                    case 's': type = ElementType.SECOND; break;
+                    case 'S': type = ElementType.FRACTION; break;
+                    case 'E': type = ElementType.DAY_NAME; break;
+                    case 'X': type = ElementType.ISO_OFFSET; break;
+                    case 'Z': type = ElementType.RFC_OFFSET; break;
+                    default:
+                        return null;
+                }
+                elements.add(new Element(type, count, null));
+            }
+
+            for (int e = 0; e < elements.size() - 1; e++)
+            {
+                Element element = elements.get(e);
+                if (element.isNumeric() && elements.get(e + 1).isNumeric())
+                {
+                    element.m_Width = element.m_Count;
+                }
+            }
+
+            return elements;
+        }
+
+        @Override
+        public long parse(String text)
+        {
+            if (text == null)
+            {
+                return INVALID;
+            }
+
+            m_Position = 0;
+            long year = 1970;
+            long month = 1;
+            long day = 1;
+            long hour = 0;
+            long minute = 0;
+            long second = 0;
+            long offsetSeconds = UNSET;
+            boolean pm = false;
+            boolean halfDay = false;
+
+            for (Element element : m_Elements)
+            {
+                switch (element.m_Type)
+                {
+                    case LITERAL:
+                        if (text.startsWith(element.m_Literal, m_Position) == false)
+                        {
+                            return INVALID;
+                        }
+                        m_Position += element.m_Literal.length();
+                        break;
+                    case YEAR:
+                        int yearStart = m_Position;
+                        if (readNumber(text, element) == false)
+                        {
+                            return INVALID;
+                        }
+                        year = (element.m_Count <= 2 && m_Position - yearStart == 2) ?
+                                twoDigitYear(m_Value) : m_Value;
+                        break;
+                    case MONTH:
+                        if (readNumber(text, element) == false)
+                        {
+                            return INVALID;
+                        }
+                        month = m_Value;
+                        break;
+                    case MONTH_NAME:
+                        month = readMonthName(text);
+                        if (month < 0)
+                        {
+                            return INVALID;
+                        }
+                        break;
+                    case DAY:
+                        if (readNumber(text, element) == false)
+                        {
+                            return INVALID;
+                        }
+                        day = m_Value;
+                        break;
+                    case HOUR_OF_DAY:
+                    case HOUR_OF_HALF_DAY:
+                        if (readNumber(text, element) == false)
+                        {
+                            return INVALID;
+                        }
+                        hour = m_Value;
+                        halfDay = element.m_Type == ElementType.HOUR_OF_HALF_DAY;
+                        break;
+                    case AM_PM:
+                        if (text.regionMatches(true, m_Position, "AM", 0, 2))
+                        {
+                            pm = false;
+                        }
+                        else if (text.regionMatches(true, m_Position, "PM", 0, 2))
+                        {
+                            pm = true;
+                        }
+                        else
+                        {
+                            return INVALID;
+                        }
+                        m_Position += 2;
+                        break;
+                    case MINUTE:
+                        if (readNumber(text, element) == false)
+                        {
+                            return INVALID;
+                        }
+                        minute = m_Value;
+                        break;
+                    case SECOND:
+                        if (readNumber(text, element) == false)
+                        {
+                            return INVALID;
+                        }
+                        second = m_Value;
+                        break;
+                    case FRACTION:
+                        if (readNumber(text, element) == false)
+                        {
+                            return INVALID;
+                        }
+                        break;
+                    case DAY_NAME:
+                        if (skipLetters(text) == false)
+                        {
+                            return INVALID;
+                        }
+                        break;
+                    case ISO_OFFSET:
+                    case RFC_OFFSET:
+                        offsetSeconds = readOffset(text);
+                        if (offsetSeconds == UNSET)
+                        {
+                            return INVALID;
+                        }
+                        break;
+                    default:
+                        return INVALID;
+                }
+            }
+
+            if (m_Position != text.length())
+            {
+                return INVALID;
+            }
+
+            if (halfDay)
+            {
+                if (hour < 1 || hour > 12)
+                {
+                    return INVALID;
+                }
+                hour = (hour % 12) + (pm ? 12 : 0);
+            }
+            if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) ||
+                    hour > 23 || minute > 59 || second > 60)
+            {
+                return INVALID;
+            }
+
+            long local = daysFromCivil(year, month, day) * 86400L +
+                    hour * 3600L + minute * 60L + second;
+
+            if (offsetSeconds != UNSET)
+            {
+                return local - offsetSeconds;
+            }
+            if (m_ZoneIsUtc)
+            {
+                return local;
+            }
+
+            long localMs = local * 1000L;
+            int offsetMs = m_Zone.getOffset(localMs - m_Zone.getRawOffset());
+            int checkOffsetMs = m_Zone.getOffset(localMs - offsetMs);
+            if (checkOffsetMs != offsetMs)
+            {
+                // a local time skipped by a daylight saving transition,
+                // move it forward as SimpleDateFormat does
+                offsetMs = checkOffsetMs;
+            }
+            return floorDiv(localMs - offsetMs, 1000L);
+        }
+
+        /**
+         * Read a non-negative number into <code>m_Value</code>
+         */
+        private boolean readNumber(String text, Element element)
+        {
+            int maxEnd = (element.m_Width > 0) ?
+                    Math.min(text.length(), m_Position + element.m_Width) : text.length();
+
+            long value = 0;
+            int i = m_Position;
+            for (; i < maxEnd && i - m_Position < 18; i++)
+            {
+                char c = text.charAt(i);
+                if (c < '0' || c > '9')
+                {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+            }
+
+            if (i == m_Position || (element.m_Width > 0 && i - m_Position != element.m_Width))
+            {
+                return false;
+            }
+
+            m_Value = value;
+            m_Position = i;
+            return true;
+        }
+
+        /**
+         * Match a full or 3 letter English month name
+         * @return The month 1-12 or -1
+         */
+        private int readMonthName(String text)
+        {
+            for (int m = 0; m < MONTHS.length; m++)
+            {
+                String name = MONTHS[m];
+                if (text.regionMatches(true, m_Position, name, 0, name.length()))
+                {
+                    m_Position += name.length();
+                    return m + 1;
+                }
+            }
+            for (int m = 0; m < MONTHS.length; m++)
+            {
+                if (text.regionMatches(true, m_Position, MONTHS[m], 0, 3))
+                {
+                    m_Position += 3;
+                    return m + 1;
+                }
+            }
+            return -1;
+        }
+
+        private boolean skipLetters(String text)
+        {
+            int start = m_Position;
+            while (m_Position < text.length() && Character.isLetter(text.charAt(m_Position)))
+            {
+                m_Position++;
+            }
+            return m_Position > start;
+        }
+
+        /**
+         * Read <code>Z</code>, <code>&plusmn;hh</code>, <code>&plusmn;hhmm</code>
+         * or <code>&plusmn;hh:mm</code>
+         * @return The offset in seconds or {@value #UNSET}
+         */
+        private long readOffset(String text)
+        {
+            if (m_Position >= text.length())
+            {
+                return UNSET;
+            }
+
+            char sign = text.charAt(m_Position);
+            if (sign == 'Z' || sign == 'z')
+            {
+                m_Position++;
+                return 0;
+            }
+            if (sign != '+' && sign != '-')
+            {
+                return UNSET;
+            }
+
+            int i = m_Position + 1;
+            int hours = twoDigits(text, i);
+            if (hours < 0)
+            {
+                return UNSET;
+            }
+            i += 2;
+
+            int minutes = 0;
+            if (i < text.length() && text.charAt(i) == ':')
+            {
+                i++;
+                minutes = twoDigits(text, i);
+                if (minutes < 0)
+                {
+                    return UNSET;
+                }
+                i += 2;
+            }
+            else if (twoDigits(text, i) >= 0)
+            {
+                minutes = twoDigits(text, i);
+                i += 2;
+            }
+
+            if (hours > 23 || minutes > 59)
+            {
+                return UNSET;
+            }
+
+            m_Position = i;
+            long offset = hours * 3600L + minutes * 60L;
+            return (sign == '-') ? -offset : offset;
+        }
+
+        private static int twoDigits(String text, int index)
+        {
+            if (index + 2 > text.length())
+            {
+                return -1;
+            }
+            char a = text.charAt(index);
+            char b = text.charAt(index + 1);
+            if (a < '0' || a > '9' || b < '0' || b > '9')
+            {
+                return -1;
+            }
+            return (a - '0') * 10 + (b - '0');
+        }
+
+        private static long twoDigitYear(long value)
+        {
+            long year = TWO_DIGIT_YEAR_START - (TWO_DIGIT_YEAR_START % 100) + value;
+            return (year < TWO_DIGIT_YEAR_START) ? year + 100 : year;
+        }
+
+        private static boolean isLeapYear(long year)
+        {
+            return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+        }
+
+        private static long daysInMonth(long year, long month)
+        {
+            switch ((int)month)
+            {
+                case 2:
+                    return isLeapYear(year) ? 29 : 28;
+                case 4:
+                case 6:
+                case 9:
+                case 11:
+                    return 30;
+                default:
+                    return 31;
+            }
+        }
+
+        /**
+         * Days since 1970-01-01 of the proleptic Gregorian date
+         */
+        private static long daysFromCivil(long year, long month, long day)
+        {
+            year -= (month <= 2) ? 1 : 0;
+            long era = floorDiv(year, 400);
+            long yearOfEra = year - era * 400;
+            long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+            long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+            return era * 146097 + dayOfEra - 719468;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.prelert.job.TransformConfig;
+import com.prelert.job.TransformType;
+
+/**
+ * Applies a job's {@link TransformConfig transforms} to records locally.
+ * The transforms are compiled once against the record's input fields
+ * into operations on field indexes. Transforms are ordered so those
+ * that read the output of another transform run after it.
+ * <br/>
+ * A record is an array of the values of {@linkplain #getFields()}: the
+ * input fields followed by the transform outputs that are not also
+ * input fields.
+ * <ul>
+ * <li><code>domain_lookup</code> splits a host name
+ * into its sub domain and highest registered domain using a
+ * {@link PublicSuffixTrie}. IP addresses are their own registered domain.</li>
+ * <li><code>concat</code> joins the values of its inputs.</li>
+ * </ul>
+ * Missing input values are treated as empty strings.
+ * Not thread safe.
+ */
+public class TransformExecutor
+{
+    private final List<String> m_Fields;
+    private final List<Operation> m_Operations;
+
+    /**
+     * Compile the transforms using the default public suffixes
+     *
+     * @param transforms
+     * @param inputFields The fields present in the input records
+     * @throws IllegalArgumentException If a transform is unknown, has the
+     * wrong number of inputs or inputs that are neither input fields
+     * nor the output of another transform
+     */
+    public TransformExecutor(List<TransformConfig> transforms, List<String> inputFields)
+    {
+        this(transforms, inputFields, PublicSuffixTrie.defaultTrie());
+    }
+
+    /**
+     * Compile the transforms
+     *
+     * @param transforms
+     * @param inputFields The fields present in the input records
+     * @param suffixes Used by domain lookups
+     * @throws IllegalArgumentException If a transform is unknown, has the
+     * wrong number of inputs or inputs that are neither input fields
+     * nor the output of another transform
+     */
+    public TransformExecutor(List<TransformConfig> transforms, List<String> inputFields,
+            PublicSuffixTrie suffixes)
+    {
+        Set<String> fields = new LinkedHashSet<>(inputFields);
+        for (TransformConfig transform : transforms)
+        {
+            fields.addAll(transform.getOutputs());
+        }
+        m_Fields = Collections.unmodifiableList(new ArrayList<>(fields));
+
+        Set<String> available = new LinkedHashSet<>(inputFields);
+        List<TransformConfig> pending = new ArrayList<>(transforms);
+        m_Operations = new ArrayList<>();
+
+        while (pending.isEmpty() == false)
+        {
+            TransformConfig ready = null;
+            for (TransformConfig transform : pending)
+            {
+                if (available.containsAll(transform.getInputs()))
+                {
+                    ready = transform;
+                    break;
+                }
+            }
+
+            if (ready == null)
+            {
+                throw new IllegalArgumentException("The inputs of transforms " + pending +
+                        " are not available from the fields " + available);
+            }
+
+            m_Operations.add(compile(ready, suffixes));
+            available.addAll(ready.getOutputs());
+            pending.remove(ready);
+        }
+    }
+
+    /**
+     * The fields of a record: the input fields then the transform outputs
+     * @return The field names
+     */
+    public List<String> getFields()
+    {
+        return m_Fields;
+    }
+
+    /**
+     * Run the transforms on a record writing the outputs into the record
+     *
+     * @param record The values of {@linkplain #getFields()}
+     */
+    public void execute(String [] record)
+    {
+        for (Operation operation : m_Operations)
+        {
+            operation.execute(record);
+        }
+    }
+
+    private Operation compile(TransformConfig transform, PublicSuffixTrie suffixes)
+    {
+        TransformType type = transform.type();
+        List<String> inputs = transform.getInputs();
+        if (type.arity() >= 0 && inputs.size() != type.arity())
+        {
+            throw new IllegalArgumentException("Transform " + type + " takes " +
+                    type.arity() + " input(s) but has " + inputs.size());
+        }
+
+        int [] inputIndexes = indexesOf(inputs);
+        int [] outputIndexes = indexesOf(transform.getOutputs());
+
+        switch (type)
+        {
+            case DOMAIN_LOOKUP:
+                return new DomainLookup(inputIndexes[0], outputIndexes, suffixes);
+            case CONCAT:
+                return new Concat(inputIndexes, outputIndexes);
+            default:
+                throw new IllegalArgumentException("Unsupported transform " + type);
+        }
+    }
+
+    private int [] indexesOf(List<String> names)
+    {
+        int [] indexes = new int[names.size()];
+        for (int i = 0; i < indexes.length; i++)
+        {
+            indexes[i] = m_Fields.indexOf(names.get(i));
+        }
+        return indexes;
+    }
+
+
+    private interface Operation
+    {
+        void execute(String [] record);
+    }
+
+    /**
+     * Outputs the sub domain then the highest registered domain
+     */
+    private static class DomainLookup implements Operation
+    {
+        private final int m_Input;
+        private final int [] m_Outputs;
+        private final PublicSuffixTrie m_Suffixes;
+
+        DomainLookup(int input, int [] outputs, PublicSuffixTrie suffixes)
+        {
+            m_Input = input;
+            m_Outputs = outputs;
+            m_Suffixes = suffixes;
+        }
+
+        @Override
+        public void execute(String [] record)
+        {
+            String host = record[m_Input];
+            String subDomain = "";
+            String registered = "";
+
+            if (host != null && host.isEmpty() == false)
+            {
+                registered = host;
+                if (isIpAddress(host) == false)
+                {
+                    int start = m_Suffixes.registeredDomainStart(host);
+                    if (start > 0)
+                    {
+                        subDomain = host.substring(0, start - 1);
+                        registered = host.substring(start);
+                    }
+                }
+            }
+
+            if (m_Outputs.length > 0)
+            {
+                record[m_Outputs[0]] = subDomain;
+            }
+            if (m_Outputs.length > 1)
+            {
+                record[m_Outputs[1]] = registered;
+            }
+        }
+
+        private static boolean isIpAddress(String host)
+        {
+            if (host.indexOf(':') >= 0)
+            {
+                return true;
+            }
+
+            for (int i = 0; i < host.length(); i++)
+            {
+                char c = host.charAt(i);
+                if (c != '.' && (c < '0' || c > '9'))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Joins the inputs with no delimiter
+     */
+    private static class Concat implements Operation
+    {
+        private final int [] m_Inputs;
+        private final int [] m_Outputs;
+        private final StringBuilder m_Builder = new StringBuilder();
+
+        Concat(int [] inputs, int [] outputs)
+        {
+            m_Inputs = inputs;
+            m_Outputs = outputs;
+        }
+
+        @Override
+        public void execute(String [] record)
+        {
+            m_Builder.setLength(0);
+            for (int input : m_Inputs)
+            {
+                if (record[input] != null)
+                {
+                    m_Builder.append(record[input]);
+                }
+            }
+
+            String value = m_Builder.toString();
+            for (int output : m_Outputs)
+            {
+                record[output] = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.prelert.job.AnalysisConfig;
+import com.prelert.job.DataDescription;
+import com.prelert.job.TransformConfig;
+
+/**
+ * Runs a job's transforms on the upload data before it is sent so
+ * the transform outputs are computed on the client. Only the fields
+ * the job needs, the time field and the
+ * {@linkplain AnalysisConfig#analysisFields() analysis fields}, are
+ * written.
+ * <br/>
+ * The job receiving the data must be configured without the transforms
+ * run here otherwise the server will look for the transform inputs,
+ * which are not sent, and run the transforms again.
+ *
+ * @see TransformExecutor
+ */
+public class TransformingInputStream extends RecordRewritingInputStream
+{
+    private final TransformExecutor m_Executor;
+    private final String [] m_Values;
+    private final int [] m_OutputIndexes;
+    private final String [] m_Output;
+
+    /**
+     * @param input The source data
+     * @param analysisConfig The job's analysis configuration
+     * @param dataDescription The format of the data
+     * @param transforms The transforms to run
+     * @throws IOException If the source header cannot be read or does
+     * not contain one of the required fields
+     * @throws IllegalArgumentException If the transforms are invalid
+     */
+    public TransformingInputStream(InputStream input, AnalysisConfig analysisConfig,
+            DataDescription dataDescription, List<TransformConfig> transforms)
+    throws IOException
+    {
+        this(input, analysisConfig, dataDescription, transforms,
+                PublicSuffixTrie.defaultTrie());
+    }
+
+    /**
+     * @param input The source data
+     * @param analysisConfig The job's analysis configuration
+     * @param dataDescription The format of the data
+     * @param transforms The transforms to run
+     * @param suffixes The public suffixes used by domain lookups
+     * @throws IOException If the source header cannot be read or does
+     * not contain one of the required fields
+     * @throws IllegalArgumentException If the transforms are invalid
+     */
+    public TransformingInputStream(InputStream input, AnalysisConfig analysisConfig,
+            DataDescription dataDescription, List<TransformConfig> transforms,
+            PublicSuffixTrie suffixes)
+    throws IOException
+    {
+        super(input, dataDescription,
+                FieldProjectingInputStream.projectedFields(analysisConfig,
+                        dataDescription, transforms),
+                outputFields(analysisConfig, dataDescription));
+
+        m_Executor = new TransformExecutor(transforms, getInputFields(), suffixes);
+        m_Values = new String[m_Executor.getFields().size()];
+
+        List<String> outputFields = getOutputFields();
+        m_OutputIndexes = new int[outputFields.size()];
+        for (int i = 0; i < m_OutputIndexes.length; i++)
+        {
+            m_OutputIndexes[i] = m_Executor.getFields().indexOf(outputFields.get(i));
+            if (m_OutputIndexes[i] < 0)
+            {
+                throw new IllegalArgumentException("Field '" + outputFields.get(i) +
+                        "' is neither an input field nor a transform output");
+            }
+        }
+        m_Output = new String[m_OutputIndexes.length];
+    }
+
+    private static List<String> outputFields(AnalysisConfig analysisConfig,
+            DataDescription dataDescription)
+    {
+        Set<String> fields = new LinkedHashSet<>();
+        fields.add(dataDescription.getTimeField());
+        fields.addAll(analysisConfig.analysisFields());
+        return new ArrayList<>(fields);
+    }
+
+    @Override
+    protected void processRecord(String [] record)
+    throws IOException
+    {
+        int inputCount = getInputFields().size();
+        System.arraycopy(record, 0, m_Values, 0, inputCount);
+        Arrays.fill(m_Values, inputCount, m_Values.length, null);
+
+        m_Executor.execute(m_Values);
+
+        for (int i = 0; i < m_OutputIndexes.length; i++)
+        {
+            m_Output[i] = m_Values[m_OutputIndexes[i]];
+        }
+        emit(m_Output);
+    }
+}
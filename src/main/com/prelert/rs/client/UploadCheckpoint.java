@@ -0,0 +1,268 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The progress of a resumable upload of a file to a job, saved
+ * after every accepted chunk so an upload interrupted by a restart
+ * can carry on from the last acknowledged offset.
+ * <br/>
+ * The job's counts and latest data time when the upload started are
+ * kept so the checkpoint can be reconciled with what the job has
+ * actually received, see
+ * {@linkplain EngineApiClient#resumableUpload(String, String, File, File, int)}.
+ * The checkpoint is a small properties file replaced atomically
+ * where the file system allows.
+ */
+public class UploadCheckpoint
+{
+    private static final String JOB_ID = "jobId";
+    private static final String DATA_FILE = "dataFile";
+    private static final String CHUNK_SIZE = "chunkSize";
+    private static final String OFFSET = "offset";
+    private static final String LINE_COUNT = "lineCount";
+    private static final String CHUNK_COUNT = "chunkCount";
+    private static final String BASE_INPUT_BYTES = "baseInputBytes";
+    private static final String BASE_INPUT_RECORD_COUNT = "baseInputRecordCount";
+    private static final String BASE_LAST_DATA_TIME = "baseLastDataTime";
+
+    private final String m_JobId;
+    private final String m_DataFile;
+    private final int m_ChunkSize;
+    private final long m_BaseInputBytes;
+    private final long m_BaseInputRecordCount;
+    private final long m_BaseLastDataTime;
+    private long m_Offset;
+    private long m_LineCount;
+    private long m_ChunkCount;
+
+    /**
+     * A checkpoint for a new upload
+     *
+     * @param jobId The job the file is uploaded to
+     * @param dataFile The file being uploaded
+     * @param chunkSize The size of each uploaded chunk
+     * @param baseInputBytes The job's input bytes before the upload
+     * @param baseInputRecordCount The job's input record count before the upload
+     * @param baseLastDataTime The job's latest data time in epoch
+     * milliseconds before the upload or -1 if it has no data
+     */
+    public UploadCheckpoint(String jobId, File dataFile, int chunkSize,
+            long baseInputBytes, long baseInputRecordCount, long baseLastDataTime)
+    {
+        m_JobId = jobId;
+        m_DataFile = dataFile.getAbsolutePath();
+        m_ChunkSize = chunkSize;
+        m_BaseInputBytes = baseInputBytes;
+        m_BaseInputRecordCount = baseInputRecordCount;
+        m_BaseLastDataTime = baseLastDataTime;
+    }
+
+    /**
+     * Read a saved checkpoint
+     *
+     * @param checkpointFile
+     * @return The checkpoint or <code>null</code> if the file does not exist
+     * @throws IOException If the file cannot be read or is not a checkpoint
+     */
+    public static UploadCheckpoint load(File checkpointFile)
+    throws IOException
+    {
+        if (checkpointFile.exists() == false)
+        {
+            return null;
+        }
+
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(checkpointFile))
+        {
+            props.load(in);
+        }
+
+        try
+        {
+            UploadCheckpoint checkpoint = new UploadCheckpoint(
+                    required(props, JOB_ID),
+                    new File(required(props, DATA_FILE)),
+                    Integer.parseInt(required(props, CHUNK_SIZE)),
+                    Long.parseLong(required(props, BASE_INPUT_BYTES)),
+                    Long.parseLong(required(props, BASE_INPUT_RECORD_COUNT)),
+                    Long.parseLong(required(props, BASE_LAST_DATA_TIME)));
+            checkpoint.m_Offset = Long.parseLong(required(props, OFFSET));
+            checkpoint.m_LineCount = Long.parseLong(required(props, LINE_COUNT));
+            checkpoint.m_ChunkCount = Long.parseLong(required(props, CHUNK_COUNT));
+            return checkpoint;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Invalid upload checkpoint " + checkpointFile, e);
+        }
+    }
+
+    private static String required(Properties props, String name)
+    throws IOException
+    {
+        String value = props.getProperty(name);
+        if (value == null)
+        {
+            throw new IOException("The upload checkpoint has no '" + name + "'");
+        }
+        return value;
+    }
+
+    /**
+     * Write the checkpoint to a temporary file then move it over
+     * <code>checkpointFile</code>
+     *
+     * @param checkpointFile
+     * @throws IOException
+     */
+    public void save(File checkpointFile)
+    throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty(JOB_ID, m_JobId);
+        props.setProperty(DATA_FILE, m_DataFile);
+        props.setProperty(CHUNK_SIZE, Integer.toString(m_ChunkSize));
+        props.setProperty(OFFSET, Long.toString(m_Offset));
+        props.setProperty(LINE_COUNT, Long.toString(m_LineCount));
+        props.setProperty(CHUNK_COUNT, Long.toString(m_ChunkCount));
+        props.setProperty(BASE_INPUT_BYTES, Long.toString(m_BaseInputBytes));
+        props.setProperty(BASE_INPUT_RECORD_COUNT, Long.toString(m_BaseInputRecordCount));
+        props.setProperty(BASE_LAST_DATA_TIME, Long.toString(m_BaseLastDataTime));
+
+        File tmp = new File(checkpointFile.getAbsolutePath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp))
+        {
+            props.store(out, "Upload checkpoint");
+        }
+
+        try
+        {
+            Files.move(tmp.toPath(), checkpointFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(tmp.toPath(), checkpointFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * True if this checkpoint is for uploading <code>dataFile</code>
+     * to <code>jobId</code> and the file is at least as long as the
+     * offset reached. The file may have grown since.
+     *
+     * @param jobId
+     * @param dataFile
+     * @return True if the upload can be resumed from this checkpoint
+     */
+    public boolean matches(String jobId, File dataFile)
+    {
+        return m_JobId.equals(jobId) &&
+                m_DataFile.equals(dataFile.getAbsolutePath()) &&
+                dataFile.length() >= m_Offset;
+    }
+
+    /**
+     * Record an accepted chunk
+     *
+     * @param length The chunk length in bytes
+     * @param lines The number of line endings in the chunk
+     */
+    void chunkAccepted(long length, long lines)
+    {
+        m_Offset += length;
+        m_LineCount += lines;
+        m_ChunkCount++;
+    }
+
+    public String getJobId()
+    {
+        return m_JobId;
+    }
+
+    public String getDataFile()
+    {
+        return m_DataFile;
+    }
+
+    public int getChunkSize()
+    {
+        return m_ChunkSize;
+    }
+
+    /**
+     * The offset in the file of the first byte not yet accepted
+     * @return The offset
+     */
+    public long getOffset()
+    {
+        return m_Offset;
+    }
+
+    /**
+     * The number of line endings in the accepted data
+     * @return The line count
+     */
+    public long getLineCount()
+    {
+        return m_LineCount;
+    }
+
+    /**
+     * The number of chunks accepted
+     * @return The chunk count
+     */
+    public long getChunkCount()
+    {
+        return m_ChunkCount;
+    }
+
+    public long getBaseInputBytes()
+    {
+        return m_BaseInputBytes;
+    }
+
+    public long getBaseInputRecordCount()
+    {
+        return m_BaseInputRecordCount;
+    }
+
+    /**
+     * The job's latest data time when the upload started
+     * @return Epoch milliseconds or -1 if the job had no data
+     */
+    public long getBaseLastDataTime()
+    {
+        return m_BaseLastDataTime;
+    }
+}
@@ -0,0 +1,35 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+/**
+ * Receives progress notifications as an upload is written to the
+ * connection. Notifications are made on the uploading thread so
+ * implementations should return quickly.
+ */
+public interface UploadProgressListener
+{
+    /**
+     * Called each time a block of data has been written.
+     *
+     * @param bytesSent The offset one past the last byte written
+     * @param totalBytes The total size of the upload in bytes
+     */
+    void progress(long bytesSent, long totalBytes);
+}
@@ -0,0 +1,139 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import com.prelert.rs.data.ApiError;
+
+/**
+ * The outcome of a multi-part upload. Records how much of the input
+ * was accepted by the API and, if the upload failed, the byte range
+ * of the input that was rejected.
+ * <br/>
+ * Byte offsets are relative to the start of the uploaded stream.
+ * For a resumed upload they are relative to the start of the file
+ * and the bytes accepted include those accepted before the resume.
+ */
+public class UploadResult
+{
+    private long m_BytesAccepted;
+    private long m_ResumeOffset;
+    private int m_ChunksAccepted;
+    private long m_FailedRangeStart = -1;
+    private long m_FailedRangeEnd = -1;
+    private ApiError m_Error;
+
+    /**
+     * True if all the data was accepted
+     * @return True if there is no error
+     */
+    public boolean isSuccess()
+    {
+        return m_Error == null;
+    }
+
+    /**
+     * The number of bytes accepted by the API. As chunks are
+     * uploaded in order this is also the offset of the first byte
+     * that has not been accepted.
+     * @return The number of bytes accepted
+     */
+    public long getBytesAccepted()
+    {
+        return m_BytesAccepted;
+    }
+
+    /**
+     * The offset the upload was resumed from
+     * @return The offset or 0 if the upload started from the beginning
+     */
+    public long getResumeOffset()
+    {
+        return m_ResumeOffset;
+    }
+
+    /**
+     * Record that the upload resumed after <code>offset</code>
+     * bytes had already been accepted
+     * @param offset
+     */
+    void resumedAt(long offset)
+    {
+        m_ResumeOffset = offset;
+        m_BytesAccepted = offset;
+    }
+
+    /**
+     * The number of chunks accepted by the API
+     * @return The chunk count
+     */
+    public int getChunksAccepted()
+    {
+        return m_ChunksAccepted;
+    }
+
+    /**
+     * Record that a chunk of <code>length</code> bytes was accepted
+     * @param length
+     */
+    void chunkAccepted(long length)
+    {
+        m_BytesAccepted += length;
+        m_ChunksAccepted++;
+    }
+
+    /**
+     * The offset of the first byte of the chunk that failed
+     * @return The offset or -1 if the upload did not fail
+     */
+    public long getFailedRangeStart()
+    {
+        return m_FailedRangeStart;
+    }
+
+    /**
+     * The offset one past the last byte of the chunk that failed.
+     * @return The offset or -1 if the upload did not fail
+     */
+    public long getFailedRangeEnd()
+    {
+        return m_FailedRangeEnd;
+    }
+
+    /**
+     * The error that stopped the upload
+     * @return The error or <code>null</code> if the upload succeeded
+     */
+    public ApiError getError()
+    {
+        return m_Error;
+    }
+
+    /**
+     * Record the failure of the byte range <code>[start, end)</code>
+     * @param start
+     * @param end
+     * @param error Must not be <code>null</code>
+     */
+    void failed(long start, long end, ApiError error)
+    {
+        m_FailedRangeStart = start;
+        m_FailedRangeEnd = end;
+        m_Error = error;
+    }
+}
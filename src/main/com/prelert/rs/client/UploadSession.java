@@ -0,0 +1,794 @@
+/****************************************************************************
+ *                                                                          *
+ * Copyright 2014 Prelert Ltd                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *    http://www.apache.org/licenses/LICENSE-2.0                            *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ *                                                                          *
+ ***************************************************************************/
+
+package com.prelert.rs.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.log4j.Logger;
+
+import com.prelert.job.DataDescription;
+import com.prelert.rs.data.ApiError;
+
+/**
+ * A long lived upload to one job that data is appended to piece by
+ * piece, from any thread, as it becomes available. The appended data
+ * is streamed in a single chunked upload driven by the async client's
+ * I/O reactor, no thread is held while the upload waits for the next
+ * append so one client can keep many sessions open. The upload is
+ * ended and a new one started on the next append once it has sent
+ * <code>maxUploadBytes</code> or has been open for
+ * <code>maxUploadMillis</code>; the age is checked when data is
+ * appended. Appends block while the session's buffer is full.
+ * <br/>
+ * Each open upload holds one of the async client's pooled connections,
+ * so the client's connection limits must allow as many connections to
+ * the Engine host as there are sessions with an upload open, plus those
+ * needed for flushes and closes. An upload that has not started sending
+ * within {@value #CONNECTION_WAIT_MILLIS}ms, because no connection was
+ * free, is cancelled and fails; appends and flushes waiting on it return
+ * false rather than blocking for ever.
+ * <br/>
+ * Uploads only end between appends so each append should hold whole
+ * records. For delineated data the header must start every upload,
+ * create the session with the data description and fields then
+ * {@linkplain #append(String[])} records and the header is written
+ * for each upload.
+ * <br/>
+ * Like the client, methods return false on failure and the error is
+ * available from {@linkplain #getLastError()}. An append that ends an
+ * upload, because it is full or too old, returns false if that upload
+ * failed; the data appended to it since the previous successful upload
+ * may not have been processed. If an upload fails the next append
+ * starts a new one.
+ */
+public class UploadSession implements Closeable
+{
+    private static final Logger LOGGER = Logger.getLogger(UploadSession.class);
+
+    /**
+     * The default number of bytes sent in one upload
+     */
+    public static final long DEFAULT_MAX_UPLOAD_BYTES = 1024L * 1024 * 1024;
+
+    /**
+     * The default time an upload is kept open
+     */
+    public static final long DEFAULT_MAX_UPLOAD_MILLIS = 10 * 60 * 1000L;
+
+    /**
+     * The default size of the buffer between appends and the upload
+     */
+    public static final int DEFAULT_BUFFER_BYTES = 1024 * 1024;
+
+    /**
+     * How long an upload waits for a pooled connection before failing
+     */
+    public static final long CONNECTION_WAIT_MILLIS = 10000;
+
+    private final EngineApiAsyncClient m_Client;
+    private final String m_BaseUrl;
+    private final String m_JobId;
+    private final DataDescription m_DataDescription;
+    private final List<String> m_Fields;
+    private final long m_MaxUploadBytes;
+    private final long m_MaxUploadMillis;
+    private final int m_BufferBytes;
+
+    private Upload m_Current;
+    private RecordWriter m_Writer;
+    private boolean m_Closed;
+    private long m_BytesAccepted;
+    private int m_UploadCount;
+    private volatile ApiError m_LastError;
+
+    /**
+     * A session for raw data appended with {@linkplain #append(byte[])}
+     * or {@linkplain #append(CharSequence)}
+     *
+     * @param client Uploads the data, flushes and closes the job
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     */
+    public UploadSession(EngineApiAsyncClient client, String baseUrl, String jobId)
+    {
+        this(client, baseUrl, jobId, null, null, DEFAULT_MAX_UPLOAD_BYTES,
+                DEFAULT_MAX_UPLOAD_MILLIS, DEFAULT_BUFFER_BYTES);
+    }
+
+    /**
+     * A session for records appended with {@linkplain #append(String[])}
+     *
+     * @param client Uploads the data, flushes and closes the job
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param dataDescription The job's data format
+     * @param fields The fields of the appended records in order
+     */
+    public UploadSession(EngineApiAsyncClient client, String baseUrl, String jobId,
+            DataDescription dataDescription, List<String> fields)
+    {
+        this(client, baseUrl, jobId, dataDescription, fields, DEFAULT_MAX_UPLOAD_BYTES,
+                DEFAULT_MAX_UPLOAD_MILLIS, DEFAULT_BUFFER_BYTES);
+    }
+
+    /**
+     * @param client Uploads the data, flushes and closes the job
+     * @param baseUrl The base URL for the REST API including version number
+     * e.g <code>http://localhost:8080/engine/v1/</code>
+     * @param jobId The Job's unique Id
+     * @param dataDescription The job's data format if records are
+     * appended else <code>null</code>
+     * @param fields The fields of the appended records in order if
+     * records are appended else <code>null</code>
+     * @param maxUploadBytes Start a new upload after this many bytes
+     * @param maxUploadMillis Start a new upload after this long
+     * @param bufferBytes The size of the buffer between appends and
+     * the upload
+     */
+    public UploadSession(EngineApiAsyncClient client, String baseUrl, String jobId,
+            DataDescription dataDescription, List<String> fields,
+            long maxUploadBytes, long maxUploadMillis, int bufferBytes)
+    {
+        if (bufferBytes < 1)
+        {
+            throw new IllegalArgumentException("bufferBytes must be >= 1");
+        }
+        if ((dataDescription == null) != (fields == null))
+        {
+            throw new IllegalArgumentException(
+                    "Both or neither of dataDescription and fields must be set");
+        }
+
+        m_Client = client;
+        m_BaseUrl = baseUrl;
+        m_JobId = jobId;
+        m_DataDescription = dataDescription;
+        m_Fields = fields;
+        m_MaxUploadBytes = maxUploadBytes;
+        m_MaxUploadMillis = maxUploadMillis;
+        m_BufferBytes = bufferBytes;
+    }
+
+    /**
+     * Append raw data in the job's data format
+     *
+     * @param data The data
+     * @return True if the data was added to the upload and any upload
+     * ended by this call succeeded
+     * @throws IOException
+     */
+    public boolean append(byte [] data)
+    throws IOException
+    {
+        return append(data, 0, data.length);
+    }
+
+    /**
+     * Append raw data in the job's data format
+     *
+     * @param data Holds the data
+     * @param offset The start of the data in <code>data</code>
+     * @param length The number of bytes
+     * @return True if the data was added to the upload and any upload
+     * ended by this call succeeded
+     * @throws IOException
+     */
+    public synchronized boolean append(byte [] data, int offset, int length)
+    throws IOException
+    {
+        Upload upload = currentUpload();
+        if (upload == null)
+        {
+            return false;
+        }
+
+        try
+        {
+            upload.m_Pipe.write(data, offset, length);
+        }
+        catch (UploadEndedException e)
+        {
+            endUpload();
+            return false;
+        }
+
+        upload.m_BytesSent += length;
+        return checkUploadSize(upload);
+    }
+
+    /**
+     * Append text in the job's data format, the text is sent as UTF-8
+     *
+     * @param text The data
+     * @return True if the data was added to the upload and any upload
+     * ended by this call succeeded
+     * @throws IOException
+     */
+    public boolean append(CharSequence text)
+    throws IOException
+    {
+        return append(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Append a record, the session must have been created with
+     * a data description and fields.
+     *
+     * @param record The values in the order of the session's fields
+     * @return True if the record was added to the upload and any upload
+     * ended by this call succeeded
+     * @throws IOException
+     */
+    public synchronized boolean append(String [] record)
+    throws IOException
+    {
+        if (m_Fields == null)
+        {
+            throw new IllegalStateException(
+                    "The session was not created with a data description and fields");
+        }
+
+        Upload upload = currentUpload();
+        if (upload == null)
+        {
+            return false;
+        }
+
+        try
+        {
+            m_Writer.write(record);
+            m_Writer.flush();
+        }
+        catch (UploadEndedException e)
+        {
+            endUpload();
+            return false;
+        }
+
+        return checkUploadSize(upload);
+    }
+
+    /**
+     * End the current upload so all the data appended so far is
+     * processed then flush the job.
+     *
+     * @param calcInterim Should interim results be calculated for
+     * the most recent bucket
+     * @return True if successful
+     * @throws IOException
+     * @see EngineApiAsyncClient#flushJob(String, String, boolean, org.apache.http.concurrent.FutureCallback)
+     */
+    public synchronized boolean flush(boolean calcInterim)
+    throws IOException
+    {
+        if (m_Current != null && endUpload() == false)
+        {
+            return false;
+        }
+
+        ApiResult<Boolean> flushed = await(
+                m_Client.flushJob(m_BaseUrl, m_JobId, calcInterim, null),
+                "flushing job " + m_JobId);
+        m_LastError = flushed.getError();
+        return flushed.isSuccess();
+    }
+
+    /**
+     * End the current upload and close the job. The session
+     * cannot be used afterwards.
+     *
+     * @return True if successful
+     * @throws IOException
+     * @see EngineApiAsyncClient#closeJob(String, String, org.apache.http.concurrent.FutureCallback)
+     */
+    public synchronized boolean closeJob()
+    throws IOException
+    {
+        if (m_Closed)
+        {
+            return true;
+        }
+        m_Closed = true;
+
+        boolean ended = (m_Current == null) || endUpload();
+
+        ApiResult<Boolean> closed = await(m_Client.closeJob(m_BaseUrl, m_JobId, null),
+                "closing job " + m_JobId);
+        if (closed.isSuccess() == false)
+        {
+            m_LastError = closed.getError();
+        }
+        return ended && closed.isSuccess();
+    }
+
+    /**
+     * Calls {@linkplain #closeJob()}
+     */
+    @Override
+    public void close()
+    throws IOException
+    {
+        closeJob();
+    }
+
+    /**
+     * The total bytes of the uploads that have succeeded
+     * @return Bytes accepted
+     */
+    public synchronized long getBytesAccepted()
+    {
+        return m_BytesAccepted;
+    }
+
+    /**
+     * The number of uploads started
+     * @return Upload count
+     */
+    public synchronized int getUploadCount()
+    {
+        return m_UploadCount;
+    }
+
+    /**
+     * The error from the most recent failure
+     * @return The error or <code>null</code>
+     */
+    public ApiError getLastError()
+    {
+        return m_LastError;
+    }
+
+    /**
+     * The upload to append to, starting one if there is none
+     * or the current one is too old.
+     *
+     * @return The upload or <code>null</code> if the session is closed
+     * or the upload ended because it was too old failed
+     */
+    private Upload currentUpload()
+    throws IOException
+    {
+        if (m_Closed)
+        {
+            ApiError error = new ApiError();
+            error.setMessage("The upload session for job " + m_JobId + " is closed");
+            m_LastError = error;
+            return null;
+        }
+
+        if (m_Current != null &&
+                System.currentTimeMillis() - m_Current.m_StartMillis >= m_MaxUploadMillis)
+        {
+            if (endUpload() == false)
+            {
+                return null;
+            }
+        }
+
+        if (m_Current == null)
+        {
+            m_Current = new Upload();
+            m_UploadCount++;
+
+            if (m_Fields != null)
+            {
+                m_Writer = RecordWriter.create(m_Current.m_Output, m_DataDescription, m_Fields);
+                m_Writer.start();
+            }
+        }
+        return m_Current;
+    }
+
+    private boolean checkUploadSize(Upload upload)
+    throws IOException
+    {
+        if (upload.m_BytesSent >= m_MaxUploadBytes)
+        {
+            return endUpload();
+        }
+        return true;
+    }
+
+    /**
+     * Mark the end of the current upload's data and wait for it
+     * to finish
+     *
+     * @return True if the upload succeeded
+     */
+    private boolean endUpload()
+    throws IOException
+    {
+        Upload upload = m_Current;
+        m_Current = null;
+        m_Writer = null;
+
+        upload.m_Pipe.endOfData();
+
+        ApiResult<Boolean> result;
+        if (upload.m_Pipe.awaitStart())
+        {
+            result = await(upload.m_Future, "uploading to job " + m_JobId);
+        }
+        else
+        {
+            upload.m_Future.cancel(true);
+
+            ApiError error = new ApiError();
+            error.setMessage("The upload to job " + m_JobId + " did not get a connection within " +
+                    CONNECTION_WAIT_MILLIS + "ms, the client's connection limits allow too " +
+                    "few connections for the open upload sessions");
+            LOGGER.error(error.getMessage());
+            result = new ApiResult<Boolean>(0, error);
+        }
+
+        m_LastError = result.getError();
+        if (result.isSuccess())
+        {
+            m_BytesAccepted += upload.m_BytesSent;
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Wait for a request made with the async client
+     *
+     * @param future The request's result
+     * @param desc Describes the request for the error message
+     * @return The result, request failures are converted to an error result
+     * @throws InterruptedIOException If interrupted while waiting
+     */
+    private ApiResult<Boolean> await(Future<ApiResult<Boolean>> future, String desc)
+    throws InterruptedIOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new InterruptedIOException("Interrupted waiting for " + desc);
+        }
+        catch (ExecutionException e)
+        {
+            LOGGER.error("Error in " + desc, e.getCause());
+            ApiError error = new ApiError();
+            error.setMessage("Error in " + desc + ": " + e.getCause());
+            error.setCause(e.getCause());
+            return new ApiResult<Boolean>(0, error);
+        }
+    }
+
+
+    /**
+     * One streaming upload and the pipe feeding it
+     */
+    private class Upload
+    {
+        final Pipe m_Pipe;
+        final Future<ApiResult<Boolean>> m_Future;
+        final long m_StartMillis;
+        long m_BytesSent;
+
+        final OutputStream m_Output = new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            throws IOException
+            {
+                write(new byte [] {(byte)b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte [] b, int off, int len)
+            throws IOException
+            {
+                m_Pipe.write(b, off, len);
+                m_BytesSent += len;
+            }
+        };
+
+        /**
+         * Starts the upload, the request's content is produced
+         * from the pipe by the client's I/O reactor as it is written.
+         * However the request ends, including failing to get a
+         * connection, the pipe is closed so appends stop waiting.
+         */
+        Upload()
+        {
+            m_StartMillis = System.currentTimeMillis();
+            m_Pipe = new Pipe(m_BufferBytes, m_StartMillis + CONNECTION_WAIT_MILLIS);
+            m_Future = m_Client.streamingUpload(m_BaseUrl, m_JobId, m_Pipe, false,
+                    new FutureCallback<ApiResult<Boolean>>()
+                    {
+                        @Override
+                        public void completed(ApiResult<Boolean> result)
+                        {
+                            m_Pipe.close();
+                        }
+
+                        @Override
+                        public void failed(Exception ex)
+                        {
+                            m_Pipe.close();
+                        }
+
+                        @Override
+                        public void cancelled()
+                        {
+                            m_Pipe.close();
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Thrown to the appending thread when the upload has stopped reading
+     */
+    private static class UploadEndedException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        UploadEndedException()
+        {
+            super("The upload has ended");
+        }
+    }
+
+    /**
+     * A bounded ring buffer written by the appending threads and
+     * read by the I/O reactor as the request's chunked content.
+     * <br/>
+     * When the buffer is empty the reactor suspends output on the
+     * connection rather than waiting, writing the next data or
+     * the end of data requests output again.
+     * <br/>
+     * Until the reactor first asks for content, which it does once
+     * the request has a connection, writes wait for space only until
+     * the start deadline.
+     */
+    private static class Pipe extends AbstractHttpEntity implements HttpAsyncContentProducer
+    {
+        private final byte [] m_Buffer;
+        private final long m_StartDeadline;
+        private int m_Head;
+        private int m_Count;
+        private boolean m_Started;
+        private boolean m_EndOfData;
+        private boolean m_Closed;
+        private IOControl m_Suspended;
+
+        Pipe(int size, long startDeadline)
+        {
+            m_Buffer = new byte[size];
+            m_StartDeadline = startDeadline;
+            setContentType("application/octet-stream");
+            setChunked(true);
+        }
+
+        synchronized void write(byte [] b, int off, int len)
+        throws IOException
+        {
+            try
+            {
+                while (len > 0)
+                {
+                    while (m_Count == m_Buffer.length && m_Closed == false)
+                    {
+                        if (m_Started)
+                        {
+                            wait();
+                        }
+                        else if (waitForStart() == false)
+                        {
+                            // the upload has no connection
+                            throw new UploadEndedException();
+                        }
+                    }
+                    if (m_Closed)
+                    {
+                        throw new UploadEndedException();
+                    }
+
+                    int tail = (m_Head + m_Count) % m_Buffer.length;
+                    int n = Math.min(len, Math.min(m_Buffer.length - m_Count,
+                            m_Buffer.length - tail));
+                    System.arraycopy(b, off, m_Buffer, tail, n);
+                    m_Count += n;
+                    off += n;
+                    len -= n;
+                    resumeOutput();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted appending upload data");
+            }
+        }
+
+        synchronized void endOfData()
+        {
+            m_EndOfData = true;
+            resumeOutput();
+        }
+
+        /**
+         * Wait until the reactor starts producing the content or the
+         * request ends, whichever is first, but no later than the
+         * start deadline
+         *
+         * @return False if the deadline passed before either
+         * @throws InterruptedIOException
+         */
+        synchronized boolean awaitStart()
+        throws InterruptedIOException
+        {
+            try
+            {
+                while (m_Started == false && m_Closed == false)
+                {
+                    if (waitForStart() == false)
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the upload to start");
+            }
+        }
+
+        /**
+         * Wait once, for no longer than the start deadline
+         *
+         * @return False if the deadline has passed
+         */
+        private boolean waitForStart()
+        throws InterruptedException
+        {
+            long remaining = m_StartDeadline - System.currentTimeMillis();
+            if (remaining <= 0)
+            {
+                return false;
+            }
+            wait(remaining);
+            return true;
+        }
+
+        private void resumeOutput()
+        {
+            if (m_Suspended != null)
+            {
+                m_Suspended.requestOutput();
+                m_Suspended = null;
+            }
+        }
+
+        /**
+         * Called by the I/O reactor when the connection is writable,
+         * must not block.
+         */
+        @Override
+        public synchronized void produceContent(ContentEncoder encoder, IOControl ioctrl)
+        throws IOException
+        {
+            if (m_Started == false)
+            {
+                m_Started = true;
+                notifyAll();
+            }
+
+            while (m_Count > 0)
+            {
+                int n = Math.min(m_Count, m_Buffer.length - m_Head);
+                int written = encoder.write(ByteBuffer.wrap(m_Buffer, m_Head, n));
+                if (written == 0)
+                {
+                    // the connection's buffer is full, the
+                    // reactor calls again when it drains
+                    break;
+                }
+                m_Head = (m_Head + written) % m_Buffer.length;
+                m_Count -= written;
+                notifyAll();
+            }
+
+            if (m_Count == 0)
+            {
+                if (m_EndOfData)
+                {
+                    encoder.complete();
+                }
+                else
+                {
+                    ioctrl.suspendOutput();
+                    m_Suspended = ioctrl;
+                }
+            }
+        }
+
+        /**
+         * Called by the I/O reactor when the request is finished,
+         * appends waiting for space fail.
+         */
+        @Override
+        public synchronized void close()
+        {
+            m_Closed = true;
+            m_Count = 0;
+            m_Suspended = null;
+            notifyAll();
+        }
+
+        @Override
+        public boolean isRepeatable()
+        {
+            return false;
+        }
+
+        @Override
+        public long getContentLength()
+        {
+            return -1;
+        }
+
+        @Override
+        public boolean isStreaming()
+        {
+            return true;
+        }
+
+        @Override
+        public InputStream getContent()
+        {
+            throw new UnsupportedOperationException(
+                    "Upload session content is only produced asynchronously");
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream)
+        {
+            throw new UnsupportedOperationException(
+                    "Upload session content is only produced asynchronously");
+        }
+    }
+}
@@ -35,7 +35,6 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
@@ -45,9 +44,9 @@ import com.prelert.job.Detector;
 import com.prelert.job.JobConfiguration;
 import com.prelert.job.JobDetails;
 import com.prelert.rs.client.EngineApiClient;
+import com.prelert.rs.client.PagedResults;
 import com.prelert.rs.data.ApiError;
 import com.prelert.rs.data.Bucket;
-import com.prelert.rs.data.Pagination;
 import com.prelert.rs.data.SingleDocument;
 
 /**
@@ -271,36 +270,25 @@ public class Farequote
 	 		engineApiClient.closeJob(baseUrl, jobId);
 	 				
 	 		// results are available immediately after the close
-	 		Pagination<Bucket> page = engineApiClient.getBuckets(baseUrl, jobId, false, 0.0, 0.0);
-	 		if (page.getDocumentCount() == 0 && engineApiClient.getLastError() == null)
-	 		{
-				s_Logger.error("Error reading analysis results");
-				reportApiErrorMessage(engineApiClient.getLastError());
-				return;
-	 		}
-	 		
-	 		// print
 	 		printBucketScoresHeader();
-	 		printBucketScores(page.getDocuments());
 	 		
-	 		List<Bucket> allBuckets = new ArrayList<>(page.getDocuments());
+	 		// Walk all the results. The iterable follows the next page
+	 		// links fetching the next page in the background while the
+	 		// current page is processed.
+	 		PagedResults<Bucket> results = engineApiClient.iterateBuckets(baseUrl, jobId,
+	 				false, false, null, null, 0.0, 0.0, null);
+	 		List<Bucket> allBuckets = new ArrayList<>();
+	 		for (Bucket bucket : results)
+	 		{
+	 			printBucketScores(Arrays.asList(bucket));
+	 			allBuckets.add(bucket);
+	 		}
 	 		
-	 		while (page.getNextPage() != null)
+	 		if (results.getLastError() != null)
 	 		{
-	 			// get next page using the generic get and TypeReference
-	 			page = engineApiClient.get(page.getNextPage().toString(),
-	 					new TypeReference<Pagination<Bucket>>() {});
-	 			
-	 			
-	 			// or use the skip and take parameters
-	 			/*
-	 			page = engineApiClient.getBuckets(baseUrl, jobId, false, 
-	 					new Long(page.getSkip() + page.getTake()), 
-	 					new Long(page.getTake()));
-	 			*/
-	 			
-	 			printBucketScores(page.getDocuments());
-	 			allBuckets.addAll(page.getDocuments());
+				s_Logger.error("Error reading analysis results");
+				reportApiErrorMessage(results.getLastError());
+				return;
 	 		}
 	 		
 	 		// Sort by anomaly score